@@ -0,0 +1,124 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.PrintStream;
+
+/**
+ * A histogram of latencies in microseconds with log-linear buckets: each power of two is split
+ * into {@value #SUB_BUCKETS} linear buckets, so any value is within 1/{@value #SUB_BUCKETS} of
+ * its bucket's bound.  Recording is a few shifts and an increment.  Not thread-safe; keep one per
+ * thread and {@link #add(LatencyHistogram)} them up.
+ */
+class LatencyHistogram {
+
+  static final int SUB_BUCKETS = 16;
+  private static final int SUB_BITS = 4;//log2(SUB_BUCKETS)
+  private static final int MAGNITUDES = 40;//up to 2^40us, about 12 days
+
+  private final long[] counts = new long[MAGNITUDES * SUB_BUCKETS];
+  private long count;
+  private long sum;
+  private long max;
+
+  void record(long micros) {
+    if (micros < 0)
+      micros = 0;
+    counts[index(micros)]++;
+    count++;
+    sum += micros;
+    if (micros > max)
+      max = micros;
+  }
+
+  private static int index(long value) {
+    if (value < SUB_BUCKETS)
+      return (int) value;
+    int magnitude = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS + 1;
+    int sub = (int) (value >>> (magnitude - 1)) & (SUB_BUCKETS - 1);
+    return Math.min(magnitude * SUB_BUCKETS + sub, MAGNITUDES * SUB_BUCKETS - 1);
+  }
+
+  /** The largest value that falls in the bucket at {@code index}. */
+  private static long upperBound(int index) {
+    int magnitude = index / SUB_BUCKETS;
+    int sub = index % SUB_BUCKETS;
+    if (magnitude == 0)
+      return sub;
+    return ((long) (sub + SUB_BUCKETS) << (magnitude - 1)) + (1L << (magnitude - 1)) - 1;
+  }
+
+  void add(LatencyHistogram other) {
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] += other.counts[i];
+    }
+    count += other.count;
+    sum += other.sum;
+    max = Math.max(max, other.max);
+  }
+
+  long getCount() {
+    return count;
+  }
+
+  long getMax() {
+    return max;
+  }
+
+  double getMean() {
+    return count == 0 ? 0 : (double) sum / count;
+  }
+
+  /** The value at or below which {@code percentile} (0 - 100) of the values are. */
+  long getPercentile(double percentile) {
+    if (count == 0)
+      return 0;
+    long rank = (long) Math.ceil(percentile / 100 * count);
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank && seen > 0)
+        return Math.min(upperBound(i), max);
+    }
+    return max;
+  }
+
+  /** Prints percentiles, then a bar per non-empty range of buckets, in milliseconds. */
+  void print(PrintStream out) {
+    out.printf("latency ms: mean=%.2f p50=%.2f p90=%.2f p99=%.2f p99.9=%.2f max=%.2f%n",
+        getMean() / 1000, getPercentile(50) / 1000.0, getPercentile(90) / 1000.0,
+        getPercentile(99) / 1000.0, getPercentile(99.9) / 1000.0, max / 1000.0);
+    if (count == 0)
+      return;
+    //coarsen to one bar per power of two
+    for (int magnitude = 0; magnitude < MAGNITUDES; magnitude++) {
+      long n = 0;
+      for (int sub = 0; sub < SUB_BUCKETS; sub++) {
+        n += counts[magnitude * SUB_BUCKETS + sub];
+      }
+      if (n == 0)
+        continue;
+      int bar = (int) Math.ceil(60.0 * n / count);
+      StringBuilder bars = new StringBuilder(bar);
+      for (int i = 0; i < bar; i++) {
+        bars.append('#');
+      }
+      out.printf("  <= %10.3f ms %9d %s%n", upperBound(magnitude * SUB_BUCKETS + SUB_BUCKETS - 1) / 1000.0,
+          n, bars);
+    }
+  }
+}
@@ -0,0 +1,144 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Sends requests to a URL from a number of threads, each issuing its next request as soon as the
+ * last completes (a closed loop), for a warm-up period and then a measured one.  Uses the JDK's
+ * HttpURLConnection, which keeps connections alive.  Latencies of measured requests go into a
+ * {@link LatencyHistogram} per thread.
+ */
+class LoadGenerator {
+
+  private final URL url;
+  private final int threads;
+  private final long warmupMs;
+  private final long durationMs;
+  private final byte[] requestBody;//null for GETs
+
+  private final LatencyHistogram histogram = new LatencyHistogram();
+  private long errors;
+  private long bytesRead;
+
+  /** @param requestBody if not null, it's POSTed */
+  LoadGenerator(URL url, int threads, long warmupMs, long durationMs, byte[] requestBody) {
+    this.url = url;
+    this.threads = threads;
+    this.warmupMs = warmupMs;
+    this.durationMs = durationMs;
+    this.requestBody = requestBody;
+    //HttpURLConnection only keeps this many idle connections per host
+    System.setProperty("http.maxConnections", String.valueOf(threads));
+  }
+
+  void run() throws InterruptedException {
+    final long start = System.nanoTime();
+    final long measureFrom = start + warmupMs * 1000000L;
+    final long end = measureFrom + durationMs * 1000000L;
+    final CountDownLatch done = new CountDownLatch(threads);
+    final List<Worker> workers = new ArrayList<Worker>();
+    for (int i = 0; i < threads; i++) {
+      Worker worker = new Worker(measureFrom, end, done);
+      workers.add(worker);
+      Thread thread = new Thread(worker, "load " + i);
+      thread.setDaemon(true);
+      thread.start();
+    }
+    done.await();
+    for (Worker worker : workers) {
+      histogram.add(worker.histogram);
+      errors += worker.errors;
+      bytesRead += worker.bytesRead;
+    }
+  }
+
+  void print(PrintStream out) {
+    long requests = histogram.getCount();
+    out.printf("%d threads, %d requests in %dms: %.1f req/s, %.2f MB/s, %d errors (%.2f%%)%n",
+        threads, requests, durationMs, requests * 1000.0 / durationMs,
+        bytesRead / 1048576.0 / (durationMs / 1000.0), errors, requests == 0 ? 0 : errors * 100.0 / requests);
+    histogram.print(out);
+  }
+
+  private class Worker implements Runnable {
+    final long measureFrom;
+    final long end;
+    final CountDownLatch done;
+    final LatencyHistogram histogram = new LatencyHistogram();
+    final byte[] buffer = new byte[8192];
+    long errors;
+    long bytesRead;
+
+    Worker(long measureFrom, long end, CountDownLatch done) {
+      this.measureFrom = measureFrom;
+      this.end = end;
+      this.done = done;
+    }
+
+    @Override
+    public void run() {
+      try {
+        long now;
+        while ((now = System.nanoTime()) < end) {
+          boolean ok;
+          long read = 0;
+          try {
+            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            if (requestBody != null) {
+              conn.setDoOutput(true);
+              conn.setFixedLengthStreamingMode(requestBody.length);
+              OutputStream out = conn.getOutputStream();
+              out.write(requestBody);
+              out.close();
+            }
+            int status = conn.getResponseCode();
+            ok = status < 400;
+            //read it all so the connection can be reused
+            InputStream in = ok ? conn.getInputStream() : conn.getErrorStream();
+            if (in != null) {
+              int n;
+              while ((n = in.read(buffer)) != -1) {
+                read += n;
+              }
+              in.close();
+            }
+          } catch (IOException e) {
+            ok = false;
+          }
+          if (now >= measureFrom) {
+            histogram.record((System.nanoTime() - now) / 1000);
+            bytesRead += read;
+            if (!ok)
+              errors++;
+          }
+        }
+      } finally {
+        done.countDown();
+      }
+    }
+  }
+}
@@ -0,0 +1,102 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * A load test of {@link ProxyServlet} in an embedded Jetty, proxying to a {@link StubBackend}, with
+ * the load from a {@link LoadGenerator}; it all runs in one JVM on the loopback interface.  Run it
+ * with the loadtest profile, configured by system properties:
+ * <pre>mvn -Ploadtest test-compile exec:java -Dthreads=64 -DdurationSec=30 -DlatencyMs=20</pre>
+ * <ul>
+ *   <li>threads (16), warmupSec (5), durationSec (20): the load</li>
+ *   <li>postSize (none): POST a body of this many bytes instead of GETs</li>
+ *   <li>latencyMs (5), latencyJitterMs (0), bodySize (4096), chunked (false), errorRate (0),
+ *       backendThreads (200): the backend</li>
+ *   <li>serverThreads (200): Jetty's thread pool</li>
+ *   <li>direct (false): load the backend directly, for a baseline</li>
+ *   <li>proxy.<i>name</i>: sets the servlet's init parameter <i>name</i>, e.g.
+ *       -Dproxy.maxConnectionsPerRoute=100</li>
+ * </ul>
+ * It prints the throughput and a latency histogram, the servlet's connection reuse, and its
+ * request classes and replicas if any.
+ */
+public class LoadHarness {
+
+  public static void main(String[] args) throws Exception {
+    int threads = Integer.getInteger("threads", 16);
+    long warmupMs = Long.getLong("warmupSec", 5) * 1000;
+    long durationMs = Long.getLong("durationSec", 20) * 1000;
+    Integer postSize = Integer.getInteger("postSize");
+
+    StubBackend backend = new StubBackend(Integer.getInteger("backendThreads", 200),
+        Long.getLong("latencyMs", 5), Long.getLong("latencyJitterMs", 0),
+        Integer.getInteger("bodySize", 4096), Boolean.getBoolean("chunked"),
+        Double.parseDouble(System.getProperty("errorRate", "0")));
+    backend.start();
+
+    Server server = new Server(new InetSocketAddress("127.0.0.1", 0));
+    server.setThreadPool(new QueuedThreadPool(Integer.getInteger("serverThreads", 200)));
+    ServletContextHandler context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+    context.setContextPath("/");
+    ServletHolder holder = new ServletHolder(ProxyServlet.class);
+    holder.setInitParameter("targetUri", backend.getUri() + "/target");
+    holder.setInitParameter(ProxyServlet.P_LOG, "false");
+    for (Map.Entry<Object, Object> prop : System.getProperties().entrySet()) {
+      String name = prop.getKey().toString();
+      if (name.startsWith("proxy."))
+        holder.setInitParameter(name.substring("proxy.".length()), prop.getValue().toString());
+    }
+    context.addServlet(holder, "/proxy/*");
+    server.setHandler(context);
+    server.start();
+    try {
+      String url = Boolean.getBoolean("direct") ? backend.getUri() + "/target/x"
+          : "http://127.0.0.1:" + server.getConnectors()[0].getLocalPort() + "/proxy/x";
+      System.out.println("Loading " + url + " with " + (postSize != null ? postSize + "-byte POSTs" : "GETs")
+          + " for " + warmupMs + "ms, then measuring for " + durationMs + "ms");
+      byte[] body = null;
+      if (postSize != null) {
+        body = new byte[postSize];
+        Arrays.fill(body, (byte) 'x');
+      }
+      LoadGenerator load = new LoadGenerator(new URL(url), threads, warmupMs, durationMs, body);
+      load.run();
+      load.print(System.out);
+      ProxyServlet servlet = (ProxyServlet) holder.getServlet();
+      if (servlet.getConnectionMonitor() != null)
+        System.out.println("upstream connections: " + servlet.getConnectionMonitor());
+      if (servlet.getFairQueue() != null)
+        System.out.println("request classes: " + servlet.getFairQueue());
+      if (servlet.getReplicaBalancer() != null)
+        System.out.println("replicas: " + servlet.getReplicaBalancer());
+      System.out.println("time to first byte: " + servlet.getTtfbMetrics());
+    } finally {
+      server.stop();
+      backend.stop();
+    }
+  }
+}
@@ -0,0 +1,122 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A target for load tests, on the JDK's built-in HTTP server so it needs no dependencies.  Each
+ * response waits a configurable latency, then sends a body of a configurable size, chunked or not;
+ * a configurable fraction of requests fail with a 500 instead.  Request bodies are read and
+ * discarded.
+ */
+class StubBackend {
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final long latencyMs;
+  private final long latencyJitterMs;
+  private final byte[] body;
+  private final boolean chunked;
+  private final double errorRate;
+
+  /**
+   * @param threads the number of requests handled at once
+   * @param latencyJitterMs up to this much more latency is added at random
+   * @param errorRate the fraction (0 - 1) of requests answered with a 500
+   */
+  StubBackend(int threads, long latencyMs, long latencyJitterMs, int bodySize, boolean chunked,
+              double errorRate) throws IOException {
+    this.latencyMs = latencyMs;
+    this.latencyJitterMs = latencyJitterMs;
+    this.body = new byte[bodySize];
+    new Random(0).nextBytes(body);
+    this.chunked = chunked;
+    this.errorRate = errorRate;
+    //else Nagle's algorithm and delayed ACKs add ~40ms to each response; read when first used
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+    this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+    this.executor = Executors.newFixedThreadPool(threads);
+    server.setExecutor(executor);
+    server.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        respond(exchange);
+      }
+    });
+  }
+
+  void start() {
+    server.start();
+  }
+
+  void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  /** The URI of this backend, e.g. to proxy to. */
+  String getUri() {
+    return "http://127.0.0.1:" + server.getAddress().getPort();
+  }
+
+  private void respond(HttpExchange exchange) throws IOException {
+    try {
+      InputStream in = exchange.getRequestBody();
+      byte[] buf = new byte[8192];
+      while (in.read(buf) != -1) {
+        //discard
+      }
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      long sleep = latencyMs + (latencyJitterMs > 0 ? random.nextLong(latencyJitterMs + 1) : 0);
+      if (sleep > 0)
+        Thread.sleep(sleep);
+      if (errorRate > 0 && random.nextDouble() < errorRate) {
+        exchange.sendResponseHeaders(500, -1);
+        return;
+      }
+      exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+      exchange.sendResponseHeaders(200, chunked ? 0 : (body.length == 0 ? -1 : body.length));
+      if (body.length > 0) {
+        OutputStream out = exchange.getResponseBody();
+        if (chunked) {
+          for (int off = 0; off < body.length; off += 4096) {
+            out.write(body, off, Math.min(4096, body.length - off));
+            out.flush();
+          }
+        } else {
+          out.write(body);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      exchange.close();
+    }
+  }
+}
@@ -0,0 +1,305 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An access log of proxied requests, written by a background thread so request threads never wait
+ * on the disk.  Requests hand off a {@link Entry} through a bounded lock-free ring buffer; if the
+ * writer falls behind and the buffer fills, entries are dropped (and counted) rather than blocking.
+ * The writer drains entries in batches, formats them, and flushes once per batch.
+ * <p>
+ * The format is a pattern with these fields:
+ * <ul>
+ *   <li>%t - the time the request started, ISO-8601 UTC</li>
+ *   <li>%a - the client's address</li>
+ *   <li>%m - the method</li>
+ *   <li>%U - the URI requested of the servlet, with query</li>
+ *   <li>%T - the URI requested of the target</li>
+ *   <li>%s - the target's status, or "-" if there was no response</li>
+ *   <li>%b - the response body bytes sent to the client, or "-"</li>
+ *   <li>%u - milliseconds until the target's response headers arrived, or "-"</li>
+ *   <li>%c - milliseconds until the response was committed to the client (its status and headers
+ *   sent), or "-"</li>
+ *   <li>%D - milliseconds to handle the whole request</li>
+ *   <li>%% - a '%'</li>
+ * </ul>
+ * </p>
+ */
+public class AccessLog {
+
+  public static final String DEFAULT_FORMAT = "%t %a %m %U %T %s %b %u %D";
+
+  /** What's logged about one request. Filled in by the request thread, then handed off. */
+  public static class Entry {
+    final long startTimeMillis = System.currentTimeMillis();
+    final long startNanos = System.nanoTime();
+    String remoteAddr;
+    String method;
+    String requestUri;
+    String targetUri;
+    int status;
+    long bytes = -1;
+    long upstreamNanos = -1;
+    long clientNanos = -1;
+    long totalNanos;
+
+    /** Marks that the target's response headers have arrived. */
+    void upstreamResponded() {
+      upstreamNanos = System.nanoTime() - startNanos;
+    }
+
+    /** Wraps the response entity to count the bytes sent to the client. */
+    HttpEntity countBytes(HttpEntity entity) {
+      bytes = 0;
+      return new HttpEntityWrapper(entity) {
+        @Override
+        public InputStream getContent() throws IOException {
+          return new FilterInputStream(super.getContent()) {
+            @Override
+            public int read() throws IOException {
+              int b = super.read();
+              if (b != -1)
+                bytes++;
+              return b;
+            }
+
+            @Override
+            public int read(byte[] buf, int off, int len) throws IOException {
+              int n = super.read(buf, off, len);
+              if (n > 0)
+                bytes += n;
+              return n;
+            }
+          };
+        }
+
+        @Override
+        public void writeTo(OutputStream outstream) throws IOException {
+          super.writeTo(new FilterOutputStream(outstream) {
+            @Override
+            public void write(int b) throws IOException {
+              out.write(b);
+              bytes++;
+            }
+
+            @Override
+            public void write(byte[] buf, int off, int len) throws IOException {
+              out.write(buf, off, len);
+              bytes += len;
+            }
+          });
+        }
+      };
+    }
+  }
+
+  private final String format;
+  private final double sampleRate;
+  private final Writer writer;
+
+  //the ring buffer: a bounded multi-producer, single-consumer queue after Dmitry Vyukov's design
+  private final int mask;
+  private final AtomicReferenceArray<Entry> slots;
+  private final AtomicLongArray sequences;
+  private final AtomicLong tail = new AtomicLong();//next to publish; contended by producers
+  private long head;//next to consume; writer thread only
+
+  private final AtomicLong dropped = new AtomicLong();
+  private final Thread writerThread;
+  private volatile boolean running = true;
+  private final SimpleDateFormat dateFormat;//writer thread only
+
+  /**
+   * @param writer where to write; closed on {@link #close()}
+   * @param format see the class docs
+   * @param sampleRate the fraction (0 - 1) of requests to log
+   * @param capacity the ring buffer size, rounded up to a power of 2
+   */
+  public AccessLog(Writer writer, String format, double sampleRate, int capacity) {
+    this.writer = writer;
+    this.format = format;
+    this.sampleRate = sampleRate;
+    int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+    this.mask = size - 1;
+    this.slots = new AtomicReferenceArray<Entry>(size);
+    this.sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      sequences.set(i, i);
+    }
+    this.dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ROOT);
+    this.dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    this.writerThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        writeLoop();
+      }
+    }, "ProxyServlet access log writer");
+    this.writerThread.setDaemon(true);
+    this.writerThread.start();
+  }
+
+  /** Opens {@code file} for appending. */
+  public static AccessLog open(String file, String format, double sampleRate, int capacity)
+      throws IOException {
+    Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"), 65536);
+    return new AccessLog(writer, format, sampleRate, capacity);
+  }
+
+  /** Starts an entry for a request, or returns null if it isn't sampled. */
+  public Entry start() {
+    if (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate)
+      return null;
+    return new Entry();
+  }
+
+  /** Completes {@code entry} and queues it for writing without blocking. */
+  public void log(Entry entry) {
+    entry.totalNanos = System.nanoTime() - entry.startNanos;
+    if (!offer(entry))
+      dropped.incrementAndGet();
+  }
+
+  /** The number of entries dropped because the writer fell behind. */
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+  private boolean offer(Entry entry) {
+    while (true) {
+      long pos = tail.get();
+      int idx = (int) pos & mask;
+      long diff = sequences.get(idx) - pos;
+      if (diff == 0) {
+        if (tail.compareAndSet(pos, pos + 1)) {
+          slots.lazySet(idx, entry);
+          sequences.lazySet(idx, pos + 1);//publishes the slot to the writer
+          return true;
+        }
+      } else if (diff < 0) {
+        return false;//full
+      }
+      //else another producer took this position; retry
+    }
+  }
+
+  private Entry poll() {
+    int idx = (int) head & mask;
+    if (sequences.get(idx) != head + 1)
+      return null;//empty, or the producer hasn't published yet
+    Entry entry = slots.get(idx);
+    slots.lazySet(idx, null);
+    sequences.lazySet(idx, head + mask + 1);//free for the producer one lap later
+    head++;
+    return entry;
+  }
+
+  private void writeLoop() {
+    StringBuilder sb = new StringBuilder(256);
+    while (true) {
+      boolean wasRunning = running;
+      int written = 0;
+      try {
+        Entry entry;
+        while (written < 1024 && (entry = poll()) != null) {
+          sb.setLength(0);
+          format(entry, sb);
+          sb.append('\n');
+          writer.append(sb);
+          written++;
+        }
+        if (written > 0)
+          writer.flush();
+      } catch (IOException e) {
+        dropped.addAndGet(written);//nowhere to report it but here
+      }
+      if (written == 0) {
+        if (!wasRunning)
+          break;//drained after close()
+        LockSupport.parkNanos(5000000);//5ms
+      }
+    }
+    try {
+      writer.close();
+    } catch (IOException e) {
+      //ignore
+    }
+  }
+
+  private void format(Entry entry, StringBuilder sb) {
+    for (int i = 0; i < format.length(); i++) {
+      char c = format.charAt(i);
+      if (c != '%' || i + 1 == format.length()) {
+        sb.append(c);
+        continue;
+      }
+      char field = format.charAt(++i);
+      switch (field) {
+        case 't': sb.append(dateFormat.format(new Date(entry.startTimeMillis))); break;
+        case 'a': sb.append(entry.remoteAddr); break;
+        case 'm': sb.append(entry.method); break;
+        case 'U': sb.append(entry.requestUri); break;
+        case 'T': sb.append(entry.targetUri == null ? "-" : entry.targetUri); break;
+        case 's': appendOrDash(sb, entry.status > 0 ? entry.status : -1); break;
+        case 'b': appendOrDash(sb, entry.bytes); break;
+        case 'u': appendOrDash(sb, entry.upstreamNanos < 0 ? -1 : entry.upstreamNanos / 1000000); break;
+        case 'c': appendOrDash(sb, entry.clientNanos < 0 ? -1 : entry.clientNanos / 1000000); break;
+        case 'D': sb.append(entry.totalNanos / 1000000); break;
+        case '%': sb.append('%'); break;
+        default: sb.append('%').append(field);
+      }
+    }
+  }
+
+  private static void appendOrDash(StringBuilder sb, long value) {
+    if (value < 0)
+      sb.append('-');
+    else
+      sb.append(value);
+  }
+
+  /** Writes out what's queued, then stops the writer thread and closes the writer. */
+  public void close() {
+    running = false;
+    try {
+      writerThread.join(10000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,259 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Replaces occurrences of any of a set of ASCII byte patterns in a stream, in one pass and without
+ * buffering more than the longest pattern.  The patterns are compiled into an Aho-Corasick
+ * automaton with a full transition table (a DFA over ASCII), so each byte costs one array lookup.
+ * Where patterns overlap, the longest one ending first wins, and matching resumes after it.
+ * Optionally a match must end on a boundary of "word" bytes, like a regex's {@code \b}: if the
+ * pattern ends with a word byte, it doesn't match where the next byte is one too.  Immutable and
+ * thread-safe; the streams aren't.
+ */
+class AhoCorasickReplacer {
+
+  private static final int ALPHABET = 128;//bytes beyond ASCII are never in a pattern
+
+  private final int[][] next;//state -> byte -> state
+  private final int[] depth;//the length of the input suffix a state represents
+  private final int[] match;//state -> index of the longest pattern ending here, or -1
+  private final byte[][] patterns;
+  private final int maxLength;
+  private final boolean[] wordBytes;//by ASCII byte; all false if there's no boundary rule
+  private final boolean[] needsBoundary;//by pattern: whether it ends with a word byte
+
+  /** @param patterns non-empty ASCII strings */
+  AhoCorasickReplacer(String... patterns) {
+    this(null, patterns);
+  }
+
+  /**
+   * @param wordBytes the bytes a match mustn't be between, e.g. those that continue a URL's host
+   *                  or path segment; null for no boundary rule
+   * @param patterns non-empty ASCII strings
+   */
+  AhoCorasickReplacer(String wordBytes, String[] patterns) {
+    this.wordBytes = new boolean[ALPHABET];
+    if (wordBytes != null) {
+      for (byte b : ascii(wordBytes)) {
+        this.wordBytes[b] = true;
+      }
+    }
+    this.patterns = new byte[patterns.length][];
+    this.needsBoundary = new boolean[patterns.length];
+    int maxLength = 0;
+    for (int i = 0; i < patterns.length; i++) {
+      this.patterns[i] = ascii(patterns[i]);
+      maxLength = Math.max(maxLength, this.patterns[i].length);
+      needsBoundary[i] = this.wordBytes[this.patterns[i][this.patterns[i].length - 1]];
+    }
+    this.maxLength = maxLength;
+
+    //build the trie
+    List<int[]> trie = new ArrayList<int[]>();
+    List<Integer> depths = new ArrayList<Integer>();
+    List<Integer> matches = new ArrayList<Integer>();
+    trie.add(newRow());
+    depths.add(0);
+    matches.add(-1);
+    for (int p = 0; p < this.patterns.length; p++) {
+      int state = 0;
+      for (byte b : this.patterns[p]) {
+        if (trie.get(state)[b] < 0) {
+          trie.get(state)[b] = trie.size();
+          trie.add(newRow());
+          depths.add(depths.get(state) + 1);
+          matches.add(-1);
+        }
+        state = trie.get(state)[b];
+      }
+      matches.set(state, p);
+    }
+
+    //breadth-first, fill in failure transitions and inherit matches from the failure state
+    int n = trie.size();
+    next = trie.toArray(new int[n][]);
+    depth = new int[n];
+    match = new int[n];
+    for (int s = 0; s < n; s++) {
+      depth[s] = depths.get(s);
+      match[s] = matches.get(s);
+    }
+    int[] fail = new int[n];
+    int[] queue = new int[n];
+    int head = 0, tail = 0;
+    for (int b = 0; b < ALPHABET; b++) {
+      if (next[0][b] < 0) {
+        next[0][b] = 0;
+      } else {
+        fail[next[0][b]] = 0;
+        queue[tail++] = next[0][b];
+      }
+    }
+    while (head < tail) {
+      int s = queue[head++];
+      if (match[s] < 0)
+        match[s] = match[fail[s]];//a shorter pattern that's a suffix of this state
+      for (int b = 0; b < ALPHABET; b++) {
+        int t = next[s][b];
+        if (t < 0) {
+          next[s][b] = next[fail[s]][b];
+        } else {
+          fail[t] = next[fail[s]][b];
+          queue[tail++] = t;
+        }
+      }
+    }
+  }
+
+  private static int[] newRow() {
+    int[] row = new int[ALPHABET];
+    Arrays.fill(row, -1);
+    return row;
+  }
+
+  static byte[] ascii(String s) {
+    byte[] bytes = new byte[s.length()];
+    for (int i = 0; i < bytes.length; i++) {
+      char c = s.charAt(i);
+      if (c >= ALPHABET)
+        throw new IllegalArgumentException("Not ASCII: " + s);
+      bytes[i] = (byte) c;
+    }
+    return bytes;
+  }
+
+  /**
+   * A stream that writes to {@code out}, replacing each occurrence of pattern {@code i} with
+   * {@code replacements[i]}.  Bytes that may begin a match are held back until they don't; they're
+   * written on {@link OutputStream#close()}, which doesn't close {@code out}.
+   */
+  OutputStream replacing(OutputStream out, byte[][] replacements) {
+    if (replacements.length != patterns.length)
+      throw new IllegalArgumentException("Need " + patterns.length + " replacements");
+    return new ReplacingOutputStream(out, replacements);
+  }
+
+  private class ReplacingOutputStream extends FilterOutputStream {
+    private final byte[][] replacements;
+    private final byte[] pending = new byte[maxLength];//the last depth[state] bytes of input
+    private final byte[] buf = new byte[8192];
+    private int bufLen;
+    private int state;
+    private int deferred = -1;//a pattern matched at the last byte, if the next is on a boundary
+    private boolean closed;
+
+    ReplacingOutputStream(OutputStream out, byte[][] replacements) {
+      super(out);
+      this.replacements = replacements;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      for (int i = off; i < off + len; i++) {
+        int c = b[i];
+        if (deferred >= 0) {
+          int p = deferred;
+          deferred = -1;
+          if (c < 0 || !wordBytes[c])//else it's cancelled, and matching carries on from the state
+            replace(p);
+        }
+        int from = depth[state];
+        int to = c < 0 ? 0 : next[state][c];//c < 0: not ASCII
+        //what leaves the window of a possible match is output: the pending bytes plus c, minus the new window
+        int leaving = from + 1 - depth[to];
+        emit(pending, 0, Math.min(leaving, from));
+        if (leaving > from) {//c itself leaves; depth[to] == 0
+          emit(c);
+        } else {
+          System.arraycopy(pending, leaving, pending, 0, from - leaving);
+          pending[depth[to] - 1] = (byte) c;
+        }
+        state = to;
+        int p = match[state];
+        if (p >= 0) {
+          if (needsBoundary[p])
+            deferred = p;
+          else
+            replace(p);
+        }
+      }
+      flushBuf();
+    }
+
+    /** Outputs the pending bytes before pattern {@code p}, which ends them, and its replacement. */
+    private void replace(int p) throws IOException {
+      emit(pending, 0, depth[state] - patterns[p].length);
+      emit(replacements[p], 0, replacements[p].length);
+      state = 0;
+    }
+
+    private void emit(int b) throws IOException {
+      if (bufLen == buf.length)
+        flushBuf();
+      buf[bufLen++] = (byte) b;
+    }
+
+    private void emit(byte[] b, int off, int len) throws IOException {
+      if (len > buf.length - bufLen) {
+        flushBuf();
+        if (len > buf.length) {
+          out.write(b, off, len);
+          return;
+        }
+      }
+      System.arraycopy(b, off, buf, bufLen, len);
+      bufLen += len;
+    }
+
+    private void flushBuf() throws IOException {
+      if (bufLen > 0) {
+        out.write(buf, 0, bufLen);
+        bufLen = 0;
+      }
+    }
+
+    /** Writes out what's held back; doesn't close the underlying stream. */
+    @Override
+    public void close() throws IOException {
+      if (closed)
+        return;
+      closed = true;
+      if (deferred >= 0) {//the end is a boundary
+        replace(deferred);
+        deferred = -1;
+      }
+      emit(pending, 0, depth[state]);
+      state = 0;
+      flushBuf();
+      out.flush();
+    }
+  }
+}
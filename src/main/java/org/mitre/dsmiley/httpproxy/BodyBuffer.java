@@ -0,0 +1,222 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds a whole body for something that can't stream it, e.g. a filter that must see all of a
+ * response before rewriting it.  It's kept in memory, in pooled chunks reserved against the
+ * {@link MemoryBudget}, until it reaches a size limit or the budget refuses more; then it spills to
+ * a temp file, so memory use stays flat however large or numerous the bodies are.  Write the body,
+ * then read it back with {@link #writeTo(OutputStream)} or {@link #getInputStream()}, and always
+ * {@link #close()} it, which frees the chunks and deletes the file.  Not thread-safe.
+ * Get one from {@link ProxyServlet#newBodyBuffer(javax.servlet.http.HttpServletRequest)}.
+ */
+public class BodyBuffer extends OutputStream {
+
+  private final MemoryBudget.Reservation reservation;
+  private final BufferPool pool;
+  private final long maxMemoryBytes;
+  private final File spillDir;
+
+  private final List<byte[]> chunks = new ArrayList<byte[]>();
+  private int lastChunkLength;
+  private long size;
+  private File file;
+  private FileChannel channel;
+
+  /**
+   * @param maxMemoryBytes past this the body spills to disk, even if the budget has room
+   * @param spillDir where temp files go; null for the default temp dir
+   */
+  public BodyBuffer(MemoryBudget.Reservation reservation, BufferPool pool, long maxMemoryBytes,
+                    File spillDir) {
+    this.reservation = reservation;
+    this.pool = pool;
+    this.maxMemoryBytes = maxMemoryBytes;
+    this.spillDir = spillDir;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[]{(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    int chunkSize = pool.getBufferSize();
+    while (len > 0 && channel == null) {
+      if (chunks.isEmpty() || lastChunkLength == chunkSize) {
+        if ((long) (chunks.size() + 1) * chunkSize > maxMemoryBytes
+            || !reservation.tryReserve(chunkSize)) {
+          spill();
+          break;
+        }
+        chunks.add(pool.acquire());
+        lastChunkLength = 0;
+      }
+      int n = Math.min(len, chunkSize - lastChunkLength);
+      System.arraycopy(b, off, chunks.get(chunks.size() - 1), lastChunkLength, n);
+      lastChunkLength += n;
+      size += n;
+      off += n;
+      len -= n;
+    }
+    if (len > 0) {
+      writeToFile(b, off, len);
+      size += len;
+    }
+  }
+
+  private void spill() throws IOException {
+    file = File.createTempFile("proxy-body", ".tmp", spillDir);
+    channel = new RandomAccessFile(file, "rw").getChannel();
+    for (int i = 0; i < chunks.size(); i++) {
+      writeToFile(chunks.get(i), 0, i < chunks.size() - 1 ? pool.getBufferSize() : lastChunkLength);
+    }
+    releaseChunks();
+  }
+
+  /** Writes through a pooled direct buffer, so the JDK needn't use a temporary one of its own. */
+  private void writeToFile(byte[] b, int off, int len) throws IOException {
+    ByteBuffer buffer = pool.acquireDirect();
+    try {
+      while (len > 0) {
+        buffer.clear();
+        int n = Math.min(len, buffer.capacity());
+        buffer.put(b, off, n);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+        off += n;
+        len -= n;
+      }
+    } finally {
+      pool.releaseDirect(buffer);
+    }
+  }
+
+  private void releaseChunks() {
+    for (byte[] chunk : chunks) {
+      pool.release(chunk);
+    }
+    reservation.release((long) chunks.size() * pool.getBufferSize());
+    chunks.clear();
+    lastChunkLength = 0;
+  }
+
+  /** The number of bytes written. */
+  public long size() {
+    return size;
+  }
+
+  /** Whether the body went to a temp file. */
+  public boolean isSpilled() {
+    return file != null;
+  }
+
+  /** Writes the body to {@code out}. */
+  public void writeTo(OutputStream out) throws IOException {
+    if (channel == null) {
+      for (int i = 0; i < chunks.size(); i++) {
+        out.write(chunks.get(i), 0, i < chunks.size() - 1 ? pool.getBufferSize() : lastChunkLength);
+      }
+      return;
+    }
+    ByteBuffer buffer = pool.acquireDirect();
+    byte[] bytes = pool.acquire();
+    try {
+      long position = 0;
+      while (position < size) {
+        buffer.clear();
+        int n = channel.read(buffer, position);
+        if (n < 0)
+          throw new IOException("Spilled body is shorter than written");
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+          int m = Math.min(buffer.remaining(), bytes.length);
+          buffer.get(bytes, 0, m);
+          out.write(bytes, 0, m);
+        }
+        position += n;
+      }
+    } finally {
+      pool.releaseDirect(buffer);
+      pool.release(bytes);
+    }
+  }
+
+  /** The body as a stream, which must be closed before this buffer is. */
+  public InputStream getInputStream() throws IOException {
+    if (channel != null)
+      return new FileInputStream(file);
+    return new InputStream() {
+      private int chunk;
+      private int pos;
+
+      @Override
+      public int read() {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) {
+        if (len == 0)
+          return 0;
+        while (chunk < chunks.size()) {
+          int length = chunk < chunks.size() - 1 ? pool.getBufferSize() : lastChunkLength;
+          if (pos < length) {
+            int n = Math.min(len, length - pos);
+            System.arraycopy(chunks.get(chunk), pos, b, off, n);
+            pos += n;
+            return n;
+          }
+          chunk++;
+          pos = 0;
+        }
+        return -1;
+      }
+    };
+  }
+
+  /** Frees the memory and deletes the temp file. */
+  @Override
+  public void close() throws IOException {
+    releaseChunks();
+    if (channel != null) {
+      try {
+        channel.close();
+      } finally {
+        channel = null;
+        if (!file.delete())
+          file.deleteOnExit();
+      }
+    }
+  }
+}
@@ -0,0 +1,131 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A shared pool of fixed-size I/O buffers, so that copying bodies doesn't allocate a buffer per
+ * request.  Heap buffers are always handed out, but no more than a capped number of bytes of them
+ * are kept when they come back.  Direct buffers, for file channel I/O, are capped outright: past
+ * the cap a heap buffer is handed out instead, so direct memory never grows beyond it (unlike the
+ * JDK's own per-thread cache of temporary direct buffers, which grows with the number of threads).
+ * Lock-free; buffers must not be used after they're released.
+ */
+public class BufferPool {
+
+  public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+  private final int bufferSize;
+  private final int maxPooledHeap;//buffers
+  private final int maxDirect;//buffers
+
+  private final Queue<byte[]> heap = new ConcurrentLinkedQueue<byte[]>();
+  private final AtomicInteger pooledHeap = new AtomicInteger();
+  private final Queue<ByteBuffer> direct = new ConcurrentLinkedQueue<ByteBuffer>();
+  private final AtomicInteger allocatedDirect = new AtomicInteger();
+
+  private final AtomicLong heapAllocations = new AtomicLong();
+  private final AtomicLong directRefusals = new AtomicLong();
+
+  /**
+   * @param maxHeapBytes the most bytes of heap buffers to keep for reuse
+   * @param maxDirectBytes the most bytes of direct buffers to ever allocate
+   */
+  public BufferPool(int bufferSize, long maxHeapBytes, long maxDirectBytes) {
+    this.bufferSize = bufferSize;
+    this.maxPooledHeap = (int) Math.min(Integer.MAX_VALUE, maxHeapBytes / bufferSize);
+    this.maxDirect = (int) Math.min(Integer.MAX_VALUE, maxDirectBytes / bufferSize);
+  }
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  /** A heap buffer of {@link #getBufferSize()} bytes; not zeroed. */
+  public byte[] acquire() {
+    byte[] buffer = heap.poll();
+    if (buffer != null) {
+      pooledHeap.decrementAndGet();
+      return buffer;
+    }
+    heapAllocations.incrementAndGet();
+    return new byte[bufferSize];
+  }
+
+  /** Returns a buffer from {@link #acquire()}, to be kept if there's room. */
+  public void release(byte[] buffer) {
+    if (buffer == null || buffer.length != bufferSize)
+      return;
+    if (pooledHeap.incrementAndGet() <= maxPooledHeap)
+      heap.offer(buffer);
+    else
+      pooledHeap.decrementAndGet();
+  }
+
+  /** A cleared direct buffer of {@link #getBufferSize()} bytes, or a heap one if the direct cap is
+   * reached. */
+  public ByteBuffer acquireDirect() {
+    ByteBuffer buffer = direct.poll();
+    if (buffer != null) {
+      buffer.clear();
+      return buffer;
+    }
+    while (true) {
+      int allocated = allocatedDirect.get();
+      if (allocated >= maxDirect) {
+        directRefusals.incrementAndGet();
+        return ByteBuffer.allocate(bufferSize);
+      }
+      if (allocatedDirect.compareAndSet(allocated, allocated + 1))
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+  }
+
+  /** Returns a buffer from {@link #acquireDirect()}.  Direct ones are always kept, having been
+   * capped when allocated. */
+  public void releaseDirect(ByteBuffer buffer) {
+    if (buffer != null && buffer.isDirect())
+      direct.offer(buffer);
+  }
+
+  /** The number of heap buffers allocated because none were pooled. */
+  public long getHeapAllocations() {
+    return heapAllocations.get();
+  }
+
+  /** The number of direct buffers allocated, at most the cap. */
+  public int getDirectAllocations() {
+    return allocatedDirect.get();
+  }
+
+  /** The number of times a heap buffer was handed out because the direct cap was reached. */
+  public long getDirectRefusals() {
+    return directRefusals.get();
+  }
+
+  @Override
+  public String toString() {
+    return "bufferSize=" + bufferSize + " heapAllocations=" + heapAllocations.get()
+        + " pooledHeap=" + pooledHeap.get() + " direct=" + allocatedDirect.get()
+        + " directRefusals=" + directRefusals.get();
+  }
+}
@@ -0,0 +1,224 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.http.HttpEntity;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A single byte range of a response body, from a Range request header (RFC 7233), and how to send
+ * just that range of a full response.  Multiple ranges aren't supported; such requests get the
+ * full response, which the spec allows.
+ */
+class ByteRange {
+
+  /** A range that's syntactically valid but starts past the end of the body. */
+  static final ByteRange UNSATISFIABLE = new ByteRange(-1, -1, -1);
+
+  final long start;
+  final long end;//inclusive
+  final long length;//of the full body
+
+  ByteRange(long start, long end, long length) {
+    this.start = start;
+    this.end = end;
+    this.length = length;
+  }
+
+  long getCount() {
+    return end - start + 1;
+  }
+
+  /** The Content-Range header value. */
+  String toContentRange() {
+    return "bytes " + start + "-" + end + "/" + length;
+  }
+
+  /**
+   * Parses a Range header value given the full body's length.  Returns null if it should be
+   * ignored (not a single bytes range, or malformed), or {@link #UNSATISFIABLE}.
+   */
+  static ByteRange parse(String header, long length) {
+    if (header == null || !header.startsWith("bytes=") || header.indexOf(',') >= 0)
+      return null;
+    String spec = header.substring("bytes=".length()).trim();
+    int dash = spec.indexOf('-');
+    if (dash < 0)
+      return null;
+    try {
+      String first = spec.substring(0, dash).trim();
+      String last = spec.substring(dash + 1).trim();
+      if (first.isEmpty()) {//suffix: the last N bytes
+        long suffix = Long.parseLong(last);
+        if (suffix <= 0)
+          return suffix == 0 ? UNSATISFIABLE : null;
+        return length == 0 ? UNSATISFIABLE : new ByteRange(Math.max(0, length - suffix), length - 1, length);
+      }
+      long start = Long.parseLong(first);
+      long end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+      if (start < 0 || (!last.isEmpty() && Long.parseLong(last) < start))
+        return null;
+      if (start >= length)
+        return UNSATISFIABLE;
+      return new ByteRange(start, end, length);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Whether an If-Range header value matches the response's validators, so the range may be
+   * sent.  Per RFC 7233 only a strong ETag or an exact Last-Modified date match.
+   */
+  static boolean ifRangeMatches(String ifRange, String etag, String lastModified) {
+    if (ifRange == null)
+      return true;
+    ifRange = ifRange.trim();
+    if (ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+      return etag != null && !etag.startsWith("W/") && etag.equals(ifRange);
+    return lastModified != null && lastModified.equals(ifRange);
+  }
+
+  /**
+   * Wraps a full body to send just this range of it.  A cached body is read at the range's offset.
+   * Otherwise the body is read up to the range's end and then, unless {@code readAll} (e.g. to
+   * cache it), the connection it's read from is aborted rather than reading the rest.
+   */
+  HttpEntity slice(final HttpEntity full, final boolean readAll) {
+    return new HttpEntityWrapper(full) {
+      private boolean written;
+
+      @Override
+      public long getContentLength() {
+        return getCount();
+      }
+
+      @Override
+      public boolean isChunked() {
+        return false;
+      }
+
+      @Override
+      public boolean isStreaming() {
+        return !written && full.isStreaming();
+      }
+
+      @Override
+      public InputStream getContent() throws IOException {
+        return new RangeInputStream(full.getContent());
+      }
+
+      @Override
+      public void writeTo(OutputStream outstream) throws IOException {
+        written = true;
+        if (full instanceof DiskResponseCache.CachedEntity) {
+          ((DiskResponseCache.CachedEntity) full).writeTo(outstream, start, getCount());
+        } else if (readAll) {
+          full.writeTo(new SliceOutputStream(outstream));
+        } else {
+          InputStream in = getContent();
+          try {
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+              outstream.write(buf, 0, n);
+            }
+          } finally {
+            in.close();
+          }
+        }
+      }
+    };
+  }
+
+  /** Reads the range from a full body; closing it aborts the connection if there's more. */
+  private class RangeInputStream extends FilterInputStream {
+    private long toSkip = start;
+    private long remaining = getCount();
+
+    RangeInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      while (toSkip > 0) {
+        long n = in.skip(toSkip);
+        if (n <= 0) {
+          if (in.read() < 0)
+            throw new EOFException("Body ended before the requested range");
+          n = 1;
+        }
+        toSkip -= n;
+      }
+      if (remaining <= 0)
+        return -1;
+      int n = in.read(b, off, (int) Math.min(len, remaining));
+      if (n < 0)
+        throw new EOFException("Body ended before the requested range");
+      remaining -= n;
+      return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (in instanceof ConnectionReleaseTrigger && (toSkip > 0 || in.read() >= 0))
+        ((ConnectionReleaseTrigger) in).abortConnection();//don't download the rest
+      else
+        in.close();
+    }
+  }
+
+  /** Passes on only the bytes in the range. */
+  private class SliceOutputStream extends FilterOutputStream {
+    private long pos;
+
+    SliceOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (pos >= start && pos <= end)
+        out.write(b);
+      pos++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      long from = Math.max(pos, start);
+      long to = Math.min(pos + len - 1, end);
+      if (from <= to)
+        out.write(b, off + (int) (from - pos), (int) (to - from + 1));
+      pos += len;
+    }
+  }
+}
@@ -0,0 +1,212 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A set of IPv4 and IPv6 address ranges in CIDR notation, e.g. {@code 10.0.0.0/8, ::1}, compiled
+ * into a binary trie of address bits so that a lookup is one walk of at most 32 or 128 steps no
+ * matter how many ranges there are.  Addresses are parsed without name lookups; anything that isn't
+ * an IP literal is simply not contained.  IPv4-mapped IPv6 addresses match their IPv4 ranges.
+ * Immutable once parsed.
+ */
+final class CidrSet {
+
+  static final CidrSet EMPTY = new CidrSet();
+
+  private final Node v4 = new Node();
+  private final Node v6 = new Node();
+  private boolean empty = true;
+
+  private CidrSet() {
+  }
+
+  /** Parses comma and/or whitespace separated ranges; a bare address is a range of one. */
+  static CidrSet parse(String spec) {
+    CidrSet set = new CidrSet();
+    for (String range : spec.trim().split("[\\s,]+")) {
+      if (range.length() > 0)
+        set.add(range);
+    }
+    return set;
+  }
+
+  private void add(String range) {
+    int slash = range.indexOf('/');
+    byte[] addr = parseAddress(slash < 0 ? range : range.substring(0, slash));
+    if (addr == null)
+      throw new IllegalArgumentException("Not an IP address range: " + range);
+    int bits = addr.length * 8;
+    if (slash >= 0) {
+      try {
+        bits = Integer.parseInt(range.substring(slash + 1));
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Bad prefix length: " + range);
+      }
+      //an IPv4-mapped range was given in IPv6 bits
+      if (addr.length == 4 && range.indexOf(':') >= 0)
+        bits -= 96;
+      if (bits < 0 || bits > addr.length * 8)
+        throw new IllegalArgumentException("Bad prefix length: " + range);
+    }
+    Node node = addr.length == 4 ? v4 : v6;
+    for (int i = 0; i < bits && !node.terminal; i++) {
+      int bit = (addr[i >> 3] >> (7 - (i & 7))) & 1;
+      if (node.children[bit] == null)
+        node.children[bit] = new Node();
+      node = node.children[bit];
+    }
+    node.terminal = true;
+    node.children[0] = node.children[1] = null;//subsumed
+    empty = false;
+  }
+
+  boolean isEmpty() {
+    return empty;
+  }
+
+  /** Whether the IP literal is in one of the ranges; false if it isn't an IP literal. */
+  boolean contains(String address) {
+    if (empty || address == null)
+      return false;
+    byte[] addr = parseAddress(address);
+    if (addr == null)
+      return false;
+    Node node = addr.length == 4 ? v4 : v6;
+    for (int i = 0, bits = addr.length * 8; !node.terminal; i++) {
+      if (i == bits)
+        return false;
+      node = node.children[(addr[i >> 3] >> (7 - (i & 7))) & 1];
+      if (node == null)
+        return false;
+    }
+    return true;
+  }
+
+  /** Parses an IPv4 or IPv6 literal (optionally in brackets, with a zone) into 4 or 16 bytes,
+   * giving 4 for IPv4-mapped IPv6 addresses; null if it's not one. */
+  static byte[] parseAddress(String s) {
+    int start = 0, end = s.length();
+    if (end > 1 && s.charAt(0) == '[' && s.charAt(end - 1) == ']') {
+      start++;
+      end--;
+    }
+    int zone = s.indexOf('%', start);
+    if (zone >= 0 && zone < end)
+      end = zone;
+    if (s.indexOf(':', start) < 0 || s.indexOf(':', start) >= end) {
+      byte[] v4 = new byte[4];
+      return parseIPv4(s, start, end, v4, 0) ? v4 : null;
+    }
+    byte[] v6 = parseIPv6(s, start, end);
+    if (v6 == null)
+      return null;
+    for (int i = 0; i < 10; i++) {
+      if (v6[i] != 0)
+        return v6;
+    }
+    if (v6[10] != (byte) 0xff || v6[11] != (byte) 0xff)
+      return v6;
+    byte[] v4 = new byte[4];
+    System.arraycopy(v6, 12, v4, 0, 4);
+    return v4;
+  }
+
+  /** Dotted quad into {@code dest} at {@code off}. */
+  private static boolean parseIPv4(String s, int start, int end, byte[] dest, int off) {
+    int octets = 0;
+    int i = start;
+    while (octets < 4) {
+      int value = 0, digits = 0;
+      while (i < end && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+        value = value * 10 + (s.charAt(i++) - '0');
+        if (++digits > 3)
+          return false;
+      }
+      if (digits == 0 || value > 255)
+        return false;
+      dest[off + octets++] = (byte) value;
+      if (octets < 4) {
+        if (i >= end || s.charAt(i) != '.')
+          return false;
+        i++;
+      }
+    }
+    return i == end;
+  }
+
+  private static byte[] parseIPv6(String s, int start, int end) {
+    byte[] addr = new byte[16];
+    int groups = 0;//16-bit groups written
+    int gap = -1;//group index of "::"
+    int i = start;
+    if (s.startsWith("::", i)) {
+      gap = 0;
+      i += 2;
+    }
+    while (i < end) {
+      if (groups == 8)
+        return null;
+      int groupStart = i;
+      int value = 0;
+      while (i < end && Character.digit(s.charAt(i), 16) >= 0) {
+        value = (value << 4) | Character.digit(s.charAt(i++), 16);
+        if (i - groupStart > 4)
+          return null;
+      }
+      if (i < end && s.charAt(i) == '.') {//trailing embedded IPv4
+        if (groups > 6 || !parseIPv4(s, groupStart, end, addr, groups * 2))
+          return null;
+        groups += 2;
+        break;
+      }
+      if (i == groupStart)
+        return null;
+      addr[groups * 2] = (byte) (value >> 8);
+      addr[groups * 2 + 1] = (byte) value;
+      groups++;
+      if (i == end)
+        break;
+      if (s.charAt(i) != ':')
+        return null;
+      i++;
+      if (i < end && s.charAt(i) == ':') {
+        if (gap >= 0)
+          return null;
+        gap = groups;
+        i++;
+      } else if (i == end) {
+        return null;//trailing single ':'
+      }
+    }
+    if (gap < 0)
+      return groups == 8 ? addr : null;
+    if (groups == 8)
+      return null;
+    //move the groups after the gap to the end
+    int tail = (groups - gap) * 2;
+    System.arraycopy(addr, gap * 2, addr, 16 - tail, tail);
+    for (int j = gap * 2; j < 16 - tail; j++) {
+      addr[j] = 0;
+    }
+    return addr;
+  }
+
+  private static final class Node {
+    final Node[] children = new Node[2];
+    boolean terminal;
+  }
+}
@@ -0,0 +1,208 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.http.Header;
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpConnectionMetrics;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Manages the lifecycle of the client's pooled connections and counts how well they're reused.
+ * Half-closed connections are avoided in two ways: a connection is kept alive only until a second
+ * before the target's {@code Keep-Alive: timeout}, or for the max idle time if it sends none, and
+ * {@link #run()}, called periodically, closes expired and idle connections in the background.
+ * <p>
+ * A connection counts as new if no request has been sent over it before, else as reused, with its
+ * age (time since its first request) recorded.  Closed connections are counted by reason.
+ * </p>
+ */
+@SuppressWarnings("deprecation")
+public class ConnectionMonitor implements ConnectionKeepAliveStrategy, HttpRequestInterceptor,
+    HttpResponseInterceptor, Runnable {
+
+  /** How long before the target's keep-alive timeout a connection is no longer reused. */
+  static final long KEEP_ALIVE_MARGIN_MS = 1000;
+
+  private final ClientConnectionManager connManager;
+  private final long maxIdleMs;
+  private final ConnectionKeepAliveStrategy keepAliveHeader = new DefaultConnectionKeepAliveStrategy();
+  /** First use time by connection; keyed by its metrics, which are one per connection. Synchronized. */
+  private final Map<HttpConnectionMetrics, Long> firstUsed = new WeakHashMap<HttpConnectionMetrics, Long>();
+
+  private final AtomicLong newConnections = new AtomicLong();
+  private final AtomicLong reusedConnections = new AtomicLong();
+  private final AtomicLong reusedAgeTotalMs = new AtomicLong();
+  private final AtomicLong reusedAgeMaxMs = new AtomicLong();
+  private final AtomicLong closedByTarget = new AtomicLong();
+  private final AtomicLong evictedExpired = new AtomicLong();
+  private final AtomicLong evictedIdle = new AtomicLong();
+
+  /**
+   * @param maxIdleMs how long a connection may be idle in the pool, and the keep-alive time if the
+   *                  target doesn't say
+   */
+  public ConnectionMonitor(ClientConnectionManager connManager, long maxIdleMs) {
+    this.connManager = connManager;
+    this.maxIdleMs = maxIdleMs;
+  }
+
+  /** Honors the target's {@code Keep-Alive: timeout}, less {@link #KEEP_ALIVE_MARGIN_MS}. */
+  @Override
+  public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+    long duration = keepAliveHeader.getKeepAliveDuration(response, context);
+    if (duration < 0)
+      return maxIdleMs;
+    //a duration <= 0 would mean forever
+    return Math.max(1, Math.min(duration - KEEP_ALIVE_MARGIN_MS, maxIdleMs));
+  }
+
+  /** Counts the connection the request is about to be sent over as new or reused. */
+  @Override
+  public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+    HttpConnection conn = (HttpConnection) context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+    if (conn == null)
+      return;
+    HttpConnectionMetrics metrics = conn.getMetrics();
+    long now = System.currentTimeMillis();
+    if (metrics.getRequestCount() == 0) {
+      newConnections.incrementAndGet();
+      synchronized (firstUsed) {
+        firstUsed.put(metrics, now);
+      }
+      return;
+    }
+    reusedConnections.incrementAndGet();
+    Long since;
+    synchronized (firstUsed) {
+      since = firstUsed.get(metrics);
+    }
+    if (since != null) {
+      long age = now - since;
+      reusedAgeTotalMs.addAndGet(age);
+      long max;
+      while (age > (max = reusedAgeMaxMs.get()) && !reusedAgeMaxMs.compareAndSet(max, age)) {
+        //retry
+      }
+    }
+  }
+
+  /** Counts connections the target closes after this response. */
+  @Override
+  public void process(HttpResponse response, HttpContext context) throws HttpException, IOException {
+    for (Header header : response.getHeaders(HttpHeaders.CONNECTION)) {
+      if (header.getValue().toLowerCase(Locale.ROOT).contains("close")) {
+        closedByTarget.incrementAndGet();
+        return;
+      }
+    }
+  }
+
+  /** Closes pooled connections that are past their keep-alive time or have been idle too long. */
+  @Override
+  public void run() {
+    int before = getAvailableConnections();
+    connManager.closeExpiredConnections();
+    int afterExpired = getAvailableConnections();
+    connManager.closeIdleConnections(maxIdleMs, TimeUnit.MILLISECONDS);
+    int afterIdle = getAvailableConnections();
+    //approximate since connections come and go meanwhile; unknown if the pool doesn't say
+    if (before >= 0) {
+      evictedExpired.addAndGet(Math.max(0, before - afterExpired));
+      evictedIdle.addAndGet(Math.max(0, afterExpired - afterIdle));
+    }
+  }
+
+  /** The number of idle connections in the pool, or -1 if the connection manager doesn't say.
+   * Reflection is used since the pool stats were added in HttpComponents v4.2. */
+  private int getAvailableConnections() {
+    try {
+      Object stats = connManager.getClass().getMethod("getTotalStats").invoke(connManager);
+      return (Integer) stats.getClass().getMethod("getAvailable").invoke(stats);
+    } catch (Exception e) {
+      return -1;
+    }
+  }
+
+  /** The number of connections opened to send a request. */
+  public long getNewConnections() {
+    return newConnections.get();
+  }
+
+  /** The number of requests sent over a connection from the pool that was used before. */
+  public long getReusedConnections() {
+    return reusedConnections.get();
+  }
+
+  /** The fraction (0 - 1) of requests that reused a connection. */
+  public double getReuseRatio() {
+    long reused = reusedConnections.get();
+    long total = reused + newConnections.get();
+    return total == 0 ? 0 : (double) reused / total;
+  }
+
+  /** The mean age, in milliseconds, of connections when reused. */
+  public long getMeanReusedAgeMs() {
+    long reused = reusedConnections.get();
+    return reused == 0 ? 0 : reusedAgeTotalMs.get() / reused;
+  }
+
+  /** The age, in milliseconds, of the oldest connection reused. */
+  public long getMaxReusedAgeMs() {
+    return reusedAgeMaxMs.get();
+  }
+
+  /** The number of responses after which the target closed the connection. */
+  public long getClosedByTarget() {
+    return closedByTarget.get();
+  }
+
+  /** The number of pooled connections closed since their keep-alive time had passed. */
+  public long getEvictedExpired() {
+    return evictedExpired.get();
+  }
+
+  /** The number of pooled connections closed since they'd been idle too long. */
+  public long getEvictedIdle() {
+    return evictedIdle.get();
+  }
+
+  @Override
+  public String toString() {
+    return "new=" + getNewConnections() + " reused=" + getReusedConnections()
+        + " meanReusedAgeMs=" + getMeanReusedAgeMs() + " maxReusedAgeMs=" + getMaxReusedAgeMs()
+        + " closedByTarget=" + getClosedByTarget() + " evictedExpired=" + getEvictedExpired()
+        + " evictedIdle=" + getEvictedIdle();
+  }
+}
@@ -0,0 +1,202 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.AbstractHttpClient;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.util.EntityUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fills the client's connection pool with connections to each target so that the first requests
+ * after a deploy don't pay for TCP and TLS handshakes.  Connections to a target are opened in
+ * parallel and only returned to the pool once all are open, so the pool can't hand the same one
+ * out twice; so no more are opened than the pool allows per route.  With a probe path, that many
+ * GETs of that path are issued in parallel through the client instead, which also warms up the
+ * target; each returns its connection as soon as it's answered, so a fast target may answer
+ * several over one connection and fewer connections are opened.
+ */
+@SuppressWarnings("deprecation")
+class ConnectionWarmer implements Runnable {
+
+  private final ProxyServlet servlet;
+  private final HttpClient client;
+  private final List<HttpHost> targets;
+  private final int connections;
+  private final String probePath;
+  private final long timeoutMs;
+
+  private volatile boolean done;
+
+  ConnectionWarmer(ProxyServlet servlet, HttpClient client, List<HttpHost> targets,
+                   int connections, String probePath, long timeoutMs) {
+    this.servlet = servlet;
+    this.client = client;
+    this.targets = targets;
+    this.connections = connections;
+    this.probePath = probePath;
+    this.timeoutMs = timeoutMs;
+  }
+
+  /** True once {@link #run()} has finished, successfully or not. */
+  boolean isDone() {
+    return done;
+  }
+
+  @Override
+  public void run() {
+    long startTime = System.currentTimeMillis();
+    int opened = 0;
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(connections, 16), new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "ProxyServlet warm-up " + servlet.getServletName());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    try {
+      for (HttpHost target : targets) {
+        opened += warmUp(executor, target);
+      }
+      servlet.log("Warmed up " + opened + " connections to " + targets.size() + " targets in "
+          + (System.currentTimeMillis() - startTime) + "ms");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      executor.shutdownNow();
+      done = true;
+    }
+  }
+
+  private int warmUp(ExecutorService executor, final HttpHost target) throws InterruptedException {
+    final HttpRoute route = determineRoute(target);
+    if (probePath == null && route.getHopCount() > 1) {
+      servlet.log("Not warming up " + target + " since it's reached through a proxy; set a probe path");
+      return 0;
+    }
+    int count = connections;
+    int max = getMaxForRoute(route);
+    if (max >= 0 && count > max) {
+      servlet.log("Warming up " + max + " connections to " + target + ", not " + count
+          + ", since that's the most its pool allows (see " + ProxyServlet.P_MAX_CONNECTIONS_PER_ROUTE + ")");
+      count = max;
+    }
+    List<Future<ManagedClientConnection>> futures = new ArrayList<Future<ManagedClientConnection>>();
+    for (int i = 0; i < count; i++) {
+      futures.add(executor.submit(new Callable<ManagedClientConnection>() {
+        @Override
+        public ManagedClientConnection call() throws Exception {
+          if (probePath != null) {
+            probe(target);
+            return null;
+          }
+          return open(route);
+        }
+      }));
+    }
+    int opened = 0;
+    List<ManagedClientConnection> toRelease = new ArrayList<ManagedClientConnection>();
+    for (Future<ManagedClientConnection> future : futures) {
+      try {
+        ManagedClientConnection conn = future.get();
+        if (conn != null)
+          toRelease.add(conn);
+        opened++;
+      } catch (ExecutionException e) {
+        servlet.log("Warm-up of " + target + " failed: " + e.getCause());
+      }
+    }
+    ClientConnectionManager connManager = client.getConnectionManager();
+    for (ManagedClientConnection conn : toRelease) {
+      connManager.releaseConnection(conn, -1, TimeUnit.MILLISECONDS);
+    }
+    return opened;
+  }
+
+  /** The most connections the pool allows to {@code route}, or -1 if unknown.  Reflection is used
+   * as in {@link ProxyServlet#configureConnectionPool(HttpClient)}. */
+  private int getMaxForRoute(HttpRoute route) {
+    Object connManager = client.getConnectionManager();
+    for (String name : new String[]{"getMaxPerRoute", "getMaxForRoute"}) {//v4.2+, v4.1
+      try {
+        int max = (Integer) connManager.getClass().getMethod(name, HttpRoute.class).invoke(connManager, route);
+        int maxTotal = (Integer) connManager.getClass().getMethod("getMaxTotal").invoke(connManager);
+        return Math.min(max, maxTotal);
+      } catch (NoSuchMethodException e) {
+        //try the next
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    }
+    return -1;
+  }
+
+  private ManagedClientConnection open(HttpRoute route) throws Exception {
+    ManagedClientConnection conn = client.getConnectionManager().requestConnection(route, null)
+        .getConnection(timeoutMs, TimeUnit.MILLISECONDS);
+    try {
+      if (!conn.isOpen())
+        conn.open(route, new BasicHttpContext(), client.getParams());
+      conn.markReusable();
+      return conn;
+    } catch (Exception e) {
+      client.getConnectionManager().releaseConnection(conn, 0, TimeUnit.MILLISECONDS);
+      throw e;
+    }
+  }
+
+  private void probe(HttpHost target) throws Exception {
+    HttpResponse response = client.execute(target, new BasicHttpRequest("GET", probePath));
+    EntityUtils.consume(response.getEntity());
+  }
+
+  private HttpRoute determineRoute(HttpHost target) {
+    try {
+      return determineRoute(client, target);
+    } catch (Exception e) {
+      servlet.log("Can't determine route to " + target + "; using a direct one: " + e);
+      return new HttpRoute(target, null, "https".equalsIgnoreCase(target.getSchemeName()));
+    }
+  }
+
+  /** The route the client takes to {@code target}, e.g. through a proxy. */
+  static HttpRoute determineRoute(HttpClient client, HttpHost target) throws HttpException {
+    if (client instanceof AbstractHttpClient) {
+      return ((AbstractHttpClient) client).getRoutePlanner()
+          .determineRoute(target, new BasicHttpRequest("GET", "/"), new BasicHttpContext());
+    }
+    return new HttpRoute(target, null, "https".equalsIgnoreCase(target.getSchemeName()));
+  }
+}
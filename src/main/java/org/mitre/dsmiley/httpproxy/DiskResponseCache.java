@@ -0,0 +1,1195 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A persistent cache of proxied responses, for large and rarely changing content that shouldn't
+ * sit in the heap.  Responses are appended to segment files; an in-memory index maps each key to
+ * where its latest body is.  Once a segment is full, or the cache closed, the index of its records
+ * is written beside it, so that at startup the in-memory index is loaded from those files and warm
+ * content is servable right after a redeploy.  Their bodies' CRC32s are then checked in the
+ * background, dropping any that don't match; until then a damaged body could be served.  A segment
+ * without a current index file (after a crash) is scanned instead, checking each body as it's read:
+ * a record that fails its check is skipped, and a partially written tail is truncated.  When the
+ * cache outgrows its limit the oldest segment is deleted as a whole, with its index file; bodies
+ * still being written to temporary files count towards the limit too.  A revalidated response's
+ * new headers are appended as a record that refers to the body already cached, rather than with a
+ * copy of it.  Bodies are streamed
+ * from disk as they're sent rather than held in the heap.  They're sent with
+ * {@link FileChannel#transferTo}, but the target is a channel wrapping the servlet's stream, so
+ * they're still copied through a small heap buffer.
+ * <p>
+ * Only a shared-cache subset of HTTP caching is implemented: GETs without credentials or
+ * conditionals, answered 200 with an explicit freshness lifetime (s-maxage, max-age or Expires),
+ * no Set-Cookie, and no Vary other than Accept-Encoding.  Stale responses may still be served
+ * per the stale-while-revalidate and stale-if-error extensions (RFC 5861); see
+ * {@link #startRevalidation(String)} and {@link #refresh(Entry, HttpResponse, long)}.
+ * </p>
+ */
+public class DiskResponseCache implements Closeable {
+
+  private static final int MAGIC = 0x50534331;//"PSC1"
+  /** A record with no body of its own, referring to one in an earlier record. */
+  private static final int REF_MAGIC = 0x50535231;//"PSR1"
+  private static final int INDEX_MAGIC = 0x50534932;//"PSI2"
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".dat";
+  private static final String INDEX_SUFFIX = ".idx";
+  private static final String TMP_PREFIX = "body";
+  private static final String TMP_SUFFIX = ".tmp";
+
+  /** Where a cached response is, and its metadata.  Immutable. */
+  public static class Entry {
+    final String key;
+    final Segment recordSegment;//where this record is
+    final Segment segment;//where the body is; the same or an earlier one
+    final long bodyOffset;
+    final long bodyLength;
+    final long crc;//of the body
+    final int status;
+    final String reason;
+    final Header[] headers;
+    final long storedMillis;
+    final long expiresMillis;
+    final long staleWhileRevalidateMillis;
+    final long staleIfErrorMillis;
+
+    Entry(String key, Segment recordSegment, Segment segment, long bodyOffset, long bodyLength, long crc,
+          int status, String reason, Header[] headers, long storedMillis, long expiresMillis) {
+      this.key = key;
+      this.recordSegment = recordSegment;
+      this.segment = segment;
+      this.bodyOffset = bodyOffset;
+      this.bodyLength = bodyLength;
+      this.crc = crc;
+      this.status = status;
+      this.reason = reason;
+      this.headers = headers;
+      this.storedMillis = storedMillis;
+      this.expiresMillis = expiresMillis;
+      long staleWhileRevalidate = -1;
+      long staleIfError = -1;
+      boolean mustRevalidate = false;
+      for (Header header : headers) {
+        if (!header.getName().equalsIgnoreCase(HttpHeaders.CACHE_CONTROL))
+          continue;
+        for (String directive : header.getValue().toLowerCase(Locale.ROOT).split(",")) {
+          directive = directive.trim();
+          if (directive.startsWith("stale-while-revalidate="))
+            staleWhileRevalidate = parseSeconds(directive.substring("stale-while-revalidate=".length()));
+          else if (directive.startsWith("stale-if-error="))
+            staleIfError = parseSeconds(directive.substring("stale-if-error=".length()));
+          else if (directive.equals("must-revalidate") || directive.equals("proxy-revalidate"))
+            mustRevalidate = true;
+        }
+      }
+      //never served stale, whatever order the directives come in (RFC 9111 5.2.2.2)
+      if (mustRevalidate)
+        staleWhileRevalidate = staleIfError = -1;
+      this.staleWhileRevalidateMillis = Math.max(0, staleWhileRevalidate) * 1000;
+      this.staleIfErrorMillis = Math.max(0, staleIfError) * 1000;
+    }
+
+    public boolean isFresh(long nowMillis) {
+      return nowMillis < expiresMillis;
+    }
+
+    /** Whether, though stale, it may be served while it's revalidated in the background; per
+     * stale-while-revalidate (RFC 5861). */
+    public boolean isUsableWhileRevalidating(long nowMillis) {
+      return nowMillis < expiresMillis + staleWhileRevalidateMillis;
+    }
+
+    /** Whether, though stale, it may be served if the target fails; per stale-if-error (RFC 5861). */
+    public boolean isUsableIfError(long nowMillis) {
+      return nowMillis < expiresMillis + staleIfErrorMillis;
+    }
+
+    public long getBodyLength() {
+      return bodyLength;
+    }
+
+    public Header[] getHeaders() {
+      return headers;
+    }
+
+    /** The last value of the named header, or null. */
+    public String getHeader(String name) {
+      for (int i = headers.length - 1; i >= 0; i--) {
+        if (headers[i].getName().equalsIgnoreCase(name))
+          return headers[i].getValue();
+      }
+      return null;
+    }
+  }
+
+  static class Segment {
+    final long id;
+    final File file;
+    final File indexFile;
+    long size;
+    long indexSize;//of indexFile, once written
+
+    Segment(long id, File file, long size) {
+      this.id = id;
+      this.file = file;
+      String name = file.getName();
+      this.indexFile = new File(file.getParentFile(),
+          name.substring(0, name.length() - SEGMENT_SUFFIX.length()) + INDEX_SUFFIX);
+      this.size = size;
+    }
+  }
+
+  /** A record's metadata, as written in both segments and index files. */
+  private static class Meta {
+    String key;
+    long storedMillis;
+    long expiresMillis;
+    int status;
+    String reason;
+    Header[] headers;
+
+    Meta() {
+    }
+
+    Meta(String key, long storedMillis, long expiresMillis, int status, String reason, Header[] headers) {
+      this.key = key;
+      this.storedMillis = storedMillis;
+      this.expiresMillis = expiresMillis;
+      this.status = status;
+      this.reason = reason;
+      this.headers = headers;
+    }
+
+    void write(DataOutput out) throws IOException {
+      out.writeUTF(key);
+      out.writeLong(storedMillis);
+      out.writeLong(expiresMillis);
+      out.writeInt(status);
+      out.writeUTF(reason);
+      out.writeInt(headers.length);
+      for (Header header : headers) {
+        out.writeUTF(header.getName());
+        out.writeUTF(header.getValue());
+      }
+    }
+
+    static Meta read(DataInput in) throws IOException {
+      Meta meta = new Meta();
+      meta.key = in.readUTF();
+      meta.storedMillis = in.readLong();
+      meta.expiresMillis = in.readLong();
+      meta.status = in.readInt();
+      meta.reason = in.readUTF();
+      int headerCount = in.readInt();
+      if (headerCount < 0)
+        throw new IOException("Bad header count " + headerCount);
+      List<Header> headers = new ArrayList<Header>();
+      for (int i = 0; i < headerCount; i++) {
+        headers.add(new BasicHeader(in.readUTF(), in.readUTF()));
+      }
+      meta.headers = headers.toArray(new Header[headers.size()]);
+      return meta;
+    }
+
+    Entry toEntry(Segment recordSegment, Segment segment, long bodyOffset, long bodyLength, long crc) {
+      return new Entry(key, recordSegment, segment, bodyOffset, bodyLength, crc, status, reason, headers,
+          storedMillis, expiresMillis);
+    }
+  }
+
+  private final File dir;
+  private final long maxBytes;
+  private final long segmentBytes;
+  private final Map<String, Entry> index = new ConcurrentHashMap<String, Entry>();
+  private final ReentrantLock writeLock = new ReentrantLock();
+  private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();//oldest first; writeLock
+  private FileChannel appendChannel;//the last segment's; writeLock
+  private volatile long segmentsBytes;//the segments' and index files' total size; written under writeLock
+  /** The bytes in temporary files of bodies being cached; see {@link #reserve(long)}. */
+  private final AtomicLong tmpBytes = new AtomicLong();
+  private final Map<String, Boolean> revalidating = new ConcurrentHashMap<String, Boolean>();
+  private final ConcurrentHashMap<String, CountDownLatch> fills = new ConcurrentHashMap<String, CountDownLatch>();
+  /** By key, whether the full response is expected to be cacheable; see {@link #isWorthFilling}. */
+  private final Map<String, Boolean> fillHints = new ConcurrentHashMap<String, Boolean>();
+  private static final int MAX_FILL_HINTS = 10000;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private volatile boolean closed;
+  /** Checks the bodies of the entries loaded from index files; null if there were none. */
+  private final Thread verifier;
+
+  /**
+   * Opens the cache in {@code dir}, creating it if needed and indexing what's there.
+   * @param maxBytes the total size to keep the segments under
+   * @param segmentBytes the size at which to start a new segment; also the largest cacheable body
+   */
+  public DiskResponseCache(File dir, long maxBytes, long segmentBytes) throws IOException {
+    this.dir = dir;
+    this.maxBytes = maxBytes;
+    this.segmentBytes = segmentBytes;
+    if (!dir.isDirectory() && !dir.mkdirs())
+      throw new IOException("Can't create cache directory " + dir);
+    File[] files = dir.listFiles();
+    List<Segment> found = new ArrayList<Segment>();
+    for (File file : files == null ? new File[0] : files) {
+      String name = file.getName();
+      if (name.endsWith(TMP_SUFFIX) && (name.startsWith(TMP_PREFIX) || name.startsWith(SEGMENT_PREFIX))) {
+        file.delete();//left by a body or index being written when the JVM stopped
+      } else if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(INDEX_SUFFIX)) {
+        String base = name.substring(0, name.length() - INDEX_SUFFIX.length());
+        if (!new File(dir, base + SEGMENT_SUFFIX).exists())
+          file.delete();//its segment was evicted
+      } else if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+        try {
+          long id = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+          found.add(new Segment(id, file, file.length()));
+        } catch (NumberFormatException e) {
+          //not ours
+        }
+      }
+    }
+    Segment[] sorted = found.toArray(new Segment[found.size()]);
+    Arrays.sort(sorted, new java.util.Comparator<Segment>() {
+      @Override
+      public int compare(Segment a, Segment b) {
+        return a.id < b.id ? -1 : a.id == b.id ? 0 : 1;
+      }
+    });
+    final List<Entry> unverified = new ArrayList<Entry>();
+    for (int i = 0; i < sorted.length; i++) {
+      Segment segment = sorted[i];
+      segments.add(segment);
+      long indexed = readIndex(segment, unverified);
+      if (indexed < segment.size) {
+        scan(segment, indexed, i == sorted.length - 1, unverified);
+        writeIndex(segment);//it won't be appended to again
+      }
+    }
+    evictIfNeeded();
+    if (unverified.isEmpty()) {
+      verifier = null;
+    } else {
+      verifier = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          verify(unverified);
+        }
+      }, "ProxyServlet cache verifier");
+      verifier.setDaemon(true);
+      verifier.start();
+    }
+  }
+
+  /**
+   * Loads the entries in {@code segment}'s index file into the index, and adds them to
+   * {@code unverified}.  Returns how much of the segment the file covers, or 0 if there's no
+   * usable one.
+   */
+  private long readIndex(Segment segment, List<Entry> unverified) {
+    if (!segment.indexFile.exists())
+      return 0;
+    List<Entry> entries = new ArrayList<Entry>();
+    long covered;
+    try {
+      CheckedInputStream checked = new CheckedInputStream(
+          new BufferedInputStream(new FileInputStream(segment.indexFile), 65536), new CRC32());
+      DataInputStream in = new DataInputStream(checked);
+      try {
+        if (in.readInt() != INDEX_MAGIC)
+          throw new IOException("Not an index file");
+        covered = in.readLong();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+          Meta meta = Meta.read(in);
+          long bodySegmentId = in.readLong();
+          long bodyOffset = in.readLong();
+          long bodyLength = in.readLong();
+          long crc = in.readLong();
+          Segment bodySegment = bodySegmentId == segment.id ? segment : findSegment(bodySegmentId);
+          if (bodySegment != null)//else evicted
+            entries.add(meta.toEntry(segment, bodySegment, bodyOffset, bodyLength, crc));
+        }
+        long expected = checked.getChecksum().getValue();
+        if (in.readLong() != expected)
+          throw new IOException("Index file checksum mismatch");
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      segment.indexFile.delete();//damaged; scan the segment instead
+      return 0;
+    }
+    if (covered > segment.size) {
+      segment.indexFile.delete();//the segment was truncated since
+      return 0;
+    }
+    for (Entry entry : entries) {
+      long end = entry.bodyOffset + entry.bodyLength;
+      if (entry.segment == segment ? end + 8 > covered : end > entry.segment.size)
+        return 0;//inconsistent; scan instead
+    }
+    for (Entry entry : entries) {
+      index.put(entry.key, entry);//later segments supersede earlier ones
+    }
+    unverified.addAll(entries);
+    segment.indexSize = segment.indexFile.length();
+    return covered;
+  }
+
+  /** The segment with {@code id}, or null if there's none (any more). */
+  private Segment findSegment(long id) {
+    for (Segment segment : segments) {
+      if (segment.id == id)
+        return segment;
+    }
+    return null;
+  }
+
+  /**
+   * Writes {@code segment}'s index file: where its current records' bodies are and their
+   * metadata.  Called once the segment won't be appended to.  Best effort; without the file the
+   * segment is scanned at the next startup.
+   */
+  private void writeIndex(Segment segment) {
+    List<Entry> entries = new ArrayList<Entry>();
+    for (Entry entry : index.values()) {
+      if (entry.recordSegment == segment)
+        entries.add(entry);
+    }
+    File tmp = new File(segment.indexFile.getPath() + TMP_SUFFIX);
+    try {
+      CheckedOutputStream checked = new CheckedOutputStream(
+          new BufferedOutputStream(new FileOutputStream(tmp), 65536), new CRC32());
+      DataOutputStream out = new DataOutputStream(checked);
+      try {
+        out.writeInt(INDEX_MAGIC);
+        out.writeLong(segment.size);
+        out.writeInt(entries.size());
+        for (Entry entry : entries) {
+          new Meta(entry.key, entry.storedMillis, entry.expiresMillis, entry.status, entry.reason,
+              entry.headers).write(out);
+          out.writeLong(entry.segment.id);
+          out.writeLong(entry.bodyOffset);
+          out.writeLong(entry.bodyLength);
+          out.writeLong(entry.crc);
+        }
+        out.writeLong(checked.getChecksum().getValue());
+      } finally {
+        out.close();
+      }
+      segment.indexFile.delete();
+      if (!tmp.renameTo(segment.indexFile))
+        throw new IOException("Can't rename " + tmp);
+      segment.indexSize = segment.indexFile.length();
+    } catch (IOException e) {
+      tmp.delete();
+    }
+  }
+
+  /** Drops the entries whose bodies don't match their CRC32; run in the background after startup. */
+  private void verify(List<Entry> entries) {
+    byte[] buf = new byte[65536];
+    CRC32 crc = new CRC32();
+    for (Entry entry : entries) {
+      if (closed)
+        return;
+      if (index.get(entry.key) != entry)
+        continue;//superseded or evicted
+      boolean ok = false;
+      try {
+        FileChannel channel = new RandomAccessFile(entry.segment.file, "r").getChannel();
+        try {
+          crc.reset();
+          long position = entry.bodyOffset;
+          long end = entry.bodyOffset + entry.bodyLength;
+          while (position < end) {
+            ByteBuffer buffer = ByteBuffer.wrap(buf, 0, (int) Math.min(buf.length, end - position));
+            int n = channel.read(buffer, position);
+            if (n < 0)
+              break;
+            crc.update(buf, 0, n);
+            position += n;
+          }
+          ok = position == end && crc.getValue() == entry.crc;
+        } finally {
+          channel.close();
+        }
+      } catch (IOException e) {
+        //unreadable; drop it
+      }
+      if (!ok)
+        index.remove(entry.key, entry);
+    }
+  }
+
+  /** Waits up to {@code timeoutMs} for the check of the bodies loaded from index files. */
+  void awaitVerified(long timeoutMs) throws InterruptedException {
+    if (verifier != null)
+      verifier.join(timeoutMs);
+  }
+
+  /**
+   * Indexes the records of {@code segment} from {@code pos}, checking each body's CRC32.  A record
+   * whose body fails its check is dropped and the scan goes on.  One that's cut short or unreadable
+   * ends the scan; if {@code last}, where a write may have been torn, the segment is truncated
+   * there.  Records referring to an earlier body are added to {@code unverified}.
+   */
+  private void scan(Segment segment, long pos, boolean last, List<Entry> unverified) throws IOException {
+    FileInputStream file = new FileInputStream(segment.file);
+    file.getChannel().position(pos);
+    ScanInputStream in = new ScanInputStream(new BufferedInputStream(file, 65536));
+    try {
+      CRC32 crc = new CRC32();
+      byte[] buf = new byte[8192];
+      while (true) {
+        long recordOffset = pos;
+        Entry entry;
+        try {
+          int magic = in.readInt();
+          if (magic != MAGIC && magic != REF_MAGIC)
+            break;
+          Meta meta = Meta.read(in);
+          if (magic == REF_MAGIC) {
+            long bodySegmentId = in.readLong();
+            long bodyOffset = in.readLong();
+            long bodyLength = in.readLong();
+            long bodyCrc = in.readLong();
+            Segment bodySegment = bodySegmentId == segment.id ? segment : findSegment(bodySegmentId);
+            entry = bodySegment == null || bodyOffset + bodyLength > bodySegment.size ? null//evicted
+                : meta.toEntry(segment, bodySegment, bodyOffset, bodyLength, bodyCrc);
+            if (entry != null)
+              unverified.add(entry);//its body may be one loaded from an index file
+          } else {
+            long bodyLength = in.readLong();
+            if (bodyLength < 0 || recordOffset + in.getPos() + bodyLength + 8 > segment.size)
+              break;
+            long bodyOffset = recordOffset + in.getPos();
+            crc.reset();
+            for (long remaining = bodyLength; remaining > 0; ) {
+              int n = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+              if (n < 0)
+                throw new EOFException();
+              crc.update(buf, 0, n);
+              remaining -= n;
+            }
+            entry = in.readLong() == crc.getValue()
+                ? meta.toEntry(segment, segment, bodyOffset, bodyLength, crc.getValue()) : null;
+          }
+          if (entry == null)
+            index.remove(meta.key);//nor serve the version it replaced
+        } catch (IOException e) {
+          break;//cut short, or e.g. malformed UTF
+        }
+        pos = recordOffset + in.getPos();
+        in.resetPos();
+        if (entry != null)
+          index.put(entry.key, entry);//later records supersede earlier ones
+      }
+    } finally {
+      in.close();
+    }
+    if (pos < segment.size && last) {
+      RandomAccessFile raf = new RandomAccessFile(segment.file, "rw");
+      try {
+        raf.setLength(pos);
+      } finally {
+        raf.close();
+      }
+      segment.size = pos;
+    }
+  }
+
+  /** A DataInputStream that counts what's been read since the last {@link #resetPos()}. */
+  private static class ScanInputStream extends java.io.DataInputStream {
+    ScanInputStream(InputStream in) {
+      super(new CountingInputStream(in));
+    }
+
+    long getPos() {
+      return ((CountingInputStream) in).count;
+    }
+
+    void resetPos() {
+      ((CountingInputStream) in).count = 0;
+    }
+  }
+
+  private static class CountingInputStream extends java.io.FilterInputStream {
+    long count;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0)
+        count++;
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0)
+        count += n;
+      return n;
+    }
+  }
+
+  /**
+   * The cache key for a request, or null if the request shouldn't use the cache: only GETs without
+   * credentials or conditionals, and not asking to bypass caches.  A Range request has the key of
+   * the full response, which it's served from.
+   */
+  public String getKey(HttpServletRequest servletRequest, String targetUri) {
+    if (!"GET".equals(servletRequest.getMethod()))
+      return null;
+    if (servletRequest.getHeader(HttpHeaders.AUTHORIZATION) != null
+        || servletRequest.getHeader(HttpHeaders.IF_NONE_MATCH) != null
+        || servletRequest.getHeader(HttpHeaders.IF_MODIFIED_SINCE) != null)
+      return null;
+    String cacheControl = servletRequest.getHeader(HttpHeaders.CACHE_CONTROL);
+    if (cacheControl != null && (cacheControl.contains("no-store") || cacheControl.contains("no-cache")))
+      return null;
+    String pragma = servletRequest.getHeader(HttpHeaders.PRAGMA);
+    if (pragma != null && pragma.contains("no-cache"))
+      return null;
+    String acceptEncoding = servletRequest.getHeader(HttpHeaders.ACCEPT_ENCODING);
+    return acceptEncoding == null ? targetUri : targetUri + '\n' + acceptEncoding;
+  }
+
+  /** The cached response for {@code key}, fresh or not, or null. */
+  public Entry get(String key) {
+    Entry entry = index.get(key);
+    if (entry == null)
+      misses.incrementAndGet();
+    else
+      hits.incrementAndGet();
+    return entry;
+  }
+
+  /**
+   * When a response to a request with a cache key becomes stale, in millis since the epoch; or -1
+   * if it may not be cached.
+   */
+  public static long getExpires(HttpResponse response, long nowMillis) {
+    if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK)
+      return -1;
+    if (response.containsHeader("Set-Cookie") || response.containsHeader("Set-Cookie2"))
+      return -1;
+    for (Header vary : response.getHeaders(HttpHeaders.VARY)) {
+      for (String field : vary.getValue().split(",")) {
+        if (!field.trim().equalsIgnoreCase(HttpHeaders.ACCEPT_ENCODING) && field.trim().length() > 0)
+          return -1;
+      }
+    }
+    long maxAge = -1;
+    long sMaxAge = -1;
+    for (Header cacheControl : response.getHeaders(HttpHeaders.CACHE_CONTROL)) {
+      for (String directive : cacheControl.getValue().toLowerCase(Locale.ROOT).split(",")) {
+        directive = directive.trim();
+        if (directive.equals("no-store") || directive.equals("private") || directive.startsWith("no-cache"))
+          return -1;
+        if (directive.startsWith("max-age="))
+          maxAge = parseSeconds(directive.substring("max-age=".length()));
+        else if (directive.startsWith("s-maxage="))
+          sMaxAge = parseSeconds(directive.substring("s-maxage=".length()));
+      }
+    }
+    if (sMaxAge >= 0)
+      return nowMillis + sMaxAge * 1000;
+    if (maxAge >= 0)
+      return nowMillis + maxAge * 1000;
+    Header expires = response.getLastHeader(HttpHeaders.EXPIRES);
+    if (expires != null) {
+      try {
+        Date expiresDate = DateUtils.parseDate(expires.getValue());
+        Header date = response.getLastHeader(HttpHeaders.DATE);
+        long dateMillis = date != null ? DateUtils.parseDate(date.getValue()).getTime() : nowMillis;
+        long lifetime = expiresDate.getTime() - dateMillis;
+        return lifetime > 0 ? nowMillis + lifetime : -1;
+      } catch (DateParseException e) {
+        return -1;
+      }
+    }
+    return -1;
+  }
+
+  static long parseSeconds(String value) {
+    try {
+      return Long.parseLong(value.trim().replace("\"", ""));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Wraps {@code response}'s entity so that, as it's sent to the client, it's also written to a
+   * temporary file, which is added to the cache if sent completely.  Returns the response's entity
+   * as-is if it's too large.
+   */
+  public HttpEntity cachingEntity(final String key, final HttpResponse response, final long expiresMillis) {
+    final HttpEntity entity = response.getEntity();
+    if (entity == null)
+      return entity;
+    if (entity.getContentLength() > segmentBytes) {
+      noteNotFillable(key);
+      return entity;
+    }
+    //as received, before anything else modifies the response
+    final int status = response.getStatusLine().getStatusCode();
+    final String reason = response.getStatusLine().getReasonPhrase();
+    final Header[] headers = response.getAllHeaders();
+    return new HttpEntityWrapper(entity) {
+      @Override
+      public void writeTo(OutputStream outstream) throws IOException {
+        File tmp = File.createTempFile(TMP_PREFIX, TMP_SUFFIX, dir);
+        TeeOutputStream tee = new TeeOutputStream(key, outstream, new FileOutputStream(tmp));
+        try {
+          super.writeTo(tee);
+          tee.closeCopy();
+          tee.release();//the body will count as part of a segment instead
+          if (!tee.overflowed) {
+            FileChannel body = new FileInputStream(tmp).getChannel();
+            try {
+              put(key, status, reason, headers, expiresMillis, body, 0, tee.length, tee.crc.getValue());
+            } finally {
+              body.close();
+            }
+          }
+        } finally {
+          tee.closeCopy();
+          tee.release();
+          tmp.delete();
+        }
+      }
+    };
+  }
+
+  private class TeeOutputStream extends FilterOutputStream {
+    final String key;
+    final OutputStream copy;
+    final CRC32 crc = new CRC32();
+    long length;
+    long reserved;
+    boolean overflowed;
+    boolean copyClosed;
+
+    TeeOutputStream(String key, OutputStream out, OutputStream copy) {
+      super(out);
+      this.key = key;
+      this.copy = copy;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      if (overflowed)
+        return;
+      length += len;
+      if (length > segmentBytes) {
+        overflowed = true;//too big to cache; stop copying
+        noteNotFillable(key);
+        closeCopy();
+        return;
+      }
+      if (!reserve(len)) {
+        overflowed = true;//no room
+        closeCopy();
+        return;
+      }
+      reserved += len;
+      copy.write(b, off, len);
+      crc.update(b, off, len);
+    }
+
+    void closeCopy() throws IOException {
+      if (!copyClosed) {
+        copyClosed = true;
+        copy.close();
+      }
+    }
+
+    void release() {
+      tmpBytes.addAndGet(-reserved);
+      reserved = 0;
+    }
+  }
+
+  /**
+   * Accounts for {@code bytes} more of a temporary file against the size limit, evicting segments to
+   * make room if needed.  Returns false, reserving nothing, if there isn't room.
+   */
+  private boolean reserve(long bytes) {
+    long pending = tmpBytes.addAndGet(bytes);
+    if (segmentsBytes + pending <= maxBytes)
+      return true;
+    writeLock.lock();
+    try {
+      evictIfNeeded();
+    } catch (IOException e) {
+      //as if there's no room
+    } finally {
+      writeLock.unlock();
+    }
+    if (segmentsBytes + tmpBytes.get() <= maxBytes)
+      return true;
+    tmpBytes.addAndGet(-bytes);
+    return false;
+  }
+
+  /**
+   * Appends a response whose body is {@code bodyLength} bytes of {@code body} from
+   * {@code bodyPosition}, and indexes it.
+   */
+  void put(String key, int status, String reason, Header[] allHeaders, long expiresMillis,
+           FileChannel body, long bodyPosition, long bodyLength, long crc) throws IOException {
+    ByteArrayOutputStream recordHead = new ByteArrayOutputStream(512);
+    DataOutputStream out = new DataOutputStream(recordHead);
+    Meta meta = new Meta(key, System.currentTimeMillis(), expiresMillis, status, reason, endToEnd(allHeaders));
+    try {
+      out.writeInt(MAGIC);
+      meta.write(out);
+      out.writeLong(bodyLength);
+    } catch (java.io.UTFDataFormatException e) {
+      return;//a header longer than 64K; don't cache
+    }
+    ByteBuffer trailer = ByteBuffer.allocate(8);
+    trailer.putLong(crc).flip();
+
+    writeLock.lock();
+    try {
+      Segment segment = segments.peekLast();
+      long recordLength = recordHead.size() + bodyLength + 8;
+      if (segment == null || appendChannel == null || segment.size + recordLength > segmentBytes) {
+        segment = newSegment();
+      }
+      long recordOffset = segment.size;
+      appendChannel.write(ByteBuffer.wrap(recordHead.toByteArray()), recordOffset);
+      body.position(bodyPosition);
+      long written = 0;
+      while (written < bodyLength) {
+        long n = appendChannel.transferFrom(body, recordOffset + recordHead.size() + written,
+            bodyLength - written);
+        if (n <= 0)
+          throw new EOFException("Cached body is shorter than expected");
+        written += n;
+      }
+      appendChannel.write(trailer, recordOffset + recordHead.size() + bodyLength);
+      segment.size += recordLength;
+      index.put(key, meta.toEntry(segment, segment, recordOffset + recordHead.size(), bodyLength, crc));
+      evictIfNeeded();
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Appends a record of {@code entry}'s response with new headers that refers to its body rather
+   * than copying it, and indexes it.  Returns false if the entry was evicted or replaced.
+   */
+  private boolean putRef(Entry entry, Header[] allHeaders, long expiresMillis) throws IOException {
+    ByteArrayOutputStream record = new ByteArrayOutputStream(512);
+    DataOutputStream out = new DataOutputStream(record);
+    Meta meta = new Meta(entry.key, System.currentTimeMillis(), expiresMillis, entry.status, entry.reason,
+        endToEnd(allHeaders));
+    try {
+      out.writeInt(REF_MAGIC);
+      meta.write(out);
+      out.writeLong(entry.segment.id);
+      out.writeLong(entry.bodyOffset);
+      out.writeLong(entry.bodyLength);
+      out.writeLong(entry.crc);
+    } catch (java.io.UTFDataFormatException e) {
+      index.remove(entry.key, entry);//a header longer than 64K; don't cache
+      return false;
+    }
+
+    writeLock.lock();
+    try {
+      if (index.get(entry.key) != entry)
+        return false;//so its segment is still there, as eviction removes its entries first
+      Segment segment = segments.peekLast();
+      if (segment == null || appendChannel == null || segment.size + record.size() > segmentBytes) {
+        segment = newSegment();
+      }
+      appendChannel.write(ByteBuffer.wrap(record.toByteArray()), segment.size);
+      segment.size += record.size();
+      index.put(entry.key, meta.toEntry(segment, entry.segment, entry.bodyOffset, entry.bodyLength, entry.crc));
+      evictIfNeeded();
+    } finally {
+      writeLock.unlock();
+    }
+    return true;
+  }
+
+  /** {@code headers} but for the hop-by-hop ones, which aren't cached. */
+  private static Header[] endToEnd(Header[] headers) {
+    List<Header> endToEnd = new ArrayList<Header>();
+    for (Header header : headers) {
+      if (!ProxyServlet.hopByHopHeaders.containsHeader(header.getName()))
+        endToEnd.add(header);
+    }
+    return endToEnd.toArray(new Header[endToEnd.size()]);
+  }
+
+  /**
+   * Claims the revalidation of the response cached for {@code key}, so that only one request
+   * revalidates it at a time.  Returns false if it's already claimed; otherwise the caller must
+   * call {@link #endRevalidation(String)}.
+   */
+  public boolean startRevalidation(String key) {
+    return revalidating.putIfAbsent(key, Boolean.TRUE) == null;
+  }
+
+  public void endRevalidation(String key) {
+    revalidating.remove(key);
+  }
+
+  /**
+   * Whether a Range request missing the cache should fetch the full response for {@code key} to
+   * cache it, rather than pass the Range on.  Only if it's expected to be cacheable and no larger
+   * than a segment: it was cached before ({@code cached}, even if expired), or a partial response
+   * for it said so (see {@link #noteRangeResponse(String, HttpResponse, long)}), and a full one
+   * hasn't since proved otherwise.  Else the fetch could read a large body from its start just to
+   * discard it.
+   */
+  public boolean isWorthFilling(String key, Entry cached) {
+    Boolean hint = fillHints.get(key);
+    return hint != null ? hint : cached != null;
+  }
+
+  /** Notes whether the full response for {@code key} would be cacheable, from a 206 (Partial
+   * Content) response to a Range request for it: by its headers, and its Content-Range's complete
+   * length. */
+  public void noteRangeResponse(String key, HttpResponse partial, long nowMillis) {
+    if (partial.getStatusLine().getStatusCode() != HttpStatus.SC_PARTIAL_CONTENT)
+      return;
+    Header contentRange = partial.getLastHeader(HttpHeaders.CONTENT_RANGE);
+    long completeLength = -1;//or unknown, "*"
+    if (contentRange != null) {
+      String value = contentRange.getValue();
+      try {
+        completeLength = Long.parseLong(value.substring(value.lastIndexOf('/') + 1).trim());
+      } catch (NumberFormatException e) {
+        //unknown
+      }
+    }
+    BasicHttpResponse full = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+    full.setHeaders(partial.getAllHeaders());
+    putFillHint(key, completeLength >= 0 && completeLength <= segmentBytes
+        && getExpires(full, nowMillis) > 0);
+  }
+
+  /** Notes that the full response for {@code key} turned out not to be cacheable, or too large. */
+  public void noteNotFillable(String key) {
+    putFillHint(key, false);
+  }
+
+  private void putFillHint(String key, boolean fillable) {
+    if (fillHints.size() >= MAX_FILL_HINTS)
+      fillHints.clear();//they're only hints
+    fillHints.put(key, fillable);
+  }
+
+  /**
+   * Claims fetching the full response for {@code key} in order to cache it, so that concurrent
+   * requests for ranges of it wait for that rather than each going to the target.  Returns false
+   * if it's already claimed; otherwise the caller must call {@link #endFill(String)}.
+   */
+  public boolean startFill(String key) {
+    return fills.putIfAbsent(key, new CountDownLatch(1)) == null;
+  }
+
+  public void endFill(String key) {
+    CountDownLatch latch = fills.remove(key);
+    if (latch != null)
+      latch.countDown();
+  }
+
+  /** Waits up to {@code timeoutMs} for the fill of {@code key}, if one is under way. Returns false
+   * on timeout or interruption. */
+  public boolean awaitFill(String key, long timeoutMs) {
+    CountDownLatch latch = fills.get(key);
+    try {
+      return latch == null || latch.await(timeoutMs, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Updates {@code entry} from a 304 (Not Modified) response to its revalidation: its headers
+   * replace those cached (RFC 7234 4.3.4) and its freshness starts over.  The new record refers to
+   * the body already cached rather than copying it.  Returns false if the entry is no longer
+   * cacheable, or was evicted or replaced.
+   */
+  public boolean refresh(Entry entry, HttpResponse notModified, long nowMillis) throws IOException {
+    List<Header> merged = new ArrayList<Header>();
+    for (Header header : entry.headers) {
+      if (!notModified.containsHeader(header.getName()))
+        merged.add(header);
+    }
+    for (Header header : notModified.getAllHeaders()) {
+      if (!header.getName().equalsIgnoreCase(HttpHeaders.CONTENT_LENGTH))
+        merged.add(header);
+    }
+    Header[] headers = merged.toArray(new Header[merged.size()]);
+    BasicHttpResponse updated = new BasicHttpResponse(HttpVersion.HTTP_1_1, entry.status, entry.reason);
+    updated.setHeaders(headers);
+    long expiresMillis = getExpires(updated, nowMillis);
+    if (expiresMillis < 0) {
+      index.remove(entry.key, entry);
+      return false;
+    }
+    return putRef(entry, headers, expiresMillis);
+  }
+
+  private Segment newSegment() throws IOException {
+    Segment last = segments.peekLast();
+    if (appendChannel != null) {
+      appendChannel.close();
+      writeIndex(last);
+    }
+    long id = last == null ? 1 : last.id + 1;
+    Segment segment = new Segment(id, new File(dir, String.format("%s%016d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX)), 0);
+    appendChannel = new RandomAccessFile(segment.file, "rw").getChannel();
+    segments.add(segment);
+    return segment;
+  }
+
+  private void evictIfNeeded() throws IOException {
+    long total = 0;
+    for (Segment segment : segments) {
+      total += segment.size + segment.indexSize;
+    }
+    try {
+      while (total + tmpBytes.get() > maxBytes && segments.size() > 1) {
+        Segment oldest = segments.removeFirst();
+        total -= oldest.size + oldest.indexSize;
+        oldest.indexFile.delete();
+        for (Iterator<Entry> it = index.values().iterator(); it.hasNext(); ) {
+          if (it.next().segment == oldest)
+            it.remove();
+        }
+        //readers with the file open can finish
+        if (!oldest.file.delete())
+          throw new IOException("Can't delete cache segment " + oldest.file);
+      }
+    } finally {
+      segmentsBytes = total;
+    }
+  }
+
+  /**
+   * A response for {@code entry}, its body read from disk.  Returns null if the entry was evicted
+   * in the meantime.  The Age header, and Warning if stale, are set per RFC 7234.
+   */
+  public HttpResponse toResponse(Entry entry, long nowMillis) {
+    final FileChannel channel;
+    try {
+      channel = new RandomAccessFile(entry.segment.file, "r").getChannel();
+    } catch (IOException e) {
+      index.remove(entry.key, entry);
+      return null;
+    }
+    BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, entry.status, entry.reason);
+    response.setHeaders(entry.headers);
+    response.setHeader("Age", String.valueOf(Math.max(0, (nowMillis - entry.storedMillis) / 1000)));
+    if (!entry.isFresh(nowMillis))
+      response.addHeader("Warning", "110 - \"Response is Stale\"");
+    response.setEntity(new CachedEntity(channel, entry.bodyOffset, entry.bodyLength, response.getFirstHeader(HttpHeaders.CONTENT_TYPE)));
+    return response;
+  }
+
+  /** A cached body; the channel is closed once the body is written or its stream closed. */
+  static class CachedEntity extends AbstractHttpEntity {
+    private final FileChannel channel;
+    private final long offset;
+    private final long length;
+    private boolean consumed;
+
+    CachedEntity(FileChannel channel, long offset, long length, Header contentType) {
+      this.channel = channel;
+      this.offset = offset;
+      this.length = length;
+      setContentType(contentType);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+      return false;
+    }
+
+    @Override
+    public long getContentLength() {
+      return length;
+    }
+
+    /** A stream of the body; closing it closes the file. */
+    @Override
+    public InputStream getContent() throws IOException {
+      consumed = true;
+      channel.position(offset);
+      return new java.io.FilterInputStream(Channels.newInputStream(channel)) {
+        long remaining = length;
+
+        @Override
+        public int read() throws IOException {
+          if (remaining <= 0)
+            return -1;
+          int b = super.read();
+          if (b >= 0)
+            remaining--;
+          return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+          if (remaining <= 0)
+            return -1;
+          int n = super.read(b, off, (int) Math.min(len, remaining));
+          if (n > 0)
+            remaining -= n;
+          return n;
+        }
+      };
+    }
+
+    @Override
+    public void writeTo(OutputStream outstream) throws IOException {
+      writeTo(outstream, 0, length);
+    }
+
+    /** Writes {@code count} bytes of the body starting at {@code start}, then closes the file. */
+    void writeTo(OutputStream outstream, long start, long count) throws IOException {
+      consumed = true;
+      try {
+        transferTo(channel, offset + start, count, outstream);
+      } finally {
+        channel.close();
+      }
+    }
+
+    /** Not streaming once consumed, so that HttpClient's EntityUtils.consume() leaves it be, but
+     * streaming before so that it closes the file if the body was never sent. */
+    @Override
+    public boolean isStreaming() {
+      return !consumed;
+    }
+  }
+
+  static void transferTo(FileChannel channel, long position, long count, OutputStream outstream)
+      throws IOException {
+    java.nio.channels.WritableByteChannel target = Channels.newChannel(outstream);
+    while (count > 0) {
+      long n = channel.transferTo(position, count, target);
+      if (n <= 0)
+        throw new EOFException("Cache segment is shorter than its index says");
+      position += n;
+      count -= n;
+    }
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /** The number of responses cached. */
+  public int size() {
+    return index.size();
+  }
+
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    writeLock.lock();
+    try {
+      if (appendChannel != null) {
+        appendChannel.close();
+        writeIndex(segments.peekLast());
+      }
+      appendChannel = null;
+    } finally {
+      writeLock.unlock();
+    }
+  }
+}
@@ -0,0 +1,297 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Shares a fixed number of in-flight slots between classes of requests by weighted fair queuing,
+ * so one class (a noisy tenant, bulk exports) can't take every upstream connection.  While there
+ * are free slots and nobody waiting a request goes straight through.  Otherwise it queues, tagged
+ * with a virtual finish time of its class's last tag (or the current virtual time, if later) plus
+ * 1/weight, and freed slots go to the waiting request with the lowest tag.  So backlogged classes
+ * share slots in proportion to their weights, and a request of a lightly loaded, heavily weighted
+ * class (interactive traffic) overtakes the queue of a busy light one.  A request that waits longer
+ * than its timeout, or finds its class's queue full, is refused.
+ * <p>
+ *   With as many slots as the connection pool has connections, the pool never has to queue, so
+ *   this decides the order in which connections are leased.  Waiting is on a j.u.c. lock, which
+ *   doesn't pin a virtual thread's carrier.
+ * </p>
+ */
+public class FairQueue {
+
+  private static final long TAG_SCALE = 1L << 20;
+
+  private final int slots;
+  private final List<RequestClass> classes = new ArrayList<RequestClass>();
+
+  private final ReentrantLock lock = new ReentrantLock();
+  //all guarded by lock:
+  private int inFlight;
+  private int waiting;
+  private long virtualTime;
+
+  public FairQueue(int slots) {
+    this.slots = slots;
+  }
+
+  /** Adds a class; call before using the queue.
+   * @param maxQueue the most requests of the class that may wait, or -1 for no limit */
+  public RequestClass addClass(String name, int weight, int maxQueue) {
+    if (weight < 1)
+      throw new IllegalArgumentException("Weight must be positive: " + name);
+    RequestClass requestClass = new RequestClass(name, weight, maxQueue);
+    classes.add(requestClass);
+    return requestClass;
+  }
+
+  /** The class called {@code name}, or null. */
+  public RequestClass getRequestClass(String name) {
+    for (RequestClass requestClass : classes) {
+      if (requestClass.name.equals(name))
+        return requestClass;
+    }
+    return null;
+  }
+
+  public List<RequestClass> getClasses() {
+    return Collections.unmodifiableList(classes);
+  }
+
+  public int getSlots() {
+    return slots;
+  }
+
+  public int getInFlight() {
+    lock.lock();
+    try {
+      return inFlight;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Waits up to {@code timeoutMs} for a slot.  Returns false if refused, in which case don't
+   * {@link #release(RequestClass)}.  If interrupted while waiting it's refused, with the interrupt
+   * status set.
+   */
+  public boolean acquire(RequestClass requestClass, long timeoutMs) {
+    long start = System.nanoTime();
+    lock.lock();
+    try {
+      if (waiting == 0 && inFlight < slots) {
+        admit(requestClass);
+        requestClass.recordWait(0);
+        return true;
+      }
+      if (requestClass.maxQueue >= 0 && requestClass.queue.size() >= requestClass.maxQueue) {
+        requestClass.rejected.incrementAndGet();
+        return false;
+      }
+      Waiter waiter = new Waiter(requestClass, lock.newCondition());
+      waiter.tag = Math.max(virtualTime, requestClass.lastTag) + TAG_SCALE / requestClass.weight;
+      requestClass.lastTag = waiter.tag;
+      requestClass.queue.add(waiter);
+      requestClass.maxQueueDepth = Math.max(requestClass.maxQueueDepth, requestClass.queue.size());
+      waiting++;
+      long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+      try {
+        while (!waiter.granted && nanos > 0) {
+          nanos = waiter.condition.awaitNanos(nanos);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      if (!waiter.granted) {
+        remove(waiter);
+        requestClass.rejected.incrementAndGet();
+        return false;
+      }
+      requestClass.recordWait(System.nanoTime() - start);
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Frees the slot of a request admitted by {@link #acquire(RequestClass, long)}. */
+  public void release(RequestClass requestClass) {
+    lock.lock();
+    try {
+      inFlight--;
+      requestClass.inFlight--;
+      while (waiting > 0 && inFlight < slots) {
+        Waiter next = null;
+        for (RequestClass c : classes) {
+          Waiter head = c.queue.peek();
+          if (head != null && (next == null || head.tag < next.tag))
+            next = head;
+        }
+        next.requestClass.queue.poll();
+        waiting--;
+        virtualTime = next.tag;
+        next.granted = true;
+        admit(next.requestClass);
+        next.condition.signal();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void admit(RequestClass requestClass) {
+    inFlight++;
+    requestClass.inFlight++;
+    requestClass.admitted.incrementAndGet();
+  }
+
+  private void remove(Waiter waiter) {
+    RequestClass requestClass = waiter.requestClass;
+    requestClass.queue.remove(waiter);
+    waiting--;
+    //don't leave the class owing for a request that was never served
+    if (requestClass.queue.isEmpty())
+      requestClass.lastTag = virtualTime;
+    else if (requestClass.lastTag == waiter.tag)
+      requestClass.lastTag = requestClass.queue.peekLast().tag;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("slots=").append(slots).append(" inFlight=").append(getInFlight());
+    for (RequestClass requestClass : classes) {
+      sb.append("; ").append(requestClass);
+    }
+    return sb.toString();
+  }
+
+  private static class Waiter {
+    final RequestClass requestClass;
+    final Condition condition;
+    long tag;
+    boolean granted;
+
+    Waiter(RequestClass requestClass, Condition condition) {
+      this.requestClass = requestClass;
+      this.condition = condition;
+    }
+  }
+
+  /** A class of requests with its weight and metrics. */
+  public class RequestClass {
+    private final String name;
+    private final int weight;
+    private final int maxQueue;
+    //guarded by the queue's lock:
+    private final ArrayDeque<Waiter> queue = new ArrayDeque<Waiter>();
+    private long lastTag;
+    private int inFlight;
+    private int maxQueueDepth;
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    RequestClass(String name, int weight, int maxQueue) {
+      this.name = name;
+      this.weight = weight;
+      this.maxQueue = maxQueue;
+    }
+
+    private void recordWait(long nanos) {
+      totalWaitNanos.addAndGet(nanos);
+      long max;
+      while (nanos > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, nanos)) {
+        //retry
+      }
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public int getWeight() {
+      return weight;
+    }
+
+    /** The number of requests of this class waiting now. */
+    public int getQueueDepth() {
+      lock.lock();
+      try {
+        return queue.size();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /** The most requests of this class that have waited at once. */
+    public int getMaxQueueDepth() {
+      lock.lock();
+      try {
+        return maxQueueDepth;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /** The number of requests of this class holding slots now. */
+    public int getInFlight() {
+      lock.lock();
+      try {
+        return inFlight;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    public long getAdmitted() {
+      return admitted.get();
+    }
+
+    /** The number of requests refused for a full queue or waiting too long. */
+    public long getRejected() {
+      return rejected.get();
+    }
+
+    /** The mean time admitted requests waited, counting those that went straight through. */
+    public double getMeanWaitMs() {
+      long n = admitted.get();
+      return n == 0 ? 0 : totalWaitNanos.get() / 1e6 / n;
+    }
+
+    public double getMaxWaitMs() {
+      return maxWaitNanos.get() / 1e6;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s weight=%d inFlight=%d queued=%d maxQueued=%d admitted=%d rejected=%d"
+              + " meanWaitMs=%.2f maxWaitMs=%.2f", name, weight, getInFlight(), getQueueDepth(),
+          getMaxQueueDepth(), getAdmitted(), getRejected(), getMeanWaitMs(), getMaxWaitMs());
+    }
+  }
+}
@@ -0,0 +1,237 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.Locale;
+
+/**
+ * Sets the X-Forwarded-For/Proto/Host/Port and RFC 7239 Forwarded headers on requests to the
+ * target.  Which ones is a bit set, see {@link #parse(String)}.  When trusted proxies are
+ * configured, what the client sent in these headers is only kept (and appended to) if it came from
+ * one; otherwise it could be forged, so it's replaced or removed.  With none configured, the
+ * client's X-Forwarded-For and Forwarded are appended to as X-Forwarded-For always has been.
+ */
+public final class ForwardedHeaders {
+
+  /** Bits of the set of headers to send. */
+  public static final int FOR = 1;
+  public static final int PROTO = 2;
+  public static final int HOST = 4;
+  public static final int PORT = 8;
+  public static final int FORWARDED = 16;
+
+  static final String X_FORWARDED_FOR = "X-Forwarded-For";
+  static final String X_FORWARDED_PROTO = "X-Forwarded-Proto";
+  static final String X_FORWARDED_HOST = "X-Forwarded-Host";
+  static final String X_FORWARDED_PORT = "X-Forwarded-Port";
+  static final String FORWARDED_HEADER = "Forwarded";
+
+  private ForwardedHeaders() {
+  }
+
+  /** Parses a comma separated list of the header names, or "none", into a bit set. */
+  static int parse(String names) {
+    int headers = 0;
+    for (String name : names.split(",")) {
+      name = name.trim().toLowerCase(Locale.ROOT);
+      if (name.equals("x-forwarded-for"))
+        headers |= FOR;
+      else if (name.equals("x-forwarded-proto"))
+        headers |= PROTO;
+      else if (name.equals("x-forwarded-host"))
+        headers |= HOST;
+      else if (name.equals("x-forwarded-port"))
+        headers |= PORT;
+      else if (name.equals("forwarded"))
+        headers |= FORWARDED;
+      else if (!name.equals("none") && name.length() > 0)
+        throw new IllegalArgumentException("Unknown forwarded header: " + name);
+    }
+    return headers;
+  }
+
+  /** Sets the headers in the {@code headers} bit set on the proxy request. */
+  static void apply(int headers, CidrSet trustedProxies, HttpServletRequest servletRequest,
+                    HttpRequest proxyRequest) {
+    if (headers == 0 && trustedProxies.isEmpty())
+      return;
+    String remoteAddr = servletRequest.getRemoteAddr();
+    boolean trusted = trustedProxies.contains(remoteAddr);
+    //with no trusted proxies configured, the client's headers are built upon as they always were
+    boolean keep = trusted || trustedProxies.isEmpty();
+
+    if ((headers & FOR) != 0) {
+      String existing = keep ? servletRequest.getHeader(X_FORWARDED_FOR) : null;
+      proxyRequest.setHeader(X_FORWARDED_FOR,
+          existing != null ? existing + ", " + remoteAddr : remoteAddr);
+    } else if (!keep) {
+      proxyRequest.removeHeaders(X_FORWARDED_FOR);
+    }
+    String proto = servletRequest.getScheme();
+    String host = servletRequest.getHeader(HttpHeaders.HOST);
+    if (host == null)
+      host = servletRequest.getServerName();
+    setOrRemove(headers & PROTO, trusted, keep, servletRequest, proxyRequest, X_FORWARDED_PROTO, proto);
+    setOrRemove(headers & HOST, trusted, keep, servletRequest, proxyRequest, X_FORWARDED_HOST, host);
+    setOrRemove(headers & PORT, trusted, keep, servletRequest, proxyRequest, X_FORWARDED_PORT,
+        String.valueOf(servletRequest.getServerPort()));
+
+    if ((headers & FORWARDED) != 0) {
+      StringBuilder sb = new StringBuilder(64);
+      String existing = keep ? servletRequest.getHeader(FORWARDED_HEADER) : null;
+      if (existing != null)
+        sb.append(existing).append(", ");
+      sb.append("for=");
+      appendNode(sb, remoteAddr);
+      sb.append(";proto=").append(proto).append(";host=");
+      appendQuotedIfNeeded(sb, host);
+      proxyRequest.setHeader(FORWARDED_HEADER, sb.toString());
+    } else if (!keep) {
+      proxyRequest.removeHeaders(FORWARDED_HEADER);
+    }
+  }
+
+  /** Leaves a trusted proxy's value, else sets ours if enabled, else removes an untrusted one. */
+  private static void setOrRemove(int enabled, boolean trusted, boolean keep,
+                                  HttpServletRequest servletRequest, HttpRequest proxyRequest,
+                                  String name, String value) {
+    if (trusted && servletRequest.getHeader(name) != null)
+      return;//copied already
+    if (enabled != 0)
+      proxyRequest.setHeader(name, value);
+    else if (!keep)
+      proxyRequest.removeHeaders(name);
+  }
+
+  /** An RFC 7239 node: IPv6 addresses are bracketed and quoted. */
+  private static void appendNode(StringBuilder sb, String addr) {
+    if (addr.indexOf(':') >= 0)
+      sb.append("\"[").append(addr).append("]\"");
+    else
+      sb.append(addr);
+  }
+
+  private static void appendQuotedIfNeeded(StringBuilder sb, String value) {
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (!(Character.isLetterOrDigit(c) || c == '.' || c == '-' || c == '_')) {
+        sb.append('"');
+        for (int j = 0; j < value.length(); j++) {
+          char d = value.charAt(j);
+          if (d == '"' || d == '\\')
+            sb.append('\\');
+          sb.append(d);
+        }
+        sb.append('"');
+        return;
+      }
+    }
+    sb.append(value);
+  }
+
+  /**
+   * The address of the client: the remote address unless it's a trusted proxy, in which case it's
+   * the last address in X-Forwarded-For that isn't one, scanning from the right in one pass without
+   * splitting the header.  If they're all trusted it's the first.  Without X-Forwarded-For the
+   * {@code for} nodes of Forwarded are used the same way; if a proxy sends both, X-Forwarded-For
+   * wins.
+   */
+  static String clientAddr(CidrSet trustedProxies, HttpServletRequest servletRequest) {
+    String remoteAddr = servletRequest.getRemoteAddr();
+    if (!trustedProxies.contains(remoteAddr))
+      return remoteAddr;
+    String xff = servletRequest.getHeader(X_FORWARDED_FOR);
+    if (xff == null) {
+      String forwarded = servletRequest.getHeader(FORWARDED_HEADER);
+      if (forwarded == null)
+        return remoteAddr;
+      xff = forwardedFor(forwarded);
+    }
+    String addr = remoteAddr;
+    int end = xff.length();
+    while (end > 0) {
+      int comma = xff.lastIndexOf(',', end - 1);
+      int start = comma + 1;
+      int e = end;
+      while (start < e && xff.charAt(start) == ' ')
+        start++;
+      while (e > start && xff.charAt(e - 1) == ' ')
+        e--;
+      if (e > start) {
+        addr = xff.substring(start, e);
+        if (!trustedProxies.contains(addr))
+          return addr;
+      }
+      end = comma < 0 ? 0 : comma;
+    }
+    return addr;
+  }
+
+  /**
+   * The {@code for} nodes of a Forwarded header as an X-Forwarded-For list: unquoted, with IPv6
+   * brackets and any port removed.  Elements without one are skipped.
+   */
+  static String forwardedFor(String forwarded) {
+    StringBuilder sb = new StringBuilder(forwarded.length());
+    int start = 0;
+    boolean quoted = false;
+    for (int i = 0; i <= forwarded.length(); i++) {
+      char c = i < forwarded.length() ? forwarded.charAt(i) : ',';
+      if (c == '"') {
+        quoted = !quoted;
+      } else if (c == '\\' && quoted) {
+        i++;
+      } else if ((c == ';' || c == ',') && !quoted) {
+        String pair = forwarded.substring(start, i).trim();
+        if (pair.regionMatches(true, 0, "for=", 0, 4)) {
+          if (sb.length() > 0)
+            sb.append(", ");
+          sb.append(node(unquote(pair.substring(4).trim())));
+        }
+        start = i + 1;
+      }
+    }
+    return sb.toString();
+  }
+
+  private static String unquote(String value) {
+    if (value.length() < 2 || value.charAt(0) != '"' || value.charAt(value.length() - 1) != '"')
+      return value;
+    StringBuilder sb = new StringBuilder(value.length());
+    for (int i = 1; i < value.length() - 1; i++) {
+      char c = value.charAt(i);
+      if (c == '\\' && i + 1 < value.length() - 1)
+        c = value.charAt(++i);
+      sb.append(c);
+    }
+    return sb.toString();
+  }
+
+  /** The address of an RFC 7239 node, e.g. {@code [2001:db8::1]:4711} or {@code 192.0.2.1:80}. */
+  private static String node(String node) {
+    if (node.startsWith("[")) {
+      int end = node.indexOf(']');
+      return end < 0 ? node : node.substring(1, end);
+    }
+    int colon = node.indexOf(':');
+    return colon >= 0 && node.indexOf(':', colon + 1) < 0 ? node.substring(0, colon) : node;
+  }
+}
@@ -0,0 +1,172 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.HeaderGroup;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Collects a response's headers for the client, merging each header that's safe to combine into a
+ * single comma-separated line (RFC 7230 sec 3.2.2), so that a backend's dozens of {@code Vary} or
+ * {@code Link} lines cost one header each.  It's a safe mode: only headers known to be lists are
+ * merged, their values kept in arrival order at the position of the first; anything else, notably
+ * {@code Set-Cookie} and the authentication challenges, passes through line by line.  For headers
+ * whose elements are a set (e.g. {@code Vary}, {@code Allow}) an element already present is dropped;
+ * for those whose order and repetition matter (e.g. {@code Content-Encoding}, {@code Via}) none
+ * are.  Not thread-safe; one per response.
+ */
+class HeaderCoalescer {
+
+  /** Lists whose repeated elements mean nothing more; duplicates are dropped. */
+  private static final HeaderGroup setHeaders = group("Vary", "Allow", "Accept-Patch", "Cache-Control",
+      "Pragma", "Content-Language", "Access-Control-Allow-Methods", "Access-Control-Allow-Headers",
+      "Access-Control-Expose-Headers");
+
+  /** Lists where order and repetition matter; merged as they are. */
+  private static final HeaderGroup listHeaders = group("Link", "Via", "Warning", "Content-Encoding");
+
+  private static HeaderGroup group(String... names) {
+    HeaderGroup group = new HeaderGroup();
+    for (String name : names) {
+      group.addHeader(new BasicHeader(name, null));
+    }
+    return group;
+  }
+
+  private final String[] names;
+  private final Object[] values;//a String, or a StringBuilder once merged
+  private int size;
+
+  /** @param capacity the most headers that will be added */
+  HeaderCoalescer(int capacity) {
+    names = new String[capacity];
+    values = new Object[capacity];
+  }
+
+  static boolean isCombinable(String name) {
+    return setHeaders.containsHeader(name) || listHeaders.containsHeader(name);
+  }
+
+  void add(String name, String value) {
+    if (isCombinable(name)) {
+      for (int i = 0; i < size; i++) {
+        if (!names[i].equalsIgnoreCase(name))
+          continue;
+        StringBuilder merged;
+        if (values[i] instanceof StringBuilder) {
+          merged = (StringBuilder) values[i];
+        } else {
+          merged = new StringBuilder(((String) values[i]).length() + value.length() + 16).append(values[i]);
+          values[i] = merged;
+        }
+        if (!setHeaders.containsHeader(name)) {
+          merged.append(", ").append(value);
+          return;
+        }
+        for (int start = 0; start <= value.length(); ) {
+          int end = value.indexOf(',', start);
+          if (end < 0)
+            end = value.length();
+          String element = value.substring(start, end).trim();
+          if (!containsElement(merged, element))
+            merged.append(", ").append(element);
+          start = end + 1;
+        }
+        return;
+      }
+    }
+    names[size] = name;
+    values[size] = value;
+    size++;
+  }
+
+  /** Whether {@code list}, comma separated, has {@code element} as one of its elements. */
+  static boolean containsElement(StringBuilder list, String element) {
+    if (element.isEmpty())
+      return true;
+    for (int i = list.indexOf(element); i >= 0; i = list.indexOf(element, i + 1)) {
+      int before = i - 1;
+      while (before >= 0 && list.charAt(before) == ' ')
+        before--;
+      int after = i + element.length();
+      while (after < list.length() && list.charAt(after) == ' ')
+        after++;
+      if ((before < 0 || list.charAt(before) == ',') && (after == list.length() || list.charAt(after) == ','))
+        return true;
+    }
+    return false;
+  }
+
+  /** The number of header lines, after merging. */
+  int size() {
+    return size;
+  }
+
+  String getName(int i) {
+    return names[i];
+  }
+
+  String getValue(int i) {
+    return values[i].toString();
+  }
+
+  void writeTo(HttpServletResponse servletResponse) {
+    for (int i = 0; i < size; i++) {
+      servletResponse.addHeader(names[i], values[i].toString());
+    }
+  }
+
+  /**
+   * Rewrites a {@code Set-Cookie} value for the client in place of parsing and rebuilding it:
+   * prefixes the cookie's name, drops its Domain and replaces its Path with {@code path}, leaving
+   * the value and other attributes (Expires, HttpOnly, SameSite...) as they were.
+   */
+  static String rewriteSetCookie(String setCookie, String namePrefix, String path) {
+    int length = setCookie.length();
+    int start = 0;
+    while (start < length && setCookie.charAt(start) == ' ')
+      start++;
+    int end = setCookie.indexOf(';', start);
+    if (end < 0)
+      end = length;
+    StringBuilder sb = new StringBuilder(namePrefix.length() + length + path.length() + 8);
+    sb.append(namePrefix).append(setCookie, start, end);
+    while (end < length) {//at a ';'
+      int next = setCookie.indexOf(';', end + 1);
+      if (next < 0)
+        next = length;
+      if (!isAttribute(setCookie, end + 1, next, "Path") && !isAttribute(setCookie, end + 1, next, "Domain"))
+        sb.append(setCookie, end, next);
+      end = next;
+    }
+    return sb.append("; Path=").append(path.isEmpty() ? "/" : path).toString();
+  }
+
+  /** Whether the attribute in {@code s} from {@code start} to {@code end} is named {@code name}. */
+  private static boolean isAttribute(String s, int start, int end, String name) {
+    while (start < end && s.charAt(start) == ' ')
+      start++;
+    int nameEnd = start + name.length();
+    if (nameEnd > end || !s.regionMatches(true, start, name, 0, name.length()))
+      return false;
+    while (nameEnd < end && s.charAt(nameEnd) == ' ')
+      nameEnd++;
+    return nameEnd == end || s.charAt(nameEnd) == '=';
+  }
+}
@@ -0,0 +1,346 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.params.CoreConnectionPNames;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URI;
+
+/**
+ * A {@link ProxyTransport} on Apache HttpClient 5's classic (blocking) API, for deployments that
+ * have moved to it.  It's used by reflection so that it's an optional dependency: put
+ * {@code org.apache.httpcomponents.client5:httpclient5} on the classpath.  Like the default
+ * transport it leaves cookies and content encodings alone; its pool is sized by
+ * {@code maxConnections} and {@code maxConnectionsPerRoute}, and a request's
+ * {@link CoreConnectionPNames#CONNECTION_TIMEOUT} and {@link CoreConnectionPNames#SO_TIMEOUT}
+ * params become its {@code RequestConfig}'s connect and response timeouts.
+ */
+public class HttpClient5Transport implements ProxyTransport {
+
+  private final Closeable client;
+  private final Method execute;
+  private final boolean executeOpen;//5.2+; else execute(ClassicHttpRequest, HttpContext)
+  private final Object defaultRequestConfig;
+  private final Method copyRequestConfig;
+  private final Method setConnectTimeout;
+  private final Method setResponseTimeout;
+  private final Method buildRequestConfig;
+  private final Method ofMilliseconds;
+  private final Method createContext;
+  private final Method setRequestConfig;
+  private final Constructor<?> newRequest;
+  private final Method addHeader;
+  private final Method setEntity;
+  private final Constructor<?> newEntity;
+  private final Method getCode;
+  private final Method getReasonPhrase;
+  private final Method getVersion;
+  private final Method getMajor;
+  private final Method getMinor;
+  private final Method getHeaders;
+  private final Method getName;
+  private final Method getValue;
+  private final Method getEntity;
+  private final Method getContent;
+
+  /**
+   * Creates a transport with a new client.
+   * @param maxConnections the pool's total size, or -1 for HttpClient's default
+   * @param maxConnectionsPerRoute or -1 for HttpClient's default
+   * @param sslContext for HTTPS targets, or null for the default
+   * @param sslProtocols the TLS protocols to enable, or null for the default
+   * @param sslCipherSuites the cipher suites to enable, or null for the default
+   * @param connectTimeout in milliseconds (0 for none), or -1 for HttpClient's default
+   * @param socketTimeout in milliseconds (0 for none), or -1 for HttpClient's default
+   * @throws UnsupportedOperationException if HttpClient 5 isn't on the classpath
+   */
+  public static HttpClient5Transport create(boolean followRedirects, int maxConnections,
+                                            int maxConnectionsPerRoute, SSLContext sslContext,
+                                            String[] sslProtocols, String[] sslCipherSuites,
+                                            int connectTimeout, int socketTimeout) {
+    try {
+      return new HttpClient5Transport(followRedirects, maxConnections, maxConnectionsPerRoute, sslContext,
+          sslProtocols, sslCipherSuites, connectTimeout, socketTimeout);
+    } catch (ReflectiveOperationException e) {
+      throw new UnsupportedOperationException("HttpClient 5 isn't available: " + e);
+    }
+  }
+
+  private HttpClient5Transport(boolean followRedirects, int maxConnections, int maxConnectionsPerRoute,
+                               SSLContext sslContext, String[] sslProtocols, String[] sslCipherSuites,
+                               int connectTimeout, int socketTimeout) throws ReflectiveOperationException {
+    Class<?> builderClass = Class.forName("org.apache.hc.client5.http.impl.classic.HttpClientBuilder");
+    Object builder = Class.forName("org.apache.hc.client5.http.impl.classic.HttpClients")
+        .getMethod("custom").invoke(null);
+    //pass bodies and cookies through untouched, as HttpClient 4 does here
+    builderClass.getMethod("disableContentCompression").invoke(builder);
+    builderClass.getMethod("disableCookieManagement").invoke(builder);
+    if (!followRedirects)
+      builderClass.getMethod("disableRedirectHandling").invoke(builder);
+    Class<?> poolBuilderClass =
+        Class.forName("org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder");
+    Object poolBuilder = poolBuilderClass.getMethod("create").invoke(null);
+    if (maxConnections > 0)
+      poolBuilderClass.getMethod("setMaxConnTotal", int.class).invoke(poolBuilder, maxConnections);
+    if (maxConnectionsPerRoute > 0)
+      poolBuilderClass.getMethod("setMaxConnPerRoute", int.class).invoke(poolBuilder, maxConnectionsPerRoute);
+    if (sslContext != null) {
+      //a null hostname verifier is HttpClient's default one
+      Object sslSocketFactory = Class.forName("org.apache.hc.client5.http.ssl.SSLConnectionSocketFactory")
+          .getConstructor(SSLContext.class, String[].class, String[].class, HostnameVerifier.class)
+          .newInstance(sslContext, sslProtocols, sslCipherSuites, null);
+      poolBuilderClass.getMethod("setSSLSocketFactory",
+          Class.forName("org.apache.hc.client5.http.socket.LayeredConnectionSocketFactory"))
+          .invoke(poolBuilder, sslSocketFactory);
+    }
+    builderClass.getMethod("setConnectionManager",
+        Class.forName("org.apache.hc.client5.http.io.HttpClientConnectionManager"))
+        .invoke(builder, poolBuilderClass.getMethod("build").invoke(poolBuilder));
+
+    Class<?> requestConfigClass = Class.forName("org.apache.hc.client5.http.config.RequestConfig");
+    Class<?> requestConfigBuilderClass = Class.forName("org.apache.hc.client5.http.config.RequestConfig$Builder");
+    Class<?> timeoutClass = Class.forName("org.apache.hc.core5.util.Timeout");
+    copyRequestConfig = requestConfigClass.getMethod("copy", requestConfigClass);
+    setConnectTimeout = requestConfigBuilderClass.getMethod("setConnectTimeout", timeoutClass);
+    setResponseTimeout = requestConfigBuilderClass.getMethod("setResponseTimeout", timeoutClass);
+    buildRequestConfig = requestConfigBuilderClass.getMethod("build");
+    ofMilliseconds = timeoutClass.getMethod("ofMilliseconds", long.class);
+    defaultRequestConfig = requestConfig(requestConfigClass.getMethod("custom").invoke(null),
+        connectTimeout, socketTimeout);
+    builderClass.getMethod("setDefaultRequestConfig", requestConfigClass).invoke(builder, defaultRequestConfig);
+    Class<?> contextClass = Class.forName("org.apache.hc.client5.http.protocol.HttpClientContext");
+    createContext = contextClass.getMethod("create");
+    setRequestConfig = contextClass.getMethod("setRequestConfig", requestConfigClass);
+    client = (Closeable) builderClass.getMethod("build").invoke(builder);
+
+    Class<?> clientClass = Class.forName("org.apache.hc.client5.http.impl.classic.CloseableHttpClient");
+    Class<?> requestClass = Class.forName("org.apache.hc.core5.http.ClassicHttpRequest");
+    Class<?> hc5ContextClass = Class.forName("org.apache.hc.core5.http.protocol.HttpContext");
+    Method m;
+    boolean open;
+    try {
+      m = clientClass.getMethod("executeOpen", Class.forName("org.apache.hc.core5.http.HttpHost"),
+          requestClass, hc5ContextClass);
+      open = true;
+    } catch (NoSuchMethodException e) {
+      m = clientClass.getMethod("execute", requestClass, hc5ContextClass);
+      open = false;
+    }
+    execute = m;
+    executeOpen = open;
+
+    Class<?> entityClass = Class.forName("org.apache.hc.core5.http.HttpEntity");
+    newRequest = Class.forName("org.apache.hc.core5.http.message.BasicClassicHttpRequest")
+        .getConstructor(String.class, URI.class);
+    addHeader = requestClass.getMethod("addHeader", String.class, Object.class);
+    setEntity = requestClass.getMethod("setEntity", entityClass);
+    newEntity = Class.forName("org.apache.hc.core5.http.io.entity.InputStreamEntity")
+        .getConstructor(InputStream.class, long.class, Class.forName("org.apache.hc.core5.http.ContentType"));
+
+    Class<?> responseClass = Class.forName("org.apache.hc.core5.http.ClassicHttpResponse");
+    getCode = responseClass.getMethod("getCode");
+    getReasonPhrase = responseClass.getMethod("getReasonPhrase");
+    getVersion = responseClass.getMethod("getVersion");
+    Class<?> versionClass = Class.forName("org.apache.hc.core5.http.ProtocolVersion");
+    getMajor = versionClass.getMethod("getMajor");
+    getMinor = versionClass.getMethod("getMinor");
+    getHeaders = responseClass.getMethod("getHeaders");
+    Class<?> headerClass = Class.forName("org.apache.hc.core5.http.Header");
+    getName = headerClass.getMethod("getName");
+    getValue = headerClass.getMethod("getValue");
+    getEntity = responseClass.getMethod("getEntity");
+    getContent = entityClass.getMethod("getContent");
+  }
+
+  @Override
+  public HttpResponse execute(HttpHost target, HttpRequest request, HttpContext context) throws IOException {
+    try {
+      Object hc5Request = toHc5Request(target, request);
+      Object hc5Context = toHc5Context(request.getParams());
+      //with a null target, HttpClient takes it from the request's URI
+      Object hc5Response = executeOpen ? execute.invoke(client, null, hc5Request, hc5Context)
+          : execute.invoke(client, hc5Request, hc5Context);
+      try {
+        return toResponse((Closeable) hc5Response);
+      } catch (RuntimeException e) {
+        ((Closeable) hc5Response).close();
+        throw e;
+      } catch (IOException e) {
+        ((Closeable) hc5Response).close();
+        throw e;
+      }
+    } catch (IllegalAccessException e) {
+      throw new RuntimeException(e);
+    } catch (InstantiationException e) {
+      throw new RuntimeException(e);
+    } catch (InvocationTargetException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException)
+        throw (IOException) cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      throw new RuntimeException(cause);
+    }
+  }
+
+  private Object toHc5Request(HttpHost target, HttpRequest request)
+      throws IllegalAccessException, InstantiationException, InvocationTargetException {
+    URI uri = URI.create(request.getRequestLine().getUri());
+    if (!uri.isAbsolute())
+      uri = URI.create(target.toURI()).resolve(uri);
+    Object hc5Request = newRequest.newInstance(request.getRequestLine().getMethod(), uri);
+    for (Header header : request.getAllHeaders()) {
+      addHeader.invoke(hc5Request, header.getName(), header.getValue());
+    }
+    if (request instanceof HttpEntityEnclosingRequest) {
+      HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+      if (entity != null) {
+        setEntity.invoke(hc5Request,
+            newEntity.newInstance(new LazyContent(entity), entity.getContentLength(), null));
+      }
+    }
+    return hc5Request;
+  }
+
+  /** A context with the request's own timeouts, or null if it has none. */
+  private Object toHc5Context(HttpParams params) throws IllegalAccessException, InvocationTargetException {
+    Object connectTimeout = params.getParameter(CoreConnectionPNames.CONNECTION_TIMEOUT);
+    Object socketTimeout = params.getParameter(CoreConnectionPNames.SO_TIMEOUT);
+    if (!(connectTimeout instanceof Integer) && !(socketTimeout instanceof Integer))
+      return null;
+    Object requestConfig = requestConfig(copyRequestConfig.invoke(null, defaultRequestConfig),
+        connectTimeout instanceof Integer ? (Integer) connectTimeout : -1,
+        socketTimeout instanceof Integer ? (Integer) socketTimeout : -1);
+    Object hc5Context = createContext.invoke(null);
+    setRequestConfig.invoke(hc5Context, requestConfig);
+    return hc5Context;
+  }
+
+  /** Builds a RequestConfig from {@code builder} with the timeouts that aren't -1. */
+  private Object requestConfig(Object builder, int connectTimeout, int socketTimeout)
+      throws IllegalAccessException, InvocationTargetException {
+    if (connectTimeout >= 0)
+      setConnectTimeout.invoke(builder, ofMilliseconds.invoke(null, (long) connectTimeout));
+    if (socketTimeout >= 0)
+      setResponseTimeout.invoke(builder, ofMilliseconds.invoke(null, (long) socketTimeout));
+    return buildRequestConfig.invoke(builder);
+  }
+
+  private HttpResponse toResponse(final Closeable hc5Response)
+      throws IllegalAccessException, InvocationTargetException, IOException {
+    int status = (Integer) getCode.invoke(hc5Response);
+    Object hc5Version = getVersion.invoke(hc5Response);
+    ProtocolVersion protocol = hc5Version == null ? HttpVersion.HTTP_1_1 : new ProtocolVersion("HTTP",
+        (Integer) getMajor.invoke(hc5Version), (Integer) getMinor.invoke(hc5Version));
+    HttpResponse response = new BasicHttpResponse(new BasicStatusLine(protocol, status,
+        (String) getReasonPhrase.invoke(hc5Response)));
+    for (Object header : (Object[]) getHeaders.invoke(hc5Response)) {
+      response.addHeader((String) getName.invoke(header), (String) getValue.invoke(header));
+    }
+    Object hc5Entity = getEntity.invoke(hc5Response);
+    if (hc5Entity == null) {
+      hc5Response.close();//releases the connection
+      return response;
+    }
+    BasicHttpEntity entity = new BasicHttpEntity();
+    //closing the content releases the connection: for reuse if it was all read
+    entity.setContent(new FilterInputStream((InputStream) getContent.invoke(hc5Entity)) {
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          hc5Response.close();
+        }
+      }
+    });
+    entity.setContentLength(-1);
+    Header contentLength = response.getFirstHeader(HttpHeaders.CONTENT_LENGTH);
+    if (contentLength != null) {
+      try {
+        entity.setContentLength(Long.parseLong(contentLength.getValue().trim()));
+      } catch (NumberFormatException e) {
+        //leave it unknown
+      }
+    }
+    entity.setContentType(response.getFirstHeader(HttpHeaders.CONTENT_TYPE));
+    entity.setContentEncoding(response.getFirstHeader(HttpHeaders.CONTENT_ENCODING));
+    response.setEntity(entity);
+    return response;
+  }
+
+  @Override
+  public void close() throws IOException {
+    client.close();
+  }
+
+  /** The request body, not asked for until HttpClient writes it; so a client's
+   * {@code Expect: 100-continue} isn't answered before the target's is. */
+  private static class LazyContent extends InputStream {
+    private final HttpEntity entity;
+    private InputStream in;
+
+    LazyContent(HttpEntity entity) {
+      this.entity = entity;
+    }
+
+    private InputStream in() throws IOException {
+      if (in == null)
+        in = entity.getContent();
+      return in;
+    }
+
+    @Override
+    public int read() throws IOException {
+      return in().read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      return in().read(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (in != null)
+        in.close();
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * The default {@link ProxyTransport}: Apache HttpClient 4.x, as made by
+ * {@link ProxyServlet#createHttpClient(org.apache.http.params.HttpParams)}.  Connection pool
+ * sizing, keep-alive handling, TLS settings, pipelining, warm-up and traced connect/first-byte
+ * phases all need this one.
+ */
+public class HttpClientTransport implements ProxyTransport {
+
+  private final HttpClient client;
+
+  public HttpClientTransport(HttpClient client) {
+    this.client = client;
+  }
+
+  public HttpClient getClient() {
+    return client;
+  }
+
+  @Override
+  public HttpResponse execute(HttpHost target, HttpRequest request, HttpContext context) throws IOException {
+    return client.execute(target, request, context);
+  }
+
+  @Override
+  public void close() throws IOException {
+    //As of HttpComponents v4.3, clients implement closeable
+    if (client instanceof Closeable) {//TODO AutoCloseable in Java 1.6
+      ((Closeable) client).close();
+    } else {
+      //Older releases require we do this:
+      client.getConnectionManager().shutdown();
+    }
+  }
+}
@@ -0,0 +1,292 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.impl.EnglishReasonPhraseCatalog;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.params.CoreConnectionPNames;
+import org.apache.http.protocol.HttpContext;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A {@link ProxyTransport} on the JDK's own {@code java.net.http.HttpClient} (Java 11+), which
+ * needs no dependencies and can speak HTTP/2.  It's used by reflection since this project builds
+ * against Java 7.  The JDK sets some request headers itself and refuses them from the caller (e.g.
+ * Host and Connection, and in Java 11 also Via and Referer); those are dropped, so a preserved Host
+ * isn't sent.  Its connection pool isn't configurable here (see the
+ * {@code jdk.httpclient.connectionPoolSize} system property) and response headers come back in
+ * alphabetical order.  The connect timeout is the client's, so a request can't override it; the
+ * socket timeout bounds the wait for the response headers but not reading the body.
+ */
+public class JdkHttpTransport implements ProxyTransport {
+
+  private static final ProtocolVersion HTTP_2 = new ProtocolVersion("HTTP", 2, 0);
+
+  private final Object client;
+  private final Method send;
+  private final Method shutdownNow;//Java 21+; else null
+  private final Object bodyHandler;
+  private final Method newRequestBuilder;
+  private final Method method;
+  private final Method header;
+  private final Method expectContinue;
+  private final Method timeout;
+  private final Method ofMillis;
+  private final int socketTimeout;
+  private final Method build;
+  private final Method noBody;
+  private final Class<?> supplierClass;
+  private final Method ofInputStream;
+  private final Method fromPublisher;
+  private final Method statusCode;
+  private final Method version;
+  private final Method headers;
+  private final Method headersMap;
+  private final Method body;
+
+  /**
+   * Creates a transport with a new client.
+   * @param http2 whether to ask for HTTP/2 (by ALPN, or an h2c upgrade for plain http)
+   * @param sslContext for HTTPS targets, or null for the JDK's default
+   * @param sslProtocols the TLS protocols to enable, or null for the default
+   * @param sslCipherSuites the cipher suites to enable, or null for the default
+   * @param connectTimeout in milliseconds; 0 or less for none
+   * @param socketTimeout in milliseconds, unless the request's params set
+   *                      {@link CoreConnectionPNames#SO_TIMEOUT}; 0 or less for none
+   * @throws UnsupportedOperationException if the JVM lacks java.net.http
+   */
+  public static JdkHttpTransport create(boolean followRedirects, boolean http2, SSLContext sslContext,
+                                        String[] sslProtocols, String[] sslCipherSuites,
+                                        int connectTimeout, int socketTimeout) {
+    try {
+      return new JdkHttpTransport(followRedirects, http2, sslContext, sslProtocols, sslCipherSuites,
+          connectTimeout, socketTimeout);
+    } catch (ReflectiveOperationException e) {
+      throw new UnsupportedOperationException("The JDK's HttpClient needs Java 11+: " + e);
+    }
+  }
+
+  private JdkHttpTransport(boolean followRedirects, boolean http2, SSLContext sslContext,
+                           String[] sslProtocols, String[] sslCipherSuites, int connectTimeout,
+                           int socketTimeout) throws ReflectiveOperationException {
+    Class<?> clientClass = Class.forName("java.net.http.HttpClient");
+    Class<?> clientBuilderClass = Class.forName("java.net.http.HttpClient$Builder");
+    Class<?> requestClass = Class.forName("java.net.http.HttpRequest");
+    Class<?> requestBuilderClass = Class.forName("java.net.http.HttpRequest$Builder");
+    Class<?> publishersClass = Class.forName("java.net.http.HttpRequest$BodyPublishers");
+    Class<?> responseClass = Class.forName("java.net.http.HttpResponse");
+
+    Object clientBuilder = clientClass.getMethod("newBuilder").invoke(null);
+    Class<?> redirectClass = Class.forName("java.net.http.HttpClient$Redirect");
+    clientBuilderClass.getMethod("followRedirects", redirectClass)
+        .invoke(clientBuilder, enumConstant(redirectClass, followRedirects ? "NORMAL" : "NEVER"));
+    Class<?> versionClass = Class.forName("java.net.http.HttpClient$Version");
+    clientBuilderClass.getMethod("version", versionClass)
+        .invoke(clientBuilder, enumConstant(versionClass, http2 ? "HTTP_2" : "HTTP_1_1"));
+    if (sslContext != null)
+      clientBuilderClass.getMethod("sslContext", SSLContext.class).invoke(clientBuilder, sslContext);
+    if (sslProtocols != null || sslCipherSuites != null) {
+      SSLParameters sslParameters = new SSLParameters(sslCipherSuites, sslProtocols);
+      clientBuilderClass.getMethod("sslParameters", SSLParameters.class).invoke(clientBuilder, sslParameters);
+    }
+    Class<?> durationClass = Class.forName("java.time.Duration");
+    ofMillis = durationClass.getMethod("ofMillis", long.class);
+    if (connectTimeout > 0) {
+      clientBuilderClass.getMethod("connectTimeout", durationClass)
+          .invoke(clientBuilder, ofMillis.invoke(null, (long) connectTimeout));
+    }
+    this.socketTimeout = socketTimeout;
+    client = clientBuilderClass.getMethod("build").invoke(clientBuilder);
+    send = clientClass.getMethod("send", requestClass, Class.forName("java.net.http.HttpResponse$BodyHandler"));
+    Method shutdown;
+    try {
+      shutdown = clientClass.getMethod("shutdownNow");
+    } catch (NoSuchMethodException e) {
+      shutdown = null;//before Java 21 connections close when the client is collected
+    }
+    shutdownNow = shutdown;
+    bodyHandler = Class.forName("java.net.http.HttpResponse$BodyHandlers").getMethod("ofInputStream").invoke(null);
+
+    newRequestBuilder = requestClass.getMethod("newBuilder", URI.class);
+    method = requestBuilderClass.getMethod("method", String.class,
+        Class.forName("java.net.http.HttpRequest$BodyPublisher"));
+    header = requestBuilderClass.getMethod("header", String.class, String.class);
+    expectContinue = requestBuilderClass.getMethod("expectContinue", boolean.class);
+    timeout = requestBuilderClass.getMethod("timeout", durationClass);
+    build = requestBuilderClass.getMethod("build");
+    noBody = publishersClass.getMethod("noBody");
+    supplierClass = Class.forName("java.util.function.Supplier");
+    ofInputStream = publishersClass.getMethod("ofInputStream", supplierClass);
+    fromPublisher = publishersClass.getMethod("fromPublisher",
+        Class.forName("java.util.concurrent.Flow$Publisher"), long.class);
+
+    statusCode = responseClass.getMethod("statusCode");
+    version = responseClass.getMethod("version");
+    headers = responseClass.getMethod("headers");
+    headersMap = Class.forName("java.net.http.HttpHeaders").getMethod("map");
+    body = responseClass.getMethod("body");
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static Object enumConstant(Class<?> enumClass, String name) {
+    return Enum.valueOf((Class) enumClass, name);
+  }
+
+  @Override
+  public HttpResponse execute(HttpHost target, HttpRequest request, HttpContext context) throws IOException {
+    try {
+      Object response = send.invoke(client, toJdkRequest(target, request), bodyHandler);
+      return toResponse(request, response);
+    } catch (IllegalAccessException e) {
+      throw new RuntimeException(e);
+    } catch (InvocationTargetException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException)
+        throw (IOException) cause;
+      if (cause instanceof InterruptedException) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting for " + target);
+      }
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      throw new RuntimeException(cause);
+    }
+  }
+
+  private Object toJdkRequest(HttpHost target, HttpRequest request)
+      throws IllegalAccessException, InvocationTargetException {
+    URI uri = URI.create(request.getRequestLine().getUri());
+    if (!uri.isAbsolute())
+      uri = URI.create(target.toURI()).resolve(uri);
+    Object builder = newRequestBuilder.invoke(null, uri);
+    Object requestTimeout = request.getParams().getParameter(CoreConnectionPNames.SO_TIMEOUT);
+    int millis = requestTimeout instanceof Integer ? (Integer) requestTimeout : socketTimeout;
+    if (millis > 0)
+      timeout.invoke(builder, ofMillis.invoke(null, (long) millis));
+    for (Header h : request.getAllHeaders()) {
+      if (h.getName().equalsIgnoreCase(HttpHeaders.EXPECT)) {
+        if (h.getValue().equalsIgnoreCase("100-continue"))
+          expectContinue.invoke(builder, true);
+        continue;
+      }
+      try {
+        header.invoke(builder, h.getName(), h.getValue());
+      } catch (InvocationTargetException e) {
+        if (!(e.getCause() instanceof IllegalArgumentException))
+          throw e;
+        //a header the JDK sets itself
+      }
+    }
+    Object publisher = null;
+    if (request instanceof HttpEntityEnclosingRequest) {
+      final HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+      long length = entity != null ? entity.getContentLength() : 0;
+      if (length != 0) {
+        //a Supplier<InputStream>, so the body isn't asked for until it's sent
+        Object supplier = Proxy.newProxyInstance(JdkHttpTransport.class.getClassLoader(),
+            new Class<?>[]{supplierClass}, new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+            if (m.getDeclaringClass() == Object.class)
+              return m.invoke(this, args);
+            return entity.getContent();
+          }
+        });
+        publisher = ofInputStream.invoke(null, supplier);
+        if (length > 0)
+          publisher = fromPublisher.invoke(null, publisher, length);
+      }
+    }
+    method.invoke(builder, request.getRequestLine().getMethod(),
+        publisher != null ? publisher : noBody.invoke(null));
+    return build.invoke(builder);
+  }
+
+  private HttpResponse toResponse(HttpRequest request, Object jdkResponse)
+      throws IllegalAccessException, InvocationTargetException, IOException {
+    int status = (Integer) statusCode.invoke(jdkResponse);
+    ProtocolVersion protocol = "HTTP_2".equals(((Enum<?>) version.invoke(jdkResponse)).name())
+        ? HTTP_2 : HttpVersion.HTTP_1_1;
+    HttpResponse response = new BasicHttpResponse(new BasicStatusLine(protocol, status,
+        EnglishReasonPhraseCatalog.INSTANCE.getReason(status, Locale.ENGLISH)));
+    @SuppressWarnings("unchecked")
+    Map<String, List<String>> headerMap =
+        (Map<String, List<String>>) headersMap.invoke(headers.invoke(jdkResponse));
+    for (Map.Entry<String, List<String>> entry : headerMap.entrySet()) {
+      if (entry.getKey().startsWith(":"))
+        continue;//HTTP/2 pseudo-headers
+      for (String value : entry.getValue()) {
+        response.addHeader(entry.getKey(), value);
+      }
+    }
+    InputStream content = (InputStream) body.invoke(jdkResponse);
+    if (request.getRequestLine().getMethod().equals("HEAD") || status < 200 || status == 204 || status == 304) {
+      content.close();//no body, as HttpClient 4 returns no entity
+      return response;
+    }
+    BasicHttpEntity entity = new BasicHttpEntity();
+    entity.setContent(content);
+    entity.setContentLength(-1);
+    Header contentLength = response.getFirstHeader(HttpHeaders.CONTENT_LENGTH);
+    if (contentLength != null) {
+      try {
+        entity.setContentLength(Long.parseLong(contentLength.getValue().trim()));
+      } catch (NumberFormatException e) {
+        //leave it unknown
+      }
+    }
+    entity.setContentType(response.getFirstHeader(HttpHeaders.CONTENT_TYPE));
+    entity.setContentEncoding(response.getFirstHeader(HttpHeaders.CONTENT_ENCODING));
+    response.setEntity(entity);
+    return response;
+  }
+
+  @Override
+  public void close() {
+    if (shutdownNow == null)
+      return;
+    try {
+      shutdownNow.invoke(client);
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
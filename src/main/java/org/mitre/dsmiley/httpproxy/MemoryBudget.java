@@ -0,0 +1,139 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A limit on the bytes that the proxy holds in memory for buffering across all requests, so that
+ * a burst of large responses can't exhaust the heap.  Whatever buffers a body (the pipeliner, a
+ * {@link BodyBuffer}, a filter) first reserves what it needs; if the budget is spent the
+ * reservation is refused and it should stream or spill to disk instead of waiting.  Lock-free.
+ * <p>
+ *   Each request gets a {@link Reservation} from
+ *   {@link ProxyServlet#getMemoryReservation(javax.servlet.http.HttpServletRequest)} that is
+ *   returned in full when the request completes, so a buffer that isn't released explicitly doesn't
+ *   leak budget.
+ * </p>
+ */
+public class MemoryBudget {
+
+  private final long maxBytes;
+  private final AtomicLong used = new AtomicLong();
+  private final AtomicLong peak = new AtomicLong();
+  private final AtomicLong refusals = new AtomicLong();
+
+  public MemoryBudget(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /** Takes {@code bytes} from the budget if that many are left. */
+  public boolean tryAcquire(long bytes) {
+    while (true) {
+      long current = used.get();
+      long next = current + bytes;
+      if (next > maxBytes) {
+        refusals.incrementAndGet();
+        return false;
+      }
+      if (used.compareAndSet(current, next)) {
+        long p;
+        while (next > (p = peak.get()) && !peak.compareAndSet(p, next)) {
+          //retry
+        }
+        return true;
+      }
+    }
+  }
+
+  /** Gives back bytes taken with {@link #tryAcquire(long)}. */
+  public void release(long bytes) {
+    used.addAndGet(-bytes);
+  }
+
+  /** A new, empty reservation against this budget. */
+  public Reservation newReservation() {
+    return new Reservation();
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /** The bytes currently reserved. */
+  public long getUsedBytes() {
+    return used.get();
+  }
+
+  /** The most bytes that have been reserved at once. */
+  public long getPeakBytes() {
+    return peak.get();
+  }
+
+  /** The number of times a reservation was refused. */
+  public long getRefusals() {
+    return refusals.get();
+  }
+
+  @Override
+  public String toString() {
+    return "used=" + used.get() + " peak=" + peak.get() + " max=" + maxBytes
+        + " refusals=" + refusals.get();
+  }
+
+  /** The bytes one request (or one buffer) holds of the budget.  Closing it returns them all. */
+  public class Reservation implements Closeable {
+    private final AtomicLong reserved = new AtomicLong();
+
+    Reservation() {
+    }
+
+    /** Reserves {@code bytes} more if the budget allows. */
+    public boolean tryReserve(long bytes) {
+      if (!tryAcquire(bytes))
+        return false;
+      reserved.addAndGet(bytes);
+      return true;
+    }
+
+    /** Returns {@code bytes} of this reservation to the budget; no more than it still holds, in
+     * case it was closed already. */
+    public void release(long bytes) {
+      long current;
+      long released;
+      do {
+        current = reserved.get();
+        released = Math.min(bytes, current);
+      } while (!reserved.compareAndSet(current, current - released));
+      if (released > 0)
+        MemoryBudget.this.release(released);
+    }
+
+    public long getReservedBytes() {
+      return reserved.get();
+    }
+
+    /** Returns everything still reserved. */
+    @Override
+    public void close() {
+      long bytes = reserved.getAndSet(0);
+      if (bytes != 0)
+        MemoryBudget.this.release(bytes);
+    }
+  }
+}
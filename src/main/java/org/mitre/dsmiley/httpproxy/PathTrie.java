@@ -0,0 +1,161 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+
+/**
+ * A compact (radix) trie mapping path prefixes to values, answering longest-prefix queries in time
+ * proportional to the length of the path, regardless of how many prefixes are stored.  A prefix
+ * only matches on a path segment boundary: "/api" matches "/api" and "/api/x" but not "/apix".
+ * <p>
+ * Build it up-front with {@link #put(String, Object)} and then share it; lookups don't mutate
+ * anything so a fully built instance is safe for concurrent reads once safely published.
+ * </p>
+ */
+class PathTrie<V> {
+
+  private static final class Node<V> {
+    String label;//the edge label leading to this node
+    char[] keys = new char[0];//first char of each child's label; sorted
+    Node<V>[] children = newArray(0);
+    V value;
+
+    Node(String label) {
+      this.label = label;
+    }
+
+    Node<V> child(char c) {
+      int idx = Arrays.binarySearch(keys, c);
+      return idx >= 0 ? children[idx] : null;
+    }
+
+    void setChild(Node<V> child) {
+      char c = child.label.charAt(0);
+      int idx = Arrays.binarySearch(keys, c);
+      if (idx >= 0) {
+        children[idx] = child;
+        return;
+      }
+      idx = -idx - 1;
+      char[] newKeys = new char[keys.length + 1];
+      Node<V>[] newChildren = newArray(keys.length + 1);
+      System.arraycopy(keys, 0, newKeys, 0, idx);
+      System.arraycopy(children, 0, newChildren, 0, idx);
+      newKeys[idx] = c;
+      newChildren[idx] = child;
+      System.arraycopy(keys, idx, newKeys, idx + 1, keys.length - idx);
+      System.arraycopy(children, idx, newChildren, idx + 1, keys.length - idx);
+      keys = newKeys;
+      children = newChildren;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <V> Node<V>[] newArray(int size) {
+      return (Node<V>[]) new Node[size];
+    }
+  }
+
+  private final Node<V> root = new Node<V>("");
+  private int size;
+
+  /** Associates {@code value} with {@code prefix}, returning any value it replaced. */
+  public V put(String prefix, V value) {
+    if (value == null)
+      throw new IllegalArgumentException("null value");
+    Node<V> node = root;
+    int pos = 0;
+    while (pos < prefix.length()) {
+      Node<V> child = node.child(prefix.charAt(pos));
+      if (child == null) {
+        Node<V> leaf = new Node<V>(prefix.substring(pos));
+        node.setChild(leaf);
+        node = leaf;
+        pos = prefix.length();
+        break;
+      }
+      String label = child.label;
+      int common = 0;
+      while (common < label.length() && pos + common < prefix.length()
+          && label.charAt(common) == prefix.charAt(pos + common)) {
+        common++;
+      }
+      if (common < label.length()) {
+        //split the edge: node -> split -> child
+        Node<V> split = new Node<V>(label.substring(0, common));
+        child.label = label.substring(common);
+        split.setChild(child);
+        node.setChild(split);
+        child = split;
+      }
+      node = child;
+      pos += common;
+    }
+    V old = node.value;
+    node.value = value;
+    if (old == null)
+      size++;
+    return old;
+  }
+
+  /**
+   * Finds the value of the longest stored prefix of {@code path} that ends on a segment boundary,
+   * or null if there is none.  {@code prefixLength}, if not null, receives the matched length at
+   * index 0.
+   */
+  public V longestPrefixMatch(String path, int[] prefixLength) {
+    V best = root.value;
+    int bestLen = 0;
+    Node<V> node = root;
+    int pos = 0;
+    while (pos < path.length()) {
+      Node<V> child = node.child(path.charAt(pos));
+      if (child == null || !path.startsWith(child.label, pos))
+        break;
+      pos += child.label.length();
+      node = child;
+      if (node.value != null && isBoundary(path, pos)) {
+        best = node.value;
+        bestLen = pos;
+      }
+    }
+    if (prefixLength != null)
+      prefixLength[0] = bestLen;
+    return best;
+  }
+
+  /** Exact lookup of {@code prefix}. */
+  public V get(String prefix) {
+    Node<V> node = root;
+    int pos = 0;
+    while (pos < prefix.length()) {
+      node = node.child(prefix.charAt(pos));
+      if (node == null || !prefix.startsWith(node.label, pos))
+        return null;
+      pos += node.label.length();
+    }
+    return node.value;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  private static boolean isBoundary(String path, int pos) {
+    return pos == path.length() || path.charAt(pos) == '/' || path.charAt(pos - 1) == '/';
+  }
+}
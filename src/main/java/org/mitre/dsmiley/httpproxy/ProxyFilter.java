@@ -0,0 +1,102 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Hooks into each proxied request, as an alternative to subclassing {@link ProxyServlet} so that
+ * independent customizations can be combined.  Configure by class names, in order, with the
+ * {@code filters} parameter; each needs a public no-arg constructor.  A filter instance serves all
+ * requests concurrently, so it must be thread-safe; per-request state can go in request
+ * attributes.  Extend {@link Adapter} to implement only some hooks.
+ */
+public interface ProxyFilter {
+
+  /** Called once from {@link ProxyServlet#init()}, e.g. to read config with
+   * {@link ProxyServlet#getFilterConfigParam(String)}. */
+  void init(ProxyServlet servlet) throws ServletException;
+
+  /**
+   * Called once the request to the target is built, before it's sent (or answered from the
+   * cache).  It may be modified.  Return false to not proxy it, having responded to the client.
+   */
+  boolean onRequest(HttpServletRequest servletRequest, HttpServletResponse servletResponse,
+                    HttpRequest proxyRequest) throws IOException;
+
+  /** Called when the target's response headers arrive, before they're copied to the client.  The
+   * response may be modified. */
+  void onResponseHeaders(HttpServletRequest servletRequest, HttpResponse proxyResponse) throws IOException;
+
+  /**
+   * Returns a stream that the response body will be written to, writing on to {@code out}, or
+   * {@code out} itself to leave the body be.  Each chunk of the body is written to it as it's
+   * read from the target.  It's closed at the end of the body, without closing the client's
+   * stream.  A filter that changes the body's length should remove the Content-Length header in
+   * {@link #onResponseHeaders(HttpServletRequest, HttpResponse)}.
+   */
+  OutputStream wrapResponseBody(HttpServletRequest servletRequest, HttpResponse proxyResponse,
+                                OutputStream out) throws IOException;
+
+  /**
+   * Called when the request is done, even if it failed or a filter stopped it.
+   * @param proxyResponse null if there was no response
+   * @param error null on success
+   */
+  void onComplete(HttpServletRequest servletRequest, HttpResponse proxyResponse, Throwable error);
+
+  /** Called from {@link ProxyServlet#destroy()}. */
+  void destroy();
+
+  /** A filter that does nothing, to extend. */
+  class Adapter implements ProxyFilter {
+    @Override
+    public void init(ProxyServlet servlet) throws ServletException {
+    }
+
+    @Override
+    public boolean onRequest(HttpServletRequest servletRequest, HttpServletResponse servletResponse,
+                             HttpRequest proxyRequest) throws IOException {
+      return true;
+    }
+
+    @Override
+    public void onResponseHeaders(HttpServletRequest servletRequest, HttpResponse proxyResponse) throws IOException {
+    }
+
+    @Override
+    public OutputStream wrapResponseBody(HttpServletRequest servletRequest, HttpResponse proxyResponse,
+                                         OutputStream out) throws IOException {
+      return out;
+    }
+
+    @Override
+    public void onComplete(HttpServletRequest servletRequest, HttpResponse proxyResponse, Throwable error) {
+    }
+
+    @Override
+    public void destroy() {
+    }
+  }
+}
@@ -28,32 +28,67 @@ import org.apache.http.client.methods.AbortableHttpRequest;
 import org.apache.http.client.params.ClientPNames;
 import org.apache.http.client.params.CookiePolicy;
 import org.apache.http.client.utils.URIUtils;
-import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.AbstractHttpClient;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.message.BasicHeader;
 import org.apache.http.message.BasicHttpEntityEnclosingRequest;
 import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
 import org.apache.http.message.HeaderGroup;
 import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.CoreConnectionPNames;
 import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
 
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
 import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.reflect.Constructor;
 import java.net.HttpCookie;
 import java.net.URI;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.Provider;
+import java.security.Security;
+import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.Enumeration;
 import java.util.Formatter;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * An HTTP reverse proxy/gateway servlet. It is designed to be extended for customization
@@ -80,19 +115,255 @@ public class ProxyServlet extends HttpServlet {
   /** A boolean parameter name to enable forwarding of the client IP  */
   public static final String P_FORWARDEDFOR = "forwardip";
 
+  /** The parameter name for a comma separated list of the forwarded headers to send the target:
+   * X-Forwarded-For, X-Forwarded-Proto, X-Forwarded-Host, X-Forwarded-Port and Forwarded, or none.
+   * Defaults to X-Forwarded-For if {@link #P_FORWARDEDFOR}. */
+  public static final String P_FORWARDED_HEADERS = "forwardedHeaders";
+
+  /** The parameter name for the addresses of proxies in front of this one, in CIDR notation, e.g.
+   * "10.0.0.0/8, ::1".  Forwarded headers are only believed and passed on when they come from one;
+   * others are replaced. */
+  public static final String P_TRUSTED_PROXIES = "trustedProxies";
+
+  /** An integer parameter name for the maximum number of pooled connections across all targets. */
+  public static final String P_MAX_CONNECTIONS = "maxConnections";
+
+  /** An integer parameter name for the maximum number of pooled connections to any one target host. */
+  public static final String P_MAX_CONNECTIONS_PER_ROUTE = "maxConnectionsPerRoute";
+
+  /** An integer parameter name for how many milliseconds a pooled connection may be idle before
+   * it's closed in the background, which is also how long it's kept alive if the target doesn't
+   * send a Keep-Alive timeout. Defaults to 30000. See {@link ConnectionMonitor}. */
+  public static final String P_CONNECTION_MAX_IDLE = "connectionMaxIdle";
+
+  /** The parameter name for request classes that share in-flight requests to the target by
+   * weighted fair queuing; see {@link RequestClassifier} for the format and {@link FairQueue}. */
+  public static final String P_REQUEST_CLASSES = "requestClasses";
+
+  /** An integer parameter name for how many requests to the target the request classes share.
+   * Defaults to {@link #P_MAX_CONNECTIONS}, or 20. */
+  public static final String P_MAX_IN_FLIGHT = "maxInFlight";
+
+  /** An integer parameter name for how many milliseconds a request waits for its turn before it's
+   * answered with a 503. Defaults to 30000. */
+  public static final String P_QUEUE_TIMEOUT = "queueTimeout";
+
+  /** An integer parameter name for how many milliseconds {@link #destroy()} waits for in-flight
+   * requests to complete before closing the client. */
+  public static final String P_DRAIN_TIMEOUT = "drainTimeout";
+
+  /** The parameter name for a path (relative to the servlet, e.g. "/ready") answered by the servlet
+   * itself, not proxied: 200 when ready to serve, 503 once draining. For readiness probes. */
+  public static final String P_READY_PATH = "readyPath";
+
+  /** An integer parameter name for how many connections to each target to open in the background
+   * after init, so early requests don't pay for handshakes; at most the pool's per-route max (see
+   * {@link #P_MAX_CONNECTIONS_PER_ROUTE}). Until done, the servlet isn't ready. */
+  public static final String P_WARMUP_CONNECTIONS = "warmupConnections";
+
+  /** The parameter name for a path (e.g. "/health") to GET over each warm-up connection instead of
+   * just opening it. */
+  public static final String P_WARMUP_PROBE_PATH = "warmupProbePath";
+
+  /* Upstream TLS. Unless at least one of these is set, the JVM's default SSL settings are used. */
+
+  /** Comma separated TLS protocols to enable for HTTPS targets, e.g. "TLSv1.2". */
+  public static final String P_SSL_PROTOCOLS = "sslProtocols";
+  /** Comma separated cipher suites to enable for HTTPS targets. */
+  public static final String P_SSL_CIPHER_SUITES = "sslCipherSuites";
+  /** An integer parameter name for the number of TLS sessions to cache for resumption; 0 is unlimited. */
+  public static final String P_SSL_SESSION_CACHE_SIZE = "sslSessionCacheSize";
+  /** An integer parameter name for how many seconds a cached TLS session may be resumed; 0 is unlimited. */
+  public static final String P_SSL_SESSION_TIMEOUT = "sslSessionTimeout";
+  /** A keystore file of trusted certificates for HTTPS targets; see also the Password and Type params. */
+  public static final String P_SSL_TRUST_STORE = "sslTrustStore";
+  public static final String P_SSL_TRUST_STORE_PASSWORD = "sslTrustStorePassword";
+  public static final String P_SSL_TRUST_STORE_TYPE = "sslTrustStoreType";
+  /** A keystore file with a client certificate for HTTPS targets; see also the Password and Type params. */
+  public static final String P_SSL_KEY_STORE = "sslKeyStore";
+  public static final String P_SSL_KEY_STORE_PASSWORD = "sslKeyStorePassword";
+  public static final String P_SSL_KEY_STORE_TYPE = "sslKeyStoreType";
+  /** The name of a JCA security provider for TLS, e.g. "Conscrypt" (used if present on the classpath). */
+  public static final String P_SSL_PROVIDER = "sslProvider";
+
+  /** The parameter name for the class name of a {@link TraceExporter}. Setting it enables tracing:
+   * W3C traceparent propagation to the target and per-phase timings of sampled requests. */
+  public static final String P_TRACE_EXPORTER = "traceExporter";
+
+  /** A float parameter name for the fraction (0 - 1) of requests to trace, besides those the caller
+   * sampled if {@link #P_TRACE_PARENT_SAMPLED} allows. Defaults to 1. */
+  public static final String P_TRACE_SAMPLE_RATE = "traceSampleRate";
+
+  /** The parameter name for when to trace requests whose traceparent says the caller sampled them,
+   * whatever {@link #P_TRACE_SAMPLE_RATE}: "always", "trusted" (the default; when they come from
+   * one of the {@link #P_TRUSTED_PROXIES}) or "never". */
+  public static final String P_TRACE_PARENT_SAMPLED = "traceParentSampled";
+
+  /** The parameter name for a file to append an access log of proxied requests to. It's written in
+   * the background; see {@link AccessLog}. */
+  public static final String P_ACCESS_LOG = "accessLog";
+
+  /** The parameter name for the access log's format; see {@link AccessLog}. */
+  public static final String P_ACCESS_LOG_FORMAT = "accessLogFormat";
+
+  /** A float parameter name for the fraction (0 - 1) of requests to access log. Defaults to 1. */
+  public static final String P_ACCESS_LOG_SAMPLE_RATE = "accessLogSampleRate";
+
+  /** An integer parameter name for how many access log entries may be queued before they are
+   * dropped. Defaults to 8192. */
+  public static final String P_ACCESS_LOG_BUFFER_SIZE = "accessLogBufferSize";
+
+  /** The parameter name for a directory to cache cacheable responses in. Setting it enables the
+   * cache; see {@link DiskResponseCache}. */
+  public static final String P_CACHE_DIR = "cacheDir";
+
+  /** A long parameter name for the most bytes the cache may take on disk. Defaults to 1GB. */
+  public static final String P_CACHE_MAX_BYTES = "cacheMaxBytes";
+
+  /** A long parameter name for the size of each cache segment file, which is also the largest
+   * response body cached. Defaults to 64MB. */
+  public static final String P_CACHE_SEGMENT_BYTES = "cacheSegmentBytes";
+
+  /** An integer parameter name for how long, in milliseconds, a Range request waits for another
+   * request's fetch of the full response to be cached rather than going to the target. Defaults
+   * to 10000. */
+  public static final String P_CACHE_FILL_WAIT = "cacheFillWait";
+
+  /** The parameter name for the {@link ProxyTransport} that sends requests to the target:
+   * "httpclient4" (the default), "jdk", "httpclient5", or a class name. Pipelining, warm-up,
+   * keep-alive handling, connection and TLS handshake metrics, and traced connect and first-byte
+   * phases need the default; "jdk" also can't take a route's connect timeout. */
+  public static final String P_TRANSPORT = "transport";
+
+  /** A boolean parameter name to send the response's status and headers to the client as soon as
+   * they arrive from the target, instead of when the container's output buffer first fills; for
+   * targets that are slow to stream the body. */
+  public static final String P_FLUSH_HEADERS = "flushHeaders";
+
+  /** An integer parameter name for the servlet response's buffer size in bytes. Defaults to the
+   * container's. */
+  public static final String P_RESPONSE_BUFFER_SIZE = "responseBufferSize";
+
+  /** A boolean parameter name to merge list-valued response headers into one line each and
+   * translate {@code Set-Cookie} by rewriting its text; see {@link HeaderCoalescer}. */
+  public static final String P_COALESCE_HEADERS = "coalesceHeaders";
+
+  /** A boolean parameter name to proxy requests on virtual threads (Java 21+), with the container
+   * thread released through Servlet 3.0 async; the servlet must be declared async-supported.
+   * Without either, requests are proxied on the container's thread as usual. */
+  public static final String P_VIRTUAL_THREADS = "virtualThreads";
+
+  /** A boolean parameter name to pipeline concurrent small GETs to a target over one connection;
+   * only for targets that support HTTP/1.1 pipelining. See {@link RequestPipeliner}. */
+  public static final String P_PIPELINING = "pipelining";
+
+  /** An integer parameter name for how many milliseconds a pipeline waits for requests to join it
+   * while others are in flight. Defaults to 2. */
+  public static final String P_PIPELINE_WINDOW = "pipelineWindow";
+
+  /** An integer parameter name for the most requests in a pipeline. Defaults to 8. */
+  public static final String P_PIPELINE_MAX_REQUESTS = "pipelineMaxRequests";
+
+  /** An integer parameter name for the largest response body, in bytes, read through a pipeline;
+   * requests behind a larger one are sent alone. Defaults to 65536. */
+  public static final String P_PIPELINE_MAX_BODY = "pipelineMaxBody";
+
+  /** An integer parameter name for how many milliseconds a request waits for its pipeline to answer
+   * before it's sent alone.  Also bounds leasing the pipeline's connection unless
+   * {@code http.conn-manager.timeout} is set.  Defaults to 5000. */
+  public static final String P_PIPELINE_TIMEOUT = "pipelineTimeout";
+
+  /** A long parameter name for the most bytes held in memory for buffering bodies, across all
+   * requests; see {@link MemoryBudget}. Defaults to a quarter of the max heap. */
+  public static final String P_MEMORY_BUDGET = "memoryBudget";
+
+  /** A long parameter name for the most bytes of pooled heap buffers kept for reuse. Defaults to
+   * 4MB. */
+  public static final String P_BUFFER_POOL_HEAP = "bufferPoolHeap";
+
+  /** A long parameter name for the most bytes of direct buffers allocated. Defaults to 4MB. */
+  public static final String P_BUFFER_POOL_DIRECT = "bufferPoolDirect";
+
+  /** A long parameter name for the most bytes of a {@link BodyBuffer} kept in memory before it
+   * spills to a temp file. Defaults to 1MB. */
+  public static final String P_MAX_BUFFERED_BODY = "maxBufferedBody";
+
+  /** The parameter name for a comma-separated list of the target URIs of other replicas of
+   * {@link #P_TARGET_URI}. Requests are then spread over them all by latency; see
+   * {@link ReplicaBalancer}. */
+  public static final String P_TARGET_REPLICAS = "targetReplicas";
+
+  /** An integer parameter name for the time constant, in milliseconds, of the replicas' latency
+   * averages; roughly how soon traffic shifts away from a replica that slows down. Defaults to
+   * 10000. */
+  public static final String P_LATENCY_DECAY = "latencyDecay";
+
+  /** The parameter name for a comma-separated list of {@link ProxyFilter} class names, in the
+   * order they're called. */
+  public static final String P_FILTERS = "filters";
+
   /** The parameter name for the target (destination) URI to proxy to. */
   protected static final String P_TARGET_URI = "targetUri";
   protected static final String ATTR_TARGET_URI =
           ProxyServlet.class.getSimpleName() + ".targetUri";
   protected static final String ATTR_TARGET_HOST =
           ProxyServlet.class.getSimpleName() + ".targetHost";
+  protected static final String ATTR_TRACE =
+          ProxyServlet.class.getSimpleName() + ".trace";
+  private static final String ATTR_MEMORY_RESERVATION =
+          ProxyServlet.class.getSimpleName() + ".memoryReservation";
 
   /* MISC */
 
   protected boolean doLog = false;
   protected boolean doForwardIP = true;
+  /** A bit set of {@link ForwardedHeaders} constants. */
+  protected int forwardedHeaders;
+  private CidrSet trustedProxies = CidrSet.EMPTY;
   /** User agents shouldn't send the url fragment but what if it does? */
   protected boolean doSendUrlFragment = true;
+  protected int drainTimeout = 10000;
+  protected String readyPath;
+  /** Null unless tracing. */
+  protected TraceExporter traceExporter;
+  protected double traceSampleRate = 1.0;
+  /** See {@link #P_TRACE_PARENT_SAMPLED}. */
+  protected String traceParentSampled = "trusted";
+  /** Null unless access logging. */
+  protected AccessLog accessLog;
+  /** Null unless caching. */
+  protected DiskResponseCache responseCache;
+  protected int cacheFillWait = 10000;
+  protected boolean flushHeaders = false;
+  protected boolean doCoalesceHeaders = false;
+  /** Or -1 for the container's default. */
+  protected int responseBufferSize = -1;
+  private final TtfbMetrics ttfbMetrics = new TtfbMetrics();
+  /** Null unless there are {@link #P_TARGET_REPLICAS}. */
+  private ReplicaBalancer replicaBalancer;
+
+  private MemoryBudget memoryBudget;
+  private BufferPool bufferPool;
+  private long maxBufferedBody = 1 << 20;
+  /** Null unless there are request classes. */
+  private FairQueue fairQueue;
+  private RequestClassifier requestClassifier;
+  private long queueTimeout = 30000;
+  private ExecutorService revalidationExecutor;
+  private ConnectionMonitor connectionMonitor;
+  private RequestPipeliner pipeliner;
+  private ScheduledExecutorService connectionEvictor;
+  private ConnectionWarmer connectionWarmer;
+  private Thread warmupThread;
+  private final AtomicInteger inFlightRequests = new AtomicInteger();
+  private volatile boolean draining;
+  //a j.u.c. lock rather than a monitor so that waiting doesn't pin a virtual thread's carrier
+  private final ReentrantLock drainLock = new ReentrantLock();
+  private final Condition drained = drainLock.newCondition();
+  private VirtualThreadDispatcher virtualThreads;
+  private static final ProxyFilter[] NO_FILTERS = new ProxyFilter[0];
+  /** Composed once at init; iterating an empty array is all it costs when there are none. */
+  private ProxyFilter[] filters = NO_FILTERS;
 
   //These next 3 are cached here, and should only be referred to in initialization logic. See the
   // ATTR_* parameters.
@@ -101,7 +372,14 @@ public class ProxyServlet extends HttpServlet {
   protected URI targetUriObj;//new URI(targetUri)
   protected HttpHost targetHost;//URIUtils.extractHost(targetUriObj);
 
+  private ProxyTransport transport;
+  /** Null unless the transport is {@link HttpClientTransport}. */
   private HttpClient proxyClient;
+  private UpstreamSslSocketFactory sslSocketFactory;
+  /** By target URI; there's one per servlet unless it routes to several. */
+  private final ConcurrentHashMap<String, TargetUrlMatcher> targetUrlMatchers =
+      new ConcurrentHashMap<String, TargetUrlMatcher>();
+  private static final int MAX_TARGET_URL_MATCHERS = 1024;//e.g. if URI templates make many
 
   @Override
   public String getServletInfo() {
@@ -136,13 +414,218 @@ public class ProxyServlet extends HttpServlet {
     if (doForwardIPString != null) {
         this.doForwardIP = Boolean.parseBoolean(doForwardIPString);
     }
+    String forwardedHeadersString = getConfigParam(P_FORWARDED_HEADERS);
+    String trustedProxiesString = getConfigParam(P_TRUSTED_PROXIES);
+    try {
+      forwardedHeaders = forwardedHeadersString != null ? ForwardedHeaders.parse(forwardedHeadersString)
+          : doForwardIP ? ForwardedHeaders.FOR : 0;
+      if (trustedProxiesString != null)
+        trustedProxies = CidrSet.parse(trustedProxiesString);
+    } catch (IllegalArgumentException e) {
+      throw new ServletException(e.getMessage(), e);
+    }
+
+    String drainTimeoutString = getConfigParam(P_DRAIN_TIMEOUT);
+    if (drainTimeoutString != null) {
+      this.drainTimeout = Integer.parseInt(drainTimeoutString);
+    }
+
+    readyPath = getConfigParam(P_READY_PATH);
+
+    flushHeaders = Boolean.parseBoolean(getConfigParam(P_FLUSH_HEADERS));
+    doCoalesceHeaders = Boolean.parseBoolean(getConfigParam(P_COALESCE_HEADERS));
+    String responseBufferSizeString = getConfigParam(P_RESPONSE_BUFFER_SIZE);
+    if (responseBufferSizeString != null)
+      responseBufferSize = Integer.parseInt(responseBufferSizeString);
+
+    String memoryBudgetString = getConfigParam(P_MEMORY_BUDGET);
+    memoryBudget = new MemoryBudget(memoryBudgetString != null ? Long.parseLong(memoryBudgetString)
+        : Runtime.getRuntime().maxMemory() / 4);
+    String poolHeapString = getConfigParam(P_BUFFER_POOL_HEAP);
+    String poolDirectString = getConfigParam(P_BUFFER_POOL_DIRECT);
+    bufferPool = new BufferPool(BufferPool.DEFAULT_BUFFER_SIZE,
+        poolHeapString != null ? Long.parseLong(poolHeapString) : 4L << 20,
+        poolDirectString != null ? Long.parseLong(poolDirectString) : 4L << 20);
+    String maxBufferedBodyString = getConfigParam(P_MAX_BUFFERED_BODY);
+    if (maxBufferedBodyString != null)
+      maxBufferedBody = Long.parseLong(maxBufferedBodyString);
+
+    String traceExporterString = getConfigParam(P_TRACE_EXPORTER);
+    if (traceExporterString != null) {
+      try {
+        this.traceExporter = (TraceExporter) Class.forName(traceExporterString).newInstance();
+      } catch (Exception e) {
+        throw new ServletException("Trying to create "+P_TRACE_EXPORTER+": "+e, e);
+      }
+      String sampleRateString = getConfigParam(P_TRACE_SAMPLE_RATE);
+      if (sampleRateString != null)
+        this.traceSampleRate = Double.parseDouble(sampleRateString);
+      String parentSampledString = getConfigParam(P_TRACE_PARENT_SAMPLED);
+      if (parentSampledString != null) {
+        if (!parentSampledString.equals("always") && !parentSampledString.equals("trusted")
+            && !parentSampledString.equals("never"))
+          throw new ServletException(P_TRACE_PARENT_SAMPLED+" must be always, trusted or never: "+parentSampledString);
+        this.traceParentSampled = parentSampledString;
+      }
+    }
+
+    String accessLogFile = getConfigParam(P_ACCESS_LOG);
+    if (accessLogFile != null) {
+      String format = getConfigParam(P_ACCESS_LOG_FORMAT);
+      String sampleRate = getConfigParam(P_ACCESS_LOG_SAMPLE_RATE);
+      String bufferSize = getConfigParam(P_ACCESS_LOG_BUFFER_SIZE);
+      try {
+        accessLog = AccessLog.open(accessLogFile, format != null ? format : AccessLog.DEFAULT_FORMAT,
+            sampleRate != null ? Double.parseDouble(sampleRate) : 1.0,
+            bufferSize != null ? Integer.parseInt(bufferSize) : 8192);
+      } catch (IOException e) {
+        throw new ServletException("Trying to open "+P_ACCESS_LOG+": "+e, e);
+      }
+    }
+
+    String cacheDir = getConfigParam(P_CACHE_DIR);
+    if (cacheDir != null) {
+      String maxBytes = getConfigParam(P_CACHE_MAX_BYTES);
+      String segmentBytes = getConfigParam(P_CACHE_SEGMENT_BYTES);
+      try {
+        responseCache = new DiskResponseCache(new File(cacheDir),
+            maxBytes != null ? Long.parseLong(maxBytes) : 1L << 30,
+            segmentBytes != null ? Long.parseLong(segmentBytes) : 64L << 20);
+      } catch (IOException e) {
+        throw new ServletException("Trying to open "+P_CACHE_DIR+": "+e, e);
+      }
+      String fillWait = getConfigParam(P_CACHE_FILL_WAIT);
+      if (fillWait != null)
+        cacheFillWait = Integer.parseInt(fillWait);
+      revalidationExecutor = new ThreadPoolExecutor(2, 2, 0, TimeUnit.MILLISECONDS,
+          new LinkedBlockingQueue<Runnable>(256), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "ProxyServlet revalidation " + getServletName());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+
+    String requestClasses = getConfigParam(P_REQUEST_CLASSES);
+    if (requestClasses != null) {
+      String maxInFlight = getConfigParam(P_MAX_IN_FLIGHT);
+      if (maxInFlight == null)
+        maxInFlight = getConfigParam(P_MAX_CONNECTIONS);
+      fairQueue = new FairQueue(maxInFlight != null ? Integer.parseInt(maxInFlight) : 20);
+      try {
+        requestClassifier = RequestClassifier.parse(requestClasses, fairQueue);
+      } catch (IllegalArgumentException e) {
+        throw new ServletException("Trying to parse "+P_REQUEST_CLASSES+": "+e.getMessage(), e);
+      }
+      String queueTimeoutString = getConfigParam(P_QUEUE_TIMEOUT);
+      if (queueTimeoutString != null)
+        queueTimeout = Long.parseLong(queueTimeoutString);
+    }
+
+    if (Boolean.parseBoolean(getConfigParam(P_VIRTUAL_THREADS))) {
+      try {
+        virtualThreads = VirtualThreadDispatcher.create();
+      } catch (UnsupportedOperationException e) {
+        log("Not using virtual threads: " + e.getMessage());
+      }
+    }
 
     initTarget();//sets target*
 
-    HttpParams hcParams = new BasicHttpParams();
-    hcParams.setParameter(ClientPNames.COOKIE_POLICY, CookiePolicy.IGNORE_COOKIES);
-    readConfigParam(hcParams, ClientPNames.HANDLE_REDIRECTS, Boolean.class);
-    proxyClient = createHttpClient(hcParams);
+    String replicasString = getConfigParam(P_TARGET_REPLICAS);
+    if (replicasString != null && !replicasString.trim().isEmpty()) {
+      List<String> replicaUris = new ArrayList<String>();
+      replicaUris.add(targetUri);
+      for (String replicaUri : replicasString.split(",")) {
+        if (!replicaUri.trim().isEmpty())
+          replicaUris.add(replicaUri.trim());
+      }
+      String latencyDecayString = getConfigParam(P_LATENCY_DECAY);
+      try {
+        replicaBalancer = new ReplicaBalancer(replicaUris,
+            latencyDecayString != null ? Long.parseLong(latencyDecayString) : 10000,
+            ReplicaBalancer.DEFAULT_INITIAL_LATENCY_MS);
+      } catch (IllegalArgumentException e) {
+        throw new ServletException("Trying to process "+P_TARGET_REPLICAS+": "+e, e);
+      }
+    }
+
+    transport = createTransport(getConfigParam(P_TRANSPORT));
+
+    if (Boolean.parseBoolean(getConfigParam(P_PIPELINING))) {
+      if (proxyClient == null)
+        throw new ServletException(P_PIPELINING+" needs the httpclient4 "+P_TRANSPORT);
+      String window = getConfigParam(P_PIPELINE_WINDOW);
+      String maxRequests = getConfigParam(P_PIPELINE_MAX_REQUESTS);
+      String maxBody = getConfigParam(P_PIPELINE_MAX_BODY);
+      String timeout = getConfigParam(P_PIPELINE_TIMEOUT);
+      pipeliner = new RequestPipeliner(proxyClient, window != null ? Long.parseLong(window) : 2,
+          timeout != null ? Long.parseLong(timeout) : 5000,
+          maxRequests != null ? Integer.parseInt(maxRequests) : 8,
+          maxBody != null ? Integer.parseInt(maxBody) : 65536, memoryBudget);
+    }
+
+    List<ProxyFilter> filterList = createFilters();
+    for (ProxyFilter filter : filterList) {
+      filter.init(this);
+    }
+    filters = filterList.isEmpty() ? NO_FILTERS : filterList.toArray(new ProxyFilter[filterList.size()]);
+
+    String warmupConnections = getConfigParam(P_WARMUP_CONNECTIONS);
+    if (warmupConnections != null && Integer.parseInt(warmupConnections) > 0) {
+      if (proxyClient == null)
+        throw new ServletException(P_WARMUP_CONNECTIONS+" needs the httpclient4 "+P_TRANSPORT);
+      connectionWarmer = new ConnectionWarmer(this, proxyClient, getWarmupTargets(),
+          Integer.parseInt(warmupConnections), getConfigParam(P_WARMUP_PROBE_PATH), 30000);
+      warmupThread = new Thread(connectionWarmer, "ProxyServlet warm-up " + getServletName());
+      warmupThread.setDaemon(true);
+      warmupThread.start();
+    }
+  }
+
+  /** Creates the filters named by {@link #P_FILTERS}; override to add others. They're initialized
+   * after. */
+  protected List<ProxyFilter> createFilters() throws ServletException {
+    List<ProxyFilter> filterList = new ArrayList<ProxyFilter>();
+    String[] classNames = splitConfigParam(P_FILTERS);
+    if (classNames != null) {
+      for (String className : classNames) {
+        if (className.isEmpty())
+          continue;
+        try {
+          filterList.add((ProxyFilter) Class.forName(className).newInstance());
+        } catch (Exception e) {
+          throw new ServletException("Trying to create "+P_FILTERS+" "+className+": "+e, e);
+        }
+      }
+    }
+    return filterList;
+  }
+
+  /** Reads a configuration parameter, for {@link ProxyFilter}s. */
+  public String getFilterConfigParam(String key) {
+    return getConfigParam(key);
+  }
+
+  /** The hosts to open connections to for {@link #P_WARMUP_CONNECTIONS}. */
+  protected List<HttpHost> getWarmupTargets() {
+    List<HttpHost> targets = new ArrayList<HttpHost>();
+    if (replicaBalancer != null) {
+      for (ReplicaBalancer.Replica replica : replicaBalancer.getReplicas()) {
+        if (!targets.contains(replica.getHost()))
+          targets.add(replica.getHost());
+      }
+    } else if (targetHost != null) {
+      targets.add(targetHost);
+    }
+    return targets;
+  }
+
+  /** False while connections are being warmed up. */
+  public boolean isWarmedUp() {
+    return connectionWarmer == null || connectionWarmer.isDone();
   }
 
   protected void initTarget() throws ServletException {
@@ -158,7 +641,66 @@ public class ProxyServlet extends HttpServlet {
     targetHost = URIUtils.extractHost(targetUriObj);
   }
 
-  /** Called from {@link #init(javax.servlet.ServletConfig)}. HttpClient offers many opportunities
+  /**
+   * Creates the {@link ProxyTransport} named by {@link #P_TRANSPORT}; null or "httpclient4" for
+   * {@link HttpClientTransport} on {@link #createHttpClient(HttpParams)}.  If the client of "jdk"
+   * or "httpclient5" isn't available, that's logged and the default is used.  Each is given the
+   * {@code http.connection.timeout} and {@code http.socket.timeout} parameters (milliseconds) and
+   * the ssl* ones.  Override to supply another.
+   */
+  protected ProxyTransport createTransport(String name) throws ServletException {
+    boolean followRedirects = !"false".equalsIgnoreCase(getConfigParam(ClientPNames.HANDLE_REDIRECTS));
+    String connectTimeout = getConfigParam(CoreConnectionPNames.CONNECTION_TIMEOUT);
+    String socketTimeout = getConfigParam(CoreConnectionPNames.SO_TIMEOUT);
+    try {
+      if ("jdk".equals(name)) {
+        return JdkHttpTransport.create(followRedirects, false, createSslContext(),
+            splitConfigParam(P_SSL_PROTOCOLS), splitConfigParam(P_SSL_CIPHER_SUITES),
+            connectTimeout != null ? Integer.parseInt(connectTimeout) : 0,
+            socketTimeout != null ? Integer.parseInt(socketTimeout) : 0);
+      }
+      if ("httpclient5".equals(name)) {
+        String maxTotal = getConfigParam(P_MAX_CONNECTIONS);
+        String maxPerRoute = getConfigParam(P_MAX_CONNECTIONS_PER_ROUTE);
+        return HttpClient5Transport.create(followRedirects, maxTotal != null ? Integer.parseInt(maxTotal) : -1,
+            maxPerRoute != null ? Integer.parseInt(maxPerRoute) : -1, createSslContext(),
+            splitConfigParam(P_SSL_PROTOCOLS), splitConfigParam(P_SSL_CIPHER_SUITES),
+            connectTimeout != null ? Integer.parseInt(connectTimeout) : -1,
+            socketTimeout != null ? Integer.parseInt(socketTimeout) : -1);
+      }
+    } catch (UnsupportedOperationException e) {
+      log("Not using the " + name + " " + P_TRANSPORT + ": " + e.getMessage());
+      name = null;
+    }
+    if (name != null && !name.equals("httpclient4")) {
+      try {
+        return (ProxyTransport) Class.forName(name).newInstance();
+      } catch (Exception e) {
+        throw new ServletException("Trying to create "+P_TRANSPORT+": "+e, e);
+      }
+    }
+    HttpParams hcParams = new BasicHttpParams();
+    hcParams.setParameter(ClientPNames.COOKIE_POLICY, CookiePolicy.IGNORE_COOKIES);
+    readConfigParam(hcParams, ClientPNames.HANDLE_REDIRECTS, Boolean.class);
+    readConfigParam(hcParams, ClientPNames.CONN_MANAGER_TIMEOUT, Long.class);
+    readConfigParam(hcParams, CoreConnectionPNames.CONNECTION_TIMEOUT, Integer.class);
+    readConfigParam(hcParams, CoreConnectionPNames.SO_TIMEOUT, Integer.class);
+    proxyClient = createHttpClient(hcParams);
+    configureConnectionPool(proxyClient);
+    configureConnectionReuse(proxyClient);
+    configureSsl(proxyClient);
+    if (traceExporter != null) {
+      if (proxyClient instanceof AbstractHttpClient) {
+        ((AbstractHttpClient) proxyClient).addRequestInterceptor(ProxyTrace.CONNECTED_INTERCEPTOR);
+        ((AbstractHttpClient) proxyClient).addResponseInterceptor(ProxyTrace.FIRST_BYTE_INTERCEPTOR);
+      } else {
+        log("Can't add interceptors to " + proxyClient.getClass() + "; traced phases will be coarser");
+      }
+    }
+    return new HttpClientTransport(proxyClient);
+  }
+
+  /** Called from {@link #createTransport(String)}. HttpClient offers many opportunities
    * for customization. By default,
    * <a href="http://hc.apache.org/httpcomponents-client-ga/httpclient/apidocs/org/apache/http/impl/client/SystemDefaultHttpClient.html">
    *   SystemDefaultHttpClient</a> is used if available, otherwise it falls
@@ -183,12 +725,250 @@ public class ProxyServlet extends HttpServlet {
     return new DefaultHttpClient(new ThreadSafeClientConnManager(), hcParams);
   }
 
-  /** The http client used.
+  /** Sizes the client's connection pool from {@link #P_MAX_CONNECTIONS} and
+   * {@link #P_MAX_CONNECTIONS_PER_ROUTE} if set. Reflection is used because the pooling connection
+   * managers of HttpComponents v4.1 and v4.2+ share these setters but no common interface. */
+  protected void configureConnectionPool(HttpClient client) {
+    Object connManager = client.getConnectionManager();
+    String maxTotal = getConfigParam(P_MAX_CONNECTIONS);
+    String maxPerRoute = getConfigParam(P_MAX_CONNECTIONS_PER_ROUTE);
+    try {
+      if (maxTotal != null) {
+        connManager.getClass().getMethod("setMaxTotal", int.class)
+            .invoke(connManager, Integer.parseInt(maxTotal));
+      }
+      if (maxPerRoute != null) {
+        connManager.getClass().getMethod("setDefaultMaxPerRoute", int.class)
+            .invoke(connManager, Integer.parseInt(maxPerRoute));
+      }
+    } catch (NoSuchMethodException e) {
+      log("Connection manager " + connManager.getClass() + " isn't a pool that can be sized; ignoring "
+          + P_MAX_CONNECTIONS + " and " + P_MAX_CONNECTIONS_PER_ROUTE);
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /** Adds a {@link ConnectionMonitor} to the client, for keep-alive handling and reuse metrics,
+   * and schedules it to evict expired and idle connections per {@link #P_CONNECTION_MAX_IDLE}. */
+  protected void configureConnectionReuse(HttpClient client) {
+    String maxIdleString = getConfigParam(P_CONNECTION_MAX_IDLE);
+    long maxIdle = maxIdleString != null ? Long.parseLong(maxIdleString) : 30000;
+    connectionMonitor = new ConnectionMonitor(client.getConnectionManager(), maxIdle);
+    if (client instanceof AbstractHttpClient) {
+      ((AbstractHttpClient) client).setKeepAliveStrategy(connectionMonitor);
+      ((AbstractHttpClient) client).addRequestInterceptor(connectionMonitor);
+      ((AbstractHttpClient) client).addResponseInterceptor(connectionMonitor);
+    } else {
+      log("Can't configure keep-alive of " + client.getClass() + "; relying on eviction alone");
+    }
+    connectionEvictor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "ProxyServlet connection evictor " + getServletName());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    long period = Math.max(100, Math.min(maxIdle / 2, 5000));
+    connectionEvictor.scheduleWithFixedDelay(connectionMonitor, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  /** The limit on memory held for buffering; see {@link #getMemoryReservation(HttpServletRequest)}. */
+  public MemoryBudget getMemoryBudget() {
+    return memoryBudget;
+  }
+
+  /** The shared pool of I/O buffers. */
+  public BufferPool getBufferPool() {
+    return bufferPool;
+  }
+
+  /** This request's share of the {@link #getMemoryBudget() memory budget}, for anything that
+   * buffers on its behalf.  Whatever it still holds is returned when the request completes. */
+  public MemoryBudget.Reservation getMemoryReservation(HttpServletRequest servletRequest) {
+    MemoryBudget.Reservation reservation =
+        (MemoryBudget.Reservation) servletRequest.getAttribute(ATTR_MEMORY_RESERVATION);
+    if (reservation == null) {
+      reservation = memoryBudget.newReservation();
+      servletRequest.setAttribute(ATTR_MEMORY_RESERVATION, reservation);
+    }
+    return reservation;
+  }
+
+  /** A buffer for a whole body, held in memory under this request's reservation up to
+   * {@link #P_MAX_BUFFERED_BODY} and spilled to the container's temp dir past that.  The caller
+   * must close it. */
+  public BodyBuffer newBodyBuffer(HttpServletRequest servletRequest) {
+    Object tempDir = getServletContext().getAttribute("javax.servlet.context.tempdir");
+    return new BodyBuffer(getMemoryReservation(servletRequest), bufferPool, maxBufferedBody,
+        tempDir instanceof File ? (File) tempDir : null);
+  }
+
+  /** The request classes and their metrics, or null unless {@link #P_REQUEST_CLASSES}. */
+  public FairQueue getFairQueue() {
+    return fairQueue;
+  }
+
+  /** The {@link FairQueue} class of this request; by default by the {@link #P_REQUEST_CLASSES}
+   * rules. */
+  protected FairQueue.RequestClass classifyRequest(HttpServletRequest servletRequest) {
+    return requestClassifier.classify(servletRequest, getServletName());
+  }
+
+  /** Whether to send the status and headers as soon as they arrive; see {@link #P_FLUSH_HEADERS}. */
+  protected boolean isFlushHeaders(HttpServletRequest servletRequest) {
+    return flushHeaders;
+  }
+
+  /** The servlet response's buffer size for this request, or -1 for the container's; see
+   * {@link #P_RESPONSE_BUFFER_SIZE}. */
+  protected int getResponseBufferSize(HttpServletRequest servletRequest) {
+    return responseBufferSize;
+  }
+
+  /** Client and upstream time-to-first-byte metrics. */
+  public TtfbMetrics getTtfbMetrics() {
+    return ttfbMetrics;
+  }
+
+  /** The replicas with their latencies, or null unless {@link #P_TARGET_REPLICAS}. */
+  public ReplicaBalancer getReplicaBalancer() {
+    return replicaBalancer;
+  }
+
+  /** Pipelining metrics, or null unless {@link #P_PIPELINING}. */
+  public RequestPipeliner getRequestPipeliner() {
+    return pipeliner;
+  }
+
+  /** Keep-alive handling and connection reuse metrics of the client, or null unless the transport
+   * is {@link HttpClientTransport}. */
+  public ConnectionMonitor getConnectionMonitor() {
+    return connectionMonitor;
+  }
+
+  /** If {@link #createSslContext()} returns a context, registers an {@link UpstreamSslSocketFactory}
+   * using it for the https scheme. */
+  @SuppressWarnings("deprecation")
+  protected void configureSsl(HttpClient client) throws ServletException {
+    SSLContext sslContext = createSslContext();
+    if (sslContext == null)
+      return;
+    sslSocketFactory = new UpstreamSslSocketFactory(sslContext,
+        splitConfigParam(P_SSL_PROTOCOLS), splitConfigParam(P_SSL_CIPHER_SUITES));
+    client.getConnectionManager().getSchemeRegistry().register(
+        new Scheme("https", 443, sslSocketFactory));
+  }
+
+  /** Builds the SSLContext for HTTPS targets from the ssl* parameters, or returns null if none are
+   * set. Sessions are cached in the context and so are shared across the whole pool. */
+  protected SSLContext createSslContext() throws ServletException {
+    String[] sslParams = {P_SSL_PROTOCOLS, P_SSL_CIPHER_SUITES, P_SSL_SESSION_CACHE_SIZE,
+        P_SSL_SESSION_TIMEOUT, P_SSL_TRUST_STORE, P_SSL_KEY_STORE, P_SSL_PROVIDER};
+    boolean configured = false;
+    for (String sslParam : sslParams) {
+      configured |= getConfigParam(sslParam) != null;
+    }
+    if (!configured)
+      return null;
+    try {
+      KeyManager[] keyManagers = null;
+      String keyStoreFile = getConfigParam(P_SSL_KEY_STORE);
+      if (keyStoreFile != null) {
+        String password = getConfigParam(P_SSL_KEY_STORE_PASSWORD);
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(loadKeyStore(keyStoreFile, password, getConfigParam(P_SSL_KEY_STORE_TYPE)),
+            password == null ? null : password.toCharArray());
+        keyManagers = kmf.getKeyManagers();
+      }
+      TrustManager[] trustManagers = null;
+      String trustStoreFile = getConfigParam(P_SSL_TRUST_STORE);
+      if (trustStoreFile != null) {
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(loadKeyStore(trustStoreFile, getConfigParam(P_SSL_TRUST_STORE_PASSWORD),
+            getConfigParam(P_SSL_TRUST_STORE_TYPE)));
+        trustManagers = tmf.getTrustManagers();
+      }
+
+      Provider provider = findSslProvider(getConfigParam(P_SSL_PROVIDER));
+      SSLContext sslContext = provider != null ? SSLContext.getInstance("TLS", provider)
+          : SSLContext.getInstance("TLS");
+      sslContext.init(keyManagers, trustManagers, null);
+
+      String cacheSize = getConfigParam(P_SSL_SESSION_CACHE_SIZE);
+      if (cacheSize != null)
+        sslContext.getClientSessionContext().setSessionCacheSize(Integer.parseInt(cacheSize));
+      String sessionTimeout = getConfigParam(P_SSL_SESSION_TIMEOUT);
+      if (sessionTimeout != null)
+        sslContext.getClientSessionContext().setSessionTimeout(Integer.parseInt(sessionTimeout));
+      return sslContext;
+    } catch (GeneralSecurityException e) {
+      throw new ServletException("Trying to configure upstream TLS: "+e, e);
+    } catch (IOException e) {
+      throw new ServletException("Trying to configure upstream TLS: "+e, e);
+    }
+  }
+
+  /** Finds an installed provider by name; failing that, "Conscrypt" is created if it's on the
+   * classpath. Returns null, falling back on the default, if {@code name} is null or not found. */
+  private Provider findSslProvider(String name) {
+    if (name == null)
+      return null;
+    Provider provider = Security.getProvider(name);
+    if (provider == null && name.equalsIgnoreCase("Conscrypt")) {
+      try {
+        provider = (Provider) Class.forName("org.conscrypt.Conscrypt").getMethod("newProvider").invoke(null);
+      } catch (Exception e) {
+        //not on the classpath
+      }
+    }
+    if (provider == null)
+      log("TLS provider " + name + " isn't available; using the default");
+    return provider;
+  }
+
+  private static KeyStore loadKeyStore(String file, String password, String type)
+      throws GeneralSecurityException, IOException {
+    KeyStore keyStore = KeyStore.getInstance(type != null ? type : KeyStore.getDefaultType());
+    InputStream in = new FileInputStream(file);
+    try {
+      keyStore.load(in, password == null ? null : password.toCharArray());
+    } finally {
+      in.close();
+    }
+    return keyStore;
+  }
+
+  /** Reads a comma separated parameter; null if not set. */
+  protected String[] splitConfigParam(String key) {
+    String value = getConfigParam(key);
+    if (value == null)
+      return null;
+    String[] values = value.split(",");
+    for (int i = 0; i < values.length; i++) {
+      values[i] = values[i].trim();
+    }
+    return values;
+  }
+
+  /** The socket factory for HTTPS targets, with handshake metrics, or null if the ssl* parameters
+   * weren't used. */
+  public UpstreamSslSocketFactory getUpstreamSslSocketFactory() {
+    return sslSocketFactory;
+  }
+
+  /** The http client used, or null if the transport isn't {@link HttpClientTransport}.
    * @see #createHttpClient(HttpParams) */
   protected HttpClient getProxyClient() {
     return proxyClient;
   }
 
+  /** What sends requests to the target. */
+  public ProxyTransport getTransport() {
+    return transport;
+  }
+
   /** Reads a servlet config parameter by the name {@code hcParamName} of type {@code type}, and
    * set it in {@code hcParams}.
    */
@@ -210,64 +990,370 @@ public class ProxyServlet extends HttpServlet {
     hcParams.setParameter(hcParamName,val_obj);
   }
 
+  /** Stops accepting requests (they get a 503) and waits up to {@link #P_DRAIN_TIMEOUT} for
+   * those in flight to complete before closing the client. */
   @Override
   public void destroy() {
-    //As of HttpComponents v4.3, clients implement closeable
-    if (proxyClient instanceof Closeable) {//TODO AutoCloseable in Java 1.6
+    if (warmupThread != null)
+      warmupThread.interrupt();
+    startDrain();
+    if (!awaitDrained(drainTimeout)) {
+      log("While destroying servlet, gave up waiting on " + inFlightRequests.get()
+          + " in-flight requests after " + drainTimeout + "ms");
+    }
+    if (revalidationExecutor != null)
+      revalidationExecutor.shutdownNow();
+    if (connectionEvictor != null)
+      connectionEvictor.shutdownNow();
+    if (virtualThreads != null)
+      virtualThreads.shutdown();
+    for (ProxyFilter filter : filters) {
+      filter.destroy();
+    }
+    if (transport != null) {
       try {
-        ((Closeable) proxyClient).close();
+        transport.close();
       } catch (IOException e) {
-        log("While destroying servlet, shutting down HttpClient: "+e, e);
+        log("While destroying servlet, shutting down the "+P_TRANSPORT+": "+e, e);
+      }
+    }
+    if (accessLog != null)
+      accessLog.close();
+    if (responseCache != null) {
+      try {
+        responseCache.close();
+      } catch (IOException e) {
+        log("While destroying servlet, closing the response cache: "+e, e);
       }
-    } else {
-      //Older releases require we do this:
-      if (proxyClient != null)
-        proxyClient.getConnectionManager().shutdown();
     }
     super.destroy();
   }
 
+  /** Stops accepting new requests; they'll get a 503 response. Called by {@link #destroy()} but
+   * may be called earlier, such as when the container is told to shut down, so that load balancers
+   * polling {@link #P_READY_PATH} take this instance out of rotation first. */
+  public void startDrain() {
+    draining = true;
+  }
+
+  /** True once {@link #startDrain()} has been called. */
+  public boolean isDraining() {
+    return draining;
+  }
+
+  /** The number of requests currently being proxied. */
+  public int getInFlightRequests() {
+    return inFlightRequests.get();
+  }
+
+  /** Waits until no requests are in flight, up to {@code timeoutMs}. Returns true if drained. */
+  protected boolean awaitDrained(long timeoutMs) {
+    long wait = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    drainLock.lock();
+    try {
+      while (inFlightRequests.get() > 0) {
+        if (wait <= 0)
+          return false;
+        try {
+          wait = drained.awaitNanos(wait);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return false;
+        }
+      }
+    } finally {
+      drainLock.unlock();
+    }
+    return true;
+  }
+
+  /** Whether to serve requests; checked by {@link #P_READY_PATH}. */
+  protected boolean isReady() {
+    return !draining && isWarmedUp();
+  }
+
+  /** Counts requests in flight, turning them away once draining, before dispatching to
+   * {@link #service(HttpServletRequest, HttpServletResponse)}, on a virtual thread if so
+   * configured. */
+  @Override
+  public void service(ServletRequest req, ServletResponse res) throws ServletException, IOException {
+    final HttpServletRequest servletRequest = (HttpServletRequest) req;
+    final HttpServletResponse servletResponse = (HttpServletResponse) res;
+    if (readyPath != null && readyPath.equals(servletRequest.getPathInfo())) {
+      boolean ready = isReady();
+      servletResponse.setStatus(ready ? HttpServletResponse.SC_OK : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      servletResponse.setContentType("text/plain");
+      servletResponse.getWriter().write(ready ? "READY" : draining ? "DRAINING" : "NOT READY");
+      return;
+    }
+    //counted before checking, so that a drain starting in between waits for this request
+    inFlightRequests.incrementAndGet();
+    if (draining) {
+      try {
+        servletResponse.setHeader(HttpHeaders.CONNECTION, "close");
+        servletResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      } finally {
+        requestDone();
+      }
+      return;
+    }
+    if (virtualThreads != null && virtualThreads.dispatch(servletRequest, new Runnable() {
+      @Override
+      public void run() {
+        try {
+          service(servletRequest, servletResponse);
+        } catch (Exception e) {
+          //there's no container thread to throw to
+          log("Proxying " + servletRequest.getRequestURI() + " failed: " + e, e);
+          if (!servletResponse.isCommitted()) {
+            try {
+              servletResponse.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            } catch (IOException e2) {
+              //the client's gone
+            }
+          }
+        } finally {
+          requestDone();
+        }
+      }
+    }))
+      return;
+    try {
+      service(servletRequest, servletResponse);
+    } finally {
+      requestDone();
+    }
+  }
+
+  private void requestDone() {
+    if (inFlightRequests.decrementAndGet() == 0 && draining) {
+      drainLock.lock();
+      try {
+        drained.signalAll();
+      } finally {
+        drainLock.unlock();
+      }
+    }
+  }
+
   @Override
   protected void service(HttpServletRequest servletRequest, HttpServletResponse servletResponse)
       throws ServletException, IOException {
     //initialize request attributes from caches if unset by a subclass by this point
+    ReplicaBalancer.Replica replica = null;//set if choosing between replicas
+    if (replicaBalancer != null && servletRequest.getAttribute(ATTR_TARGET_URI) == null
+        && servletRequest.getAttribute(ATTR_TARGET_HOST) == null) {
+      replica = replicaBalancer.choose();
+      servletRequest.setAttribute(ATTR_TARGET_URI, replica.getTargetUri());
+      servletRequest.setAttribute(ATTR_TARGET_HOST, replica.getHost());
+    }
     if (servletRequest.getAttribute(ATTR_TARGET_URI) == null) {
       servletRequest.setAttribute(ATTR_TARGET_URI, targetUri);
     }
     if (servletRequest.getAttribute(ATTR_TARGET_HOST) == null) {
       servletRequest.setAttribute(ATTR_TARGET_HOST, targetHost);
     }
+    TtfbMetrics.Timer ttfb = new TtfbMetrics.Timer();
+    int bufferSize = getResponseBufferSize(servletRequest);
+    if (bufferSize > 0)
+      servletResponse.setBufferSize(bufferSize);
 
     // Make the Request
     //note: we won't transfer the protocol version because I'm not sure it would truly be compatible
     String method = servletRequest.getMethod();
+    final ProxyTrace trace = traceExporter == null ? null : ProxyTrace.start(
+        servletRequest.getHeader(ProxyTrace.TRACEPARENT), isTraceParentSampledHonoured(servletRequest),
+        traceSampleRate, method, servletRequest.getRequestURI());
+    if (trace != null)
+      servletRequest.setAttribute(ATTR_TRACE, trace);
+    AccessLog.Entry logEntry = accessLog == null ? null : accessLog.start();
+    if (logEntry != null) {
+      logEntry.remoteAddr = getClientAddr(servletRequest);
+      logEntry.method = method;
+      String queryString = servletRequest.getQueryString();
+      logEntry.requestUri = queryString == null ? servletRequest.getRequestURI()
+          : servletRequest.getRequestURI() + '?' + queryString;
+    }
     String proxyRequestUri = rewriteUrlFromRequest(servletRequest);
     HttpRequest proxyRequest;
+    RequestBodyEntity requestBody = null;
     //spec: RFC 2616, sec 4.3: either of these two headers signal that there is a message body.
     if (servletRequest.getHeader(HttpHeaders.CONTENT_LENGTH) != null ||
         servletRequest.getHeader(HttpHeaders.TRANSFER_ENCODING) != null) {
       HttpEntityEnclosingRequest eProxyRequest = new BasicHttpEntityEnclosingRequest(method, proxyRequestUri);
       // Add the input entity (streamed)
       //  note: we don't bother ensuring we close the servletInputStream since the container handles it
-      eProxyRequest.setEntity(new InputStreamEntity(servletRequest.getInputStream(), servletRequest.getContentLength()));
+      requestBody = new RequestBodyEntity(servletRequest, bufferPool);
+      HttpEntity entity = requestBody;
+      if (trace != null) {
+        entity = new HttpEntityWrapper(entity) {
+          @Override
+          public void writeTo(OutputStream outstream) throws IOException {
+            super.writeTo(outstream);
+            trace.mark(ProxyTrace.Phase.SEND);
+          }
+        };
+      }
+      eProxyRequest.setEntity(entity);
       proxyRequest = eProxyRequest;
     } else
       proxyRequest = new BasicHttpRequest(method, proxyRequestUri);
 
     copyRequestHeaders(servletRequest, proxyRequest);
+    // Pass along Expect: 100-continue so the body is only sent once the target asks for it. Until
+    //  then the client's body isn't read, so the container doesn't ask the client for it either.
+    if (requestBody != null && !requestBody.isEmpty() && isExpectContinue(servletRequest))
+      proxyRequest.setHeader(HttpHeaders.EXPECT, "100-continue");
+
+    ForwardedHeaders.apply(getForwardedHeaders(servletRequest), trustedProxies, servletRequest,
+        proxyRequest);
+
+    HttpContext httpContext = null;
+    if (trace != null) {
+      trace.setTargetUri(proxyRequestUri);
+      trace.mark(ProxyTrace.Phase.REWRITE);
+      httpContext = new BasicHttpContext();
+      httpContext.setAttribute(ProxyTrace.CONTEXT_ATTR, trace);
+    }
 
-    setXForwardedForHeader(servletRequest, proxyRequest);
+    if (logEntry != null)
+      logEntry.targetUri = proxyRequestUri;
 
+    String fillKey = null;//set if fetching the full response for range requests to wait on
+    FairQueue.RequestClass admittedClass = null;//set once holding a slot of the fair queue
+    boolean replicaStarted = false;
     HttpResponse proxyResponse = null;
+    Throwable error = null;
     try {
-      // Execute the request
-      if (doLog) {
-        log("proxy " + method + " uri: " + servletRequest.getRequestURI() + " -- " + proxyRequest.getRequestLine().getUri());
+      for (ProxyFilter filter : filters) {
+        if (!filter.onRequest(servletRequest, servletResponse, proxyRequest))
+          return;
+      }
+
+      String cacheUri = proxyRequest.getRequestLine().getUri();
+      if (replica != null && cacheUri.startsWith(replica.getTargetUri()))//the same whichever replica serves it
+        cacheUri = targetUri + cacheUri.substring(replica.getTargetUri().length());
+      String cacheKey = responseCache == null ? null : responseCache.getKey(servletRequest, cacheUri);
+      String range = cacheKey == null ? null : servletRequest.getHeader(HttpHeaders.RANGE);
+      DiskResponseCache.Entry stale = null;//usable if the target fails
+      if (cacheKey != null) {
+        long now = System.currentTimeMillis();
+        DiskResponseCache.Entry cached = responseCache.get(cacheKey);
+        if (range != null && (cached == null || !cached.isUsableWhileRevalidating(now))
+            && responseCache.isWorthFilling(cacheKey, cached)) {
+          //coalesce concurrent range requests into one fetch of the full response, which is cached
+          if (responseCache.startFill(cacheKey)) {
+            fillKey = cacheKey;
+            proxyRequest.removeHeaders(HttpHeaders.RANGE);
+            proxyRequest.removeHeaders(HttpHeaders.IF_RANGE);
+          } else if (responseCache.awaitFill(cacheKey, cacheFillWait)) {
+            now = System.currentTimeMillis();
+            cached = responseCache.get(cacheKey);
+          }
+        }
+        if (cached != null && cached.isFresh(now)) {
+          proxyResponse = responseCache.toResponse(cached, now);
+        } else if (cached != null && cached.isUsableWhileRevalidating(now)) {
+          proxyResponse = responseCache.toResponse(cached, now);
+          if (proxyResponse != null)
+            revalidateInBackground(cacheKey, cached, getTargetHost(servletRequest), proxyRequest);
+        } else if (cached != null && cached.isUsableIfError(now)) {
+          stale = cached;
+        }
+        if (proxyResponse != null)
+          cacheKey = null;//served from the cache; nothing to store
+      }
+      if (proxyResponse == null && fairQueue != null) {
+        FairQueue.RequestClass requestClass = classifyRequest(servletRequest);
+        if (fairQueue.acquire(requestClass, queueTimeout)) {
+          admittedClass = requestClass;
+        } else if (stale != null && (proxyResponse = staleIfError(stale)) != null) {
+          cacheKey = null;
+        } else {
+          servletResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+          return;
+        }
+      }
+      if (proxyResponse == null) {
+        // Execute the request
+        if (doLog) {
+          log("proxy " + method + " uri: " + servletRequest.getRequestURI() + " -- " + proxyRequest.getRequestLine().getUri());
+        }
+        long sentNanos = System.nanoTime();
+        if (replica != null) {
+          replica.started();
+          replicaStarted = true;
+        }
+        try {
+          if (pipeliner != null && pipeliner.accepts(proxyRequest))
+            proxyResponse = pipeliner.execute(getTargetHost(servletRequest), proxyRequest, httpContext);
+          else
+            proxyResponse = transport.execute(getTargetHost(servletRequest), proxyRequest, httpContext);
+          if (requestBody != null && !requestBody.isStarted()
+              && proxyResponse.getStatusLine().getStatusCode() == HttpServletResponse.SC_EXPECTATION_FAILED
+              && proxyRequest.containsHeader(HttpHeaders.EXPECT)) {
+            //the target doesn't do expectations; send the body without waiting (RFC 7231 sec 5.1.1)
+            consumeQuietly(proxyResponse.getEntity());
+            proxyRequest.removeHeaders(HttpHeaders.EXPECT);
+            proxyResponse = transport.execute(getTargetHost(servletRequest), proxyRequest, httpContext);
+          }
+          ttfb.upstreamResponded();
+          if (replica != null)
+            replica.responded(proxyResponse.getStatusLine().getStatusCode(), System.nanoTime() - sentNanos);
+        } catch (IOException e) {
+          if (replica != null)
+            replica.failed();
+          if (stale == null || (proxyResponse = staleIfError(stale)) == null)
+            throw e;
+          log("Serving a stale response since the target failed: " + e);
+          cacheKey = null;
+        }
+        if (stale != null && proxyResponse.getStatusLine().getStatusCode() >= 500) {
+          HttpResponse staleResponse = staleIfError(stale);
+          if (staleResponse != null) {
+            consumeQuietly(proxyResponse.getEntity());
+            proxyResponse = staleResponse;
+            cacheKey = null;
+          }
+        }
+      }
+
+      boolean caching = false;
+      if (cacheKey != null && proxyResponse.getEntity() != null) {
+        long expires = DiskResponseCache.getExpires(proxyResponse, System.currentTimeMillis());
+        if (expires > 0) {
+          HttpEntity entity = proxyResponse.getEntity();
+          proxyResponse.setEntity(responseCache.cachingEntity(cacheKey, proxyResponse, expires));
+          caching = proxyResponse.getEntity() != entity;
+        }
+        if (range != null && fillKey == null)//passed on; it may tell whether to fetch it all next time
+          responseCache.noteRangeResponse(cacheKey, proxyResponse, System.currentTimeMillis());
+      }
+      if (fillKey != null && cacheKey != null && !caching)
+        responseCache.noteNotFillable(fillKey);
+      if (range != null && proxyResponse.getStatusLine().getStatusCode() == HttpServletResponse.SC_OK) {
+        proxyResponse = toPartialResponse(proxyResponse, range, servletRequest.getHeader(HttpHeaders.IF_RANGE),
+            caching);
+      }
+      for (ProxyFilter filter : filters) {
+        filter.onResponseHeaders(servletRequest, proxyResponse);
       }
-      proxyResponse = proxyClient.execute(getTargetHost(servletRequest), proxyRequest);
 
       // Process the response
       int statusCode = proxyResponse.getStatusLine().getStatusCode();
+      if (requestBody != null && !requestBody.isStarted() && proxyRequest.containsHeader(HttpHeaders.EXPECT)) {
+        //the target answered without the body (e.g. a 401 or 413), so the client never sent it. Rather
+        // than have the container read and discard it, close the client connection after responding.
+        servletResponse.setHeader(HttpHeaders.CONNECTION, "close");
+      }
+      if (trace != null) {
+        trace.setStatusCode(statusCode);
+        trace.mark(ProxyTrace.Phase.FIRST_BYTE);
+      }
+      if (logEntry != null) {
+        logEntry.upstreamResponded();
+        logEntry.status = statusCode;
+      }
 
       // copying response headers to make sure SESSIONID or other Cookie which comes from remote server
       // will be saved in client when the proxied url was redirected to another one.
@@ -275,7 +1361,7 @@ public class ProxyServlet extends HttpServlet {
       copyResponseHeaders(proxyResponse, servletRequest, servletResponse);
 
       if (doResponseRedirectOrNotModifiedLogic(servletRequest, servletResponse, proxyResponse, statusCode)) {
-        //the response is already "committed" now without any body to send
+        //the response is already complete now without any body to send
         return;
       }
 
@@ -285,9 +1371,25 @@ public class ProxyServlet extends HttpServlet {
       servletResponse.setStatus(statusCode, proxyResponse.getStatusLine().getReasonPhrase());
 
       // Send the content to the client
+      if (filters.length > 0 && proxyResponse.getEntity() != null)
+        proxyResponse.setEntity(filterResponseBody(servletRequest, proxyResponse));
+      if (logEntry != null && proxyResponse.getEntity() != null)
+        proxyResponse.setEntity(logEntry.countBytes(proxyResponse.getEntity()));
+      if (proxyResponse.getEntity() != null && isFlushHeaders(servletRequest)) {
+        //commit now rather than once the container's buffer fills with body
+        servletResponse.flushBuffer();
+        ttfb.clientCommitted();
+      } else if (proxyResponse.getEntity() != null) {
+        proxyResponse.setEntity(watchCommit(proxyResponse.getEntity(), servletResponse, ttfb));
+      }
       copyResponseEntity(proxyResponse, servletResponse);
+      if (trace != null)
+        trace.mark(ProxyTrace.Phase.BODY_COPY);
 
     } catch (Exception e) {
+      error = e;
+      if (trace != null)
+        trace.setError(e);
       //abort request, according to best practice with HttpClient
       if (proxyRequest instanceof AbortableHttpRequest) {
         AbortableHttpRequest abortableHttpRequest = (AbortableHttpRequest) proxyRequest;
@@ -306,30 +1408,302 @@ public class ProxyServlet extends HttpServlet {
       // make sure the entire entity was consumed, so the connection is released
       if (proxyResponse != null)
         consumeQuietly(proxyResponse.getEntity());
+      if (fillKey != null)
+        responseCache.endFill(fillKey);
+      if (admittedClass != null)
+        fairQueue.release(admittedClass);
+      if (replicaStarted)
+        replica.finished();
+      for (ProxyFilter filter : filters) {
+        try {
+          filter.onComplete(servletRequest, proxyResponse, error);
+        } catch (RuntimeException e) {
+          log("Filter " + filter + " failed on completion: " + e, e);
+        }
+      }
+      MemoryBudget.Reservation reservation =
+          (MemoryBudget.Reservation) servletRequest.getAttribute(ATTR_MEMORY_RESERVATION);
+      if (reservation != null)
+        reservation.close();
+      if (error == null) {
+        ttfb.clientCommitted();//if not yet, the container commits once we return
+        ttfbMetrics.record(ttfb);
+      }
+      if (trace != null)
+        exportTrace(trace);
+      if (logEntry != null) {
+        logEntry.clientNanos = ttfb.getClientNanos();
+        accessLog.log(logEntry);
+      }
       //Note: Don't need to close servlet outputStream:
       // http://stackoverflow.com/questions/1159168/should-one-call-close-on-httpservletresponse-getoutputstream-getwriter
     }
   }
 
+  /** Wraps the response entity to mark when writing its body commits the response to the client. */
+  private static HttpEntity watchCommit(HttpEntity entity, final HttpServletResponse servletResponse,
+                                        final TtfbMetrics.Timer ttfb) {
+    return new HttpEntityWrapper(entity) {
+      @Override
+      public void writeTo(OutputStream outstream) throws IOException {
+        super.writeTo(new FilterOutputStream(outstream) {
+          @Override
+          public void write(int b) throws IOException {
+            out.write(b);
+            check();
+          }
+
+          @Override
+          public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            check();
+          }
+
+          private void check() {
+            if (!ttfb.isClientCommitted() && servletResponse.isCommitted())
+              ttfb.clientCommitted();
+          }
+        });
+      }
+    };
+  }
+
+  /** Whether the client sent {@code Expect: 100-continue}, waiting for a go-ahead to send the body. */
+  protected boolean isExpectContinue(HttpServletRequest servletRequest) {
+    String expect = servletRequest.getHeader(HttpHeaders.EXPECT);
+    return expect != null && expect.trim().equalsIgnoreCase("100-continue");
+  }
+
+  /**
+   * The client's request body, streamed to the target.  Unlike an InputStreamEntity, the servlet's
+   * input stream isn't opened until the body is sent, since containers answer a client's
+   * {@code Expect: 100-continue} when it is; so the client sends nothing if the target rejects the
+   * request first.
+   */
+  private static class RequestBodyEntity extends AbstractHttpEntity {
+    private final HttpServletRequest servletRequest;
+    private final BufferPool bufferPool;
+    private volatile boolean started;
+
+    RequestBodyEntity(HttpServletRequest servletRequest, BufferPool bufferPool) {
+      this.servletRequest = servletRequest;
+      this.bufferPool = bufferPool;
+    }
+
+    /** Whether the body has been asked for. */
+    boolean isStarted() {
+      return started;
+    }
+
+    /** Whether the body is known to be empty: {@code Content-Length: 0}, not chunked. */
+    boolean isEmpty() {
+      return getContentLength() == 0;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+      return false;
+    }
+
+    @Override
+    public long getContentLength() {
+      return servletRequest.getContentLength();
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+      started = true;
+      return servletRequest.getInputStream();
+    }
+
+    @Override
+    public void writeTo(OutputStream outstream) throws IOException {
+      InputStream in = getContent();
+      byte[] buffer = bufferPool.acquire();
+      try {
+        long remaining = getContentLength();
+        int n;
+        if (remaining < 0) {
+          while ((n = in.read(buffer)) != -1) {
+            outstream.write(buffer, 0, n);
+          }
+        } else {
+          while (remaining > 0 && (n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+            outstream.write(buffer, 0, n);
+            remaining -= n;
+          }
+        }
+      } finally {
+        bufferPool.release(buffer);
+      }
+    }
+
+    @Override
+    public boolean isStreaming() {
+      return true;
+    }
+  }
+
+  /** Wraps the response entity so its body is written through each filter's
+   * {@link ProxyFilter#wrapResponseBody(HttpServletRequest, HttpResponse, OutputStream)}. */
+  private HttpEntity filterResponseBody(final HttpServletRequest servletRequest, final HttpResponse proxyResponse) {
+    return new HttpEntityWrapper(proxyResponse.getEntity()) {
+      @Override
+      public void writeTo(OutputStream outstream) throws IOException {
+        OutputStream out = new FilterOutputStream(outstream) {
+          @Override
+          public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+          }
+
+          @Override
+          public void close() throws IOException {
+            flush();//leave the client's stream open
+          }
+        };
+        for (int i = filters.length - 1; i >= 0; i--) {
+          out = filters[i].wrapResponseBody(servletRequest, proxyResponse, out);
+        }
+        super.writeTo(out);
+        out.close();
+      }
+    };
+  }
+
+  /**
+   * A 206 (Partial Content) response with the range of {@code full} that a Range request header
+   * asks for, or a 416 if it's unsatisfiable.  Returns {@code full} if the range should be ignored,
+   * such as when its length is unknown or If-Range doesn't match.
+   * @param readAll whether the full body must still be read, e.g. to be cached
+   */
+  protected HttpResponse toPartialResponse(HttpResponse full, String rangeHeader, String ifRange, boolean readAll) {
+    HttpEntity entity = full.getEntity();
+    if (entity == null || entity.getContentLength() < 0)
+      return full;
+    Header etag = full.getLastHeader(HttpHeaders.ETAG);
+    Header lastModified = full.getLastHeader(HttpHeaders.LAST_MODIFIED);
+    if (!ByteRange.ifRangeMatches(ifRange, etag == null ? null : etag.getValue(),
+        lastModified == null ? null : lastModified.getValue()))
+      return full;
+    ByteRange range = ByteRange.parse(rangeHeader, entity.getContentLength());
+    if (range == null)
+      return full;
+    HttpResponse partial;
+    if (range == ByteRange.UNSATISFIABLE) {
+      partial = new BasicHttpResponse(full.getProtocolVersion(),
+          HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE, "Requested Range Not Satisfiable");
+      for (Header header : full.getAllHeaders()) {
+        if (!header.getName().regionMatches(true, 0, "Content-", 0, "Content-".length()))
+          partial.addHeader(header);
+      }
+      partial.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + entity.getContentLength());
+      partial.setHeader(HttpHeaders.CONTENT_LENGTH, "0");
+      consumeQuietly(new ByteRange(0, -1, entity.getContentLength()).slice(entity, readAll));
+    } else {
+      partial = new BasicHttpResponse(full.getProtocolVersion(), HttpServletResponse.SC_PARTIAL_CONTENT,
+          "Partial Content");
+      partial.setHeaders(full.getAllHeaders());
+      partial.setHeader(HttpHeaders.CONTENT_RANGE, range.toContentRange());
+      partial.setHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(range.getCount()));
+      partial.setEntity(range.slice(entity, readAll));
+    }
+    return partial;
+  }
+
+  /** The stale cached response to serve when the target fails, or null if it's been evicted. */
+  private HttpResponse staleIfError(DiskResponseCache.Entry stale) {
+    HttpResponse response = responseCache.toResponse(stale, System.currentTimeMillis());
+    if (response != null)
+      response.addHeader("Warning", "111 - \"Revalidation Failed\"");
+    return response;
+  }
+
+  /**
+   * Refreshes a stale cached response in the background, unless that's already under way, using
+   * {@code request} (not to be executed by the caller).  Revalidates conditionally if the cached
+   * response has a validator.
+   */
+  private void revalidateInBackground(final String cacheKey, final DiskResponseCache.Entry stale,
+                                      final HttpHost host, final HttpRequest request) {
+    if (!responseCache.startRevalidation(cacheKey))
+      return;
+    try {
+      revalidationExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            revalidate(cacheKey, stale, host, request);
+          } catch (Exception e) {
+            log("Revalidating " + request.getRequestLine().getUri() + " failed: " + e);
+          } finally {
+            responseCache.endRevalidation(cacheKey);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      responseCache.endRevalidation(cacheKey);//too many already; a later request will retry
+    }
+  }
+
+  private void revalidate(String cacheKey, DiskResponseCache.Entry stale, HttpHost host, HttpRequest request)
+      throws IOException {
+    request.removeHeaders(HttpHeaders.RANGE);
+    request.removeHeaders(HttpHeaders.IF_RANGE);
+    String etag = stale.getHeader(HttpHeaders.ETAG);
+    if (etag != null)
+      request.setHeader(HttpHeaders.IF_NONE_MATCH, etag);
+    String lastModified = stale.getHeader(HttpHeaders.LAST_MODIFIED);
+    if (lastModified != null)
+      request.setHeader(HttpHeaders.IF_MODIFIED_SINCE, lastModified);
+    HttpResponse response = transport.execute(host, request, null);
+    try {
+      long now = System.currentTimeMillis();
+      if (response.getStatusLine().getStatusCode() == HttpServletResponse.SC_NOT_MODIFIED) {
+        responseCache.refresh(stale, response, now);
+        return;
+      }
+      long expires = DiskResponseCache.getExpires(response, now);
+      if (expires > 0 && response.getEntity() != null) {
+        responseCache.cachingEntity(cacheKey, response, expires).writeTo(new OutputStream() {
+          @Override
+          public void write(int b) {
+          }
+
+          @Override
+          public void write(byte[] b, int off, int len) {
+          }
+        });
+      }
+    } finally {
+      consumeQuietly(response.getEntity());
+    }
+  }
+
+  /** Hands a completed trace to the {@link #traceExporter}. */
+  protected void exportTrace(ProxyTrace trace) {
+    trace.end();
+    try {
+      traceExporter.export(trace);
+    } catch (RuntimeException e) {
+      log("Trace exporter failed: " + e, e);
+    }
+  }
+
+  /** The trace of this request, or null if it isn't being traced. */
+  protected ProxyTrace getTrace(HttpServletRequest servletRequest) {
+    return (ProxyTrace) servletRequest.getAttribute(ATTR_TRACE);
+  }
+
+  /**
+   * Handles responses that aren't passed through as is, returning true if it did so.  Redirects
+   * (3xx) are passed through, status and body included, their Location having been rewritten by
+   * {@link #copyResponseHeaders(HttpResponse, HttpServletRequest, HttpServletResponse)}; only a
+   * 304 is handled here.
+   */
   protected boolean doResponseRedirectOrNotModifiedLogic(
           HttpServletRequest servletRequest, HttpServletResponse servletResponse,
           HttpResponse proxyResponse, int statusCode)
           throws ServletException, IOException {
-    // Check if the proxy response is a redirect
-    // The following code is adapted from org.tigris.noodle.filters.CheckForRedirect
-    if (statusCode >= HttpServletResponse.SC_MULTIPLE_CHOICES /* 300 */
-        && statusCode < HttpServletResponse.SC_NOT_MODIFIED /* 304 */) {
-      Header locationHeader = proxyResponse.getLastHeader(HttpHeaders.LOCATION);
-      if (locationHeader == null) {
-        throw new ServletException("Received status code: " + statusCode
-            + " but no " + HttpHeaders.LOCATION + " header was found in the response");
-      }
-      // Modify the redirect to go to this proxy servlet rather that the proxied host
-      String locStr = rewriteUrlFromResponse(servletRequest, locationHeader.getValue());
-
-      servletResponse.sendRedirect(locStr);
-      return true;
-    }
     // 304 needs special handling.  See:
     // http://www.ics.uci.edu/pub/ietf/http/rfc1945.html#Code304
     // We get a 304 whenever passed an 'If-Modified-Since'
@@ -384,9 +1758,12 @@ public class ProxyServlet extends HttpServlet {
     Enumeration enumerationOfHeaderNames = servletRequest.getHeaderNames();
     while (enumerationOfHeaderNames.hasMoreElements()) {
       String headerName = (String) enumerationOfHeaderNames.nextElement();
-      //Instead the content-length is effectively set via InputStreamEntity
+      //Instead the content-length is effectively set via RequestBodyEntity
       if (headerName.equalsIgnoreCase(HttpHeaders.CONTENT_LENGTH))
         continue;
+      //Set in service() only if there's a body to wait on
+      if (headerName.equalsIgnoreCase(HttpHeaders.EXPECT))
+        continue;
       if (hopByHopHeaders.containsHeader(headerName))
         continue;
 
@@ -407,36 +1784,165 @@ public class ProxyServlet extends HttpServlet {
         proxyRequest.addHeader(headerName, headerValue);
       }
     }
+    // Continue the caller's trace, if any, with this request as the target's parent
+    ProxyTrace trace = getTrace(servletRequest);
+    if (trace != null)
+      proxyRequest.setHeader(ProxyTrace.TRACEPARENT, trace.toTraceparent());
   }
 
-  private void setXForwardedForHeader(HttpServletRequest servletRequest,
-                                      HttpRequest proxyRequest) {
-    String headerName = "X-Forwarded-For";
-    if (doForwardIP) {
-      String newHeader = servletRequest.getRemoteAddr();
-      String existingHeader = servletRequest.getHeader(headerName);
-      if (existingHeader != null) {
-        newHeader = existingHeader + ", " + newHeader;
-      }
-      proxyRequest.setHeader(headerName, newHeader);
+  /** The forwarded headers to send the target for this request; a bit set of
+   * {@link ForwardedHeaders} constants. */
+  protected int getForwardedHeaders(HttpServletRequest servletRequest) {
+    return forwardedHeaders;
+  }
+
+  /** The address of the client, looking through X-Forwarded-For, or else Forwarded, if the request
+   * came from one of the {@link #P_TRUSTED_PROXIES}. */
+  public String getClientAddr(HttpServletRequest servletRequest) {
+    return ForwardedHeaders.clientAddr(trustedProxies, servletRequest);
+  }
+
+  /** Whether to trace the request if its traceparent says the caller sampled it; see
+   * {@link #P_TRACE_PARENT_SAMPLED}. */
+  protected boolean isTraceParentSampledHonoured(HttpServletRequest servletRequest) {
+    if (traceParentSampled.equals("trusted"))
+      return trustedProxies.contains(servletRequest.getRemoteAddr());
+    return traceParentSampled.equals("always");
+  }
+
+  /** These are the response headers with URLs of the target in them that
+   * {@link #rewriteHeaderFromResponse(HttpServletRequest, String, String)} rewrites, whatever the
+   * status code. */
+  protected static final HeaderGroup urlResponseHeaders;
+  static {
+    urlResponseHeaders = new HeaderGroup();
+    String[] headers = new String[] {
+        "Location", "Content-Location", "Refresh", "Link" };
+    for (String header : headers) {
+      urlResponseHeaders.addHeader(new BasicHeader(header, null));
     }
   }
 
   /** Copy proxied response headers back to the servlet client. */
   protected void copyResponseHeaders(HttpResponse proxyResponse, HttpServletRequest servletRequest,
                                      HttpServletResponse servletResponse) {
+    if (doCoalesceHeaders) {
+      coalesceResponseHeaders(proxyResponse, servletRequest, servletResponse);
+      return;
+    }
     for (Header header : proxyResponse.getAllHeaders()) {
       if (hopByHopHeaders.containsHeader(header.getName()))
         continue;
       if (header.getName().equalsIgnoreCase(org.apache.http.cookie.SM.SET_COOKIE) ||
           header.getName().equalsIgnoreCase(org.apache.http.cookie.SM.SET_COOKIE2)) {
         copyProxyCookie(servletRequest, servletResponse, header);
+      } else if (urlResponseHeaders.containsHeader(header.getName())) {
+        servletResponse.addHeader(header.getName(),
+            rewriteHeaderFromResponse(servletRequest, header.getName(), header.getValue()));
       } else {
         servletResponse.addHeader(header.getName(), header.getValue());
       }
     }
   }
 
+  /** Copies the response headers for {@link #P_COALESCE_HEADERS}: rewritten as usual, then merged
+   * by a {@link HeaderCoalescer}. */
+  private void coalesceResponseHeaders(HttpResponse proxyResponse, HttpServletRequest servletRequest,
+                                       HttpServletResponse servletResponse) {
+    Header[] headers = proxyResponse.getAllHeaders();
+    HeaderCoalescer coalescer = new HeaderCoalescer(headers.length);
+    for (Header header : headers) {
+      String name = header.getName();
+      if (hopByHopHeaders.containsHeader(name))
+        continue;
+      if (name.equalsIgnoreCase(org.apache.http.cookie.SM.SET_COOKIE)) {
+        String setCookie = rewriteSetCookie(servletRequest, header.getValue());
+        if (setCookie != null)
+          coalescer.add(name, setCookie);
+      } else if (name.equalsIgnoreCase(org.apache.http.cookie.SM.SET_COOKIE2)) {
+        //obsolete, and may hold several cookies; translated to Set-Cookie the usual way
+        copyProxyCookie(servletRequest, servletResponse, header);
+      } else if (urlResponseHeaders.containsHeader(name)) {
+        coalescer.add(name, rewriteHeaderFromResponse(servletRequest, name, header.getValue()));
+      } else {
+        coalescer.add(name, header.getValue());
+      }
+    }
+    coalescer.writeTo(servletResponse);
+  }
+
+  /** Rewrites the text of a {@code Set-Cookie} header from the target for the client, as
+   * {@link #copyProxyCookie(HttpServletRequest, HttpServletResponse, Header)} does by parsing it:
+   * the name prefixed, the path set to the servlet's and the domain removed.  Returns null to drop
+   * it.  Used for {@link #P_COALESCE_HEADERS}. */
+  protected String rewriteSetCookie(HttpServletRequest servletRequest, String setCookie) {
+    String path = servletRequest.getContextPath() + servletRequest.getServletPath();
+    return HeaderCoalescer.rewriteSetCookie(setCookie, getCookieNamePrefix(), path);
+  }
+
+  /** Rewrites the URLs in the value of one of the {@link #urlResponseHeaders} with
+   * {@link #rewriteUrlFromResponse(HttpServletRequest, String)}. */
+  protected String rewriteHeaderFromResponse(HttpServletRequest servletRequest, String headerName,
+                                             String headerValue) {
+    if (headerName.equalsIgnoreCase("Refresh"))
+      return rewriteRefreshFromResponse(servletRequest, headerValue);
+    if (headerName.equalsIgnoreCase("Link"))
+      return rewriteLinkFromResponse(servletRequest, headerValue);
+    return rewriteUrlFromResponse(servletRequest, headerValue.trim());
+  }
+
+  /** Rewrites the URL of a Refresh header, e.g. {@code 5; url=http://target/next}. */
+  private String rewriteRefreshFromResponse(HttpServletRequest servletRequest, String value) {
+    int i = value.indexOf(';');
+    if (i < 0)
+      return value;//just a delay
+    i = skipSpaces(value, i + 1);
+    if (!value.regionMatches(true, i, "url", 0, 3))
+      return value;
+    i = skipSpaces(value, i + 3);
+    if (i == value.length() || value.charAt(i) != '=')
+      return value;
+    i = skipSpaces(value, i + 1);
+    int end = value.length();
+    if (i < end && (value.charAt(i) == '"' || value.charAt(i) == '\'')) {
+      int close = value.indexOf(value.charAt(i), i + 1);
+      i++;
+      if (close >= 0)
+        end = close;
+    }
+    String url = value.substring(i, end);
+    String rewritten = rewriteUrlFromResponse(servletRequest, url);
+    return rewritten.equals(url) ? value : value.substring(0, i) + rewritten + value.substring(end);
+  }
+
+  private static int skipSpaces(String value, int i) {
+    while (i < value.length() && value.charAt(i) == ' ')
+      i++;
+    return i;
+  }
+
+  /** Rewrites the URLs of a Link header, e.g. {@code <http://target/next>; rel="next"}. */
+  private String rewriteLinkFromResponse(HttpServletRequest servletRequest, String value) {
+    StringBuilder buf = null;
+    int copied = 0;//value is copied to buf up to here
+    int open = value.indexOf('<');
+    while (open >= 0) {
+      int close = value.indexOf('>', open);
+      if (close < 0)
+        break;
+      String url = value.substring(open + 1, close);
+      String rewritten = rewriteUrlFromResponse(servletRequest, url);
+      if (!rewritten.equals(url)) {
+        if (buf == null)
+          buf = new StringBuilder(value.length() + 32);
+        buf.append(value, copied, open + 1).append(rewritten);
+        copied = close;
+      }
+      open = value.indexOf('<', close);
+    }
+    return buf == null ? value : buf.append(value, copied, value.length()).toString();
+  }
+
   /** Copy cookie from the proxy to the servlet client.
    *  Replaces cookie path to local path and renames cookie to avoid collisions.
    */
@@ -506,8 +2012,9 @@ public class ProxyServlet extends HttpServlet {
     StringBuilder uri = new StringBuilder(500);
     uri.append(getTargetUri(servletRequest));
     // Handle the path given to the servlet
-    if (servletRequest.getPathInfo() != null) {//ex: /my/path.html
-      uri.append(encodeUriQuery(servletRequest.getPathInfo()));
+    String pathInfo = rewritePathInfoFromRequest(servletRequest);
+    if (pathInfo != null) {//ex: /my/path.html
+      uri.append(encodeUriQuery(pathInfo));
     }
     // Handle the query string & fragment
     String queryString = servletRequest.getQueryString();//ex:(following '?'): name=value&foo=bar#fragment
@@ -534,27 +2041,65 @@ public class ProxyServlet extends HttpServlet {
     return uri.toString();
   }
 
+  /** The path to append to the target URI; by default the servlet request's path info. */
+  protected String rewritePathInfoFromRequest(HttpServletRequest servletRequest) {
+    return servletRequest.getPathInfo();
+  }
+
   protected String rewriteQueryStringFromRequest(HttpServletRequest servletRequest, String queryString) {
     return queryString;
   }
 
-  /** For a redirect response from the target server, this translates {@code theUrl} to redirect to
-   * and translates it to one the original client can use. */
+  /** For a URL in a response header from the target server, such as a redirect's Location, this
+   * translates {@code theUrl} to one the original client can use.  Absolute URLs into the target
+   * URI, including scheme-relative ones and absolute paths, are mapped to this proxy; others are
+   * returned as is.  For example, with a target URI of {@code http://backend/app} proxied at
+   * {@code http://proxy/ctx/servlet}, both {@code http://backend/app/x?y} and {@code /app/x?y}
+   * become {@code http://proxy/ctx/servlet/x?y}. */
   protected String rewriteUrlFromResponse(HttpServletRequest servletRequest, String theUrl) {
-    //TODO document example paths
     final String targetUri = getTargetUri(servletRequest);
-    if (theUrl.startsWith(targetUri)) {
-      String curUrl = servletRequest.getRequestURL().toString();//no query
-      String pathInfo = servletRequest.getPathInfo();
-      if (pathInfo != null) {
-        assert curUrl.endsWith(pathInfo);
-        curUrl = curUrl.substring(0,curUrl.length()-pathInfo.length());//take pathInfo off
-      }
-      theUrl = curUrl+theUrl.substring(targetUri.length());
+    TargetUrlMatcher matcher = getTargetUrlMatcher(targetUri);
+    if (matcher == null) {
+      if (theUrl.startsWith(targetUri))
+        theUrl = getProxyBaseUrl(servletRequest)+theUrl.substring(targetUri.length());
+      return theUrl;
     }
+    int rest = matcher.match(theUrl);
+    if (rest < 0)
+      rest = matcher.matchPath(theUrl);
+    if (rest >= 0)
+      theUrl = getProxyBaseUrl(servletRequest)+theUrl.substring(rest);
     return theUrl;
   }
 
+  /** The matcher for URLs into {@code targetUri}, parsed once per target; null if it isn't an
+   * absolute URI. */
+  private TargetUrlMatcher getTargetUrlMatcher(String targetUri) {
+    TargetUrlMatcher matcher = targetUrlMatchers.get(targetUri);
+    if (matcher == null) {
+      try {
+        matcher = new TargetUrlMatcher(targetUri);
+      } catch (IllegalArgumentException e) {
+        return null;
+      }
+      if (targetUrlMatchers.size() < MAX_TARGET_URL_MATCHERS)
+        targetUrlMatchers.putIfAbsent(targetUri, matcher);
+    }
+    return matcher;
+  }
+
+  /** The URL of this proxy that corresponds to the request's target URI: the request URL without
+   * the path info. */
+  protected String getProxyBaseUrl(HttpServletRequest servletRequest) {
+    String curUrl = servletRequest.getRequestURL().toString();//no query
+    String pathInfo = servletRequest.getPathInfo();
+    if (pathInfo != null) {
+      assert curUrl.endsWith(pathInfo);
+      curUrl = curUrl.substring(0,curUrl.length()-pathInfo.length());//take pathInfo off
+    }
+    return curUrl;
+  }
+
   /** The target URI as configured. Not null. */
   public String getTargetUri() { return targetUri; }
 
@@ -0,0 +1,262 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A sampled, proxied request: its W3C Trace Context identifiers and when each phase of proxying it
+ * ended.  Created by {@link ProxyServlet} only when a {@link TraceExporter} is configured and the
+ * request is sampled; handed to the exporter when the request completes.
+ *
+ * @see <a href="https://www.w3.org/TR/trace-context/">W3C Trace Context</a>
+ */
+public class ProxyTrace {
+
+  /** The W3C trace context request header. */
+  public static final String TRACEPARENT = "traceparent";
+
+  static final String CONTEXT_ATTR = ProxyTrace.class.getName();
+
+  /** The phases of proxying a request, in order. */
+  public enum Phase {
+    /** Building the proxy request: rewriting the URL and copying headers. */
+    REWRITE,
+    /** Leasing a pooled connection, and connecting if it wasn't open. */
+    CONNECT,
+    /** Sending the request and its body. */
+    SEND,
+    /** Waiting for the status line and headers of the response. */
+    FIRST_BYTE,
+    /** Copying the response body to the client. */
+    BODY_COPY
+  }
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final String traceId;
+  private final String spanId;
+  private final String parentSpanId;
+  private final long startTimeMillis;
+  private final long startNanos;
+  private final long[] phaseEndNanos = new long[Phase.values().length];
+  private long endNanos;
+  private final String method;
+  private final String requestUri;
+  private String targetUri;
+  private int statusCode;
+  private Throwable error;
+
+  ProxyTrace(String traceId, String parentSpanId, String method, String requestUri) {
+    this.traceId = traceId != null ? traceId : randomHex(16);
+    this.spanId = randomHex(8);
+    this.parentSpanId = parentSpanId;
+    this.method = method;
+    this.requestUri = requestUri;
+    this.startTimeMillis = System.currentTimeMillis();
+    this.startNanos = System.nanoTime();
+  }
+
+  /**
+   * Starts a trace for a request given its {@code traceparent} header, if any; one that isn't
+   * valid is ignored, starting a new trace.  Returns null if the request isn't sampled:
+   * {@code sampleRate} of requests are, plus those the caller sampled if
+   * {@code honourParentSampled}.
+   */
+  static ProxyTrace start(String traceparent, boolean honourParentSampled, double sampleRate,
+                          String method, String requestUri) {
+    String traceId = null;
+    String parentSpanId = null;
+    boolean parentSampled = false;
+    if (isValidTraceparent(traceparent)) {
+      traceId = traceparent.substring(3, 35);
+      parentSpanId = traceparent.substring(36, 52);
+      parentSampled = honourParentSampled && (Character.digit(traceparent.charAt(54), 16) & 1) == 1;
+    }
+    if (!parentSampled && (sampleRate <= 0 || ThreadLocalRandom.current().nextDouble() >= sampleRate))
+      return null;
+    return new ProxyTrace(traceId, parentSpanId, method, requestUri);
+  }
+
+  /**
+   * Whether {@code traceparent} is well formed: {@code <version>-<trace-id>-<parent-id>-<flags>} in
+   * lowercase hex of 2, 32, 16 and 2 digits, the version not "ff" and the ids not all zeros.
+   * Version 00 has nothing more; later versions may append "-" and more fields.
+   */
+  static boolean isValidTraceparent(String traceparent) {
+    if (traceparent == null || traceparent.length() < 55 || traceparent.charAt(2) != '-'
+        || traceparent.charAt(35) != '-' || traceparent.charAt(52) != '-')
+      return false;
+    if (!isLowerHex(traceparent, 0, 2) || traceparent.startsWith("ff"))
+      return false;
+    if (traceparent.startsWith("00") ? traceparent.length() != 55
+        : traceparent.length() > 55 && traceparent.charAt(55) != '-')
+      return false;
+    return isLowerHex(traceparent, 3, 35) && !isZeros(traceparent, 3, 35)
+        && isLowerHex(traceparent, 36, 52) && !isZeros(traceparent, 36, 52)
+        && isLowerHex(traceparent, 53, 55);
+  }
+
+  private static boolean isLowerHex(String s, int start, int end) {
+    for (int i = start; i < end; i++) {
+      char c = s.charAt(i);
+      if (!(c >= '0' && c <= '9') && !(c >= 'a' && c <= 'f'))
+        return false;
+    }
+    return true;
+  }
+
+  private static boolean isZeros(String s, int start, int end) {
+    for (int i = start; i < end; i++) {
+      if (s.charAt(i) != '0')
+        return false;
+    }
+    return true;
+  }
+
+  /** The traceparent header value to send to the target, making this span its parent. */
+  String toTraceparent() {
+    return "00-" + traceId + "-" + spanId + "-01";
+  }
+
+  /** Records that {@code phase} has just ended, unless already recorded. */
+  void mark(Phase phase) {
+    if (phaseEndNanos[phase.ordinal()] == 0)
+      phaseEndNanos[phase.ordinal()] = System.nanoTime();
+  }
+
+  /** Records that the request is complete. */
+  void end() {
+    endNanos = System.nanoTime();
+  }
+
+  void setTargetUri(String targetUri) {
+    this.targetUri = targetUri;
+  }
+
+  void setStatusCode(int statusCode) {
+    this.statusCode = statusCode;
+  }
+
+  void setError(Throwable error) {
+    this.error = error;
+  }
+
+  public String getTraceId() { return traceId; }
+  public String getSpanId() { return spanId; }
+  /** The caller's span id, or null if the request had no traceparent. */
+  public String getParentSpanId() { return parentSpanId; }
+  public long getStartTimeMillis() { return startTimeMillis; }
+  public String getMethod() { return method; }
+  /** The URI requested of the servlet. */
+  public String getRequestUri() { return requestUri; }
+  /** The URI requested of the target. */
+  public String getTargetUri() { return targetUri; }
+  /** The target's response status, or 0 if there was none. */
+  public int getStatusCode() { return statusCode; }
+  public Throwable getError() { return error; }
+
+  /** The duration of {@code phase} in nanoseconds; 0 if it didn't happen (e.g. on an error). */
+  public long getPhaseNanos(Phase phase) {
+    long end = phaseEndNanos[phase.ordinal()];
+    if (end == 0)
+      return 0;
+    long start = startNanos;
+    for (int i = phase.ordinal() - 1; i >= 0; i--) {
+      if (phaseEndNanos[i] != 0) {
+        start = phaseEndNanos[i];
+        break;
+      }
+    }
+    return end - start;
+  }
+
+  /** When {@code phase} started, in nanoseconds since this trace started. */
+  public long getPhaseOffsetNanos(Phase phase) {
+    return phaseEndNanos[phase.ordinal()] == 0 ? 0
+        : phaseEndNanos[phase.ordinal()] - startNanos - getPhaseNanos(phase);
+  }
+
+  /** The duration of the whole request (so far, if not complete), in nanoseconds. */
+  public long getTotalNanos() {
+    return (endNanos == 0 ? System.nanoTime() : endNanos) - startNanos;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder(200);
+    sb.append("trace=").append(traceId).append(" span=").append(spanId);
+    if (parentSpanId != null)
+      sb.append(" parent=").append(parentSpanId);
+    sb.append(' ').append(method).append(' ').append(requestUri);
+    sb.append(" -> ").append(targetUri).append(" status=").append(statusCode);
+    for (Phase phase : Phase.values()) {
+      sb.append(' ').append(phase.name().toLowerCase(Locale.ROOT)).append('=')
+          .append(getPhaseNanos(phase) / 1000).append("us");
+    }
+    sb.append(" total=").append(getTotalNanos() / 1000).append("us");
+    if (error != null)
+      sb.append(" error=").append(error);
+    return sb.toString();
+  }
+
+  private static String randomHex(int bytes) {
+    char[] chars = new char[bytes * 2];
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    for (int i = 0; i < chars.length; i++) {
+      chars[i] = HEX[random.nextInt(16)];
+    }
+    return new String(chars);
+  }
+
+  /** Marks {@link Phase#CONNECT} once HttpClient has a connection and is about to send. */
+  static final HttpRequestInterceptor CONNECTED_INTERCEPTOR = new HttpRequestInterceptor() {
+    @Override
+    public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+      ProxyTrace trace = (ProxyTrace) context.getAttribute(CONTEXT_ATTR);
+      if (trace != null) {
+        trace.mark(Phase.CONNECT);
+        //without a body, sending is just the headers; with one, the entity marks it when written
+        if (!(request instanceof HttpEntityEnclosingRequest)
+            || ((HttpEntityEnclosingRequest) request).getEntity() == null)
+          trace.mark(Phase.SEND);
+      }
+    }
+  };
+
+  /** Marks {@link Phase#FIRST_BYTE} once HttpClient has read the response headers. */
+  static final HttpResponseInterceptor FIRST_BYTE_INTERCEPTOR = new HttpResponseInterceptor() {
+    @Override
+    public void process(HttpResponse response, HttpContext context) throws HttpException, IOException {
+      ProxyTrace trace = (ProxyTrace) context.getAttribute(CONTEXT_ATTR);
+      if (trace != null) {
+        trace.mark(Phase.SEND);//in case the body wasn't sent, e.g. rejected after Expect: 100-continue
+        trace.mark(Phase.FIRST_BYTE);
+      }
+    }
+  };
+}
@@ -0,0 +1,49 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.params.CoreConnectionPNames;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+
+/**
+ * Sends proxied requests to the target: the HTTP client behind {@link ProxyServlet}.  Requests and
+ * responses are HttpCore 4 messages whatever the client, so filters, the cache and the rest of the
+ * servlet don't depend on it.  Choose one with the {@code transport} parameter:
+ * {@link HttpClientTransport "httpclient4"} (the default), {@link JdkHttpTransport "jdk"},
+ * {@link HttpClient5Transport "httpclient5"}, or the class name of another implementation with a
+ * public no-arg constructor.  It must be thread-safe.
+ */
+public interface ProxyTransport {
+
+  /**
+   * Sends {@code request}, whose URI is absolute, returning once the response headers arrive.  The
+   * response's entity streams the body; consuming or closing its content releases the connection.
+   * The request's params may set {@link CoreConnectionPNames#CONNECTION_TIMEOUT} and
+   * {@link CoreConnectionPNames#SO_TIMEOUT} (e.g. for a route), which override the transport's own
+   * timeouts; a timeout is an {@link IOException}.
+   * @param context HttpClient 4's context for the request, or null; other transports ignore it
+   */
+  HttpResponse execute(HttpHost target, HttpRequest request, HttpContext context) throws IOException;
+
+  /** Closes connections and frees resources; called when the servlet is destroyed. */
+  void close() throws IOException;
+}
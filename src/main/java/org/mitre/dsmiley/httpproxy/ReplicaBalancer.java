@@ -0,0 +1,208 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.utils.URIUtils;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spreads requests over replicas of a target by their observed latency, so traffic shifts away
+ * from one that slows down (a noisy neighbour, a GC pause) within seconds and comes back once it
+ * recovers.  Each replica keeps a peak-EWMA of its response time: a response slower than the
+ * estimate replaces it at once, while faster ones pull it down gradually, with a time constant of
+ * the decay period.  The estimate also decays toward zero while a replica isn't heard from, so an
+ * idle one is tried again.  A replica's cost is its estimate times one more than its requests in
+ * flight, and each request goes to the cheaper of two replicas picked at random ("power of two
+ * choices"), which avoids herding every request onto the one replica that looked fastest.  A
+ * failed request counts as taking the whole decay period, and so does a 502, 503 or 504 response,
+ * since an overloaded or broken replica tends to send those quickly and would otherwise look like
+ * the fastest.  Lock-free.
+ */
+public class ReplicaBalancer {
+
+  /** The latency assumed of a replica before it has responded. */
+  public static final long DEFAULT_INITIAL_LATENCY_MS = 50;
+
+  private final Replica[] replicas;
+  private final double decayNanos;
+
+  /**
+   * @param targetUris the target URI of each replica
+   * @param decayMs the time constant of the moving average
+   * @param initialLatencyMs the latency assumed of a replica before it has responded
+   */
+  public ReplicaBalancer(List<String> targetUris, long decayMs, long initialLatencyMs) {
+    if (targetUris.isEmpty())
+      throw new IllegalArgumentException("No replicas");
+    this.decayNanos = TimeUnit.MILLISECONDS.toNanos(decayMs);
+    long now = System.nanoTime();
+    replicas = new Replica[targetUris.size()];
+    for (int i = 0; i < replicas.length; i++) {
+      String targetUri = targetUris.get(i);
+      HttpHost host = URIUtils.extractHost(URI.create(targetUri));
+      if (host == null)
+        throw new IllegalArgumentException("Not an absolute URI: " + targetUri);
+      replicas[i] = new Replica(targetUri, host, TimeUnit.MILLISECONDS.toNanos(initialLatencyMs), now);
+    }
+  }
+
+  /** The replica to send the next request to. */
+  public Replica choose() {
+    if (replicas.length == 1)
+      return replicas[0];
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int i = random.nextInt(replicas.length);
+    int j = random.nextInt(replicas.length - 1);
+    if (j >= i)
+      j++;
+    long now = System.nanoTime();
+    return replicas[i].getCost(now) <= replicas[j].getCost(now) ? replicas[i] : replicas[j];
+  }
+
+  public List<Replica> getReplicas() {
+    return Collections.unmodifiableList(Arrays.asList(replicas));
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (Replica replica : replicas) {
+      if (sb.length() > 0)
+        sb.append("; ");
+      sb.append(replica);
+    }
+    return sb.toString();
+  }
+
+  /** A replica with its latency estimate and metrics. */
+  public class Replica {
+    private final String targetUri;
+    private final HttpHost host;
+    private final AtomicLong estimate;//Double bits, in nanoseconds
+    private final AtomicLong lastObserved;//System.nanoTime()
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    Replica(String targetUri, HttpHost host, long initialNanos, long now) {
+      this.targetUri = targetUri;
+      this.host = host;
+      this.estimate = new AtomicLong(Double.doubleToLongBits(initialNanos));
+      this.lastObserved = new AtomicLong(now);
+    }
+
+    /** Call as a request is sent to this replica, and {@link #finished()} once it completes. */
+    public void started() {
+      pending.incrementAndGet();
+      requests.incrementAndGet();
+    }
+
+    /** Call when this replica responds, after {@code nanos} since the request was sent. */
+    public void responded(long nanos) {
+      observe(nanos, System.nanoTime());
+    }
+
+    /** Call when this replica responds with {@code status}, after {@code nanos} since the request
+     * was sent; a 502 (Bad Gateway), 503 (Service Unavailable) or 504 (Gateway Timeout) counts as
+     * {@link #failed()}. */
+    public void responded(int status, long nanos) {
+      if (status == HttpStatus.SC_BAD_GATEWAY || status == HttpStatus.SC_SERVICE_UNAVAILABLE
+          || status == HttpStatus.SC_GATEWAY_TIMEOUT)
+        failed();
+      else
+        responded(nanos);
+    }
+
+    /** Call when a request to this replica fails for want of a response. */
+    public void failed() {
+      failures.incrementAndGet();
+      observe((long) decayNanos, System.nanoTime());
+    }
+
+    public void finished() {
+      pending.decrementAndGet();
+    }
+
+    void observe(long nanos, long now) {
+      long elapsed = Math.max(0, now - lastObserved.getAndSet(now));
+      double weight = Math.exp(-elapsed / decayNanos);
+      while (true) {
+        long bits = estimate.get();
+        double current = Double.longBitsToDouble(bits);
+        double next = nanos > current ? nanos : current * weight + nanos * (1 - weight);
+        if (estimate.compareAndSet(bits, Double.doubleToLongBits(next)))
+          return;
+      }
+    }
+
+    /** The latency estimate in nanoseconds as of {@code now}, having decayed since last observed. */
+    double getLatencyNanos(long now) {
+      long elapsed = Math.max(0, now - lastObserved.get());
+      return Double.longBitsToDouble(estimate.get()) * Math.exp(-elapsed / decayNanos);
+    }
+
+    double getCost(long now) {
+      return getLatencyNanos(now) * (pending.get() + 1);
+    }
+
+    /** The target URI to send this replica's requests to. */
+    public String getTargetUri() {
+      return targetUri;
+    }
+
+    public HttpHost getHost() {
+      return host;
+    }
+
+    public double getLatencyMs() {
+      return getLatencyNanos(System.nanoTime()) / 1e6;
+    }
+
+    /** The number of requests to this replica in flight now. */
+    public int getPending() {
+      return pending.get();
+    }
+
+    /** The number of requests sent to this replica. */
+    public long getRequests() {
+      return requests.get();
+    }
+
+    /** The number of requests to this replica that failed without a response, or with a 502, 503
+     * or 504. */
+    public long getFailures() {
+      return failures.get();
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s latencyMs=%.2f pending=%d requests=%d failures=%d", targetUri,
+          getLatencyMs(), getPending(), getRequests(), getFailures());
+    }
+  }
+}
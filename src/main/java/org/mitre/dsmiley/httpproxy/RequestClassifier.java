@@ -0,0 +1,125 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Assigns requests to {@link FairQueue} classes by rules, one per line, tried in order:
+ * <pre>
+ *   name   [weight=N] [maxQueue=N] [path=/prefix] [header.NAME=value] [servlet=name]
+ * </pre>
+ * For example:
+ * <pre>
+ *   interactive  weight=8  path=/api
+ *   bulk         weight=1  maxQueue=100  path=/export
+ *   acme         weight=2  header.X-Tenant=acme
+ * </pre>
+ * A request is in the class of the first rule whose conditions all hold; a path matches on a
+ * segment boundary of the path info, and a header value of {@code *} matches any value.  Rules
+ * may repeat a name to give a class several alternative conditions; its weight and maxQueue come
+ * from the first.  Requests matching no rule are in the class named "default", which has a weight
+ * of 1 unless a rule names it.  Blank lines and lines starting with '#' are ignored.  Immutable.
+ */
+class RequestClassifier {
+
+  static final String DEFAULT_CLASS = "default";
+
+  private final Rule[] rules;
+  private final FairQueue.RequestClass defaultClass;
+
+  private RequestClassifier(Rule[] rules, FairQueue.RequestClass defaultClass) {
+    this.rules = rules;
+    this.defaultClass = defaultClass;
+  }
+
+  /** Parses the rules, adding their classes to {@code queue}. */
+  static RequestClassifier parse(String config, FairQueue queue) {
+    List<Rule> rules = new ArrayList<Rule>();
+    for (String line : config.split("[\r\n]+")) {
+      line = line.trim();
+      if (line.length() == 0 || line.startsWith("#"))
+        continue;
+      List<String> tokens = RoutingProxyServlet.RouteTable.tokenize(line);
+      String name = tokens.get(0);
+      int weight = 1;
+      int maxQueue = -1;
+      Rule rule = new Rule();
+      for (String option : tokens.subList(1, tokens.size())) {
+        int eq = option.indexOf('=');
+        if (eq <= 0)
+          throw new IllegalArgumentException("Request class option must be name=value: " + option);
+        String key = option.substring(0, eq);
+        String value = option.substring(eq + 1);
+        if (key.equals("weight"))
+          weight = Integer.parseInt(value);
+        else if (key.equals("maxQueue"))
+          maxQueue = Integer.parseInt(value);
+        else if (key.equals("path"))
+          rule.path = value.endsWith("/") ? value.substring(0, value.length() - 1) : value;
+        else if (key.startsWith("header."))
+          rule.headers.add(new String[]{key.substring("header.".length()), value});
+        else if (key.equals("servlet"))
+          rule.servletName = value;
+        else
+          throw new IllegalArgumentException("Unknown request class option " + key + " in: " + line);
+      }
+      rule.requestClass = queue.getRequestClass(name);
+      if (rule.requestClass == null)
+        rule.requestClass = queue.addClass(name, weight, maxQueue);
+      rules.add(rule);
+    }
+    FairQueue.RequestClass defaultClass = queue.getRequestClass(DEFAULT_CLASS);
+    if (defaultClass == null)
+      defaultClass = queue.addClass(DEFAULT_CLASS, 1, -1);
+    return new RequestClassifier(rules.toArray(new Rule[rules.size()]), defaultClass);
+  }
+
+  FairQueue.RequestClass classify(HttpServletRequest servletRequest, String servletName) {
+    for (Rule rule : rules) {
+      if (rule.matches(servletRequest, servletName))
+        return rule.requestClass;
+    }
+    return defaultClass;
+  }
+
+  private static class Rule {
+    FairQueue.RequestClass requestClass;
+    String path;//no trailing '/'
+    final List<String[]> headers = new ArrayList<String[]>();
+    String servletName;
+
+    boolean matches(HttpServletRequest servletRequest, String name) {
+      if (servletName != null && !servletName.equals(name))
+        return false;
+      if (path != null) {
+        String pathInfo = servletRequest.getPathInfo();
+        if (pathInfo == null || !pathInfo.startsWith(path)
+            || (pathInfo.length() > path.length() && pathInfo.charAt(path.length()) != '/'))
+          return false;
+      }
+      for (String[] header : headers) {
+        String value = servletRequest.getHeader(header[0]);
+        if (value == null || !(header[1].equals("*") || header[1].equals(value)))
+          return false;
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,406 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.http.ConnectionReuseStrategy;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.http.impl.client.AbstractHttpClient;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sends concurrent small GETs to the same target over one connection with HTTP/1.1 pipelining:
+ * all the requests are written, then the responses are read back in order and handed to the
+ * threads waiting on them.  This saves a pool lease and a round trip per request for bursts of
+ * tiny requests.  Only enable it for targets known to support pipelining.
+ * <p>
+ * The first request to a target opens a batch and, if other requests are in flight, waits up to
+ * the batch window for more to join (up to a max) before sending it; a batch of one is just
+ * executed by the client.  Response bodies are buffered, so they must be small; a response over
+ * the limit, or the connection closing or failing, ends the pipeline and the requests not yet
+ * answered are each executed by the client as usual, which is safe since GETs are idempotent.
+ * Likewise a request not answered within the timeout, which bounds both leasing the connection
+ * (unless the client's own connection manager timeout is set) and waiting on the responses ahead.
+ * Buffered bodies are charged to the {@link MemoryBudget} until they're consumed, and one the
+ * budget can't cover likewise ends the pipeline, so the rest stream instead.
+ * Pipelined requests bypass the client's interceptors and aren't sent through a proxy.
+ * </p>
+ */
+@SuppressWarnings("deprecation")
+public class RequestPipeliner {
+
+  private final HttpClient client;
+  private final long windowNanos;
+  private final long timeoutMs;
+  private final int maxRequests;
+  private final int maxBodyBytes;
+  private final MemoryBudget memoryBudget;
+  private final ConnectionReuseStrategy reuseStrategy = new DefaultConnectionReuseStrategy();
+
+  //a j.u.c. lock rather than a monitor so that waiting doesn't pin a virtual thread's carrier
+  private final ReentrantLock lock = new ReentrantLock();
+  /** The batch being filled, by target. Guarded by the lock. */
+  private final Map<HttpHost, Batch> openBatches = new HashMap<HttpHost, Batch>();
+  private final AtomicInteger inFlight = new AtomicInteger();
+
+  private final AtomicLong pipelines = new AtomicLong();
+  private final AtomicLong pipelinedRequests = new AtomicLong();
+  private final AtomicLong fallbacks = new AtomicLong();
+
+  RequestPipeliner(HttpClient client, long windowMs, long timeoutMs, int maxRequests, int maxBodyBytes,
+                   MemoryBudget memoryBudget) {
+    this.client = client;
+    this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMs);
+    this.timeoutMs = timeoutMs;
+    this.maxRequests = maxRequests;
+    this.maxBodyBytes = maxBodyBytes;
+    this.memoryBudget = memoryBudget;
+  }
+
+  /** Whether the request may be pipelined: a GET without a body, or with an empty one. */
+  boolean accepts(HttpRequest request) {
+    if (!"GET".equals(request.getRequestLine().getMethod()))
+      return false;
+    if (!(request instanceof HttpEntityEnclosingRequest))
+      return true;
+    HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+    return entity == null || entity.getContentLength() == 0;//e.g. "Content-Length: 0"
+  }
+
+  /** Executes the request, pipelined with others to the same target if there are any. */
+  HttpResponse execute(HttpHost target, HttpRequest request, HttpContext context) throws IOException {
+    inFlight.incrementAndGet();
+    try {
+      long startNanos = System.nanoTime();
+      Pending pending = new Pending(request);
+      Batch batch;
+      boolean leader = false;
+      lock.lock();
+      try {
+        batch = openBatches.get(target);
+        if (batch == null) {
+          batch = new Batch();
+          openBatches.put(target, batch);
+          leader = true;
+        }
+        batch.requests.add(pending);
+        if (batch.requests.size() >= maxRequests) {
+          openBatches.remove(target);
+          batch.full.countDown();
+        }
+      } finally {
+        lock.unlock();
+      }
+      if (leader) {
+        if (inFlight.get() > 1)
+          awaitQuietly(batch.full, windowNanos);
+        lock.lock();
+        try {
+          if (openBatches.get(target) == batch)
+            openBatches.remove(target);
+        } finally {
+          lock.unlock();
+        }
+        //the batch can't be added to now
+        if (batch.requests.size() > 1)
+          send(target, batch.requests);
+        else
+          pending.fallBack();
+      } else {
+        long waitNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs) - (System.nanoTime() - startNanos);
+        if (!awaitQuietly(pending.done, waitNanos) && pending.giveUp()) {
+          fallbacks.incrementAndGet();
+          return client.execute(target, request, context);
+        }
+      }
+      HttpResponse response = pending.response;
+      return response != null ? response : client.execute(target, request, context);
+    } finally {
+      inFlight.decrementAndGet();
+    }
+  }
+
+  /** Returns false on timeout or interruption. */
+  private static boolean awaitQuietly(CountDownLatch latch, long nanos) {
+    try {
+      return latch.await(nanos, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /** Pipelines the requests over one connection. Those not answered are left to fall back. */
+  private void send(HttpHost target, List<Pending> requests) {
+    pipelines.incrementAndGet();
+    ClientConnectionManager connManager = client.getConnectionManager();
+    ManagedClientConnection conn = null;
+    HttpResponse last = null;
+    boolean reusable = false;
+    try {
+      HttpRoute route = ConnectionWarmer.determineRoute(client, target);
+      if (route.getHopCount() > 1)
+        return;
+      long leaseTimeoutMs = HttpClientParams.getConnectionManagerTimeout(client.getParams());
+      conn = connManager.requestConnection(route, null)
+          .getConnection(leaseTimeoutMs > 0 ? leaseTimeoutMs : timeoutMs, TimeUnit.MILLISECONDS);
+      if (conn.isOpen() && conn.isStale())
+        conn.close();
+      if (!conn.isOpen())
+        conn.open(route, new BasicHttpContext(), client.getParams());
+      List<Pending> sent = new ArrayList<Pending>(requests.size());
+      for (Pending pending : requests) {
+        if (pending.isSettled())
+          continue;//gave up waiting
+        conn.sendRequestHeader(toWireRequest(target, pending.request));
+        sent.add(pending);
+      }
+      conn.flush();
+      HttpContext context = new BasicHttpContext();
+      for (Pending pending : sent) {
+        last = receive(conn);
+        pipelinedRequests.incrementAndGet();
+        if (!pending.complete(last))
+          EntityUtils.consumeQuietly(last.getEntity());//gave up waiting
+        if (!reuseStrategy.keepAlive(last, context))
+          return;
+      }
+      reusable = true;
+    } catch (Exception e) {
+      //fall back
+    } finally {
+      for (Pending pending : requests) {
+        if (pending.fallBack())
+          fallbacks.incrementAndGet();
+      }
+      if (conn != null)
+        release(connManager, conn, reusable ? last : null);
+    }
+  }
+
+  private void release(ClientConnectionManager connManager, ManagedClientConnection conn, HttpResponse last) {
+    long keepAlive = -1;
+    if (last != null) {
+      conn.markReusable();
+      if (client instanceof AbstractHttpClient)
+        keepAlive = ((AbstractHttpClient) client).getConnectionKeepAliveStrategy()
+            .getKeepAliveDuration(last, new BasicHttpContext());
+    } else {
+      conn.unmarkReusable();
+      try {
+        conn.shutdown();
+      } catch (IOException e) {
+        //closing anyway
+      }
+    }
+    connManager.releaseConnection(conn, keepAlive, TimeUnit.MILLISECONDS);
+  }
+
+  /** The request as sent directly to the target: with the URI's path and query, and a Host. */
+  private static HttpRequest toWireRequest(HttpHost target, HttpRequest request) throws Exception {
+    URI uri = URIUtils.rewriteURI(new URI(request.getRequestLine().getUri()), null);
+    HttpRequest wire = new BasicHttpRequest("GET", uri.toString(), HttpVersion.HTTP_1_1);
+    wire.setHeaders(request.getAllHeaders());
+    if (!wire.containsHeader(HttpHeaders.HOST))
+      wire.setHeader(HttpHeaders.HOST, target.toHostString());
+    return wire;
+  }
+
+  private HttpResponse receive(ManagedClientConnection conn) throws Exception {
+    HttpResponse response;
+    do {
+      response = conn.receiveResponseHeader();
+    } while (response.getStatusLine().getStatusCode() < HttpStatus.SC_OK);
+    int status = response.getStatusLine().getStatusCode();
+    if (status == HttpStatus.SC_NO_CONTENT || status == HttpStatus.SC_NOT_MODIFIED
+        || status == HttpStatus.SC_RESET_CONTENT)
+      return response;
+    conn.receiveResponseEntity(response);
+    HttpEntity entity = response.getEntity();
+    if (entity.getContentLength() > maxBodyBytes)
+      throw new IOException("Response body too large to pipeline");
+    //reserve the most it could be, as both the buffer and the copy exist at the end
+    long reserved = 2L * (entity.getContentLength() >= 0 ? entity.getContentLength() : maxBodyBytes);
+    if (!memoryBudget.tryAcquire(reserved))
+      throw new IOException("Over the memory budget; not pipelining");
+    BufferedEntity buffered;
+    try {
+      ByteArrayOutputStream body = new ByteArrayOutputStream(
+          entity.getContentLength() >= 0 ? (int) entity.getContentLength() : 1024);
+      InputStream in = entity.getContent();
+      byte[] buffer = new byte[4096];
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        body.write(buffer, 0, n);
+        if (body.size() > maxBodyBytes)
+          throw new IOException("Response body too large to pipeline");
+      }
+      byte[] bytes = body.toByteArray();
+      memoryBudget.release(reserved - bytes.length);
+      buffered = new BufferedEntity(bytes, memoryBudget);
+    } catch (Exception e) {
+      memoryBudget.release(reserved);
+      throw e;
+    }
+    Header contentType = entity.getContentType();
+    if (contentType != null)
+      buffered.setContentType(contentType);
+    Header contentEncoding = entity.getContentEncoding();
+    if (contentEncoding != null)
+      buffered.setContentEncoding(contentEncoding);
+    response.setEntity(buffered);
+    return response;
+  }
+
+  /** The number of connections requests were pipelined over. */
+  public long getPipelines() {
+    return pipelines.get();
+  }
+
+  /** The number of requests answered through a pipeline. */
+  public long getPipelinedRequests() {
+    return pipelinedRequests.get();
+  }
+
+  /** The number of requests batched for a pipeline that weren't answered, so were sent alone. */
+  public long getFallbacks() {
+    return fallbacks.get();
+  }
+
+  /** A buffered body that gives its bytes back to the budget once it's been read or consumed. */
+  private static class BufferedEntity extends ByteArrayEntity {
+    private final MemoryBudget memoryBudget;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    BufferedEntity(byte[] bytes, MemoryBudget memoryBudget) {
+      super(bytes);
+      this.memoryBudget = memoryBudget;
+    }
+
+    private void release() {
+      if (released.compareAndSet(false, true))
+        memoryBudget.release(content.length);
+    }
+
+    /** So that EntityUtils.consume() closes it. */
+    @Override
+    public boolean isStreaming() {
+      return !released.get();
+    }
+
+    @Override
+    public InputStream getContent() {
+      return new ByteArrayInputStream(content) {
+        @Override
+        public void close() {
+          release();
+        }
+      };
+    }
+
+    @Override
+    public void writeTo(OutputStream outstream) throws IOException {
+      try {
+        super.writeTo(outstream);
+      } finally {
+        release();
+      }
+    }
+  }
+
+  private static class Batch {
+    final List<Pending> requests = new ArrayList<Pending>();
+    final CountDownLatch full = new CountDownLatch(1);
+  }
+
+  /** A request waiting for its response from a pipeline.  It's settled once: answered, fallen back,
+   * or given up on by the waiting thread. */
+  private static class Pending {
+    final HttpRequest request;
+    final CountDownLatch done = new CountDownLatch(1);
+    final AtomicBoolean settled = new AtomicBoolean();
+    volatile HttpResponse response;//null if it fell back
+
+    Pending(HttpRequest request) {
+      this.request = request;
+    }
+
+    boolean isSettled() {
+      return settled.get();
+    }
+
+    /** Hands the response to the waiting thread; returns false if it gave up waiting. */
+    boolean complete(HttpResponse response) {
+      this.response = response;//before settling, for a thread whose giveUp() fails
+      if (!settled.compareAndSet(false, true)) {
+        this.response = null;
+        return false;
+      }
+      done.countDown();
+      return true;
+    }
+
+    /** Lets the waiting thread send the request itself; returns false if already settled. */
+    boolean fallBack() {
+      if (!settled.compareAndSet(false, true))
+        return false;
+      done.countDown();
+      return true;
+    }
+
+    /** Called by the waiting thread when it stops waiting; returns false if it was settled
+     * meanwhile, and so has its response if it was answered. */
+    boolean giveUp() {
+      return settled.compareAndSet(false, true);
+    }
+  }
+}
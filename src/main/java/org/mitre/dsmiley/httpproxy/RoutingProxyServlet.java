@@ -0,0 +1,613 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.params.HttpConnectionParams;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A proxy servlet that routes to one of many targets by path prefix, and optionally by the
+ * request's Host header, so that a single servlet (and a single pooled HttpClient) can front many
+ * backends.  Routes are given by the {@code routes} parameter, one per line:
+ * <pre>
+ *   [host]/prefix   targetUri   [option=value ...]
+ * </pre>
+ * For example:
+ * <pre>
+ *   /solr                 http://solrserver:8983/solr
+ *   /api                  http://apiserver:8080/v2   socketTimeout=5000 header.X-Tenant=acme
+ *   static.example.com/   http://cdn:80/static       cookies=false
+ * </pre>
+ * The longest matching prefix wins, with routes for the request's host taking precedence over
+ * host-less ones.  The matched prefix is removed from the path info before it is appended to the
+ * route's target URI.  Blank lines and lines starting with '#' are ignored.  Route options:
+ * <ul>
+ *   <li>{@code connectTimeout}, {@code socketTimeout}: in milliseconds; override the client's.  The
+ *   "jdk" {@link #P_TRANSPORT} can't take a connectTimeout, so routes with one are rejected.</li>
+ *   <li>{@code cookies}: false to neither send nor accept cookies for this route.</li>
+ *   <li>{@code header.NAME}: a header to set on requests to the target.  Quote values with
+ *   spaces: {@code header.Authorization="Basic abc="}</li>
+ *   <li>{@code forwarded}: the forwarded headers to send this target, overriding
+ *   {@link #P_FORWARDED_HEADERS}, e.g. {@code forwarded=X-Forwarded-Proto,Forwarded} or
+ *   {@code forwarded=none}.</li>
+ *   <li>{@code responseBufferSize}: in bytes; overrides {@link #P_RESPONSE_BUFFER_SIZE}.</li>
+ *   <li>{@code flushHeaders}: overrides {@link #P_FLUSH_HEADERS}, e.g. true for a slow streaming
+ *   target.</li>
+ * </ul>
+ * Consider raising {@link #P_MAX_CONNECTIONS} and {@link #P_MAX_CONNECTIONS_PER_ROUTE} since all
+ * routes share one connection pool.
+ * <p>
+ *   Instead of {@code routes}, {@code routesFile} may name a file in the same format.  It's checked
+ *   for changes every {@code routesReloadSeconds} (default 5) and a changed file replaces the
+ *   routing table without a redeploy.  The table is an immutable snapshot swapped atomically, so
+ *   requests never lock and in-flight requests finish against the routes they started with.  A
+ *   table that fails to parse is logged and ignored.  For other sources (a database, an admin
+ *   endpoint) override {@link #createRoutesSource()} or call {@link #reloadRoutes(String)}.
+ * </p>
+ */
+public class RoutingProxyServlet extends ProxyServlet {
+
+  /** The parameter name for the routing table. */
+  public static final String P_ROUTES = "routes";
+
+  /** The parameter name for a file holding the routing table, watched for changes. */
+  public static final String P_ROUTES_FILE = "routesFile";
+
+  /** An integer parameter name for how often to check for changed routes; 0 disables. */
+  public static final String P_ROUTES_RELOAD_SECONDS = "routesReloadSeconds";
+
+  protected static final String ATTR_ROUTE =
+          RoutingProxyServlet.class.getSimpleName() + ".route";
+  private static final String ATTR_PREFIX_LENGTH =
+          RoutingProxyServlet.class.getSimpleName() + ".prefixLength";
+
+  /** The current snapshot; replaced, never modified. */
+  protected volatile RouteTable routeTable;
+
+  private RoutesSource routesSource;
+  private long routesVersion;
+  private ScheduledExecutorService reloadExecutor;
+
+  @Override
+  public void init() throws ServletException {
+    super.init();
+    checkTransport(routeTable);
+  }
+
+  @Override
+  protected void initTarget() throws ServletException {
+    routesSource = createRoutesSource();
+    try {
+      routesVersion = routesSource.getVersion();
+      routeTable = RouteTable.parse(routesSource.getRoutes());
+    } catch (IOException e) {
+      throw new ServletException("Trying to read routes: "+e, e);
+    }
+
+    String reloadSecondsStr = getConfigParam(P_ROUTES_RELOAD_SECONDS);
+    int reloadSeconds = reloadSecondsStr != null ? Integer.parseInt(reloadSecondsStr) : 5;
+    if (reloadSeconds > 0 && routesSource.isChangeable()) {
+      reloadExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "ProxyServlet routes reloader " + getServletName());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      reloadExecutor.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          checkRoutesSource();
+        }
+      }, reloadSeconds, reloadSeconds, TimeUnit.SECONDS);
+    }
+
+    //leave this.target* null to prevent accidental mis-use
+  }
+
+  /** Called from {@link #initTarget()}. By default reads {@link #P_ROUTES_FILE} if set, otherwise
+   * {@link #P_ROUTES}. */
+  protected RoutesSource createRoutesSource() throws ServletException {
+    String routesFile = getConfigParam(P_ROUTES_FILE);
+    if (routesFile != null)
+      return new FileRoutesSource(new File(routesFile));
+    final String routes = getConfigParam(P_ROUTES);
+    if (routes == null)
+      throw new ServletException(P_ROUTES+" or "+P_ROUTES_FILE+" is required.");
+    return new RoutesSource() {
+      @Override public long getVersion() { return 0; }
+      @Override public String getRoutes() { return routes; }
+      @Override public boolean isChangeable() { return false; }
+    };
+  }
+
+  /** Re-reads the routes source if its version changed. Called periodically in the background. */
+  protected void checkRoutesSource() {
+    try {
+      long version = routesSource.getVersion();
+      if (version == routesVersion)
+        return;
+      routesVersion = version;//even if it fails to load; don't retry until it changes again
+      reloadRoutes(routesSource.getRoutes());
+    } catch (Exception e) {
+      log("Keeping the current routes; could not reload them: "+e, e);
+    }
+  }
+
+  /** Parses {@code routes} and, if valid, atomically replaces the routing table. Requests in
+   * flight keep using the table they started with.  Since routes share one connection pool there
+   * is no pool to drain; connections to targets no longer routed to sit idle until the pool
+   * reclaims them for other targets. */
+  public void reloadRoutes(String routes) throws ServletException {
+    RouteTable newTable = RouteTable.parse(routes);
+    if (getTransport() != null)//else checked once init creates it
+      checkTransport(newTable);
+    routeTable = newTable;
+    log("Loaded " + newTable.getRoutes().size() + " routes");
+  }
+
+  /** Rejects route options the transport can't apply, rather than ignoring them. */
+  protected void checkTransport(RouteTable table) throws ServletException {
+    if (!(getTransport() instanceof JdkHttpTransport))
+      return;
+    for (Route route : table.getRoutes()) {
+      if (route.getConnectTimeout() >= 0)
+        throw new ServletException("The jdk "+P_TRANSPORT+" can't apply connectTimeout of route "+route);
+    }
+  }
+
+  /** The distinct targets of all routes. */
+  @Override
+  protected List<HttpHost> getWarmupTargets() {
+    List<HttpHost> targets = new ArrayList<HttpHost>();
+    for (Route route : routeTable.getRoutes()) {
+      if (!targets.contains(route.getTargetHost()))
+        targets.add(route.getTargetHost());
+    }
+    return targets;
+  }
+
+  /** The current routing table snapshot. */
+  public RouteTable getRouteTable() {
+    return routeTable;
+  }
+
+  @Override
+  public void destroy() {
+    if (reloadExecutor != null)
+      reloadExecutor.shutdownNow();
+    super.destroy();
+  }
+
+  /** The route for this request, set by {@link #service(HttpServletRequest, HttpServletResponse)}. */
+  protected Route getRoute(HttpServletRequest servletRequest) {
+    return (Route) servletRequest.getAttribute(ATTR_ROUTE);
+  }
+
+  @Override
+  protected void service(HttpServletRequest servletRequest, HttpServletResponse servletResponse)
+          throws ServletException, IOException {
+    String pathInfo = servletRequest.getPathInfo();
+    int[] prefixLength = new int[1];
+    Route route = routeTable.find(servletRequest.getHeader(HttpHeaders.HOST),
+        pathInfo == null ? "" : pathInfo, prefixLength);
+    if (route == null) {
+      servletResponse.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    servletRequest.setAttribute(ATTR_ROUTE, route);
+    servletRequest.setAttribute(ATTR_PREFIX_LENGTH, prefixLength[0]);
+    servletRequest.setAttribute(ATTR_TARGET_URI, route.getTargetUri());
+    servletRequest.setAttribute(ATTR_TARGET_HOST, route.getTargetHost());
+
+    super.service(servletRequest, servletResponse);
+  }
+
+  @Override
+  protected String rewritePathInfoFromRequest(HttpServletRequest servletRequest) {
+    String pathInfo = servletRequest.getPathInfo();
+    if (pathInfo == null)
+      return null;
+    return pathInfo.substring((Integer) servletRequest.getAttribute(ATTR_PREFIX_LENGTH));
+  }
+
+  @Override
+  protected void copyRequestHeaders(HttpServletRequest servletRequest, HttpRequest proxyRequest) {
+    super.copyRequestHeaders(servletRequest, proxyRequest);
+    applyRouteOptions(getRoute(servletRequest), proxyRequest);
+  }
+
+  /** Applies the route's per-target headers, cookie policy and timeouts to the proxy request. */
+  @SuppressWarnings("deprecation")
+  protected void applyRouteOptions(Route route, HttpRequest proxyRequest) {
+    if (!route.isCookies())
+      proxyRequest.removeHeaders(org.apache.http.cookie.SM.COOKIE);
+    for (Header header : route.getHeaders()) {
+      proxyRequest.setHeader(header);
+    }
+    //request params take precedence over the client's
+    if (route.getConnectTimeout() >= 0)
+      HttpConnectionParams.setConnectionTimeout(proxyRequest.getParams(), route.getConnectTimeout());
+    if (route.getSocketTimeout() >= 0)
+      HttpConnectionParams.setSoTimeout(proxyRequest.getParams(), route.getSocketTimeout());
+  }
+
+  @Override
+  protected int getForwardedHeaders(HttpServletRequest servletRequest) {
+    int routeHeaders = getRoute(servletRequest).getForwardedHeaders();
+    return routeHeaders >= 0 ? routeHeaders : super.getForwardedHeaders(servletRequest);
+  }
+
+  @Override
+  protected int getResponseBufferSize(HttpServletRequest servletRequest) {
+    int routeBufferSize = getRoute(servletRequest).getResponseBufferSize();
+    return routeBufferSize >= 0 ? routeBufferSize : super.getResponseBufferSize(servletRequest);
+  }
+
+  @Override
+  protected boolean isFlushHeaders(HttpServletRequest servletRequest) {
+    Boolean routeFlushHeaders = getRoute(servletRequest).getFlushHeaders();
+    return routeFlushHeaders != null ? routeFlushHeaders : super.isFlushHeaders(servletRequest);
+  }
+
+  @Override
+  protected void copyProxyCookie(HttpServletRequest servletRequest,
+                                 HttpServletResponse servletResponse, Header header) {
+    if (getRoute(servletRequest).isCookies())
+      super.copyProxyCookie(servletRequest, servletResponse, header);
+  }
+
+  @Override
+  protected String rewriteSetCookie(HttpServletRequest servletRequest, String setCookie) {
+    return getRoute(servletRequest).isCookies() ? super.rewriteSetCookie(servletRequest, setCookie) : null;
+  }
+
+  @Override
+  protected String getProxyBaseUrl(HttpServletRequest servletRequest) {
+    String curUrl = servletRequest.getRequestURL().toString();//no query
+    String pathInfo = servletRequest.getPathInfo();
+    if (pathInfo != null) {
+      int prefixLength = (Integer) servletRequest.getAttribute(ATTR_PREFIX_LENGTH);
+      //take off the part of pathInfo following the route's prefix
+      curUrl = curUrl.substring(0, curUrl.length() - (pathInfo.length() - prefixLength));
+    }
+    return curUrl;
+  }
+
+  /** Supplies the routes configuration.  Implementations are called from one thread at a time. */
+  public interface RoutesSource {
+    /** Changes whenever the routes change, e.g. a last-modified time; cheap to call. */
+    long getVersion() throws IOException;
+
+    /** The routes in the format documented on {@link RoutingProxyServlet}. */
+    String getRoutes() throws IOException;
+
+    /** False if the routes never change, so there is no need to poll. */
+    boolean isChangeable();
+  }
+
+  /** Reads routes from a file, versioned by its last-modified time and length. */
+  public static class FileRoutesSource implements RoutesSource {
+    private final File file;
+
+    public FileRoutesSource(File file) {
+      this.file = file;
+    }
+
+    @Override
+    public long getVersion() throws IOException {
+      if (!file.isFile())
+        throw new IOException("Not a file: " + file);
+      return file.lastModified() * 31 + file.length();
+    }
+
+    @Override
+    public String getRoutes() throws IOException {
+      StringBuilder sb = new StringBuilder((int) file.length());
+      try (Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8")) {
+        char[] buf = new char[4096];
+        int len;
+        while ((len = reader.read(buf)) != -1) {
+          sb.append(buf, 0, len);
+        }
+      }
+      return sb.toString();
+    }
+
+    @Override
+    public boolean isChangeable() {
+      return true;
+    }
+  }
+
+  /** A target to proxy to along with per-target options.  Immutable. */
+  public static class Route {
+    private final String host;//lower-cased, no port; or null
+    private final String prefix;//no trailing '/'
+    private final String targetUri;
+    private final HttpHost targetHost;
+    private final int connectTimeout;
+    private final int socketTimeout;
+    private final boolean cookies;
+    private final Header[] headers;
+    private final int forwardedHeaders;
+    private final int responseBufferSize;
+    private final Boolean flushHeaders;
+
+    /** A route's optional settings, as set by the route options; see {@link RoutingProxyServlet}.
+     * Unset, each one is the servlet's. */
+    public static class Options {
+      private int connectTimeout = -1;
+      private int socketTimeout = -1;
+      private boolean cookies = true;
+      private Header[] headers = new Header[0];
+      private int forwardedHeaders = -1;
+      private int responseBufferSize = -1;
+      private Boolean flushHeaders;
+
+      /** In milliseconds. */
+      public Options connectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+        return this;
+      }
+
+      /** In milliseconds. */
+      public Options socketTimeout(int socketTimeout) {
+        this.socketTimeout = socketTimeout;
+        return this;
+      }
+
+      /** Whether cookies are passed through. Defaults to true. */
+      public Options cookies(boolean cookies) {
+        this.cookies = cookies;
+        return this;
+      }
+
+      /** Headers to set on requests to the target. */
+      public Options headers(Header[] headers) {
+        this.headers = headers;
+        return this;
+      }
+
+      /** A bit set of {@link ForwardedHeaders} constants. */
+      public Options forwardedHeaders(int forwardedHeaders) {
+        this.forwardedHeaders = forwardedHeaders;
+        return this;
+      }
+
+      /** In bytes. */
+      public Options responseBufferSize(int responseBufferSize) {
+        this.responseBufferSize = responseBufferSize;
+        return this;
+      }
+
+      public Options flushHeaders(boolean flushHeaders) {
+        this.flushHeaders = flushHeaders;
+        return this;
+      }
+    }
+
+    public Route(String host, String prefix, String targetUri, Options options) throws ServletException {
+      this.host = host;
+      this.prefix = prefix;
+      this.targetUri = targetUri;
+      try {
+        this.targetHost = URIUtils.extractHost(new URI(targetUri));
+      } catch (Exception e) {
+        throw new ServletException("Trying to process route targetUri "+targetUri+": "+e,e);
+      }
+      if (this.targetHost == null)
+        throw new ServletException("Route targetUri has no host: "+targetUri);
+      this.connectTimeout = options.connectTimeout;
+      this.socketTimeout = options.socketTimeout;
+      this.cookies = options.cookies;
+      this.headers = options.headers;
+      this.forwardedHeaders = options.forwardedHeaders;
+      this.responseBufferSize = options.responseBufferSize;
+      this.flushHeaders = options.flushHeaders;
+    }
+
+    public String getHost() { return host; }
+    public String getPrefix() { return prefix; }
+    public String getTargetUri() { return targetUri; }
+    public HttpHost getTargetHost() { return targetHost; }
+    /** In milliseconds, or -1 to use the client's. */
+    public int getConnectTimeout() { return connectTimeout; }
+    /** In milliseconds, or -1 to use the client's. */
+    public int getSocketTimeout() { return socketTimeout; }
+    public boolean isCookies() { return cookies; }
+    public Header[] getHeaders() { return headers; }
+    /** A bit set of {@link ForwardedHeaders} constants, or -1 to use the servlet's. */
+    public int getForwardedHeaders() { return forwardedHeaders; }
+    /** In bytes, or -1 to use the servlet's. */
+    public int getResponseBufferSize() { return responseBufferSize; }
+    /** Or null to use the servlet's. */
+    public Boolean getFlushHeaders() { return flushHeaders; }
+
+    @Override
+    public String toString() {
+      return (host == null ? "" : host) + prefix + " -> " + targetUri;
+    }
+  }
+
+  /** An immutable routing table: a {@link PathTrie} per host plus one for any host. */
+  public static class RouteTable {
+    private final PathTrie<Route> anyHost = new PathTrie<Route>();
+    private final Map<String, PathTrie<Route>> byHost = new HashMap<String, PathTrie<Route>>();
+    private final List<Route> routes = new ArrayList<Route>();
+
+    private RouteTable() {
+    }
+
+    /** Parses the format documented on {@link RoutingProxyServlet}. */
+    public static RouteTable parse(String config) throws ServletException {
+      RouteTable table = new RouteTable();
+      for (String line : config.split("[\r\n]+")) {
+        line = line.trim();
+        if (line.length() == 0 || line.startsWith("#"))
+          continue;
+        table.add(parseRoute(line));
+      }
+      return table;
+    }
+
+    private void add(Route route) throws ServletException {
+      PathTrie<Route> trie = anyHost;
+      if (route.getHost() != null) {
+        trie = byHost.get(route.getHost());
+        if (trie == null) {
+          trie = new PathTrie<Route>();
+          byHost.put(route.getHost(), trie);
+        }
+      }
+      if (trie.put(route.getPrefix(), route) != null)
+        throw new ServletException("Duplicate route: "+route);
+      routes.add(route);
+    }
+
+    /** Finds the route for a request, or null.  {@code prefixLength}[0] receives the length of
+     * the matched prefix of {@code path}. */
+    public Route find(String hostHeader, String path, int[] prefixLength) {
+      if (!byHost.isEmpty() && hostHeader != null) {
+        PathTrie<Route> trie = byHost.get(normalizeHost(hostHeader));
+        if (trie != null) {
+          Route route = trie.longestPrefixMatch(path, prefixLength);
+          if (route != null)
+            return route;
+        }
+      }
+      return anyHost.longestPrefixMatch(path, prefixLength);
+    }
+
+    /** All routes in configuration order. */
+    public List<Route> getRoutes() {
+      return routes;
+    }
+
+    private static String normalizeHost(String host) {
+      int colon = host.lastIndexOf(':');
+      if (colon > host.lastIndexOf(']'))//not within an IPv6 literal
+        host = host.substring(0, colon);
+      return host.toLowerCase(Locale.ROOT);
+    }
+
+    private static Route parseRoute(String line) throws ServletException {
+      List<String> tokens = tokenize(line);
+      if (tokens.size() < 2)
+        throw new ServletException("Route needs a prefix and a targetUri: "+line);
+      String prefix = tokens.get(0);
+      String host = null;
+      int slash = prefix.indexOf('/');
+      if (slash < 0)
+        throw new ServletException("Route prefix must contain '/': "+line);
+      if (slash > 0) {
+        host = normalizeHost(prefix.substring(0, slash));
+        prefix = prefix.substring(slash);
+      }
+      if (prefix.endsWith("/"))//so that the remaining path info starts with '/'
+        prefix = prefix.substring(0, prefix.length() - 1);
+
+      Route.Options options = new Route.Options();
+      List<Header> headers = new ArrayList<Header>();
+      for (String option : tokens.subList(2, tokens.size())) {
+        int eq = option.indexOf('=');
+        if (eq <= 0)
+          throw new ServletException("Route option must be name=value: "+option);
+        String name = option.substring(0, eq);
+        String value = option.substring(eq + 1);
+        try {
+          if (name.equals("connectTimeout")) {
+            options.connectTimeout(Integer.parseInt(value));
+          } else if (name.equals("socketTimeout")) {
+            options.socketTimeout(Integer.parseInt(value));
+          } else if (name.equals("cookies")) {
+            options.cookies(Boolean.parseBoolean(value));
+          } else if (name.equals("forwarded")) {
+            options.forwardedHeaders(ForwardedHeaders.parse(value));
+          } else if (name.equals("responseBufferSize")) {
+            options.responseBufferSize(Integer.parseInt(value));
+          } else if (name.equals("flushHeaders")) {
+            options.flushHeaders(Boolean.parseBoolean(value));
+          } else if (name.startsWith("header.")) {
+            headers.add(new BasicHeader(name.substring("header.".length()), value));
+          } else {
+            throw new ServletException("Unknown route option "+name+" in: "+line);
+          }
+        } catch (NumberFormatException e) {
+          throw new ServletException("Route option "+name+" must be an integer in: "+line, e);
+        } catch (IllegalArgumentException e) {
+          throw new ServletException("Route option "+name+": "+e.getMessage()+" in: "+line, e);
+        }
+      }
+      options.headers(headers.toArray(new Header[headers.size()]));
+      return new Route(host, prefix, tokens.get(1), options);
+    }
+
+    /** Splits on whitespace; double quotes group (and are removed). */
+    static List<String> tokenize(String line) {
+      List<String> tokens = new ArrayList<String>();
+      StringBuilder token = null;
+      boolean quoted = false;
+      for (int i = 0; i < line.length(); i++) {
+        char c = line.charAt(i);
+        if (c == '"') {
+          quoted = !quoted;
+          if (token == null)
+            token = new StringBuilder();
+        } else if (Character.isWhitespace(c) && !quoted) {
+          if (token != null) {
+            tokens.add(token.toString());
+            token = null;
+          }
+        } else {
+          if (token == null)
+            token = new StringBuilder();
+          token.append(c);
+        }
+      }
+      if (token != null)
+        tokens.add(token.toString());
+      return tokens;
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.net.URI;
+import java.util.Locale;
+
+/**
+ * Matches URLs that point into a target URI, as found in response headers like Location.  The
+ * target is parsed once so a match is a few string comparisons.  The scheme and host are compared
+ * case-insensitively and an explicit default port (e.g. {@code :80} for http) is ignored; the path
+ * must match on a segment boundary.  Scheme-relative URLs ({@code //host/path}) match too, and
+ * absolute paths ({@code /path}) via {@link #matchPath(String)}.  Immutable and thread-safe.
+ */
+class TargetUrlMatcher {
+
+  private final String schemePrefix;//e.g. "http://"
+  private final String defaultPort;//e.g. ":80"
+  private final String authority;//lower case, without a default port
+  private final String path;//without a trailing '/'
+
+  /** @throws IllegalArgumentException if {@code targetUri} isn't an absolute URI */
+  TargetUrlMatcher(String targetUri) {
+    URI uri = URI.create(targetUri);
+    if (uri.getScheme() == null || uri.getRawAuthority() == null)
+      throw new IllegalArgumentException("Not an absolute URI: " + targetUri);
+    String scheme = uri.getScheme().toLowerCase(Locale.ROOT);
+    this.schemePrefix = scheme + "://";
+    this.defaultPort = "https".equals(scheme) ? ":443" : ":80";
+    this.authority = normalizeAuthority(uri.getRawAuthority());
+    String path = uri.getRawPath() == null ? "" : uri.getRawPath();
+    this.path = path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+  }
+
+  private String normalizeAuthority(String authority) {
+    authority = authority.toLowerCase(Locale.ROOT);
+    if (authority.endsWith(defaultPort))
+      return authority.substring(0, authority.length() - defaultPort.length());
+    if (authority.endsWith(":"))
+      return authority.substring(0, authority.length() - 1);
+    return authority;
+  }
+
+  /**
+   * If {@code url} points into the target, returns the index at which what follows the target URI
+   * starts (the rest of the path, query and fragment), else -1.
+   */
+  int match(String url) {
+    int start;
+    if (url.startsWith("//"))
+      start = 2;
+    else if (url.regionMatches(true, 0, schemePrefix, 0, schemePrefix.length()))
+      start = schemePrefix.length();
+    else
+      return -1;
+    int end = start;
+    while (end < url.length() && !isDelimiter(url.charAt(end)))
+      end++;
+    if (!normalizeAuthority(url.substring(start, end)).equals(authority) || !url.startsWith(path, end))
+      return -1;
+    int rest = end + path.length();
+    if (rest < url.length() && !isDelimiter(url.charAt(rest)))
+      return -1;//e.g. "/apix" isn't in "/api"
+    return rest;
+  }
+
+  /**
+   * Like {@link #match(String)} but for an absolute path reference ({@code /path}, as a relative
+   * Location may be), which is resolved against the target's host.
+   */
+  int matchPath(String url) {
+    if (!url.startsWith("/") || url.startsWith("//") || !url.startsWith(path))
+      return -1;
+    int rest = path.length();
+    if (rest < url.length() && !isDelimiter(url.charAt(rest)))
+      return -1;
+    return rest;
+  }
+
+  private static boolean isDelimiter(char c) {
+    return c == '/' || c == '?' || c == '#';
+  }
+}
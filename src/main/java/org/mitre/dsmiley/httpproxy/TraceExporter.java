@@ -0,0 +1,40 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Receives each sampled {@link ProxyTrace} once its request completes, e.g. to convert its phases
+ * to spans for a tracing system.  Configure by class name with the {@code traceExporter}
+ * parameter; it needs a public no-arg constructor.  It's called on the request thread, so it
+ * should hand off anything slow, and must be thread-safe.
+ */
+public interface TraceExporter {
+
+  void export(ProxyTrace trace);
+
+  /** Writes each trace on one line to the commons-logging log of this class, at INFO. */
+  class Logging implements TraceExporter {
+    private static final org.apache.commons.logging.Log log =
+        org.apache.commons.logging.LogFactory.getLog(TraceExporter.class);
+
+    @Override
+    public void export(ProxyTrace trace) {
+      if (log.isInfoEnabled())
+        log.info(trace);
+    }
+  }
+}
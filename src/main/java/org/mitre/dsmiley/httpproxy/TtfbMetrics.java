@@ -0,0 +1,120 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Time-to-first-byte of proxied requests as the target and the client see it, side by side: how
+ * long until the target's response headers arrived, and how long until the response was committed
+ * to the client (its status and headers sent).  The gap between them is time the response sat in
+ * the proxy, mostly in the container's output buffer waiting to fill; {@code flushHeaders} closes
+ * it.  Requests answered without the target (e.g. from the cache) count only for the client.
+ * Lock-free.
+ */
+public class TtfbMetrics {
+
+  private final Stat upstream = new Stat();
+  private final Stat client = new Stat();
+  private final Stat gap = new Stat();
+
+  /** Adds a completed request. */
+  public void record(Timer timer) {
+    if (timer.clientNanos < 0)
+      return;
+    client.add(timer.clientNanos);
+    if (timer.upstreamNanos >= 0) {
+      upstream.add(timer.upstreamNanos);
+      gap.add(Math.max(0, timer.clientNanos - timer.upstreamNanos));
+    }
+  }
+
+  /** The number of requests whose target responded. */
+  public long getUpstreamCount() { return upstream.count.get(); }
+  public double getMeanUpstreamMs() { return upstream.meanMs(); }
+  public double getMaxUpstreamMs() { return upstream.maxMs(); }
+  /** The number of requests whose response was committed to the client. */
+  public long getClientCount() { return client.count.get(); }
+  public double getMeanClientMs() { return client.meanMs(); }
+  public double getMaxClientMs() { return client.maxMs(); }
+  /** The mean time from the target's response headers to the client's, over requests with both. */
+  public double getMeanGapMs() { return gap.meanMs(); }
+  public double getMaxGapMs() { return gap.maxMs(); }
+
+  @Override
+  public String toString() {
+    return String.format("upstream n=%d mean=%.2fms max=%.2fms; client n=%d mean=%.2fms max=%.2fms;"
+            + " gap mean=%.2fms max=%.2fms", getUpstreamCount(), getMeanUpstreamMs(), getMaxUpstreamMs(),
+        getClientCount(), getMeanClientMs(), getMaxClientMs(), getMeanGapMs(), getMaxGapMs());
+  }
+
+  private static class Stat {
+    final AtomicLong count = new AtomicLong();
+    final AtomicLong totalNanos = new AtomicLong();
+    final AtomicLong maxNanos = new AtomicLong();
+
+    void add(long nanos) {
+      count.incrementAndGet();
+      totalNanos.addAndGet(nanos);
+      long max;
+      while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+        //retry
+      }
+    }
+
+    double meanMs() {
+      long n = count.get();
+      return n == 0 ? 0 : totalNanos.get() / 1e6 / n;
+    }
+
+    double maxMs() {
+      return maxNanos.get() / 1e6;
+    }
+  }
+
+  /** Times one request from when the servlet got it.  Used by the request's thread only. */
+  public static class Timer {
+    private final long startNanos = System.nanoTime();
+    private long upstreamNanos = -1;
+    private long clientNanos = -1;
+
+    /** Marks that the target's response headers have arrived. */
+    public void upstreamResponded() {
+      upstreamNanos = System.nanoTime() - startNanos;
+    }
+
+    /** Marks that the response has been committed to the client, unless already marked. */
+    public void clientCommitted() {
+      if (clientNanos < 0)
+        clientNanos = System.nanoTime() - startNanos;
+    }
+
+    public boolean isClientCommitted() {
+      return clientNanos >= 0;
+    }
+
+    /** Nanoseconds until the target responded, or -1. */
+    public long getUpstreamNanos() {
+      return upstreamNanos;
+    }
+
+    /** Nanoseconds until the response was committed to the client, or -1. */
+    public long getClientNanos() {
+      return clientNanos;
+    }
+  }
+}
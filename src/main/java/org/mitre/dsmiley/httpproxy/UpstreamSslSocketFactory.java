@@ -0,0 +1,88 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.http.conn.ssl.SSLSocketFactory;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The socket factory for HTTPS targets when TLS is configured; see
+ * {@link ProxyServlet#createSslContext()}.  Applies the enabled protocols and cipher suites to each
+ * socket and counts full versus resumed (abbreviated) handshakes so that session cache settings can
+ * be tuned.  A handshake counts as resumed if it yielded a session this factory has already seen,
+ * which is exact for TLS 1.2 and below; JSSE's TLS 1.3 resumption may count as full.
+ */
+@SuppressWarnings("deprecation")
+public class UpstreamSslSocketFactory extends SSLSocketFactory {
+
+  private static final String SEEN_KEY = UpstreamSslSocketFactory.class.getName() + ".seen";
+
+  private final String[] protocols;
+  private final String[] cipherSuites;
+  private final AtomicLong fullHandshakes = new AtomicLong();
+  private final AtomicLong resumedHandshakes = new AtomicLong();
+
+  private final HandshakeCompletedListener handshakeListener = new HandshakeCompletedListener() {
+    @Override
+    public void handshakeCompleted(HandshakeCompletedEvent event) {
+      SSLSession session = event.getSession();
+      if (session.getValue(SEEN_KEY) != null) {
+        resumedHandshakes.incrementAndGet();
+      } else {
+        session.putValue(SEEN_KEY, Boolean.TRUE);
+        fullHandshakes.incrementAndGet();
+      }
+    }
+  };
+
+  /**
+   * @param protocols if not null, the protocols to enable, e.g. TLSv1.2
+   * @param cipherSuites if not null, the cipher suites to enable
+   */
+  public UpstreamSslSocketFactory(SSLContext sslContext, String[] protocols, String[] cipherSuites) {
+    super(sslContext, BROWSER_COMPATIBLE_HOSTNAME_VERIFIER);
+    this.protocols = protocols;
+    this.cipherSuites = cipherSuites;
+  }
+
+  /** Called by HttpComponents v4.2+ for each new socket before the handshake. */
+  @Override
+  protected void prepareSocket(SSLSocket socket) throws IOException {
+    if (protocols != null)
+      socket.setEnabledProtocols(protocols);
+    if (cipherSuites != null)
+      socket.setEnabledCipherSuites(cipherSuites);
+    socket.addHandshakeCompletedListener(handshakeListener);
+  }
+
+  /** The number of handshakes that established a new session. */
+  public long getFullHandshakes() {
+    return fullHandshakes.get();
+  }
+
+  /** The number of handshakes that resumed a cached session. */
+  public long getResumedHandshakes() {
+    return resumedHandshakes.get();
+  }
+}
@@ -0,0 +1,141 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Rewrites absolute URLs of the target in response bodies to this proxy's, as
+ * {@link ProxyServlet#rewriteUrlFromResponse(HttpServletRequest, String)} does for headers like
+ * Location.  Add it to the {@code filters} parameter to enable it.  Bodies are rewritten as they
+ * stream through, holding back no more than a URL's length; see {@link AhoCorasickReplacer}.  Besides
+ * the target URI itself, its JSON-escaped ({@code http:\/\/...}) and scheme-relative
+ * ({@code //host/...}) forms are rewritten.  As for headers, a URL must match on a boundary: the
+ * target {@code http://backend/app} isn't in {@code http://backend/apple}, and {@code http://backend}
+ * isn't in {@code http://backend.example.com} or {@code http://backend:8080}.
+ * <p>
+ * Only bodies of the content types in {@value #P_CONTENT_TYPES} that aren't content-encoded (e.g.
+ * gzipped) are rewritten, and not partial (206) responses.  As the new length isn't known until
+ * the end, Content-Length is removed so the body is sent chunked, and a strong ETag is made weak.
+ * URLs are matched as bytes, so the body's charset must be ASCII-compatible, like UTF-8.
+ * </p>
+ */
+public class UrlRewritingFilter extends ProxyFilter.Adapter {
+
+  /** The parameter name for a comma-separated list of the content types to rewrite. */
+  public static final String P_CONTENT_TYPES = "urlRewriteContentTypes";
+
+  public static final String DEFAULT_CONTENT_TYPES = "text/html,text/css,text/javascript,text/xml,"
+      + "application/javascript,application/json,application/xml,application/xhtml+xml";
+
+  private static final String ATTR_REWRITE = UrlRewritingFilter.class.getSimpleName() + ".rewrite";
+
+  /** Bytes that would continue a URL's host, port or path segment, so a match can't end between
+   * two of them. */
+  static final String URL_WORD_BYTES = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-._~%:@";
+
+  private ProxyServlet servlet;
+  private final Set<String> contentTypes = new HashSet<String>();
+  /** By target URI; there's one per servlet unless it routes to several. */
+  private final ConcurrentHashMap<String, AhoCorasickReplacer> replacers =
+      new ConcurrentHashMap<String, AhoCorasickReplacer>();
+  private static final int MAX_REPLACERS = 1024;//e.g. if URI templates make many
+
+  @Override
+  public void init(ProxyServlet servlet) throws ServletException {
+    this.servlet = servlet;
+    String types = servlet.getFilterConfigParam(P_CONTENT_TYPES);
+    for (String type : (types != null ? types : DEFAULT_CONTENT_TYPES).split(",")) {
+      if (!type.trim().isEmpty())
+        contentTypes.add(type.trim().toLowerCase(Locale.ROOT));
+    }
+  }
+
+  @Override
+  public void onResponseHeaders(HttpServletRequest servletRequest, HttpResponse proxyResponse) {
+    if (!isRewritable(servletRequest, proxyResponse))
+      return;
+    servletRequest.setAttribute(ATTR_REWRITE, Boolean.TRUE);
+    proxyResponse.removeHeaders(HttpHeaders.CONTENT_LENGTH);
+    Header etag = proxyResponse.getLastHeader(HttpHeaders.ETAG);
+    if (etag != null && !etag.getValue().startsWith("W/"))
+      proxyResponse.setHeader(HttpHeaders.ETAG, "W/" + etag.getValue());
+  }
+
+  /** Whether the response has a body of a type to rewrite. */
+  protected boolean isRewritable(HttpServletRequest servletRequest, HttpResponse proxyResponse) {
+    int status = proxyResponse.getStatusLine().getStatusCode();
+    if (proxyResponse.getEntity() == null || "HEAD".equals(servletRequest.getMethod())
+        || status == HttpStatus.SC_PARTIAL_CONTENT || status == HttpStatus.SC_NO_CONTENT
+        || status == HttpStatus.SC_NOT_MODIFIED)
+      return false;
+    Header encoding = proxyResponse.getLastHeader(HttpHeaders.CONTENT_ENCODING);
+    if (encoding != null && !encoding.getValue().trim().equalsIgnoreCase("identity"))
+      return false;
+    Header contentType = proxyResponse.getLastHeader(HttpHeaders.CONTENT_TYPE);
+    if (contentType == null)
+      return false;
+    String type = contentType.getValue();
+    int semicolon = type.indexOf(';');
+    if (semicolon >= 0)
+      type = type.substring(0, semicolon);
+    return contentTypes.contains(type.trim().toLowerCase(Locale.ROOT));
+  }
+
+  @Override
+  public OutputStream wrapResponseBody(HttpServletRequest servletRequest, HttpResponse proxyResponse,
+                                       OutputStream out) {
+    if (servletRequest.getAttribute(ATTR_REWRITE) == null)
+      return out;
+    String targetUri = servlet.getTargetUri(servletRequest);
+    AhoCorasickReplacer replacer = replacers.get(targetUri);
+    if (replacer == null) {
+      String[] forms = forms(targetUri);
+      replacer = new AhoCorasickReplacer(URL_WORD_BYTES, forms);
+      if (replacers.size() < MAX_REPLACERS)
+        replacers.putIfAbsent(targetUri, replacer);
+    }
+    String[] replacements = forms(servlet.getProxyBaseUrl(servletRequest));
+    byte[][] replacementBytes = new byte[replacements.length][];
+    try {
+      for (int i = 0; i < replacements.length; i++) {
+        replacementBytes[i] = AhoCorasickReplacer.ascii(replacements[i]);
+      }
+    } catch (IllegalArgumentException e) {
+      return out;//an IRI; leave the body be
+    }
+    return replacer.replacing(out, replacementBytes);
+  }
+
+  /** The forms of a URL that are rewritten, longest first. */
+  static String[] forms(String url) {
+    int schemeEnd = url.indexOf("//");
+    String schemeRelative = schemeEnd > 0 ? url.substring(schemeEnd) : url;
+    return new String[]{url, url.replace("/", "\\/"), schemeRelative};
+  }
+}
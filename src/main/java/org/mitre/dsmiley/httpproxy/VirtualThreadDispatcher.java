@@ -0,0 +1,115 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import javax.servlet.ServletRequest;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs requests on virtual threads (Java 21+), putting them in Servlet 3.0 async mode so the
+ * container's thread is released while the request blocks on the target.  Both are looked up by
+ * reflection since this project builds against Java 7 and Servlet 2.4.
+ */
+class VirtualThreadDispatcher {
+
+  private final ExecutorService executor;
+  private final Method isAsyncSupported;
+  private final Method startAsync;
+  private final Method setTimeout;
+  private final Method complete;
+
+  private VirtualThreadDispatcher(ExecutorService executor, Method isAsyncSupported, Method startAsync,
+                                  Method setTimeout, Method complete) {
+    this.executor = executor;
+    this.isAsyncSupported = isAsyncSupported;
+    this.startAsync = startAsync;
+    this.setTimeout = setTimeout;
+    this.complete = complete;
+  }
+
+  /**
+   * Creates a dispatcher.
+   * @throws UnsupportedOperationException if the JVM lacks virtual threads or the container lacks
+   *   Servlet 3.0 async support
+   */
+  static VirtualThreadDispatcher create() {
+    ExecutorService executor;
+    try {
+      executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (Exception e) {
+      throw new UnsupportedOperationException("Virtual threads need Java 21+: " + e);
+    }
+    try {
+      Method startAsync = ServletRequest.class.getMethod("startAsync");
+      Class<?> asyncContextClass = startAsync.getReturnType();
+      return new VirtualThreadDispatcher(executor, ServletRequest.class.getMethod("isAsyncSupported"), startAsync,
+          asyncContextClass.getMethod("setTimeout", long.class), asyncContextClass.getMethod("complete"));
+    } catch (NoSuchMethodException e) {
+      executor.shutdown();
+      throw new UnsupportedOperationException("Async requests need Servlet 3.0+: " + e);
+    }
+  }
+
+  /**
+   * Puts the request in async mode and runs {@code task} on a virtual thread, completing the
+   * request after.  Returns false, doing nothing, if the request can't be made async (e.g. a
+   * filter in front of this servlet isn't async-supported); the caller should run the task itself.
+   */
+  boolean dispatch(ServletRequest request, final Runnable task) {
+    final Object asyncContext;
+    try {
+      if (!(Boolean) isAsyncSupported.invoke(request))
+        return false;
+      asyncContext = startAsync.invoke(request);
+      setTimeout.invoke(asyncContext, 0L);//the client and target timeouts govern instead
+    } catch (IllegalAccessException e) {
+      throw new RuntimeException(e);
+    } catch (InvocationTargetException e) {
+      if (e.getCause() instanceof IllegalStateException)
+        return false;
+      throw new RuntimeException(e.getCause());
+    }
+    Runnable completing = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          task.run();
+        } finally {
+          try {
+            complete.invoke(asyncContext);
+          } catch (Exception e) {
+            //the container already completed it, e.g. on a client disconnect
+          }
+        }
+      }
+    };
+    try {
+      executor.execute(completing);
+    } catch (RejectedExecutionException e) {
+      completing.run();//shutting down
+    }
+    return true;
+  }
+
+  void shutdown() {
+    executor.shutdown();
+  }
+}
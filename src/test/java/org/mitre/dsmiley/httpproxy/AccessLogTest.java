@@ -0,0 +1,70 @@
+package org.mitre.dsmiley.httpproxy;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AccessLogTest {
+
+  @Test
+  public void testFormat() throws Exception {
+    StringWriter out = new StringWriter();
+    AccessLog accessLog = new AccessLog(out, "%m %U %T %s %b %u 100%%", 1.0, 16);
+    AccessLog.Entry entry = accessLog.start();
+    entry.method = "GET";
+    entry.requestUri = "/proxy/a?b=c";
+    entry.targetUri = "http://target/a?b=c";
+    entry.status = 200;
+    entry.bytes = 42;
+    entry.upstreamResponded();
+    accessLog.log(entry);
+
+    entry = accessLog.start();
+    entry.method = "POST";
+    entry.requestUri = "/proxy/b";
+    accessLog.log(entry);
+    accessLog.close();
+
+    assertEquals("GET /proxy/a?b=c http://target/a?b=c 200 42 0 100%\n" +
+        "POST /proxy/b - - - - 100%\n", out.toString());
+  }
+
+  @Test
+  public void testConcurrentProducers() throws Exception {
+    StringWriter out = new StringWriter();
+    final AccessLog accessLog = new AccessLog(out, "%m", 1.0, 64);
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 5000; i++) {
+            AccessLog.Entry entry = accessLog.start();
+            entry.method = "X";
+            accessLog.log(entry);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    accessLog.close();
+    String text = out.toString();
+    int lines = text.length() / 2;
+    assertTrue(text.replace("X\n", "").isEmpty());
+    assertEquals(20000, lines + accessLog.getDroppedCount());
+  }
+
+  @Test
+  public void testSampling() throws Exception {
+    AccessLog accessLog = new AccessLog(new StringWriter(), AccessLog.DEFAULT_FORMAT, 0.0, 16);
+    assertNull(accessLog.start());
+    accessLog.close();
+  }
+}
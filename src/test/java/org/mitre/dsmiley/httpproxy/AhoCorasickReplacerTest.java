@@ -0,0 +1,77 @@
+package org.mitre.dsmiley.httpproxy;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertEquals;
+
+public class AhoCorasickReplacerTest {
+
+  private static String replace(AhoCorasickReplacer replacer, String input, int chunkSize, String... replacements)
+      throws Exception {
+    byte[][] replacementBytes = new byte[replacements.length][];
+    for (int i = 0; i < replacements.length; i++) {
+      replacementBytes[i] = replacements[i].getBytes("UTF-8");
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    OutputStream stream = replacer.replacing(out, replacementBytes);
+    byte[] bytes = input.getBytes("UTF-8");
+    for (int i = 0; i < bytes.length; i += chunkSize) {
+      stream.write(bytes, i, Math.min(chunkSize, bytes.length - i));
+    }
+    stream.close();
+    return out.toString("UTF-8");
+  }
+
+  @Test
+  public void testReplaceAcrossChunks() throws Exception {
+    AhoCorasickReplacer replacer = new AhoCorasickReplacer(UrlRewritingFilter.URL_WORD_BYTES,
+        UrlRewritingFilter.forms("http://backend:8080/app"));
+    String input = "<a href=\"http://backend:8080/app/x\">http://backend:8080/ap</a>"
+        + "<script src=\"//backend:8080/app/s.js\"></script>{\"u\":\"http:\\/\\/backend:8080\\/app\"} éhttp://backend:8080/app";
+    String expected = "<a href=\"https://proxy/p/x\">http://backend:8080/ap</a>"
+        + "<script src=\"//proxy/p/s.js\"></script>{\"u\":\"https:\\/\\/proxy\\/p\"} éhttps://proxy/p";
+    for (int chunkSize : new int[]{1, 2, 3, 7, 1000}) {
+      assertEquals("chunk " + chunkSize, expected,
+          replace(replacer, input, chunkSize, UrlRewritingFilter.forms("https://proxy/p")));
+    }
+  }
+
+  @Test
+  public void testBoundaries() throws Exception {
+    AhoCorasickReplacer replacer = new AhoCorasickReplacer(UrlRewritingFilter.URL_WORD_BYTES,
+        UrlRewritingFilter.forms("http://backend/app"));
+    String input = "http://backend/apple http://backend/app.v2 \"http://backend/app\" (http://backend/app?q)"
+        + " http:\\/\\/backend\\/app\\/x http:\\/\\/backend\\/apps //backend/app#f //backend/app_1 http://backend/app";
+    String expected = "http://backend/apple http://backend/app.v2 \"https://proxy/p\" (https://proxy/p?q)"
+        + " https:\\/\\/proxy\\/p\\/x http:\\/\\/backend\\/apps //proxy/p#f //backend/app_1 https://proxy/p";
+    for (int chunkSize : new int[]{1, 2, 5, 1000}) {
+      assertEquals("chunk " + chunkSize, expected,
+          replace(replacer, input, chunkSize, UrlRewritingFilter.forms("https://proxy/p")));
+    }
+
+    //a path-less target
+    replacer = new AhoCorasickReplacer(UrlRewritingFilter.URL_WORD_BYTES, UrlRewritingFilter.forms("http://backend"));
+    assertEquals("http://backend.evil.com/ http://backend:8080/ https://proxy/x \"https://proxy\" http://backendx",
+        replace(replacer, "http://backend.evil.com/ http://backend:8080/ http://backend/x \"http://backend\" http://backendx",
+            3, UrlRewritingFilter.forms("https://proxy")));
+
+    //a target ending with '/' is on a boundary already
+    replacer = new AhoCorasickReplacer(UrlRewritingFilter.URL_WORD_BYTES, UrlRewritingFilter.forms("http://backend/app/"));
+    assertEquals("https://proxy/p/x", replace(replacer, "http://backend/app/x", 1, UrlRewritingFilter.forms("https://proxy/p/")));
+  }
+
+  @Test
+  public void testOverlappingPatterns() throws Exception {
+    AhoCorasickReplacer replacer = new AhoCorasickReplacer("abcd", "bc", "aab");
+    //"bc" ends before "abcd" does, so it wins
+    assertEquals("xAB--aBCdxx", replace(replacer, "xaab-abcdxx", 1, "ABCD", "BC", "AB-"));
+    assertEquals("aBCe", replace(replacer, "abce", 1, "ABCD", "BC", "AB-"));
+    //matching resumes after a match, so "cdx" isn't seen
+    replacer = new AhoCorasickReplacer("abcd", "cdx");
+    assertEquals("ABCDx", replace(replacer, "abcdx", 4, "ABCD", "CDX"));
+    assertEquals("aCDX", replace(replacer, "acdx", 3, "ABCD", "CDX"));
+  }
+}
@@ -0,0 +1,97 @@
+package org.mitre.dsmiley.httpproxy;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BodyBufferTest {
+
+  private final BufferPool pool = new BufferPool(1024, 8192, 2048);
+
+  @Test
+  public void testInMemory() throws Exception {
+    MemoryBudget budget = new MemoryBudget(65536);
+    MemoryBudget.Reservation reservation = budget.newReservation();
+    byte[] body = randomBytes(3000);
+    BodyBuffer buffer = new BodyBuffer(reservation, pool, 4096, null);
+    buffer.write(body, 0, 1000);
+    buffer.write(body[1000]);
+    buffer.write(body, 1001, 1999);
+    assertFalse(buffer.isSpilled());
+    assertEquals(3000, buffer.size());
+    assertEquals(3072, budget.getUsedBytes());//3 chunks
+    assertArrayEquals(body, readBack(buffer));
+    buffer.close();
+    assertEquals(0, budget.getUsedBytes());
+    assertEquals(0, reservation.getReservedBytes());
+  }
+
+  @Test
+  public void testSpillPastLimit() throws Exception {
+    MemoryBudget budget = new MemoryBudget(65536);
+    byte[] body = randomBytes(10000);
+    BodyBuffer buffer = new BodyBuffer(budget.newReservation(), pool, 4096, null);
+    buffer.write(body);
+    assertTrue(buffer.isSpilled());
+    assertEquals(0, budget.getUsedBytes());//the chunks went to the file
+    assertArrayEquals(body, readBack(buffer));
+    buffer.close();
+  }
+
+  @Test
+  public void testSpillOverBudget() throws Exception {
+    MemoryBudget budget = new MemoryBudget(2048);
+    MemoryBudget.Reservation reservation = budget.newReservation();
+    byte[] body = randomBytes(5000);
+    BodyBuffer buffer = new BodyBuffer(reservation, pool, Long.MAX_VALUE, null);
+    buffer.write(body);
+    assertTrue(buffer.isSpilled());
+    assertEquals(1, budget.getRefusals());
+    assertEquals(2048, budget.getPeakBytes());
+    assertArrayEquals(body, readBack(buffer));
+    buffer.close();
+    reservation.close();
+    assertEquals(0, budget.getUsedBytes());
+  }
+
+  @Test
+  public void testDirectCap() {
+    ByteBuffer a = pool.acquireDirect();
+    ByteBuffer b = pool.acquireDirect();
+    ByteBuffer c = pool.acquireDirect();
+    assertTrue(a.isDirect() && b.isDirect());
+    assertFalse(c.isDirect());//over the 2048 byte cap
+    pool.releaseDirect(a);
+    assertTrue(pool.acquireDirect() == a);
+    assertEquals(2, pool.getDirectAllocations());
+  }
+
+  private static byte[] readBack(BodyBuffer buffer) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    buffer.writeTo(out);
+    ByteArrayOutputStream in = new ByteArrayOutputStream();
+    InputStream stream = buffer.getInputStream();
+    byte[] b = new byte[700];
+    int n;
+    while ((n = stream.read(b)) != -1) {
+      in.write(b, 0, n);
+    }
+    stream.close();
+    assertArrayEquals(out.toByteArray(), in.toByteArray());
+    return out.toByteArray();
+  }
+
+  private static byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    new Random(length).nextBytes(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,58 @@
+package org.mitre.dsmiley.httpproxy;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ByteRangeTest {
+
+  @Test
+  public void testParse() throws Exception {
+    assertEquals("bytes 0-9/100", ByteRange.parse("bytes=0-9", 100).toContentRange());
+    assertEquals("bytes 90-99/100", ByteRange.parse("bytes=90-", 100).toContentRange());
+    assertEquals("bytes 90-99/100", ByteRange.parse("bytes=90-200", 100).toContentRange());
+    assertEquals("bytes 95-99/100", ByteRange.parse("bytes=-5", 100).toContentRange());
+    assertEquals("bytes 0-99/100", ByteRange.parse("bytes=-500", 100).toContentRange());
+    assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=100-", 100));
+    assertNull(ByteRange.parse("bytes=0-1,5-6", 100));
+    assertNull(ByteRange.parse("bytes=5-1", 100));
+    assertNull(ByteRange.parse("items=0-1", 100));
+    assertNull(ByteRange.parse("bytes=a-b", 100));
+  }
+
+  @Test
+  public void testIfRange() throws Exception {
+    assertTrue(ByteRange.ifRangeMatches(null, null, null));
+    assertTrue(ByteRange.ifRangeMatches("\"a\"", "\"a\"", null));
+    assertFalse(ByteRange.ifRangeMatches("\"a\"", "\"b\"", null));
+    assertFalse("weak", ByteRange.ifRangeMatches("W/\"a\"", "W/\"a\"", null));
+    String date = "Tue, 15 Nov 1994 08:12:31 GMT";
+    assertTrue(ByteRange.ifRangeMatches(date, "\"a\"", date));
+    assertFalse(ByteRange.ifRangeMatches(date, "\"a\"", null));
+  }
+
+  @Test
+  public void testSlice() throws Exception {
+    byte[] body = "0123456789".getBytes("UTF-8");
+    ByteRange range = ByteRange.parse("bytes=3-6", body.length);
+    for (boolean readAll : new boolean[]{true, false}) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      range.slice(new InputStreamEntity(new ByteArrayInputStream(body), body.length), readAll).writeTo(out);
+      assertEquals("3456", out.toString("UTF-8"));
+    }
+    HttpEntity slice = range.slice(new ByteArrayEntity(body), false);
+    assertEquals(4, slice.getContentLength());
+    assertEquals("3456", EntityUtils.toString(slice, "UTF-8"));
+  }
+}
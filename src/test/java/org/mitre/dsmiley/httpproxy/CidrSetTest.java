@@ -0,0 +1,55 @@
+package org.mitre.dsmiley.httpproxy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CidrSetTest {
+
+  @Test
+  public void testContains() {
+    CidrSet set = CidrSet.parse("10.0.0.0/8, 192.168.1.7 2001:db8::/32,::1");
+    assertTrue(set.contains("10.1.2.3"));
+    assertTrue(set.contains("192.168.1.7"));
+    assertFalse(set.contains("192.168.1.8"));
+    assertFalse(set.contains("11.0.0.1"));
+    assertTrue(set.contains("2001:db8:1::5"));
+    assertTrue(set.contains("[2001:DB8::1]"));
+    assertFalse(set.contains("2001:db9::1"));
+    assertTrue(set.contains("::1"));
+    assertTrue(set.contains("0:0:0:0:0:0:0:1%lo"));
+    assertTrue(set.contains("::ffff:10.9.8.7"));//IPv4-mapped
+    assertFalse(set.contains("localhost"));
+    assertFalse(set.contains(null));
+    assertFalse(CidrSet.EMPTY.contains("10.0.0.1"));
+
+    assertTrue(CidrSet.parse("0.0.0.0/0").contains("203.0.113.9"));
+    assertFalse(CidrSet.parse("0.0.0.0/0").contains("::2"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBadPrefixLength() {
+    CidrSet.parse("10.0.0.0/33");
+  }
+
+  @Test
+  public void testParseAddress() {
+    assertArrayEquals(new byte[]{1, 2, 3, 4}, CidrSet.parseAddress("1.2.3.4"));
+    assertArrayEquals(new byte[]{0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0}, CidrSet.parseAddress("::"));
+    assertArrayEquals(new byte[]{0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 2}, CidrSet.parseAddress("1::2"));
+    assertArrayEquals(new byte[]{0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 2, 3, 4}, CidrSet.parseAddress("::1.2.3.4"));
+    assertNull(CidrSet.parseAddress("1.2.3"));
+    assertNull(CidrSet.parseAddress("1.2.3.256"));
+    assertNull(CidrSet.parseAddress("1.2.3.4.5"));
+    assertNull(CidrSet.parseAddress("1::2::3"));
+    assertNull(CidrSet.parseAddress("1:2:3:4:5:6:7:8:9"));
+    assertNull(CidrSet.parseAddress(":1"));
+    assertNull(CidrSet.parseAddress("1:"));
+    assertNull(CidrSet.parseAddress("12345::"));
+    assertNull(CidrSet.parseAddress("example.com"));
+    assertNull(CidrSet.parseAddress(""));
+  }
+}
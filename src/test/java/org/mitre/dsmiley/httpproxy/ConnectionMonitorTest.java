@@ -0,0 +1,28 @@
+package org.mitre.dsmiley.httpproxy;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ConnectionMonitorTest {
+
+  @Test
+  public void testKeepAliveDuration() {
+    ConnectionMonitor monitor = new ConnectionMonitor(null, 30000);
+    assertEquals(30000, monitor.getKeepAliveDuration(response(null), new BasicHttpContext()));
+    assertEquals(4000, monitor.getKeepAliveDuration(response("timeout=5, max=100"), new BasicHttpContext()));
+    assertEquals(30000, monitor.getKeepAliveDuration(response("timeout=300"), new BasicHttpContext()));
+    assertEquals(1, monitor.getKeepAliveDuration(response("timeout=1"), new BasicHttpContext()));
+  }
+
+  private static HttpResponse response(String keepAlive) {
+    HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+    if (keepAlive != null)
+      response.setHeader("Keep-Alive", keepAlive);
+    return response;
+  }
+}
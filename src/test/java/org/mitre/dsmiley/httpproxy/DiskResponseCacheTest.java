@@ -0,0 +1,432 @@
+package org.mitre.dsmiley.httpproxy;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DiskResponseCacheTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private DiskResponseCache cache;
+
+  @Before
+  public void setUp() throws Exception {
+    cache = new DiskResponseCache(tmp.getRoot(), 1000, 400);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    cache.close();
+  }
+
+  private String store(String key, String body) throws Exception {
+    HttpResponse response = response(body, "max-age=60");
+    long expires = DiskResponseCache.getExpires(response, System.currentTimeMillis());
+    assertTrue(expires > System.currentTimeMillis());
+    ByteArrayOutputStream client = new ByteArrayOutputStream();
+    cache.cachingEntity(key, response, expires).writeTo(client);
+    return client.toString("UTF-8");
+  }
+
+  private static HttpResponse response(String body, String cacheControl) throws Exception {
+    HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+    response.setHeader("Cache-Control", cacheControl);
+    response.setHeader("Connection", "keep-alive");
+    response.setEntity(new StringEntity(body, "UTF-8"));
+    return response;
+  }
+
+  private String cachedBody(String key) throws Exception {
+    DiskResponseCache.Entry entry = cache.get(key);
+    if (entry == null)
+      return null;
+    return EntityUtils.toString(cache.toResponse(entry, System.currentTimeMillis()).getEntity(), "UTF-8");
+  }
+
+  @Test
+  public void testPutGet() throws Exception {
+    assertEquals("hello", store("a", "hello"));
+    assertEquals("hello", cachedBody("a"));
+    DiskResponseCache.Entry entry = cache.get("a");
+    assertTrue(entry.isFresh(System.currentTimeMillis()));
+    assertEquals("max-age=60", entry.getHeader("Cache-Control"));
+    assertNull("hop-by-hop headers aren't cached", entry.getHeader("Connection"));
+    assertNull(cache.get("b"));
+
+    store("a", "hello again");
+    assertEquals("hello again", cachedBody("a"));
+  }
+
+  @Test
+  public void testStaleAndRefresh() throws Exception {
+    HttpResponse response = response("body", "max-age=0, stale-while-revalidate=30, stale-if-error=60");
+    response.setHeader("ETag", "\"v1\"");
+    long now = System.currentTimeMillis();
+    cache.cachingEntity("a", response, now).writeTo(new ByteArrayOutputStream());
+    DiskResponseCache.Entry entry = cache.get("a");
+    assertFalse(entry.isFresh(now));
+    assertTrue(entry.isUsableWhileRevalidating(now + 29000));
+    assertFalse(entry.isUsableWhileRevalidating(now + 31000));
+    assertTrue(entry.isUsableIfError(now + 59000));
+    assertTrue(cache.toResponse(entry, now).getFirstHeader("Warning").getValue().startsWith("110"));
+
+    assertTrue(cache.startRevalidation("a"));
+    assertFalse(cache.startRevalidation("a"));
+    HttpResponse notModified = new BasicHttpResponse(HttpVersion.HTTP_1_1, 304, "Not Modified");
+    notModified.setHeader("Cache-Control", "max-age=60, must-revalidate");
+    assertTrue(cache.refresh(entry, notModified, now));
+    cache.endRevalidation("a");
+    assertTrue(cache.startRevalidation("a"));
+
+    entry = cache.get("a");
+    assertTrue(entry.isFresh(now + 1000));
+    assertFalse("must-revalidate", entry.isUsableIfError(now + 61000));
+    assertEquals("\"v1\"", entry.getHeader("ETag"));
+    assertEquals("body", cachedBody("a"));
+  }
+
+  @Test
+  public void testRefreshRefersToCachedBody() throws Exception {
+    StringBuilder body = new StringBuilder();
+    for (int i = 0; i < 200; i++) {
+      body.append('x');
+    }
+    long now = System.currentTimeMillis();
+    HttpResponse response = response(body.toString(), "max-age=0");
+    response.setHeader("ETag", "\"v1\"");
+    cache.cachingEntity("a", response, now).writeTo(new ByteArrayOutputStream());
+    long before = segmentFiles()[0].length();
+    HttpResponse notModified = new BasicHttpResponse(HttpVersion.HTTP_1_1, 304, "Not Modified");
+    notModified.setHeader("Cache-Control", "max-age=60");
+    assertTrue(cache.refresh(cache.get("a"), notModified, now));
+    assertTrue("the body isn't copied", segmentFiles()[0].length() - before < 200);
+    assertEquals(body.toString(), cachedBody("a"));
+
+    //and it's still there after a restart, whether from the index file or by scanning
+    for (int i = 0; i < 2; i++) {
+      cache.close();
+      if (i == 1)
+        assertTrue(indexFile(segmentFiles()[0]).delete());
+      cache = new DiskResponseCache(tmp.getRoot(), 1000, 400);
+      cache.awaitVerified(10000);
+      DiskResponseCache.Entry entry = cache.get("a");
+      assertEquals("max-age=60", entry.getHeader("Cache-Control"));
+      assertEquals("\"v1\"", entry.getHeader("ETag"));
+      assertTrue(entry.isFresh(System.currentTimeMillis()));
+      assertEquals(body.toString(), cachedBody("a"));
+    }
+
+    //gone with the segment of its body
+    for (int i = 0; i < 4; i++) {
+      store("k" + i, body.toString());
+    }
+    assertNull(cache.get("a"));
+  }
+
+  @Test
+  public void testMustRevalidateBeforeStaleDirectives() throws Exception {
+    long now = System.currentTimeMillis();
+    HttpResponse response = response("body", "max-age=0, must-revalidate, stale-while-revalidate=60, stale-if-error=60");
+    cache.cachingEntity("a", response, now).writeTo(new ByteArrayOutputStream());
+    DiskResponseCache.Entry entry = cache.get("a");
+    assertFalse(entry.isUsableWhileRevalidating(now + 1000));
+    assertFalse(entry.isUsableIfError(now + 1000));
+
+    //and in a later header
+    response = response("body", "max-age=0, stale-while-revalidate=60, stale-if-error=60");
+    response.addHeader("Cache-Control", "proxy-revalidate");
+    cache.cachingEntity("b", response, now).writeTo(new ByteArrayOutputStream());
+    entry = cache.get("b");
+    assertFalse(entry.isUsableWhileRevalidating(now + 1000));
+    assertFalse(entry.isUsableIfError(now + 1000));
+  }
+
+  @Test
+  public void testFill() throws Exception {
+    assertTrue(cache.awaitFill("a", 0));
+    assertTrue(cache.startFill("a"));
+    assertFalse(cache.startFill("a"));
+    assertFalse(cache.awaitFill("a", 10));
+    Thread filler = new Thread() {
+      @Override
+      public void run() {
+        cache.endFill("a");
+      }
+    };
+    filler.start();
+    assertTrue(cache.awaitFill("a", 10000));
+    assertTrue(cache.startFill("a"));
+  }
+
+  /** The segment files, oldest first. */
+  private File[] segmentFiles() {
+    File[] files = tmp.getRoot().listFiles(new java.io.FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(".dat");
+      }
+    });
+    java.util.Arrays.sort(files);
+    return files;
+  }
+
+  private static File indexFile(File segment) {
+    return new File(segment.getPath().replace(".dat", ".idx"));
+  }
+
+  @Test
+  public void testLoadsIndexFile() throws Exception {
+    store("a", "first");
+    store("b", "second");
+    store("a", "third");
+    cache.close();
+    File segment = segmentFiles()[0];
+    assertTrue(indexFile(segment).exists());
+
+    cache = new DiskResponseCache(tmp.getRoot(), 1000, 400);
+    cache.awaitVerified(10000);
+    assertEquals(2, cache.size());
+    assertEquals("third", cachedBody("a"));
+    assertEquals("second", cachedBody("b"));
+    assertEquals("max-age=60", cache.get("b").getHeader("Cache-Control"));
+
+    //a damaged index file is ignored; the segment is scanned instead, and indexed again
+    cache.close();
+    RandomAccessFile raf = new RandomAccessFile(indexFile(segment), "rw");
+    raf.seek(20);
+    raf.write('X');
+    raf.close();
+    cache = new DiskResponseCache(tmp.getRoot(), 1000, 400);
+    assertEquals(2, cache.size());
+    assertEquals("third", cachedBody("a"));
+    assertTrue(indexFile(segment).exists());
+  }
+
+  @Test
+  public void testRebuildsIndexOnOpen() throws Exception {
+    store("a", "first");
+    store("b", "second");
+    cache.close();
+    File segment = segmentFiles()[0];
+    assertTrue(indexFile(segment).delete());//as if the JVM stopped before it was written
+
+    //a torn write at the end of the segment is truncated away
+    long length = segment.length();
+    RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+    raf.setLength(length + 20);
+    raf.seek(length);
+    raf.writeInt(0x50534331);
+    raf.close();
+
+    cache = new DiskResponseCache(tmp.getRoot(), 1000, 400);
+    assertEquals(2, cache.size());
+    assertEquals("first", cachedBody("a"));
+    assertEquals("second", cachedBody("b"));
+    assertEquals(length, segment.length());
+    assertTrue(indexFile(segment).exists());
+  }
+
+  @Test
+  public void testCorruptBodyIsDropped() throws Exception {
+    store("a", "first");
+    store("b", "second");
+    cache.close();
+    File segment = segmentFiles()[0];
+    corruptBody(segment, "first");
+
+    //found by the background check of the bodies listed in the index file
+    cache = new DiskResponseCache(tmp.getRoot(), 1000, 400);
+    cache.awaitVerified(10000);
+    assertNull(cache.get("a"));
+    assertEquals("second", cachedBody("b"));
+
+    //and when scanning, without ending the scan
+    cache.close();
+    assertTrue(indexFile(segment).delete());
+    long length = segment.length();
+    cache = new DiskResponseCache(tmp.getRoot(), 1000, 400);
+    assertNull(cache.get("a"));
+    assertEquals("second", cachedBody("b"));
+    assertEquals("not truncated", length, segment.length());
+  }
+
+  /** Changes the last byte of {@code body} in {@code segment}. */
+  private static void corruptBody(File segment, String body) throws Exception {
+    RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+    try {
+      byte[] bytes = new byte[(int) raf.length()];
+      raf.readFully(bytes);
+      int at = new String(bytes, "ISO-8859-1").indexOf(body);
+      assertTrue(at >= 0);
+      raf.seek(at + body.length() - 1);
+      raf.write('X');
+    } finally {
+      raf.close();
+    }
+  }
+
+  @Test
+  public void testEvictsOldestSegment() throws Exception {
+    StringBuilder body = new StringBuilder();
+    for (int i = 0; i < 200; i++) {
+      body.append('x');
+    }
+    for (int i = 0; i < 8; i++) {
+      store("k" + i, body.toString());
+    }
+    assertNull(cache.get("k0"));
+    assertEquals(body.toString(), cachedBody("k7"));
+    long total = 0;
+    for (File file : tmp.getRoot().listFiles()) {
+      total += file.length();
+    }
+    assertTrue(total <= 1000);
+  }
+
+  @Test
+  public void testTmpFilesCountTowardsMax() throws Exception {
+    final StringBuilder body = new StringBuilder();
+    for (int i = 0; i < 200; i++) {
+      body.append('x');
+    }
+    for (int i = 0; i < 4; i++) {
+      store("k" + i, body.toString());
+    }
+    HttpResponse response = response("", "max-age=60");
+    response.setEntity(new AbstractHttpEntity() {
+      @Override
+      public void writeTo(OutputStream outstream) throws IOException {
+        outstream.write(body.toString().getBytes("UTF-8"));
+        outstream.write(body.substring(0, 100).getBytes("UTF-8"));
+        assertTrue("segments plus the body so far: " + dirBytes(), dirBytes() <= 1000);
+        outstream.write(body.substring(0, 50).getBytes("UTF-8"));
+      }
+
+      @Override
+      public boolean isRepeatable() {
+        return false;
+      }
+
+      @Override
+      public long getContentLength() {
+        return -1;
+      }
+
+      @Override
+      public InputStream getContent() {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public boolean isStreaming() {
+        return false;
+      }
+    });
+    cache.cachingEntity("big", response, System.currentTimeMillis() + 60000).writeTo(new ByteArrayOutputStream());
+    assertEquals(350, cache.get("big").getBodyLength());
+    assertTrue(dirBytes() <= 1000);
+  }
+
+  private long dirBytes() {
+    long total = 0;
+    for (File file : tmp.getRoot().listFiles()) {
+      total += file.length();
+    }
+    return total;
+  }
+
+  @Test
+  public void testDeletesTmpFilesOnOpen() throws Exception {
+    store("a", "first");
+    cache.close();
+    File leftOver = new File(tmp.getRoot(), "body123.tmp");
+    assertTrue(leftOver.createNewFile());
+    File notOurs = new File(tmp.getRoot(), "notes.txt");
+    assertTrue(notOurs.createNewFile());
+
+    cache = new DiskResponseCache(tmp.getRoot(), 1000, 400);
+    assertFalse(leftOver.exists());
+    assertTrue(notOurs.exists());
+    assertEquals("first", cachedBody("a"));
+  }
+
+  @Test
+  public void testTooLargeIsNotCached() throws Exception {
+    StringBuilder body = new StringBuilder();
+    for (int i = 0; i < 500; i++) {
+      body.append('x');
+    }
+    assertEquals(body.toString(), store("big", body.toString()));
+    assertNull(cache.get("big"));
+  }
+
+  @Test
+  public void testFillHints() throws Exception {
+    assertFalse(cache.isWorthFilling("a", null));
+    HttpResponse partial = response("0123", "max-age=60");
+    partial.setStatusCode(206);
+    partial.setHeader("Content-Range", "bytes 0-3/300");
+    cache.noteRangeResponse("a", partial, System.currentTimeMillis());
+    assertTrue(cache.isWorthFilling("a", null));
+
+    partial.setHeader("Content-Range", "bytes 0-3/500");//larger than a segment
+    cache.noteRangeResponse("b", partial, System.currentTimeMillis());
+    assertFalse(cache.isWorthFilling("b", null));
+    partial.setHeader("Content-Range", "bytes 0-3/*");
+    cache.noteRangeResponse("b", partial, System.currentTimeMillis());
+    assertFalse(cache.isWorthFilling("b", null));
+    partial.setHeader("Content-Range", "bytes 0-3/300");
+    partial.setHeader("Cache-Control", "no-store");
+    cache.noteRangeResponse("b", partial, System.currentTimeMillis());
+    assertFalse(cache.isWorthFilling("b", null));
+
+    //a cached entry shows it was cacheable, until a full response is found not to be
+    store("c", "body");
+    assertTrue(cache.isWorthFilling("c", cache.get("c")));
+    StringBuilder body = new StringBuilder();
+    for (int i = 0; i < 500; i++) {
+      body.append('x');
+    }
+    store("c", body.toString());
+    assertFalse(cache.isWorthFilling("c", cache.get("c")));
+  }
+
+  @Test
+  public void testGetExpires() throws Exception {
+    long now = System.currentTimeMillis();
+    assertEquals(now + 10000, DiskResponseCache.getExpires(response("", "public, s-maxage=10, max-age=5"), now));
+    assertEquals(-1, DiskResponseCache.getExpires(response("", "private, max-age=5"), now));
+    assertEquals(-1, DiskResponseCache.getExpires(response("", "no-store"), now));
+    HttpResponse response = response("", "max-age=5");
+    response.setHeader("Vary", "Accept-Encoding");
+    assertEquals(now + 5000, DiskResponseCache.getExpires(response, now));
+    response.setHeader("Vary", "Accept-Encoding, Cookie");
+    assertEquals(-1, DiskResponseCache.getExpires(response, now));
+    response = response("", "max-age=5");
+    response.setHeader("Set-Cookie", "a=b");
+    assertEquals(-1, DiskResponseCache.getExpires(response, now));
+    assertFalse(DiskResponseCache.getExpires(response("", "public"), now) > 0);
+  }
+}
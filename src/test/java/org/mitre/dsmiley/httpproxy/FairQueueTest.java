@@ -0,0 +1,79 @@
+package org.mitre.dsmiley.httpproxy;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FairQueueTest {
+
+  @Test
+  public void testWeightedOrder() throws Exception {
+    final FairQueue queue = new FairQueue(1);
+    FairQueue.RequestClass bulk = queue.addClass("bulk", 1, -1);
+    FairQueue.RequestClass interactive = queue.addClass("interactive", 4, -1);
+    assertTrue(queue.acquire(bulk, 0));//holds the only slot
+
+    final List<String> order = new CopyOnWriteArrayList<String>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (String name : new String[]{"b1", "b2", "b3", "i1", "i2"}) {
+      FairQueue.RequestClass requestClass = name.startsWith("b") ? bulk : interactive;
+      Thread thread = startWaiter(queue, requestClass, name, order);
+      threads.add(thread);
+      //wait for it to queue, so the arrival order is known
+      while (requestClass.getQueueDepth() < name.charAt(1) - '0')
+        Thread.sleep(1);
+    }
+    assertEquals(3, bulk.getQueueDepth());
+    assertEquals(2, interactive.getQueueDepth());
+    queue.release(bulk);
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    //the interactive requests, though last, overtake the bulk ones queued before them
+    assertEquals(Arrays.asList("i1", "i2", "b1", "b2", "b3"), order);
+    assertEquals(0, queue.getInFlight());
+    assertEquals(4, bulk.getAdmitted());
+    assertEquals(3, bulk.getMaxQueueDepth());
+    assertTrue(interactive.getMaxWaitMs() > 0);
+  }
+
+  private static Thread startWaiter(final FairQueue queue, final FairQueue.RequestClass requestClass,
+                                    final String name, final List<String> order) {
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        if (queue.acquire(requestClass, 10000)) {
+          order.add(name);
+          queue.release(requestClass);
+        }
+      }
+    };
+    thread.start();
+    return thread;
+  }
+
+  @Test
+  public void testRefusals() throws Exception {
+    FairQueue queue = new FairQueue(1);
+    FairQueue.RequestClass a = queue.addClass("a", 1, 0);
+    FairQueue.RequestClass b = queue.addClass("b", 1, -1);
+    assertTrue(queue.acquire(b, 0));
+    assertFalse(queue.acquire(a, 1000));//no room in its queue
+    long start = System.nanoTime();
+    assertFalse(queue.acquire(b, 50));//timed out
+    assertTrue(System.nanoTime() - start >= 50000000L);
+    assertEquals(1, a.getRejected());
+    assertEquals(1, b.getRejected());
+    assertEquals(0, b.getQueueDepth());
+    queue.release(b);
+    assertTrue(queue.acquire(a, 0));
+    assertEquals(1, queue.getInFlight());
+  }
+}
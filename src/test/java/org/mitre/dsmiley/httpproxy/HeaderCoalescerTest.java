@@ -0,0 +1,55 @@
+package org.mitre.dsmiley.httpproxy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HeaderCoalescerTest {
+
+  @Test
+  public void testCoalesce() {
+    HeaderCoalescer coalescer = new HeaderCoalescer(10);
+    coalescer.add("Vary", "Accept-Encoding");
+    coalescer.add("Set-Cookie", "a=1");
+    coalescer.add("Content-Encoding", "gzip");
+    coalescer.add("vary", "Origin");
+    coalescer.add("Set-Cookie", "b=2");
+    coalescer.add("Vary", "Accept-Encoding, User-Agent");//one duplicate
+    coalescer.add("Content-Encoding", "gzip");//encoded twice
+    coalescer.add("X-Custom", "1");
+    coalescer.add("X-Custom", "1");//unknown; left alone
+    coalescer.add("Link", "</a>; rel=\"next\"");
+    assertEquals(7, coalescer.size());
+    String[] expected = {
+        "Vary: Accept-Encoding, Origin, User-Agent", "Set-Cookie: a=1", "Content-Encoding: gzip, gzip", "Set-Cookie: b=2",
+        "X-Custom: 1", "X-Custom: 1", "Link: </a>; rel=\"next\""};
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(expected[i], coalescer.getName(i) + ": " + coalescer.getValue(i));
+    }
+  }
+
+  @Test
+  public void testContainsElement() {
+    StringBuilder list = new StringBuilder("Accept-Encoding, Origin,User-Agent");
+    assertTrue(HeaderCoalescer.containsElement(list, "Origin"));
+    assertTrue(HeaderCoalescer.containsElement(list, "User-Agent"));
+    assertTrue(HeaderCoalescer.containsElement(list, "Accept-Encoding"));
+    assertFalse(HeaderCoalescer.containsElement(list, "Accept"));
+    assertFalse(HeaderCoalescer.containsElement(list, "Agent"));
+  }
+
+  @Test
+  public void testRewriteSetCookie() {
+    assertEquals("!P!JSESSIONID=1234; Expires=Wed, 13 Jan 2021 22:23:01 GMT; HttpOnly; Path=/proxy",
+        HeaderCoalescer.rewriteSetCookie(
+            "JSESSIONID=1234; Path=/we/dont/want; Expires=Wed, 13 Jan 2021 22:23:01 GMT; Domain=.foo.com; HttpOnly",
+            "!P!", "/proxy"));
+    assertEquals("!P!a=\"x;y\"; Path=/", HeaderCoalescer.rewriteSetCookie("a=\"x;y\"", "!P!", ""));
+    assertEquals("!P!a=1;SameSite=Lax; Secure; Path=/p",
+        HeaderCoalescer.rewriteSetCookie("  a=1;SameSite=Lax; Secure;path = /x", "!P!", "/p"));
+    //an attribute whose name merely starts with "Path" is kept
+    assertEquals("!P!a=1; Pathological=1; Path=/p", HeaderCoalescer.rewriteSetCookie("a=1; Pathological=1", "!P!", "/p"));
+  }
+}
@@ -0,0 +1,44 @@
+package org.mitre.dsmiley.httpproxy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class PathTrieTest {
+
+  @Test
+  public void testLongestPrefixMatch() {
+    PathTrie<String> trie = new PathTrie<String>();
+    trie.put("/api", "api");
+    trie.put("/api/v2", "v2");
+    trie.put("/apple", "apple");
+    trie.put("/a", "a");
+    assertEquals(4, trie.size());
+
+    int[] len = new int[1];
+    assertEquals("api", trie.longestPrefixMatch("/api", len));
+    assertEquals(4, len[0]);
+    assertEquals("api", trie.longestPrefixMatch("/api/v1/x", len));
+    assertEquals("v2", trie.longestPrefixMatch("/api/v2/x", len));
+    assertEquals(7, len[0]);
+    assertEquals("a", trie.longestPrefixMatch("/a/pple", len));
+    assertEquals("apple", trie.longestPrefixMatch("/apple", len));
+    assertNull(trie.longestPrefixMatch("/apix", len));//not a segment boundary
+    assertNull(trie.longestPrefixMatch("/b", len));
+    assertEquals(0, len[0]);
+
+    assertEquals("api", trie.get("/api"));
+    assertNull(trie.get("/ap"));
+  }
+
+  @Test
+  public void testRootAndReplace() {
+    PathTrie<String> trie = new PathTrie<String>();
+    trie.put("", "root");
+    assertEquals("root", trie.longestPrefixMatch("/anything", null));
+    assertEquals("root", trie.put("", "root2"));
+    assertEquals(1, trie.size());
+    assertEquals("root2", trie.longestPrefixMatch("", null));
+  }
+}
@@ -18,6 +18,8 @@ import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.RequestLine;
 import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
 import org.apache.http.localserver.LocalTestServer;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.HttpRequestHandler;
@@ -27,20 +29,36 @@ import org.junit.Before;
 import org.junit.Test;
 import org.xml.sax.SAXException;
 
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * @author David Smiley - dsmiley@mitre.org
@@ -57,7 +75,7 @@ public class ProxyServletTest
 
   /** From Meterware httpunit. */
   protected ServletRunner servletRunner;
-  private ServletUnitClient sc;
+  protected ServletUnitClient sc;
 
   protected String targetBaseUri;
   protected String sourceBaseUri;
@@ -77,6 +95,7 @@ public class ProxyServletTest
     servletProps.setProperty("http.protocol.handle-redirects", "false");
     servletProps.setProperty(ProxyServlet.P_LOG, "true");
     servletProps.setProperty(ProxyServlet.P_FORWARDEDFOR, "true");
+    servletProps.setProperty(ProxyServlet.P_READY_PATH, "/ready");
     setUpServlet(servletProps);
 
     sc = servletRunner.newClient();
@@ -92,6 +111,15 @@ public class ProxyServletTest
     sourceBaseUri = "http://localhost/proxyMe";//localhost:0 is hard-coded in ServletUnitHttpRequest
   }
 
+  /** Registers another {@link ProxyServlet} at {@code path} with a copy of the {@code extra} init params,
+   * targeting /targetPath on the test server unless they set targetUri. */
+  protected void registerProxy(String path, Properties extra) {
+    Properties props = new Properties();
+    props.setProperty("targetUri", "http://localhost:"+localTestServer.getServiceAddress().getPort()+"/targetPath");
+    props.putAll(extra);
+    servletRunner.registerServlet(path + "/*", ProxyServlet.class.getName(), props);
+  }
+
   @After
   public void tearDown() throws Exception {
    servletRunner.shutDown();
@@ -149,11 +177,37 @@ public class ProxyServletTest
     assertEquals("!Proxy!"+servletName+"JSESSIONID=1234;path="+servletPath,rsp.getHeaderField("Set-Cookie"));
   }
 
+  @Test
+  public void testRewriteResponseHeaders() throws Exception {
+    localTestServer.register("/targetPath*", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        response.setStatusCode(Integer.parseInt(request.getFirstHeader("xxStatus").getValue()));
+        response.setHeader(HttpHeaders.LOCATION, targetBaseUri + "/new/1");
+        response.setHeader(HttpHeaders.CONTENT_LOCATION, "/targetPath/new/1?a=b");
+        response.setHeader("Refresh", "3; url='" + targetBaseUri + "/next'");
+        response.setHeader("Link", "<" + targetBaseUri + "/p2>; rel=\"next\", <http://elsewhere/x>; rel=\"alt\"");
+        response.setEntity(new StringEntity("created"));
+      }
+    });
+    for (int status : new int[]{HttpStatus.SC_CREATED, HttpStatus.SC_TEMPORARY_REDIRECT, 308}) {
+      GetMethodWebRequest request = makeGetMethodRequest(sourceBaseUri + "/x");
+      request.setHeaderField("xxStatus", String.valueOf(status));
+      WebResponse rsp = sc.getResponse(request);
+      assertEquals(status, rsp.getResponseCode());
+      assertEquals("created", rsp.getText());
+      assertEquals(sourceBaseUri + "/new/1", rsp.getHeaderField(HttpHeaders.LOCATION));
+      assertEquals(sourceBaseUri + "/new/1?a=b", rsp.getHeaderField(HttpHeaders.CONTENT_LOCATION));
+      assertEquals("3; url='" + sourceBaseUri + "/next'", rsp.getHeaderField("Refresh"));
+      assertEquals("<" + sourceBaseUri + "/p2>; rel=\"next\", <http://elsewhere/x>; rel=\"alt\"",
+          rsp.getHeaderField("Link"));
+    }
+  }
+
   @Test
   public void testSendFile() throws Exception {
     //TODO test with url parameters (i.e. a=b); but HttpUnit is faulty so we can't
     final PostMethodWebRequest request = new PostMethodWebRequest(
-            rewriteMakeMethodUrl("http://localhost/proxyMe"), true);//true: mime encoded
+            rewriteMakeMethodUrl(sourceBaseUri), true);//true: mime encoded
     InputStream data = new ByteArrayInputStream("testFileData".getBytes("UTF-8"));
     request.selectFile("fileNameParam", "fileName", data, "text/plain");
     WebResponse rsp = execAndAssert(request);
@@ -218,6 +272,68 @@ public class ProxyServletTest
     WebResponse rsp = execAndAssert(req, "");
   }
 
+  @Test
+  public void testForwardedHeaders() throws Exception {
+    Properties props = new Properties();
+    props.setProperty(ProxyServlet.P_FORWARDED_HEADERS, "X-Forwarded-For, X-Forwarded-Proto, Forwarded");
+    props.setProperty(ProxyServlet.P_TRUSTED_PROXIES, "10.0.0.0/8");
+    registerProxy("/untrusted", props);
+    props.setProperty(ProxyServlet.P_TRUSTED_PROXIES, "10.0.0.0/8, 127.0.0.1");
+    registerProxy("/trusted", props);//registerProxy copies props
+
+    String nl = System.getProperty("line.separator");
+    //the client isn't a trusted proxy, so what it claims is replaced
+    GetMethodWebRequest req = new GetMethodWebRequest("http://localhost/untrusted/x");
+    req.setHeaderField("X-Forwarded-For", "1.2.3.4");
+    req.setHeaderField("X-Forwarded-Proto", "https");
+    req.setHeaderField("X-Forwarded-Host", "spoofed");
+    req.setHeaderField("Forwarded", "for=1.2.3.4");
+    String text = sc.getResponse(req).getText();
+    assertTrue(text, text.contains("X-Forwarded-For: 127.0.0.1" + nl));
+    assertTrue(text, text.contains("X-Forwarded-Proto: http" + nl));
+    assertFalse(text, text.contains("X-Forwarded-Host"));
+    assertTrue(text, text.contains("Forwarded: for=127.0.0.1;proto=http;host="));
+    assertEquals("127.0.0.1", ((ProxyServlet) sc.newInvocation(req).getServlet()).getClientAddr(
+        sc.newInvocation(req).getRequest()));
+
+    //now it is, so it's built upon
+    req = new GetMethodWebRequest("http://localhost/trusted/x");
+    req.setHeaderField("X-Forwarded-For", "1.2.3.4, 10.0.0.1");
+    req.setHeaderField("X-Forwarded-Proto", "https");
+    req.setHeaderField("X-Forwarded-Host", "example.com");
+    req.setHeaderField("Forwarded", "for=1.2.3.4");
+    text = sc.getResponse(req).getText();
+    assertTrue(text, text.contains("X-Forwarded-For: 1.2.3.4, 10.0.0.1, 127.0.0.1" + nl));
+    assertTrue(text, text.contains("X-Forwarded-Proto: https" + nl));
+    assertTrue(text, text.contains("X-Forwarded-Host: example.com" + nl));
+    assertTrue(text, text.contains("Forwarded: for=1.2.3.4, for=127.0.0.1;proto=http;host="));
+    assertEquals("1.2.3.4", ((ProxyServlet) sc.newInvocation(req).getServlet()).getClientAddr(
+        sc.newInvocation(req).getRequest()));
+
+    //without X-Forwarded-For, the client is found in Forwarded
+    req = new GetMethodWebRequest("http://localhost/trusted/x");
+    req.setHeaderField("Forwarded", "for=\"[2001:db8::1]:4711\";proto=https, For=10.0.0.1;by=\"a,b\"");
+    assertEquals("2001:db8::1", ((ProxyServlet) sc.newInvocation(req).getServlet()).getClientAddr(
+        sc.newInvocation(req).getRequest()));
+    req.setHeaderField("Forwarded", "for=\"10.0.0.2:80\", for=10.0.0.1");
+    assertEquals("10.0.0.2", ((ProxyServlet) sc.newInvocation(req).getServlet()).getClientAddr(
+        sc.newInvocation(req).getRequest()));
+  }
+
+  @Test
+  public void testExpectContinue() throws Exception {
+    PostMethodWebRequest post = makePostMethodRequest(sourceBaseUri);
+    post.setHeaderField(HttpHeaders.EXPECT, "100-continue");
+    WebResponse rsp = execAndAssert(post);
+    assertTrue(rsp.getText().contains("Expect: 100-continue"));
+
+    //there's no body to wait on
+    GetMethodWebRequest get = makeGetMethodRequest(sourceBaseUri);
+    get.setHeaderField(HttpHeaders.EXPECT, "100-continue");
+    rsp = execAndAssert(get, "");
+    assertFalse(rsp.getText().contains("Expect:"));
+  }
+
   @Test
   public void testSetCookie() throws Exception {
     final String HEADER = "Set-Cookie";
@@ -323,6 +439,824 @@ public class ProxyServletTest
     assertEquals("USER_2_SESSION", sc.getCookieJar().getCookie("!Proxy!" + servletName + "JSESSIONID").getValue());
   }
 
+  @Test
+  public void testReadyPathAndDrain() throws Exception {
+    GetMethodWebRequest req = makeGetMethodRequest(sourceBaseUri + "/ready");
+    WebResponse rsp = sc.getResponse(req);
+    assertEquals(HttpStatus.SC_OK, rsp.getResponseCode());
+    assertEquals("READY", rsp.getText());
+
+    ProxyServlet servlet = (ProxyServlet) sc.newInvocation(req).getServlet();
+    assertEquals(0, servlet.getInFlightRequests());
+    servlet.startDrain();
+    assertTrue(servlet.isDraining());
+    for (String urlSuffix : new String[]{"/ready", ""}) {
+      try {
+        sc.getResponse(makeGetMethodRequest(sourceBaseUri + urlSuffix));
+        fail();
+      } catch (com.meterware.httpunit.HttpException e) {
+        assertEquals(HttpStatus.SC_SERVICE_UNAVAILABLE, e.getResponseCode());
+      }
+    }
+    assertTrue(servlet.awaitDrained(0));
+  }
+
+  @Test
+  public void testDrainWaitsForInFlight() throws Exception {
+    final CountDownLatch received = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    localTestServer.register("/targetPath*", new RequestInfoHandler() {
+      @Override
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        received.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        super.handle(request, response, context);
+      }
+    });
+    final ProxyServlet servlet = (ProxyServlet) sc.newInvocation(sourceBaseUri).getServlet();
+    final List<String> results = new CopyOnWriteArrayList<String>();
+    Thread request = new Thread() {
+      @Override
+      public void run() {
+        try {
+          results.add(sc.getResponse(makeGetMethodRequest(sourceBaseUri + "/held")).getText());
+        } catch (Exception e) {
+          results.add(e.toString());
+        }
+      }
+    };
+    request.start();
+    assertTrue(received.await(10, TimeUnit.SECONDS));
+    assertEquals(1, servlet.getInFlightRequests());
+
+    servlet.startDrain();
+    assertFalse("waits for the request in flight", servlet.awaitDrained(100));
+    Thread destroyer = new Thread() {
+      @Override
+      public void run() {
+        servlet.destroy();
+      }
+    };
+    destroyer.start();
+    destroyer.join(200);
+    assertTrue("destroy() waits too", destroyer.isAlive());
+
+    release.countDown();
+    request.join(10000);
+    destroyer.join(10000);
+    assertFalse(destroyer.isAlive());
+    assertEquals(1, results.size());
+    assertTrue(results.get(0), results.get(0).startsWith("REQUESTLINE: GET /targetPath/held"));
+    assertTrue(servlet.awaitDrained(0));
+  }
+
+  @Test
+  public void testWarmup() throws Exception {
+    Properties props = new Properties();
+    props.setProperty(ProxyServlet.P_WARMUP_CONNECTIONS, "2");
+    props.setProperty(ProxyServlet.P_READY_PATH, "/ready");
+    registerProxy("/warm", props);
+    GetMethodWebRequest req = new GetMethodWebRequest("http://localhost/warm/ready");
+    ProxyServlet servlet = (ProxyServlet) sc.newInvocation(req).getServlet();
+    for (int i = 0; i < 100 && !servlet.isWarmedUp(); i++) {
+      Thread.sleep(50);
+    }
+    assertTrue(servlet.isWarmedUp());
+    assertEquals("READY", sc.getResponse(req).getText());
+    assertEquals(2, localTestServer.getAcceptedConnectionCount());
+
+    //uses a warmed up connection
+    WebResponse rsp = sc.getResponse(new GetMethodWebRequest("http://localhost/warm/x"));
+    assertTrue(rsp.getText().startsWith("REQUESTLINE: GET /targetPath/x"));
+    assertEquals(2, localTestServer.getAcceptedConnectionCount());
+  }
+
+  @Test
+  public void testWarmupClampedToPool() throws Exception {
+    Properties props = new Properties();
+    props.setProperty(ProxyServlet.P_WARMUP_CONNECTIONS, "8");
+    props.setProperty(ProxyServlet.P_MAX_CONNECTIONS_PER_ROUTE, "3");
+    registerProxy("/warm", props);
+    ProxyServlet servlet = (ProxyServlet) sc.newInvocation("http://localhost/warm/x").getServlet();
+    for (int i = 0; i < 100 && !servlet.isWarmedUp(); i++) {
+      Thread.sleep(50);
+    }
+    assertTrue("not waiting for leases the pool won't give", servlet.isWarmedUp());
+    assertEquals(3, localTestServer.getAcceptedConnectionCount());
+  }
+
+  @Test
+  public void testRequestClasses() throws Exception {
+    Properties props = new Properties();
+    props.setProperty(ProxyServlet.P_REQUEST_CLASSES,
+        "interactive weight=8 path=/api\n" +
+        "acme weight=2 header.X-Tenant=acme\n");
+    props.setProperty(ProxyServlet.P_MAX_IN_FLIGHT, "4");
+    registerProxy("/classes", props);
+    sc.getResponse(new GetMethodWebRequest("http://localhost/classes/api/x"));
+    sc.getResponse(new GetMethodWebRequest("http://localhost/classes/apix"));
+    GetMethodWebRequest req = new GetMethodWebRequest("http://localhost/classes/y");
+    req.setHeaderField("X-Tenant", "acme");
+    sc.getResponse(req);
+
+    FairQueue queue = ((ProxyServlet) sc.newInvocation(req).getServlet()).getFairQueue();
+    assertEquals(4, queue.getSlots());
+    assertEquals(1, queue.getRequestClass("interactive").getAdmitted());
+    assertEquals(1, queue.getRequestClass("acme").getAdmitted());
+    assertEquals(1, queue.getRequestClass("default").getAdmitted());
+    assertEquals(0, queue.getInFlight());
+  }
+
+  @Test
+  public void testConnectionReuse() throws Exception {
+    Properties props = new Properties();
+    props.setProperty(ProxyServlet.P_CONNECTION_MAX_IDLE, "60000");
+    registerProxy("/reuse", props);
+    GetMethodWebRequest req = new GetMethodWebRequest("http://localhost/reuse/x");
+    for (int i = 0; i < 3; i++) {
+      assertTrue(sc.getResponse(req).getText().startsWith("REQUESTLINE: GET /targetPath/x"));
+    }
+    ConnectionMonitor monitor = ((ProxyServlet) sc.newInvocation(req).getServlet()).getConnectionMonitor();
+    assertEquals(1, monitor.getNewConnections());
+    assertEquals(2, monitor.getReusedConnections());
+    assertEquals(1, localTestServer.getAcceptedConnectionCount());
+  }
+
+  @Test
+  public void testPipelining() throws Exception {
+    Properties props = new Properties();
+    props.setProperty(ProxyServlet.P_PIPELINING, "true");
+    props.setProperty(ProxyServlet.P_PIPELINE_WINDOW, "20");
+    registerProxy("/pipelined", props);
+    final List<String> failures = new CopyOnWriteArrayList<String>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < 8; t++) {
+      final ServletUnitClient client = servletRunner.newClient();
+      final int thread = t;
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 10; i++) {
+            String path = "/targetPath/t" + thread + "r" + i;
+            try {
+              String text = client.getResponse(new GetMethodWebRequest("http://localhost/pipelined/t" + thread + "r" + i)).getText();
+              if (!text.startsWith("REQUESTLINE: GET " + path + " "))
+                failures.add(path + " got " + text.substring(0, text.indexOf('\n')));
+            } catch (Exception e) {
+              failures.add(path + " failed: " + e);
+            }
+          }
+        }
+      });
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(Collections.emptyList(), failures);
+    ProxyServlet servlet = (ProxyServlet) sc.newInvocation("http://localhost/pipelined/x").getServlet();
+    assertTrue(servlet.getRequestPipeliner().getPipelinedRequests() > 0);
+    //buffered bodies were given back to the budget
+    assertEquals(0, servlet.getMemoryBudget().getUsedBytes());
+  }
+
+  @Test
+  public void testPipelineTimeout() throws Exception {
+    localTestServer.register("/targetPath*", new RequestInfoHandler() {
+      @Override
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        try {
+          Thread.sleep(300);
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        super.handle(request, response, context);
+      }
+    });
+    Properties props = new Properties();
+    props.setProperty(ProxyServlet.P_PIPELINING, "true");
+    props.setProperty(ProxyServlet.P_PIPELINE_WINDOW, "100");
+    props.setProperty(ProxyServlet.P_PIPELINE_TIMEOUT, "500");
+    registerProxy("/pipelined", props);
+    final List<String> failures = new CopyOnWriteArrayList<String>();
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < 4; t++) {
+      final ServletUnitClient client = servletRunner.newClient();
+      final String name = "t" + t;
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          String path = "/targetPath/" + name;
+          try {
+            start.await();
+            String text = client.getResponse(new GetMethodWebRequest("http://localhost/pipelined/" + name)).getText();
+            if (!text.startsWith("REQUESTLINE: GET " + path + " "))
+              failures.add(path + " got " + text.substring(0, text.indexOf('\n')));
+          } catch (Exception e) {
+            failures.add(path + " failed: " + e);
+          }
+        }
+      });
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(Collections.emptyList(), failures);
+    //those queued behind 300ms responses gave up on the pipeline and were sent alone
+    ProxyServlet servlet = (ProxyServlet) sc.newInvocation("http://localhost/pipelined/x").getServlet();
+    assertTrue(servlet.getRequestPipeliner().getPipelines() > 0);
+    assertTrue(servlet.getRequestPipeliner().getFallbacks() > 0);
+    //including the responses read for them afterwards
+    assertEquals(0, servlet.getMemoryBudget().getUsedBytes());
+  }
+
+  @Test
+  public void testTracing() throws Exception {
+    Properties props = new Properties();
+    props.setProperty(ProxyServlet.P_TRACE_EXPORTER, RecordingTraceExporter.class.getName());
+    registerProxy("/traced", props);
+    RecordingTraceExporter.traces.clear();
+
+    String traceId = "4bf92f3577b34da6a3ce929d0e0e4736";
+    GetMethodWebRequest req = new GetMethodWebRequest("http://localhost/traced/x");
+    req.setHeaderField(ProxyTrace.TRACEPARENT, "00-" + traceId + "-00f067aa0ba902b7-01");
+    String text = sc.getResponse(req).getText();
+
+    assertEquals(1, RecordingTraceExporter.traces.size());
+    ProxyTrace trace = RecordingTraceExporter.traces.get(0);
+    assertEquals(traceId, trace.getTraceId());
+    assertEquals("00f067aa0ba902b7", trace.getParentSpanId());
+    assertEquals(200, trace.getStatusCode());
+    assertTrue(text.contains(ProxyTrace.TRACEPARENT + ": 00-" + traceId + "-" + trace.getSpanId() + "-01"));
+    for (ProxyTrace.Phase phase : ProxyTrace.Phase.values()) {
+      assertTrue(phase.name(), trace.getPhaseNanos(phase) > 0);
+    }
+    assertTrue(trace.getTotalNanos() >= trace.getPhaseOffsetNanos(ProxyTrace.Phase.BODY_COPY));
+  }
+
+  @Test
+  public void testTraceparentValidation() throws Exception {
+    String traceId = "4bf92f3577b34da6a3ce929d0e0e4736";
+    String parentId = "00f067aa0ba902b7";
+    assertTrue(ProxyTrace.isValidTraceparent("00-" + traceId + "-" + parentId + "-01"));
+    assertTrue(ProxyTrace.isValidTraceparent("01-" + traceId + "-" + parentId + "-01-future"));
+    assertFalse(ProxyTrace.isValidTraceparent("00-" + traceId.toUpperCase() + "-" + parentId + "-01"));
+    assertFalse(ProxyTrace.isValidTraceparent("00-00000000000000000000000000000000-" + parentId + "-01"));
+    assertFalse(ProxyTrace.isValidTraceparent("00-" + traceId + "-0000000000000000-01"));
+    assertFalse(ProxyTrace.isValidTraceparent("ff-" + traceId + "-" + parentId + "-01"));
+    assertFalse(ProxyTrace.isValidTraceparent("00-" + traceId + "-" + parentId + "-01-future"));
+    assertFalse(ProxyTrace.isValidTraceparent("01-" + traceId + "-" + parentId + "-01future"));
+    assertFalse(ProxyTrace.isValidTraceparent("00-" + traceId + "-" + parentId + "-0g"));
+
+    //an invalid traceparent starts a new trace
+    Properties props = new Properties();
+    props.setProperty(ProxyServlet.P_TRACE_EXPORTER, RecordingTraceExporter.class.getName());
+    registerProxy("/traced", props);
+    RecordingTraceExporter.traces.clear();
+    GetMethodWebRequest req = new GetMethodWebRequest("http://localhost/traced/x");
+    req.setHeaderField(ProxyTrace.TRACEPARENT, "00-" + traceId.toUpperCase() + "-" + parentId + "-01");
+    sc.getResponse(req);
+    assertEquals(1, RecordingTraceExporter.traces.size());
+    assertFalse(traceId.equalsIgnoreCase(RecordingTraceExporter.traces.get(0).getTraceId()));
+    assertNull(RecordingTraceExporter.traces.get(0).getParentSpanId());
+  }
+
+  @Test
+  public void testTraceParentSampled() throws Exception {
+    String traceparent = "00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01";
+    //by default the caller's sampled flag only counts from a trusted proxy
+    String[][] cases = {
+        {"/untrusted", null, null, "0"},
+        {"/trusted", null, "127.0.0.1", "1"},
+        {"/always", "always", null, "1"},
+        {"/never", "never", "127.0.0.1", "0"},
+    };
+    for (String[] c : cases) {
+      Properties props = new Properties();
+      props.setProperty(ProxyServlet.P_TRACE_EXPORTER, RecordingTraceExporter.class.getName());
+      props.setProperty(ProxyServlet.P_TRACE_SAMPLE_RATE, "0");
+      if (c[1] != null)
+        props.setProperty(ProxyServlet.P_TRACE_PARENT_SAMPLED, c[1]);
+      if (c[2] != null)
+        props.setProperty(ProxyServlet.P_TRUSTED_PROXIES, c[2]);
+      registerProxy(c[0], props);
+      RecordingTraceExporter.traces.clear();
+      GetMethodWebRequest req = new GetMethodWebRequest("http://localhost" + c[0] + "/x");
+      req.setHeaderField(ProxyTrace.TRACEPARENT, traceparent);
+      sc.getResponse(req);
+      assertEquals(c[0], Integer.parseInt(c[3]), RecordingTraceExporter.traces.size());
+    }
+
+    Properties props = new Properties();
+    props.setProperty(ProxyServlet.P_TRACE_EXPORTER, RecordingTraceExporter.class.getName());
+    props.setProperty(ProxyServlet.P_TRACE_PARENT_SAMPLED, "sometimes");
+    registerProxy("/bad", props);
+    try {
+      sc.newInvocation("http://localhost/bad/x").getServlet();
+      fail("expected an invalid " + ProxyServlet.P_TRACE_PARENT_SAMPLED + " to fail init");
+    } catch (ServletException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("sometimes"));
+    }
+  }
+
+  @Test
+  public void testCache() throws Exception {
+    final AtomicInteger targetRequests = new AtomicInteger();
+    localTestServer.register("/cacheable*", new RequestInfoHandler() {
+      @Override
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        super.handle(request, response, context);
+        targetRequests.incrementAndGet();
+        response.setHeader(HttpHeaders.CACHE_CONTROL, "max-age=60");
+      }
+    });
+    File cacheDir = File.createTempFile("cache", "");
+    cacheDir.delete();
+    Properties props = new Properties();
+    props.setProperty("targetUri", "http://localhost:"+localTestServer.getServiceAddress().getPort()+"/cacheable");
+    props.setProperty(ProxyServlet.P_CACHE_DIR, cacheDir.getPath());
+    registerProxy("/cached", props);
+
+    String first = sc.getResponse(new GetMethodWebRequest("http://localhost/cached/x")).getText();
+    WebResponse rsp = sc.getResponse(new GetMethodWebRequest("http://localhost/cached/x"));
+    assertEquals(first, rsp.getText());
+    assertEquals("max-age=60", rsp.getHeaderField(HttpHeaders.CACHE_CONTROL));
+    assertTrue(rsp.getHeaderField("Age") != null);
+    assertEquals(1, targetRequests.get());
+
+    GetMethodWebRequest noCache = new GetMethodWebRequest("http://localhost/cached/x");
+    noCache.setHeaderField(HttpHeaders.CACHE_CONTROL, "no-cache");
+    sc.getResponse(noCache);
+    sc.getResponse(new GetMethodWebRequest("http://localhost/cached/y"));
+    assertEquals(3, targetRequests.get());
+  }
+
+  @Test
+  public void testCacheServesStale() throws Exception {
+    final AtomicInteger targetRequests = new AtomicInteger();
+    final String[] cacheControl = {"max-age=0, stale-while-revalidate=60"};
+    final int[] status = {HttpStatus.SC_OK};
+    localTestServer.register("/cacheable*", new RequestInfoHandler() {
+      @Override
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        super.handle(request, response, context);
+        targetRequests.incrementAndGet();
+        response.setStatusCode(status[0]);
+        response.setHeader(HttpHeaders.CACHE_CONTROL, cacheControl[0]);
+      }
+    });
+    File cacheDir = File.createTempFile("cache", "");
+    cacheDir.delete();
+    Properties props = new Properties();
+    props.setProperty("targetUri", "http://localhost:"+localTestServer.getServiceAddress().getPort()+"/cacheable");
+    props.setProperty(ProxyServlet.P_CACHE_DIR, cacheDir.getPath());
+    registerProxy("/cached", props);
+
+    //stale-while-revalidate: served at once, refreshed in the background
+    sc.getResponse(new GetMethodWebRequest("http://localhost/cached/swr"));
+    WebResponse rsp = sc.getResponse(new GetMethodWebRequest("http://localhost/cached/swr"));
+    assertEquals(HttpStatus.SC_OK, rsp.getResponseCode());
+    assertTrue(rsp.getHeaderField("Warning").startsWith("110"));
+    for (int i = 0; i < 100 && targetRequests.get() < 2; i++) {
+      Thread.sleep(20);
+    }
+    assertEquals(2, targetRequests.get());
+
+    //stale-if-error: served when the target fails
+    cacheControl[0] = "max-age=0, stale-if-error=60";
+    sc.getResponse(new GetMethodWebRequest("http://localhost/cached/sie"));
+    status[0] = HttpStatus.SC_SERVICE_UNAVAILABLE;
+    rsp = sc.getResponse(new GetMethodWebRequest("http://localhost/cached/sie"));
+    assertEquals(HttpStatus.SC_OK, rsp.getResponseCode());
+    assertTrue(rsp.getText().startsWith("REQUESTLINE: GET /cacheable/sie"));
+    assertTrue(Arrays.asList(rsp.getHeaderFields("Warning")).toString().contains("111"));
+  }
+
+  @Test
+  public void testCacheRange() throws Exception {
+    final List<String> targetRanges = new CopyOnWriteArrayList<String>();
+    localTestServer.register("/cacheable*", new HttpRequestHandler() {
+      @Override
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        Header range = request.getFirstHeader(HttpHeaders.RANGE);
+        targetRanges.add(range == null ? "" : range.getValue());
+        boolean big = request.getRequestLine().getUri().contains("big");
+        response.setHeader(HttpHeaders.CACHE_CONTROL, big ? "no-store" : "max-age=60");
+        response.setHeader(HttpHeaders.ETAG, "\"v1\"");
+        String body = "0123456789abcdefghij";
+        if (range != null && range.getValue().matches("bytes=\\d+-\\d+")) {
+          String[] bounds = range.getValue().substring("bytes=".length()).split("-");
+          int first = Integer.parseInt(bounds[0]);
+          int last = Integer.parseInt(bounds[1]);
+          response.setStatusCode(HttpStatus.SC_PARTIAL_CONTENT);
+          response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + first + "-" + last + "/" + body.length());
+          body = body.substring(first, last + 1);
+        }
+        response.setEntity(new ByteArrayEntity(body.getBytes("UTF-8")));
+      }
+    });
+    File cacheDir = File.createTempFile("cache", "");
+    cacheDir.delete();
+    Properties props = new Properties();
+    props.setProperty("targetUri", "http://localhost:"+localTestServer.getServiceAddress().getPort()+"/cacheable");
+    props.setProperty(ProxyServlet.P_CACHE_DIR, cacheDir.getPath());
+    registerProxy("/cached", props);
+
+    //a first miss passes the range on, since it's not known if the full response is cacheable
+    GetMethodWebRequest req = new GetMethodWebRequest("http://localhost/cached/video");
+    req.setHeaderField(HttpHeaders.RANGE, "bytes=2-5");
+    WebResponse rsp = sc.getResponse(req);
+    assertEquals(HttpStatus.SC_PARTIAL_CONTENT, rsp.getResponseCode());
+    assertEquals("2345", rsp.getText());
+    assertEquals("bytes 2-5/20", rsp.getHeaderField(HttpHeaders.CONTENT_RANGE));
+    assertEquals(Arrays.asList("bytes=2-5"), targetRanges);
+
+    //it said so, so the next fetches and caches the full response, sending just the range
+    req.setHeaderField(HttpHeaders.RANGE, "bytes=-3");
+    req.setHeaderField(HttpHeaders.IF_RANGE, "\"v1\"");
+    rsp = sc.getResponse(req);
+    assertEquals(HttpStatus.SC_PARTIAL_CONTENT, rsp.getResponseCode());
+    assertEquals("hij", rsp.getText());
+    assertEquals("bytes 17-19/20", rsp.getHeaderField(HttpHeaders.CONTENT_RANGE));
+    assertEquals(Arrays.asList("bytes=2-5", ""), targetRanges);
+
+    //later ranges are served from the cache
+    req.setHeaderField(HttpHeaders.RANGE, "bytes=4-6");
+    rsp = sc.getResponse(req);
+    assertEquals(HttpStatus.SC_PARTIAL_CONTENT, rsp.getResponseCode());
+    assertEquals("456", rsp.getText());
+    assertEquals(2, targetRanges.size());
+
+    //If-Range doesn't match: the full response
+    req.setHeaderField(HttpHeaders.IF_RANGE, "\"v0\"");
+    rsp = sc.getResponse(req);
+    assertEquals(HttpStatus.SC_OK, rsp.getResponseCode());
+    assertEquals("0123456789abcdefghij", rsp.getText());
+
+    req = new GetMethodWebRequest("http://localhost/cached/video");
+    req.setHeaderField(HttpHeaders.RANGE, "bytes=20-");
+    try {
+      sc.getResponse(req);
+      fail();
+    } catch (com.meterware.httpunit.HttpException e) {
+      assertEquals(HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE, e.getResponseCode());
+    }
+    assertEquals(2, targetRanges.size());
+
+    //an uncacheable response's ranges are always passed on
+    targetRanges.clear();
+    for (String range : new String[]{"bytes=10-12", "bytes=15-19"}) {
+      req = new GetMethodWebRequest("http://localhost/cached/big");
+      req.setHeaderField(HttpHeaders.RANGE, range);
+      rsp = sc.getResponse(req);
+      assertEquals(HttpStatus.SC_PARTIAL_CONTENT, rsp.getResponseCode());
+    }
+    assertEquals("fghij", rsp.getText());
+    assertEquals(Arrays.asList("bytes=10-12", "bytes=15-19"), targetRanges);
+  }
+
+  @Test
+  public void testFlushHeaders() throws Exception {
+    Properties props = new Properties();
+    props.setProperty(ProxyServlet.P_FLUSH_HEADERS, "true");
+    props.setProperty(ProxyServlet.P_RESPONSE_BUFFER_SIZE, "4096");
+    registerProxy("/flushed", props);
+    for (int i = 0; i < 3; i++) {
+      WebResponse rsp = sc.getResponse(new GetMethodWebRequest("http://localhost/flushed/x" + i));
+      assertTrue(rsp.getText().startsWith("REQUESTLINE: GET /targetPath/x" + i));
+    }
+    TtfbMetrics ttfb = ((ProxyServlet) sc.newInvocation("http://localhost/flushed/x").getServlet()).getTtfbMetrics();
+    assertEquals(3, ttfb.getUpstreamCount());
+    assertEquals(3, ttfb.getClientCount());
+    assertTrue(ttfb.getMeanClientMs() >= ttfb.getMeanUpstreamMs());
+  }
+
+  @Test
+  public void testCoalesceHeaders() throws Exception {
+    localTestServer.register("/targetPath*", new RequestInfoHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        response.addHeader("Vary", "Accept-Encoding");
+        response.addHeader("Vary", "Origin, Accept-Encoding");
+        response.setHeader("Set-Cookie", "JSESSIONID=1234; Path=/we/dont/want; Domain=.foo.bar.com; HttpOnly");
+        super.handle(request, response, context);
+      }
+    });
+    Properties props = new Properties();
+    props.setProperty(ProxyServlet.P_COALESCE_HEADERS, "true");
+    registerProxy("/coalesced", props);
+    WebResponse rsp = sc.getResponse(new GetMethodWebRequest("http://localhost/coalesced/x"));
+    assertTrue(rsp.getText().startsWith("REQUESTLINE: GET /targetPath/x"));
+    assertEquals("Accept-Encoding, Origin", rsp.getHeaderField("Vary"));
+    String setCookie = rsp.getHeaderField("Set-Cookie");
+    assertTrue(setCookie, setCookie.startsWith("!Proxy!") && setCookie.contains("JSESSIONID=1234"));
+    assertFalse(setCookie, setCookie.contains("foo.bar.com"));
+  }
+
+  @Test
+  public void testReplicas() throws Exception {
+    int port = localTestServer.getServiceAddress().getPort();
+    Properties props = new Properties();
+    props.setProperty(ProxyServlet.P_TARGET_REPLICAS, "http://127.0.0.1:"+port+"/targetPath");
+    registerProxy("/replicated", props);
+    for (int i = 0; i < 10; i++) {
+      WebResponse rsp = sc.getResponse(new GetMethodWebRequest("http://localhost/replicated/x" + i));
+      assertTrue(rsp.getText().startsWith("REQUESTLINE: GET /targetPath/x" + i));
+    }
+    ReplicaBalancer balancer =
+        ((ProxyServlet) sc.newInvocation("http://localhost/replicated/x").getServlet()).getReplicaBalancer();
+    long requests = 0;
+    for (ReplicaBalancer.Replica replica : balancer.getReplicas()) {
+      requests += replica.getRequests();
+      assertEquals(0, replica.getPending());
+    }
+    assertEquals(10, requests);
+  }
+
+  @Test
+  public void testUpstreamTls() throws Exception {
+    LocalTestServer tlsServer = new LocalTestServer(UpstreamSslSocketFactoryTest.serverSslContext());
+    tlsServer.start();
+    try {
+      tlsServer.register("/targetPath*", new RequestInfoHandler() {
+        @Override
+        public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+          super.handle(request, response, context);
+          response.setHeader(HttpHeaders.CONNECTION, "close");//so that every request needs a handshake
+        }
+      });
+      Properties props = new Properties();
+      props.setProperty("targetUri", "https://localhost:"+tlsServer.getServiceAddress().getPort()+"/targetPath");
+      props.setProperty(ProxyServlet.P_SSL_TRUST_STORE,
+          UpstreamSslSocketFactoryTest.resourceFile("test-trust.jks").getPath());
+      props.setProperty(ProxyServlet.P_SSL_TRUST_STORE_PASSWORD, UpstreamSslSocketFactoryTest.PASSWORD);
+      props.setProperty(ProxyServlet.P_SSL_TRUST_STORE_TYPE, "JKS");
+      props.setProperty(ProxyServlet.P_SSL_PROTOCOLS, "TLSv1.2");
+      props.setProperty(ProxyServlet.P_SSL_CIPHER_SUITES, UpstreamSslSocketFactoryTest.CIPHER_SUITE);
+      props.setProperty(ProxyServlet.P_SSL_SESSION_CACHE_SIZE, "10");
+      props.setProperty(ProxyServlet.P_SSL_PROVIDER, "NoSuchProvider");//falls back on the default
+      registerProxy("/tls", props);
+      for (int i = 0; i < 3; i++) {
+        WebResponse rsp = sc.getResponse(new GetMethodWebRequest("http://localhost/tls/x" + i));
+        assertTrue(rsp.getText().startsWith("REQUESTLINE: GET /targetPath/x" + i));
+      }
+      UpstreamSslSocketFactory factory =
+          ((ProxyServlet) sc.newInvocation("http://localhost/tls/x").getServlet()).getUpstreamSslSocketFactory();
+      UpstreamSslSocketFactoryTest.awaitHandshakes(factory, 3);
+      assertEquals(1, factory.getFullHandshakes());
+      assertEquals(2, factory.getResumedHandshakes());
+    } finally {
+      tlsServer.stop();
+    }
+  }
+
+  @Test
+  public void testUpstreamTlsTransports() throws Exception {
+    LocalTestServer tlsServer = new LocalTestServer(UpstreamSslSocketFactoryTest.serverSslContext());
+    tlsServer.start();
+    try {
+      tlsServer.register("/targetPath*", new RequestInfoHandler() {
+        @Override
+        public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+          super.handle(request, response, context);
+          response.setHeader(HttpHeaders.CONNECTION, "close");
+        }
+      });
+      for (String name : new String[]{"jdk", "httpclient5"}) {
+        //an ECDSA suite can't be negotiated with the server's RSA key, so setting it fails the handshake
+        for (String cipherSuite : new String[]{UpstreamSslSocketFactoryTest.CIPHER_SUITE,
+            "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256"}) {
+          Properties props = new Properties();
+          props.setProperty("targetUri", "https://localhost:"+tlsServer.getServiceAddress().getPort()+"/targetPath");
+          props.setProperty(ProxyServlet.P_TRANSPORT, name);
+          props.setProperty(ProxyServlet.P_SSL_TRUST_STORE,
+              UpstreamSslSocketFactoryTest.resourceFile("test-trust.jks").getPath());
+          props.setProperty(ProxyServlet.P_SSL_TRUST_STORE_PASSWORD, UpstreamSslSocketFactoryTest.PASSWORD);
+          props.setProperty(ProxyServlet.P_SSL_TRUST_STORE_TYPE, "JKS");
+          props.setProperty(ProxyServlet.P_SSL_PROTOCOLS, "TLSv1.2");
+          props.setProperty(ProxyServlet.P_SSL_CIPHER_SUITES, cipherSuite);
+          String path = "/tls-" + name + "-" + cipherSuite;
+          registerProxy(path, props);
+          try {
+            WebResponse rsp = sc.getResponse(new GetMethodWebRequest("http://localhost" + path + "/x"));
+            assertEquals(name, UpstreamSslSocketFactoryTest.CIPHER_SUITE, cipherSuite);
+            assertTrue(rsp.getText().startsWith("REQUESTLINE: GET /targetPath/x"));
+          } catch (IOException e) {
+            assertTrue(name + ": " + e, !cipherSuite.equals(UpstreamSslSocketFactoryTest.CIPHER_SUITE));
+          }
+        }
+      }
+    } finally {
+      tlsServer.stop();
+    }
+  }
+
+  @Test
+  public void testUnavailableReplica() throws Exception {
+    localTestServer.register("/unavailable*", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        response.setStatusCode(HttpStatus.SC_SERVICE_UNAVAILABLE);
+      }
+    });
+    int port = localTestServer.getServiceAddress().getPort();
+    Properties props = new Properties();
+    props.setProperty(ProxyServlet.P_TARGET_REPLICAS, "http://127.0.0.1:"+port+"/unavailable");
+    registerProxy("/replicated", props);
+    int unavailable = 0;
+    for (int i = 0; i < 10; i++) {
+      try {
+        sc.getResponse(new GetMethodWebRequest("http://localhost/replicated/x" + i));
+      } catch (com.meterware.httpunit.HttpException e) {
+        assertEquals(HttpStatus.SC_SERVICE_UNAVAILABLE, e.getResponseCode());
+        unavailable++;
+      }
+    }
+    ReplicaBalancer.Replica replica =
+        ((ProxyServlet) sc.newInvocation("http://localhost/replicated/x").getServlet()).getReplicaBalancer()
+            .getReplicas().get(1);
+    assertEquals("/unavailable", new URI(replica.getTargetUri()).getPath());
+    assertEquals(unavailable, replica.getRequests());
+    assertEquals(unavailable, replica.getFailures());
+    //once it failed, the healthy replica was always the cheaper of the two
+    assertTrue(unavailable <= 1);
+  }
+
+  @Test
+  public void testVirtualThreadsFallBack() throws Exception {
+    //HttpUnit implements Servlet 2.4, so requests are proxied on the calling thread
+    Properties props = new Properties();
+    props.setProperty(ProxyServlet.P_VIRTUAL_THREADS, "true");
+    registerProxy("/virtual", props);
+    WebResponse rsp = sc.getResponse(new GetMethodWebRequest("http://localhost/virtual/x"));
+    assertTrue(rsp.getText().startsWith("REQUESTLINE: GET /targetPath/x"));
+  }
+
+  @Test
+  public void testTransports() throws Exception {
+    boolean jdkClient;
+    try {
+      Class.forName("java.net.http.HttpClient");
+      jdkClient = true;
+    } catch (ClassNotFoundException e) {
+      jdkClient = false;
+    }
+    assertTransport("jdk", jdkClient ? JdkHttpTransport.class : HttpClientTransport.class);
+    assertTransport("httpclient5", HttpClient5Transport.class);
+  }
+
+  private void assertTransport(String name, Class<?> transportClass) throws Exception {
+    Properties props = new Properties();
+    props.setProperty(ProxyServlet.P_TRANSPORT, name);
+    registerProxy("/" + name, props);
+    GetMethodWebRequest get = new GetMethodWebRequest("http://localhost/" + name + "/x");
+    get.setParameter("q", "v");
+    WebResponse rsp = sc.getResponse(get);
+    assertTrue(rsp.getText(), rsp.getText().startsWith("REQUESTLINE: GET /targetPath/x?q=v HTTP/1.1"));
+    PostMethodWebRequest post = new PostMethodWebRequest("http://localhost/" + name + "/y");
+    post.setParameter("abc", "ABC");
+    rsp = sc.getResponse(post);
+    assertTrue(rsp.getText(), rsp.getText().startsWith("REQUESTLINE: POST /targetPath/y HTTP/1.1"));
+    assertTrue(rsp.getText(), rsp.getText().contains("ABC"));
+    ProxyServlet servlet = (ProxyServlet) sc.newInvocation("http://localhost/" + name + "/x").getServlet();
+    assertEquals(transportClass, servlet.getTransport().getClass());
+  }
+
+  @Test
+  public void testTransportTimeouts() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    localTestServer.register("/hung*", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        try {
+          release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    try {
+      for (String name : new String[]{"httpclient4", "jdk", "httpclient5"}) {
+        Properties props = new Properties();
+        props.setProperty("targetUri", "http://localhost:"+localTestServer.getServiceAddress().getPort()+"/hung");
+        props.setProperty(ProxyServlet.P_TRANSPORT, name);
+        props.setProperty("http.socket.timeout", "200");
+        registerProxy("/hung-" + name, props);
+        long start = System.currentTimeMillis();
+        try {
+          sc.getResponse(new GetMethodWebRequest("http://localhost/hung-" + name + "/x"));
+          fail(name);
+        } catch (IOException e) {
+          //expected; timed out
+        }
+        assertTrue(name, System.currentTimeMillis() - start < 5000);
+      }
+    } finally {
+      release.countDown();
+    }
+  }
+
+  @Test
+  public void testFilters() throws Exception {
+    Properties props = new Properties();
+    props.setProperty(ProxyServlet.P_FILTERS, UpperCaseFilter.class.getName() + ", " + ProxyFilter.Adapter.class.getName());
+    registerProxy("/filtered", props);
+    UpperCaseFilter.completed.clear();
+
+    WebResponse rsp = sc.getResponse(new GetMethodWebRequest("http://localhost/filtered/x"));
+    assertTrue(rsp.getText().startsWith("REQUESTLINE: GET /TARGETPATH/X"));
+    assertTrue(rsp.getText().contains("X-FILTERED: YES"));
+    assertEquals("yes", rsp.getHeaderField("X-Filtered"));
+
+    try {
+      sc.getResponse(new GetMethodWebRequest("http://localhost/filtered/blocked"));
+      fail();
+    } catch (com.meterware.httpunit.HttpException e) {
+      assertEquals(HttpStatus.SC_FORBIDDEN, e.getResponseCode());
+    }
+    assertEquals(Arrays.asList(200, 0), UpperCaseFilter.completed);
+  }
+
+  @Test
+  public void testUrlRewritingFilter() throws Exception {
+    final String targetUri = "http://localhost:"+localTestServer.getServiceAddress().getPort()+"/targetPath";
+    localTestServer.register("/targetPath*", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {//spans several chunks
+          body.append("<a href=\"").append(targetUri).append("/p").append(i).append("\">")
+              .append(targetUri.replace("/", "\\/")).append("</a>\n");
+        }
+        response.setEntity(new StringEntity(body.toString(), ContentType.TEXT_HTML));
+      }
+    });
+    Properties props = new Properties();
+    props.setProperty("targetUri", targetUri);
+    props.setProperty(ProxyServlet.P_FILTERS, UrlRewritingFilter.class.getName());
+    registerProxy("/rewrite", props);
+
+    WebResponse rsp = sc.getResponse(new GetMethodWebRequest("http://localhost/rewrite/x"));
+    String text = rsp.getText();
+    assertFalse(text.contains("localhost:" + localTestServer.getServiceAddress().getPort()));
+    assertTrue(text.startsWith("<a href=\"http://localhost/rewrite/p0\">http:\\/\\/localhost\\/rewrite</a>\n"));
+    assertTrue(text.endsWith("<a href=\"http://localhost/rewrite/p1999\">http:\\/\\/localhost\\/rewrite</a>\n"));
+    assertNull(rsp.getHeaderField(HttpHeaders.CONTENT_LENGTH));
+  }
+
+  public static class UpperCaseFilter extends ProxyFilter.Adapter {
+    static final List<Integer> completed = new CopyOnWriteArrayList<Integer>();
+
+    @Override
+    public boolean onRequest(HttpServletRequest servletRequest, HttpServletResponse servletResponse,
+                             HttpRequest proxyRequest) throws IOException {
+      if (servletRequest.getPathInfo().equals("/blocked")) {
+        servletResponse.sendError(HttpServletResponse.SC_FORBIDDEN);
+        return false;
+      }
+      proxyRequest.setHeader("X-Filtered", "yes");
+      return true;
+    }
+
+    @Override
+    public void onResponseHeaders(HttpServletRequest servletRequest, HttpResponse proxyResponse) {
+      proxyResponse.removeHeaders(HttpHeaders.CONTENT_LENGTH);
+      proxyResponse.setHeader("X-Filtered", "yes");
+    }
+
+    @Override
+    public OutputStream wrapResponseBody(HttpServletRequest servletRequest, HttpResponse proxyResponse,
+                                         OutputStream out) {
+      return new FilterOutputStream(out) {
+        @Override
+        public void write(int b) throws IOException {
+          out.write(Character.toUpperCase((char) b));
+        }
+      };
+    }
+
+    @Override
+    public void onComplete(HttpServletRequest servletRequest, HttpResponse proxyResponse, Throwable error) {
+      completed.add(proxyResponse == null ? 0 : proxyResponse.getStatusLine().getStatusCode());
+    }
+  }
+
+  public static class RecordingTraceExporter implements TraceExporter {
+    static final List<ProxyTrace> traces = new CopyOnWriteArrayList<ProxyTrace>();
+
+    @Override
+    public void export(ProxyTrace trace) {
+      traces.add(trace);
+    }
+  }
+
   private WebResponse execAssert(GetMethodWebRequest request, String expectedUri) throws Exception {
     return execAndAssert(request, expectedUri);
   }
@@ -366,7 +1300,7 @@ public class ProxyServletTest
     return new URI(this.targetBaseUri).getPath() + expectedUri;
   }
 
-  private GetMethodWebRequest makeGetMethodRequest(final String url) {
+  protected GetMethodWebRequest makeGetMethodRequest(final String url) {
     return makeMethodRequest(url,GetMethodWebRequest.class);
   }
 
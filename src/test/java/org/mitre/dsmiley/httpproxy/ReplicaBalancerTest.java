@@ -0,0 +1,96 @@
+package org.mitre.dsmiley.httpproxy;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ReplicaBalancerTest {
+
+  private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  @Test
+  public void testAvoidsSlowReplica() {
+    ReplicaBalancer balancer = new ReplicaBalancer(
+        Arrays.asList("http://a:8080/app", "http://b:8080/app", "http://c:8080/app"), 10000, 50);
+    List<ReplicaBalancer.Replica> replicas = balancer.getReplicas();
+    replicas.get(0).responded(5 * MS);
+    replicas.get(1).responded(500 * MS);
+    replicas.get(2).responded(5 * MS);
+    //of any two picked, one is faster than b
+    for (int i = 0; i < 100; i++) {
+      assertTrue(balancer.choose() != replicas.get(1));
+    }
+    assertEquals("b", replicas.get(1).getHost().getHostName());
+  }
+
+  @Test
+  public void testPending() {
+    ReplicaBalancer balancer = new ReplicaBalancer(Arrays.asList("http://a/", "http://b/"), 10000, 50);
+    ReplicaBalancer.Replica a = balancer.getReplicas().get(0);
+    ReplicaBalancer.Replica b = balancer.getReplicas().get(1);
+    a.responded(10 * MS);
+    b.responded(10 * MS);
+    a.started();
+    for (int i = 0; i < 20; i++) {
+      assertSame(b, balancer.choose());
+    }
+    a.finished();
+    assertEquals(0, a.getPending());
+    assertEquals(1, a.getRequests());
+  }
+
+  @Test
+  public void testPeakEwma() {
+    ReplicaBalancer balancer = new ReplicaBalancer(Arrays.asList("http://a/"), 1000, 50);
+    ReplicaBalancer.Replica a = balancer.getReplicas().get(0);
+    long now = System.nanoTime();
+    a.observe(10 * MS, now);
+    assertEquals(50 * MS, a.getLatencyNanos(now), MS);//faster; needs time to pull the estimate down
+    a.observe(200 * MS, now);
+    assertEquals(200 * MS, a.getLatencyNanos(now), MS);//slower; taken at once
+    a.observe(10 * MS, now + 1000 * MS);
+    //a decay period on: weighted e^-1 toward the new value
+    assertEquals(10 + 190 * Math.exp(-1), a.getLatencyNanos(now + 1000 * MS) / MS, 1);
+    //and it decays while idle
+    assertEquals((10 + 190 * Math.exp(-1)) * Math.exp(-2), a.getLatencyNanos(now + 3000 * MS) / MS, 1);
+  }
+
+  @Test
+  public void testFailure() {
+    ReplicaBalancer balancer = new ReplicaBalancer(Arrays.asList("http://a/", "http://b/"), 10000, 50);
+    ReplicaBalancer.Replica a = balancer.getReplicas().get(0);
+    a.failed();
+    assertEquals(1, a.getFailures());
+    assertTrue(a.getLatencyMs() > 9000);
+    assertSame(balancer.getReplicas().get(1), balancer.choose());
+  }
+
+  @Test
+  public void testUnavailable() {
+    ReplicaBalancer balancer = new ReplicaBalancer(Arrays.asList("http://a/", "http://b/"), 10000, 50);
+    ReplicaBalancer.Replica a = balancer.getReplicas().get(0);
+    ReplicaBalancer.Replica b = balancer.getReplicas().get(1);
+    b.responded(200, 20 * MS);
+    a.responded(404, 1 * MS);
+    assertEquals(0, a.getFailures());
+    for (int status : new int[]{502, 503, 504}) {
+      a.responded(status, 1 * MS);//a fast error isn't a fast replica
+    }
+    assertEquals(3, a.getFailures());
+    assertTrue(a.getLatencyMs() > 9000);
+    for (int i = 0; i < 20; i++) {
+      assertSame(b, balancer.choose());
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRelativeUri() {
+    new ReplicaBalancer(Arrays.asList("/app"), 10000, 50);
+  }
+}
@@ -0,0 +1,186 @@
+package org.mitre.dsmiley.httpproxy;
+
+import com.meterware.httpunit.GetMethodWebRequest;
+import com.meterware.httpunit.HttpNotFoundException;
+import com.meterware.httpunit.WebResponse;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.junit.Test;
+
+import javax.servlet.ServletException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RoutingProxyServletTest extends ProxyServletTest {
+
+  @Override
+  public void setUp() throws Exception {
+    servletName = RoutingProxyServlet.class.getName();
+    servletPath = "/proxyRouted";
+    super.setUp();
+  }
+
+  @Override
+  protected void setUpServlet(Properties servletProps) {
+    targetBaseUri = "http://localhost:"+localTestServer.getServiceAddress().getPort()+"/targetPath";
+    servletProps.setProperty(RoutingProxyServlet.P_ROUTES,
+        "# the base tests go to the root route\n" +
+        "/   " + targetBaseUri + "\n" +
+        "/other/  " + targetBaseUri + "/otherPath  header.X-Route=\"other route\"\n" +
+        "/other/deeper  " + targetBaseUri + "/deeperPath  cookies=false forwarded=X-Forwarded-Proto flushHeaders=true responseBufferSize=4096\n" +
+        "otherhost/other  " + targetBaseUri + "/hostPath\n");
+    servletRunner.registerServlet(servletPath + "/*", servletName, servletProps);
+    sourceBaseUri = "http://localhost/proxyRouted";//localhost:0 is hard-coded in ServletUnitHttpRequest
+  }
+
+  @Test
+  public void testPrefixRoutes() throws Exception {
+    assertRequestLine(makeGetMethodRequest(sourceBaseUri + "/other"), "/targetPath/otherPath");
+    assertRequestLine(makeGetMethodRequest(sourceBaseUri + "/other/a?b=c"), "/targetPath/otherPath/a?b=c");
+    assertRequestLine(makeGetMethodRequest(sourceBaseUri + "/other/deeper/a"), "/targetPath/deeperPath/a");
+    //not a segment boundary, so goes to the root route
+    assertRequestLine(makeGetMethodRequest(sourceBaseUri + "/otherwise"), "/targetPath/otherwise");
+  }
+
+  @Test
+  public void testHostRoute() throws Exception {
+    GetMethodWebRequest req = makeGetMethodRequest(sourceBaseUri + "/other/a");
+    req.setHeaderField("Host", "OtherHost:8080");
+    assertRequestLine(req, "/targetPath/hostPath/a");
+  }
+
+  @Test
+  public void testRouteOptions() throws Exception {
+    GetMethodWebRequest req = makeGetMethodRequest(sourceBaseUri + "/other/a");
+    req.setHeaderField("Cookie", "!Proxy!" + servletName + "JSESSIONID=1234");
+    String text = assertRequestLine(req, "/targetPath/otherPath/a");
+    assertTrue(text.contains("X-Route: other route"));
+    assertTrue(text.contains("Cookie: JSESSIONID=1234"));
+
+    req = makeGetMethodRequest(sourceBaseUri + "/other/deeper/a");
+    req.setHeaderField("Cookie", "!Proxy!" + servletName + "JSESSIONID=1234");
+    text = assertRequestLine(req, "/targetPath/deeperPath/a");
+    assertTrue(!text.contains("X-Route"));
+    assertTrue(!text.contains("Cookie:"));
+    assertTrue(!text.contains("X-Forwarded-For"));
+    assertTrue(text.contains("X-Forwarded-Proto: http"));
+  }
+
+  @Test
+  public void testReloadRoutes() throws Exception {
+    GetMethodWebRequest req = makeGetMethodRequest(sourceBaseUri + "/other/a");
+    RoutingProxyServlet servlet = (RoutingProxyServlet) sc.newInvocation(req).getServlet();
+    RoutingProxyServlet.RouteTable oldTable = servlet.getRouteTable();
+    servlet.reloadRoutes("/other " + targetBaseUri + "/reloadedPath");
+    assertRequestLine(makeGetMethodRequest(sourceBaseUri + "/other/a"), "/targetPath/reloadedPath/a");
+    try {
+      sc.getResponse(makeGetMethodRequest(sourceBaseUri + "/unrouted"));
+      fail();
+    } catch (HttpNotFoundException e) {
+      //expected; no route
+    }
+
+    try {
+      servlet.reloadRoutes("/bad");
+      fail();
+    } catch (ServletException e) {
+      //expected; the table is unchanged
+    }
+    assertEquals(1, servlet.getRouteTable().getRoutes().size());
+    assertTrue(oldTable != servlet.getRouteTable());
+  }
+
+  @Test
+  public void testFileRoutesSource() throws Exception {
+    File file = File.createTempFile("routes", ".txt");
+    try {
+      Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+      writer.write("/a http://x/a\n");
+      writer.close();
+      RoutingProxyServlet.FileRoutesSource source = new RoutingProxyServlet.FileRoutesSource(file);
+      long version = source.getVersion();
+      assertEquals("/a http://x/a\n", source.getRoutes());
+      writer = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+      writer.write("/b http://x/b\n");
+      writer.close();
+      assertTrue(version != source.getVersion());
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testParse() throws Exception {
+    RoutingProxyServlet.RouteTable table = RoutingProxyServlet.RouteTable.parse(
+        "/a http://x/a\n\n/b http://y/b socketTimeout=10");
+    int[] prefixLength = new int[1];
+    assertEquals("http://y/b", table.find(null, "/b/c", prefixLength).getTargetUri());
+    assertEquals(2, prefixLength[0]);
+    assertEquals(10, table.find(null, "/b", prefixLength).getSocketTimeout());
+    assertEquals(null, table.find(null, "/c", prefixLength));
+  }
+
+  @Test
+  public void testRouteTimeoutsOnOtherTransports() throws Exception {
+    //the route's socketTimeout reaches the httpclient5 transport
+    final CountDownLatch release = new CountDownLatch(1);
+    localTestServer.register("/hung*", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        try {
+          release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    String hungUri = "http://localhost:"+localTestServer.getServiceAddress().getPort()+"/hung";
+    Properties props = new Properties();
+    props.setProperty(ProxyServlet.P_TRANSPORT, "httpclient5");
+    props.setProperty(RoutingProxyServlet.P_ROUTES, "/ " + hungUri + " socketTimeout=200");
+    servletRunner.registerServlet("/routed5/*", servletName, props);
+    long start = System.currentTimeMillis();
+    try {
+      sc.getResponse(makeGetMethodRequest("http://localhost/routed5/x"));
+      fail();
+    } catch (IOException e) {
+      //expected; timed out
+    } finally {
+      release.countDown();
+    }
+    assertTrue(System.currentTimeMillis() - start < 5000);
+
+    //the jdk transport has no per-request connect timeout
+    props = new Properties();
+    props.setProperty(ProxyServlet.P_TRANSPORT, "jdk");
+    props.setProperty(RoutingProxyServlet.P_ROUTES, "/ " + hungUri + " connectTimeout=200");
+    servletRunner.registerServlet("/routedJdk/*", servletName, props);
+    try {
+      sc.newInvocation("http://localhost/routedJdk/x").getServlet();
+      fail();
+    } catch (ServletException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("connectTimeout"));
+    }
+  }
+
+  private String assertRequestLine(GetMethodWebRequest req, String expectedTargetUri) throws Exception {
+    WebResponse rsp = sc.getResponse(req);
+    assertEquals(HttpStatus.SC_OK, rsp.getResponseCode());
+    String text = rsp.getText();
+    assertTrue(text, text.startsWith("REQUESTLINE: GET " + expectedTargetUri + " HTTP/1.1"));
+    return text;
+  }
+}
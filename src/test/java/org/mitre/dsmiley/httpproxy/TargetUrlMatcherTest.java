@@ -0,0 +1,35 @@
+package org.mitre.dsmiley.httpproxy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TargetUrlMatcherTest {
+
+  @Test
+  public void testMatch() {
+    TargetUrlMatcher matcher = new TargetUrlMatcher("http://Backend:80/api/");
+    assertEquals(18, matcher.match("http://backend/api/x?y"));
+    assertEquals(21, matcher.match("HTTP://BACKEND:80/api"));
+    assertEquals(13, matcher.match("//backend/api#f"));
+    assertEquals(-1, matcher.match("http://backend/apix"));//not a segment boundary
+    assertEquals(-1, matcher.match("http://backend:8080/api"));
+    assertEquals(-1, matcher.match("https://backend/api"));
+    assertEquals(-1, matcher.match("http://backend.evil/api"));
+    assertEquals(-1, matcher.match("/api/x"));
+  }
+
+  @Test
+  public void testMatchPath() {
+    TargetUrlMatcher matcher = new TargetUrlMatcher("https://backend:443/api");
+    assertEquals(4, matcher.matchPath("/api/x"));
+    assertEquals(4, matcher.matchPath("/api?q"));
+    assertEquals(-1, matcher.matchPath("/apix"));
+    assertEquals(-1, matcher.matchPath("//backend/api"));
+    assertEquals(-1, matcher.matchPath("api/x"));
+
+    TargetUrlMatcher root = new TargetUrlMatcher("http://backend");
+    assertEquals(0, root.matchPath("/anything"));
+    assertEquals(14, root.match("http://backend"));
+  }
+}
@@ -0,0 +1,155 @@
+package org.mitre.dsmiley.httpproxy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.security.KeyStore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class UpstreamSslSocketFactoryTest {
+
+  static final String PASSWORD = "changeit";
+  static final String CIPHER_SUITE = "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256";
+
+  private SSLServerSocket serverSocket;
+
+  @Before
+  public void setUp() throws Exception {
+    serverSocket = (SSLServerSocket) serverSslContext().getServerSocketFactory().createServerSocket(0);
+    Thread acceptor = new Thread("TLS acceptor") {
+      @Override
+      public void run() {
+        while (true) {
+          try {
+            Socket socket = serverSocket.accept();
+            try {
+              ((SSLSocket) socket).startHandshake();
+            } catch (IOException e) {
+              //the client gave up
+            } finally {
+              socket.close();
+            }
+          } catch (IOException e) {
+            return;//closed
+          }
+        }
+      }
+    };
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    serverSocket.close();
+  }
+
+  @Test
+  public void testPrepareSocket() throws Exception {
+    SSLContext sslContext = clientSslContext();
+    String[] protocols = {"TLSv1.2"};
+    String[] cipherSuites = {CIPHER_SUITE};
+    UpstreamSslSocketFactory factory = new UpstreamSslSocketFactory(sslContext, protocols, cipherSuites);
+    SSLSocket socket = (SSLSocket) sslContext.getSocketFactory().createSocket();
+    factory.prepareSocket(socket);
+    assertArrayEquals(protocols, socket.getEnabledProtocols());
+    assertArrayEquals(cipherSuites, socket.getEnabledCipherSuites());
+    socket.close();
+
+    //unset parameters leave the JVM's defaults alone
+    factory = new UpstreamSslSocketFactory(sslContext, null, null);
+    socket = (SSLSocket) sslContext.getSocketFactory().createSocket();
+    String[] defaultProtocols = socket.getEnabledProtocols();
+    String[] defaultCipherSuites = socket.getEnabledCipherSuites();
+    factory.prepareSocket(socket);
+    assertArrayEquals(defaultProtocols, socket.getEnabledProtocols());
+    assertArrayEquals(defaultCipherSuites, socket.getEnabledCipherSuites());
+    socket.close();
+  }
+
+  @Test
+  public void testHandshakes() throws Exception {
+    UpstreamSslSocketFactory factory = new UpstreamSslSocketFactory(clientSslContext(),
+        new String[]{"TLSv1.2"}, new String[]{CIPHER_SUITE});
+    for (int i = 0; i < 3; i++) {
+      SSLSocket socket = connect(factory);
+      assertEquals("TLSv1.2", socket.getSession().getProtocol());
+      assertEquals(CIPHER_SUITE, socket.getSession().getCipherSuite());
+      socket.close();
+    }
+    awaitHandshakes(factory, 3);
+    assertEquals(1, factory.getFullHandshakes());
+    assertEquals(2, factory.getResumedHandshakes());
+
+    //a fresh context has no sessions to resume
+    factory = new UpstreamSslSocketFactory(clientSslContext(), new String[]{"TLSv1.2"}, null);
+    connect(factory).close();
+    awaitHandshakes(factory, 1);
+    assertEquals(1, factory.getFullHandshakes());
+    assertEquals(0, factory.getResumedHandshakes());
+  }
+
+  private SSLSocket connect(UpstreamSslSocketFactory factory) throws IOException {
+    SSLSocket socket = (SSLSocket) factory.createSocket();//prepared as HttpClient would
+    socket.connect(serverSocket.getLocalSocketAddress());
+    socket.startHandshake();
+    return socket;
+  }
+
+  /** JSSE notifies handshake listeners on another thread. */
+  static void awaitHandshakes(UpstreamSslSocketFactory factory, long count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (factory.getFullHandshakes() + factory.getResumedHandshakes() < count
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertTrue("handshakes: " + factory.getFullHandshakes() + " full, " + factory.getResumedHandshakes()
+        + " resumed", factory.getFullHandshakes() + factory.getResumedHandshakes() >= count);
+  }
+
+  /** A context for the test server's self-signed certificate for localhost. */
+  static SSLContext serverSslContext() throws Exception {
+    KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+    kmf.init(loadKeyStore("test-server.jks"), PASSWORD.toCharArray());
+    SSLContext sslContext = SSLContext.getInstance("TLS");
+    sslContext.init(kmf.getKeyManagers(), null, null);
+    return sslContext;
+  }
+
+  private static SSLContext clientSslContext() throws Exception {
+    TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+    tmf.init(loadKeyStore("test-trust.jks"));
+    SSLContext sslContext = SSLContext.getInstance("TLS");
+    sslContext.init(null, tmf.getTrustManagers(), null);
+    return sslContext;
+  }
+
+  private static KeyStore loadKeyStore(String resource) throws Exception {
+    KeyStore keyStore = KeyStore.getInstance("JKS");
+    InputStream in = new FileInputStream(resourceFile(resource));
+    try {
+      keyStore.load(in, PASSWORD.toCharArray());
+    } finally {
+      in.close();
+    }
+    return keyStore;
+  }
+
+  static File resourceFile(String resource) throws Exception {
+    return new File(UpstreamSslSocketFactoryTest.class.getClassLoader().getResource(resource).toURI());
+  }
+}